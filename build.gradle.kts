@@ -4,6 +4,7 @@ plugins {
     jacoco
     application
     id("com.diffplug.spotless") version "6.21.0"
+    id("me.champeau.jmh") version "0.7.2"
     `maven-publish`
     base
 }
@@ -14,12 +15,17 @@ repositories {
     mavenCentral()
 }
 
+// The annotation processor that generates the library of native functions, it is compiled on its
+// own so it can be run when the main source set is compiled.
+val processor: SourceSet by sourceSets.creating
+
 dependencies {
     antlr("org.antlr:antlr4:4.13.0")
-    implementation("org.reflections:reflections:0.10.2")
+    annotationProcessor(processor.output)
     implementation("org.apache.commons", "commons-text", "1.6")
     implementation("org.apache.logging.log4j", "log4j-api", "2.21.1");
     implementation("org.apache.logging.log4j", "log4j-core", "2.21.1");
+    implementation("org.ow2.asm", "asm", "9.7");
     testImplementation("org.mockito:mockito-core:3.3.3");
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.8.2");
     testImplementation("org.junit.jupiter:junit-jupiter-params:5.8.2");
@@ -62,6 +68,21 @@ tasks.withType<Test> {
     }
 }
 
+// Runs the whole test suite again with the hand-written S-expression reader as the compiler front
+// end, rather than the ANTLR parser.
+val testReaderFrontEnd by tasks.registering(Test::class) {
+    description = "Runs the tests with the SExpressionReader front end."
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    systemProperty("mtscript.frontEnd", "READER")
+    shouldRunAfter(tasks.test)
+}
+
+tasks.check {
+    dependsOn(testReaderFrontEnd)
+}
+
 
 application {
     mainClass.set("net.rptools.maptool.mtscript.Main")
@@ -81,6 +102,18 @@ tasks.generateGrammarSource {
     outputDirectory = File("build/generated/antlr/main/net/rptools/maptool/mtscript/parser")
 }
 
+jmh {
+    // The benchmarks reuse the S-Expression test programs from the test resources.
+    includeTests = true
+    warmupIterations = 3
+    warmup = "1s"
+    iterations = 5
+    timeOnIteration = "1s"
+    fork = 1
+    // Report the allocation rate alongside the timings, the VM should not allocate for arithmetic.
+    profilers = listOf("gc")
+}
+
 jacoco {
     applyTo(tasks.run.get())
 }
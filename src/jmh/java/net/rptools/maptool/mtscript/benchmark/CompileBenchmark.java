@@ -0,0 +1,109 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.parser.FrontEnd;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/// Benchmarks compiling a large generated script, like a generated macro library, and a small
+/// macro with each front end.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompileBenchmark {
+
+  /// A small macro, like the ones compiled on the fly when they are run.
+  private static final String MACRO =
+      """
+      (def roll (dice sides) (* dice (+ (/ sides 2) 1)))
+      (block
+        (var damage (+ (roll 2 6) 3)) // average damage
+        (if (> damage 10) "critical" "hit"))
+      """;
+
+  /// A large generated script. The script is a block of inner blocks that each declare 20 locals
+  /// initialised with literals, so the compile time is dominated by the constant pool and local
+  /// symbol lookups once the source has been read.
+  @State(Scope.Thread)
+  public static class Script {
+
+    /// The number of locals declared in each inner block.
+    private static final int LOCALS_PER_BLOCK = 20;
+
+    /// The number of distinct literals, constants are indexed by a byte in the byte code.
+    private static final int DISTINCT_LITERALS = 200;
+
+    /// The number of literals in the script.
+    @Param({"10000", "50000"})
+    public int literals;
+
+    /// The script to compile.
+    private String source;
+
+    /// Generates the script being benchmarked.
+    @Setup
+    public void setup() {
+      var sb = new StringBuilder("(block (var sum 0)");
+      for (int i = 0; i < literals; i += LOCALS_PER_BLOCK) {
+        sb.append(" (block");
+        for (int j = 0; j < LOCALS_PER_BLOCK; j++) {
+          sb.append(" (var v").append(j).append(' ');
+          sb.append((i + j) % DISTINCT_LITERALS).append(')');
+        }
+        sb.append(" (set sum (+ sum (+ v0 v").append(LOCALS_PER_BLOCK - 1).append("))))");
+      }
+      source = sb.append(" sum)").toString();
+    }
+  }
+
+  /// The front end that reads the source.
+  @Param({"ANTLR", "READER"})
+  public FrontEnd frontEnd;
+
+  /// The globals the scripts are compiled against.
+  private final VMGlobals globals = new VMGlobals();
+
+  /// Compiles the large generated script.
+  /// @param script The script.
+  @Benchmark
+  public CodeType compile(Script script) {
+    return compiler().compile(script.source, "main");
+  }
+
+  /// Compiles the small macro.
+  @Benchmark
+  public CodeType compileMacro() {
+    return compiler().compile(MACRO, "macro");
+  }
+
+  /// Returns a compiler for the front end.
+  /// @return The compiler.
+  private SExpressionCompiler compiler() {
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setFrontEnd(frontEnd);
+    return compiler;
+  }
+}
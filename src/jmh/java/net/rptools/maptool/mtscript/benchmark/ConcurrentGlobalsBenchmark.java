@@ -0,0 +1,119 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/// Benchmarks the throughput of VMs on different threads executing a loop that reads and writes
+/// globals in the same `VMGlobals`. Each thread has its own VM, run `main` to measure with 1 up
+/// to the number of processors threads, or pass `-t` to JMH for a single thread count.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConcurrentGlobalsBenchmark {
+
+  /// The globals shared by every thread.
+  @State(Scope.Benchmark)
+  public static class SharedGlobals {
+    /// The globals.
+    final VMGlobals globals = new VMGlobals();
+
+    /// Defines the globals read or written by every thread.
+    @Setup
+    public void setup() {
+      var compiler = new SExpressionCompiler(globals);
+      new MapToolVM(globals).exec(compiler.compile("(var step 1) (var shared 0)", "init"));
+    }
+  }
+
+  /// The VM and program of a thread.
+  @State(Scope.Thread)
+  public static class ThreadVM {
+    /// The global the loop writes to: `PRIVATE` for a global only written by this thread,
+    /// `SHARED` for a global written by every thread.
+    @Param({"PRIVATE", "SHARED"})
+    public String target;
+
+    /// The VM of the thread.
+    MapToolVM vm;
+
+    /// The compiled program.
+    CodeType code;
+
+    /// Compiles the program for the thread.
+    /// @param shared The shared globals.
+    /// @param thread The parameters of the thread.
+    @Setup
+    public void setup(SharedGlobals shared, ThreadParams thread) {
+      var globals = shared.globals;
+      vm = new MapToolVM(globals);
+      var compiler = new SExpressionCompiler(globals);
+      String global = "shared";
+      if (target.equals("PRIVATE")) {
+        global = "out" + thread.getThreadIndex();
+        vm.exec(compiler.compile("(var " + global + " 0)", "init"));
+      }
+      code =
+          compiler.compile(
+              "(block (var i 0) (while (< i 100) (block (set i (+ i step)) (set "
+                  + global
+                  + " i))) i)",
+              "main");
+    }
+  }
+
+  /// Executes the program, which reads one global and writes another 100 times.
+  /// @param state The VM of the thread.
+  /// @return The result of the program.
+  @Benchmark
+  public ValueRecord exec(ThreadVM state) {
+    return state.vm.exec(state.code);
+  }
+
+  /// Runs the benchmark with 1, 2, 4, ... threads up to the number of processors.
+  /// @param args Not used.
+  public static void main(String[] args) throws RunnerException {
+    int processors = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; ; threads *= 2) {
+      int count = Math.min(threads, processors);
+      new Runner(
+              new OptionsBuilder()
+                  .include(ConcurrentGlobalsBenchmark.class.getSimpleName())
+                  .threads(count)
+                  .forks(1)
+                  .build())
+          .run();
+      if (count == processors) {
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.io.IOException;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.sexpression.SExpressionTestUtil;
+import net.rptools.maptool.mtscript.vm.OpCode;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.register.RegisterCompiler;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+
+/// Prints the number of instructions in the byte code and the register code of the programs in
+/// `MapToolVMBenchmark`, including the functions they define, to go with the timings of the
+/// `BYTE_CODE` and `REGISTER` backends.
+public class InstructionCountReport {
+
+  /// The programs to report on.
+  private static final String[] PROGRAMS = {
+    "local_var.mtsx",
+    "local_var_with_global.mtsx",
+    "recursive_fib.mtsx",
+    "simple_for.mtsx",
+    "simple_while.mtsx"
+  };
+
+  /// Prints the report.
+  /// @param args Not used.
+  public static void main(String[] args) throws IOException {
+    System.out.printf("%-28s %10s %10s%n", "program", "byte code", "register");
+    for (var program : PROGRAMS) {
+      var compiler = new SExpressionCompiler(new VMGlobals());
+      var code = compiler.compile(SExpressionTestUtil.readSExpressionTestFile(program), "main");
+      int byteCode = byteCodeCount(code);
+      int register = registerCount(code);
+      for (var function : code.functions()) {
+        byteCode += byteCodeCount(function);
+        register += registerCount(function);
+      }
+      System.out.printf("%-28s %10d %10d%n", program, byteCode, register);
+    }
+  }
+
+  /// Returns the number of byte code instructions in the code.
+  /// @param code The code.
+  /// @return The number of instructions.
+  private static int byteCodeCount(CodeType code) {
+    int count = 0;
+    int ip = 0;
+    while (ip < code.codeLength()) {
+      ip += 1 + OpCode.fromByteCode(code.getByte(ip)).operandCount();
+      count++;
+    }
+    return count;
+  }
+
+  /// Returns the number of register instructions the code is translated to.
+  /// @param code The code.
+  /// @return The number of instructions.
+  private static int registerCount(CodeType code) {
+    var registerCode = RegisterCompiler.compile(code);
+    if (registerCode == null) {
+      throw new IllegalStateException(code.name() + " can not be translated to register code");
+    }
+    return registerCode.instructionCount();
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/// Benchmarks hot numeric functions with and without the JIT.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JitBenchmark {
+
+  /// The program to execute.
+  @Param({
+    "(def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))) (fib 20)",
+    "(def sum (n acc) (if (== n 0) acc (sum (- n 1) (+ acc n)))) (sum 10000 0)"
+  })
+  public String program;
+
+  /// Whether the JIT is enabled.
+  @Param({"true", "false"})
+  public boolean jit;
+
+  /// The VM to execute the program on.
+  private MapToolVM vm;
+
+  /// The compiled program.
+  private CodeType code;
+
+  /// Compiles the program being benchmarked.
+  @Setup
+  public void setup() {
+    var globals = new VMGlobals();
+    vm = new MapToolVM(globals);
+    vm.setJitEnabled(jit);
+    var compiler = new SExpressionCompiler(globals);
+    code = compiler.compile(program, "main");
+  }
+
+  /// Executes the compiled program.
+  @Benchmark
+  public ValueRecord exec() {
+    return vm.exec(code);
+  }
+}
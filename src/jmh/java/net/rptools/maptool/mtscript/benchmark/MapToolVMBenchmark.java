@@ -0,0 +1,79 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.sexpression.SExpressionTestUtil;
+import net.rptools.maptool.mtscript.vm.ExecutableProgram;
+import net.rptools.maptool.mtscript.vm.ExecutionBackend;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/// Benchmarks the execution of the S-Expression test programs on the `MapToolVM` with each of the
+/// execution backends.
+/// The programs are compiled once per trial so only the VM execution is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MapToolVMBenchmark {
+
+  /// The test program to execute.
+  @Param({
+    "local_var.mtsx",
+    "local_var_with_global.mtsx",
+    "recursive_fib.mtsx",
+    "simple_for.mtsx",
+    "simple_while.mtsx"
+  })
+  public String program;
+
+  /// The backend that executes the program.
+  @Param({"BYTE_CODE", "TREE", "REGISTER"})
+  public ExecutionBackend backend;
+
+  /// The VM to execute the program on.
+  private MapToolVM vm;
+
+  /// The compiled program.
+  private ExecutableProgram executable;
+
+  /// Compiles the program being benchmarked.
+  @Setup
+  public void setup() throws IOException {
+    var globals = new VMGlobals();
+    vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(backend);
+    executable =
+        compiler.compileExecutable(SExpressionTestUtil.readSExpressionTestFile(program), "main");
+  }
+
+  /// Executes the compiled program.
+  @Benchmark
+  public ValueRecord exec() {
+    return executable.exec(vm);
+  }
+}
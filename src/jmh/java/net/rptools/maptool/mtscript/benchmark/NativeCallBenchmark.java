@@ -0,0 +1,113 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.functions.NativeFunctions;
+import net.rptools.maptool.mtscript.functions.VMFunction;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.NativeArgs;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
+import net.rptools.maptool.mtscript.vm.values.StringType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/// Benchmarks `CALL` on a native function, with the function bound the different ways a native
+/// function can be registered.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NativeCallBenchmark {
+
+  /// The program to execute, it calls the native function 1000 times.
+  private static final String PROGRAM =
+      "(block (var x 0) (for (var i 0) (< i 1000) (set i (+ i 1)) (set x (_bench_identity i))) x)";
+
+  /// How the native function is bound: `REFLECTION` calls it through `Method.invoke` the way
+  /// `VMGlobals` used to, `LAMBDA_METAFACTORY` binds it with `NativeFunctions.bind` and `GENERATED`
+  /// uses a method reference like the library generated by the annotation processor.
+  @Param({"REFLECTION", "LAMBDA_METAFACTORY", "GENERATED"})
+  public String binding;
+
+  /// The VM to execute the program on.
+  private MapToolVM vm;
+
+  /// The compiled program.
+  private CodeType code;
+
+  /// The native function.
+  private NativeFunctionType function;
+
+  /// The argument passed to the native function by `call`.
+  private final ValueRecord argument = new StringType("argument");
+
+  /// Returns its argument.
+  /// @param vm The VM to operate on.
+  /// @param args The arguments of the call.
+  public static void identity(MapToolVM vm, NativeArgs args) {
+    args.returnArg(0);
+  }
+
+  /// Registers the native function and compiles the program being benchmarked.
+  @Setup
+  public void setup() throws ReflectiveOperationException {
+    var method = NativeCallBenchmark.class.getMethod("identity", MapToolVM.class, NativeArgs.class);
+    VMFunction function =
+        switch (binding) {
+          case "REFLECTION" ->
+              (vm, args) -> {
+                try {
+                  method.invoke(null, vm, args);
+                } catch (Exception e) {
+                  throw new RuntimeException(e);
+                }
+              };
+          case "LAMBDA_METAFACTORY" -> NativeFunctions.bind(MethodHandles.lookup(), method);
+          default -> NativeCallBenchmark::identity;
+        };
+    var globals = new VMGlobals();
+    globals.addBuiltInFunction("_bench_identity", 1, function);
+    this.function =
+        (NativeFunctionType) globals.getGlobalSymbol("_bench_identity").symbol().value();
+    vm = new MapToolVM(globals);
+    code = new SExpressionCompiler(globals).compile(PROGRAM, "main");
+  }
+
+  /// Calls the native function the way `CALL` does, without the rest of the interpreter.
+  @Benchmark
+  public ValueRecord call() {
+    vm.push(function);
+    vm.push(argument);
+    vm.callNative(function, 1);
+    return vm.pop();
+  }
+
+  /// Executes the compiled program, which makes 1000 calls.
+  @Benchmark
+  public ValueRecord exec() {
+    return vm.exec(code);
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/// Benchmarks a numeric loop, this is mostly useful for looking at the allocation rate of the VM
+/// (`gc.alloc.rate.norm`) when doing arithmetic.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NumericLoopBenchmark {
+
+  /// The program to execute, the loop counter goes beyond the cached small numbers.
+  private static final String PROGRAM =
+      "(block (var sum 0) (for (var i 0) (< i 10000) (set i (+ i 1)) (set sum (+ sum (* i 2))))"
+          + " sum)";
+
+  /// Whether the VM quickens instructions, the unquickened instructions box their results.
+  @Param({"true", "false"})
+  public boolean quickening;
+
+  /// The VM to execute the program on.
+  private MapToolVM vm;
+
+  /// The compiled program.
+  private CodeType code;
+
+  /// Compiles the program being benchmarked.
+  @Setup
+  public void setup() {
+    var globals = new VMGlobals();
+    vm = new MapToolVM(globals);
+    vm.setQuickeningEnabled(quickening);
+    var compiler = new SExpressionCompiler(globals);
+    code = compiler.compile(PROGRAM, "main");
+  }
+
+  /// Executes the compiled program.
+  @Benchmark
+  public ValueRecord exec() {
+    return vm.exec(code);
+  }
+}
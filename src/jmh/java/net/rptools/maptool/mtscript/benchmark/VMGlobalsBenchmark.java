@@ -0,0 +1,70 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/// Benchmarks creating the global symbol table, which every new session has to do before it can
+/// compile or execute anything.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VMGlobalsBenchmark {
+
+  /// The number of globals defined by `defineAndLookup`.
+  @Param({"100", "1000"})
+  public int count;
+
+  /// The names of the globals defined by `defineAndLookup`.
+  private String[] names;
+
+  /// Creates the names of the globals.
+  @Setup
+  public void setup() {
+    names = new String[count];
+    for (int i = 0; i < count; i++) {
+      names[i] = "global" + i;
+    }
+  }
+
+  /// Creates a global symbol table with the native functions registered.
+  @Benchmark
+  public VMGlobals create() {
+    return new VMGlobals();
+  }
+
+  /// Defines the globals then looks each of them up by name, as compiling a library does.
+  @Benchmark
+  public int defineAndLookup() {
+    var globals = new VMGlobals();
+    for (var name : names) {
+      globals.defineGlobalVariable(name);
+    }
+    int sum = 0;
+    for (var name : names) {
+      sum += globals.getGlobalSymbolIndex(name);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.MapToolVMPool;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/// Benchmarks executing a short macro on a new VM against executing it on a VM from a
+/// `MapToolVMPool`, run with `-prof gc` to see the allocation of creating a VM.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VMPoolBenchmark {
+
+  /// The globals the macro is executed against.
+  private VMGlobals globals;
+
+  /// The pool of VMs.
+  private MapToolVMPool pool;
+
+  /// The compiled macro.
+  private CodeType code;
+
+  /// Compiles the macro.
+  @Setup
+  public void setup() {
+    globals = new VMGlobals();
+    pool = new MapToolVMPool(globals, Runtime.getRuntime().availableProcessors());
+    code = new SExpressionCompiler(globals).compile("(+ MT_VM_VERSION 2)", "main");
+  }
+
+  /// Executes the macro on a new VM.
+  @Benchmark
+  public ValueRecord newVM() {
+    return new MapToolVM(globals).exec(code);
+  }
+
+  /// Executes the macro on a VM from the pool.
+  @Benchmark
+  public ValueRecord pooled() {
+    return pool.exec(code);
+  }
+}
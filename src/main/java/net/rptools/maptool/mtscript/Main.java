@@ -15,12 +15,12 @@
 package net.rptools.maptool.mtscript;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
 import net.rptools.maptool.mtscript.vm.MapToolVM;
 import net.rptools.maptool.mtscript.vm.VMGlobals;
 import net.rptools.maptool.mtscript.vm.assembler.Disassembler;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
 
 /// The main class for the MapTool scripting language.
 /// Really only used for testing during development.
@@ -33,22 +33,23 @@ public class Main {
       System.out.println("Usage: -p <program>");
       System.exit(1);
     }
-    String program = "";
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    CodeType code;
     if (args.length > 1) {
       if (args[0].equals("-p")) {
-        program = args[1];
+        System.err.println("program = " + args[1]); // TODO: remove
+        code = compiler.compile(args[1], "main");
       } else {
         System.out.println("Usage: -p <program>");
         System.exit(1);
+        return;
       }
     } else {
-      program = Files.readString(Path.of(args[0]));
+      // The file is streamed rather than read into memory, as generated libraries can be large.
+      code = compiler.compile(Path.of(args[0]), "main");
     }
-    System.err.println("program = " + program); // TODO: remove
-    var globals = new VMGlobals();
-    MapToolVM vm = new MapToolVM(globals);
-    var compiler = new SExpressionCompiler(globals);
-    var code = compiler.compile(program, "main");
     var disassembler = new Disassembler(code, globals);
     System.out.println();
     disassembler.disassemble(System.out);
@@ -0,0 +1,372 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// Limits the executions submitted to a `ScriptExecutionService`, so that one tenant (e.g. a
+/// campaign) or user spamming macros can not hold up everybody else.
+///
+/// An execution is admitted (submitted to the service) when it is under the overall, tenant and
+/// user limits of the `AdmissionPolicy`. If it is not it waits in a bounded queue and is admitted
+/// when an execution finishes, the queue is scanned in order for the first execution that is under
+/// its limits, so a user at their limit does not block the users queued behind them. When the
+/// queue is full the policy decides whether the new or the oldest queued execution is rejected.
+///
+/// Rejected executions fail with a `RejectedExecutionException` straight away, callers that
+/// would rather fail than wait can use `trySubmit`, which never queues.
+///
+/// Cancelling the future of a queued execution removes it from the queue. Cancelling the future
+/// of an admitted execution is not propagated to the service, as a running execution can not be
+/// stopped, it runs to the end and counts toward the limits until it does.
+public class AdmissionController {
+
+  /// A user of a tenant, the same user name in two tenants is two different users.
+  /// @param tenant The tenant.
+  /// @param user The user name.
+  private record TenantUser(String tenant, String user) {}
+
+  /// An execution waiting to be admitted.
+  /// @param tenant The tenant the execution is for.
+  /// @param user The user the execution is for.
+  /// @param program The program to execute.
+  /// @param args The arguments to call the function with.
+  /// @param future The future returned to the caller.
+  /// @param submitTime The time the execution was submitted.
+  private record Pending(
+      String tenant,
+      String user,
+      CodeType program,
+      ValueRecord[] args,
+      CompletableFuture<ValueRecord> future,
+      long submitTime) {
+
+    /// Returns the user the execution is for, within its tenant.
+    /// @return The tenant user.
+    TenantUser tenantUser() {
+      return new TenantUser(tenant, user);
+    }
+  }
+
+  /// The service the admitted executions are submitted to.
+  private final ScriptExecutionService service;
+
+  /// The limits applied.
+  private final AdmissionPolicy policy;
+
+  /// Guards the queue and the running counts, this is a lock rather than a monitor as it is taken
+  /// on virtual threads.
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /// The executions waiting to be admitted, oldest first.
+  private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+  /// The number of running executions for each tenant with running executions.
+  private final Map<String, Integer> runningByTenant = new HashMap<>();
+
+  /// The number of running executions for each user with running executions.
+  private final Map<TenantUser, Integer> runningByUser = new HashMap<>();
+
+  /// The number of running executions.
+  private int running;
+
+  /// The number of executions admitted.
+  private final LongAdder admitted = new LongAdder();
+
+  /// The number of executions rejected without being queued.
+  private final LongAdder rejected = new LongAdder();
+
+  /// The number of queued executions rejected to make room for newer ones.
+  private final LongAdder shed = new LongAdder();
+
+  /// The sum of the time admitted executions waited to be admitted, in nanoseconds.
+  private final LongAdder totalQueueWaitNanos = new LongAdder();
+
+  /// The maximum time an admitted execution waited to be admitted, in nanoseconds.
+  private final LongAccumulator maxQueueWaitNanos = new LongAccumulator(Math::max, 0);
+
+  /// Creates a new admission controller.
+  /// @param service The service the admitted executions are submitted to.
+  /// @param policy The limits applied.
+  public AdmissionController(ScriptExecutionService service, AdmissionPolicy policy) {
+    this.service = service;
+    this.policy = policy;
+  }
+
+  /// Submits a program for execution, queueing it if it is over its limits.
+  /// @param tenant The tenant the execution is for.
+  /// @param user The user the execution is for.
+  /// @param program The program to execute.
+  /// @param args The arguments to call the function with.
+  /// @return A future that completes with the result of the program, or exceptionally if the
+  ///     program fails or is rejected.
+  public CompletableFuture<ValueRecord> submit(
+      String tenant, String user, CodeType program, ValueRecord... args) {
+    return submit(tenant, user, program, args, true);
+  }
+
+  /// Submits a program for execution, rejecting it if it is over its limits rather than queueing
+  /// it.
+  /// @param tenant The tenant the execution is for.
+  /// @param user The user the execution is for.
+  /// @param program The program to execute.
+  /// @param args The arguments to call the function with.
+  /// @return A future that completes with the result of the program, or exceptionally if the
+  ///     program fails or is rejected.
+  public CompletableFuture<ValueRecord> trySubmit(
+      String tenant, String user, CodeType program, ValueRecord... args) {
+    return submit(tenant, user, program, args, false);
+  }
+
+  /// Returns the number of admitted executions that have not finished.
+  /// @return The number of running executions.
+  public int getRunning() {
+    lock.lock();
+    try {
+      return running;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /// Returns the number of executions waiting to be admitted.
+  /// @return The queue depth.
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /// Returns a snapshot of the metrics of the controller.
+  /// @return The metrics.
+  public AdmissionMetrics getMetrics() {
+    int runningNow;
+    int queuedNow;
+    lock.lock();
+    try {
+      runningNow = running;
+      queuedNow = queue.size();
+    } finally {
+      lock.unlock();
+    }
+    long admittedNow = admitted.sum();
+    return new AdmissionMetrics(
+        admittedNow,
+        rejected.sum(),
+        shed.sum(),
+        runningNow,
+        queuedNow,
+        admittedNow == 0 ? 0 : totalQueueWaitNanos.sum() / admittedNow,
+        maxQueueWaitNanos.get());
+  }
+
+  /// Submits a program for execution.
+  /// @param tenant The tenant the execution is for.
+  /// @param user The user the execution is for.
+  /// @param program The program to execute.
+  /// @param args The arguments to call the function with.
+  /// @param canQueue If the execution can be queued when it is over its limits.
+  /// @return A future that completes with the result of the program.
+  private CompletableFuture<ValueRecord> submit(
+      String tenant, String user, CodeType program, ValueRecord[] args, boolean canQueue) {
+    if (tenant == null || user == null) {
+      throw new IllegalArgumentException("Executions must have a tenant and user");
+    }
+    if (!(program instanceof FunctionType) && args.length != 0) {
+      throw new IllegalArgumentException("Only functions can be called with arguments");
+    }
+    var pending =
+        new Pending(tenant, user, program, args, new CompletableFuture<>(), System.nanoTime());
+    Pending toStart = null;
+    Pending toReject = null;
+    boolean queued = false;
+    lock.lock();
+    try {
+      if (canStart(pending)) {
+        start(pending);
+        toStart = pending;
+      } else if (!canQueue || policy.maxQueued() == 0) {
+        toReject = pending;
+      } else if (queue.size() < policy.maxQueued() || removeDone()) {
+        queue.addLast(pending);
+        queued = true;
+      } else if (policy.overflow() == AdmissionPolicy.Overflow.SHED_OLDEST) {
+        toReject = queue.removeFirst();
+        queue.addLast(pending);
+        queued = true;
+      } else {
+        toReject = pending;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (queued) {
+      // The controller never cancels the futures it returns, so a cancelled future was cancelled
+      // by the caller. Futures the caller completes in other ways are removed when the queue is
+      // full.
+      pending
+          .future()
+          .whenComplete(
+              (value, error) -> {
+                if (pending.future().isCancelled()) {
+                  dequeue(pending);
+                }
+              });
+    }
+    // The futures are completed outside the lock as completing them runs their callbacks.
+    if (toReject == pending) {
+      rejected.increment();
+      toReject.future().completeExceptionally(new RejectedExecutionException("Over limit"));
+    } else if (toReject != null) {
+      shed.increment();
+      toReject.future().completeExceptionally(new RejectedExecutionException("Shed"));
+    }
+    if (toStart != null) {
+      execute(List.of(toStart));
+    }
+    return pending.future();
+  }
+
+  /// Removes an execution from the queue, if it is still queued.
+  /// @param pending The execution.
+  private void dequeue(Pending pending) {
+    lock.lock();
+    try {
+      queue.remove(pending);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /// Removes the queued executions whose futures the caller has completed, must be called holding
+  /// the lock.
+  /// @return True if any executions were removed.
+  private boolean removeDone() {
+    return queue.removeIf(pending -> pending.future().isDone());
+  }
+
+  /// Returns true if the execution is under its limits, must be called holding the lock.
+  /// @param pending The execution.
+  /// @return True if the execution can start.
+  private boolean canStart(Pending pending) {
+    return running < policy.maxConcurrent()
+        && runningByTenant.getOrDefault(pending.tenant(), 0) < policy.maxConcurrentPerTenant()
+        && runningByUser.getOrDefault(pending.tenantUser(), 0) < policy.maxConcurrentPerUser();
+  }
+
+  /// Counts an execution as running, must be called holding the lock.
+  /// @param pending The execution.
+  private void start(Pending pending) {
+    running++;
+    runningByTenant.merge(pending.tenant(), 1, Integer::sum);
+    runningByUser.merge(pending.tenantUser(), 1, Integer::sum);
+  }
+
+  /// Counts an execution as finished, must be called holding the lock.
+  /// @param pending The execution.
+  private void finish(Pending pending) {
+    running--;
+    runningByTenant.computeIfPresent(pending.tenant(), (k, v) -> v == 1 ? null : v - 1);
+    runningByUser.computeIfPresent(pending.tenantUser(), (k, v) -> v == 1 ? null : v - 1);
+  }
+
+  /// Submits admitted executions to the service.
+  /// An execution that finishes while it is submitted (e.g. the service has been closed) admits
+  /// the executions queued behind it in the same loop, rather than from its completion callback,
+  /// so draining a long queue does not recurse.
+  /// @param admittedExecutions The executions.
+  private void execute(Collection<Pending> admittedExecutions) {
+    var toStart = new ArrayDeque<>(admittedExecutions);
+    while (!toStart.isEmpty()) {
+      var pending = toStart.removeFirst();
+      long queueWait = System.nanoTime() - pending.submitTime();
+      admitted.increment();
+      totalQueueWaitNanos.add(queueWait);
+      maxQueueWaitNanos.accumulate(queueWait);
+      CompletableFuture<ValueRecord> result;
+      try {
+        result = service.submit(pending.program(), pending.args());
+      } catch (RuntimeException e) {
+        result = CompletableFuture.failedFuture(e);
+      }
+      if (result.isDone()) {
+        toStart.addAll(admitNext(pending));
+        result.whenComplete((value, error) -> complete(pending, value, error));
+      } else {
+        result.whenComplete(
+            (value, error) -> {
+              var next = admitNext(pending);
+              complete(pending, value, error);
+              execute(next);
+            });
+      }
+    }
+  }
+
+  /// Completes the future returned to the caller of an execution.
+  /// @param pending The execution.
+  /// @param value The result of the execution.
+  /// @param error The error the execution failed with, or `null`.
+  private static void complete(Pending pending, ValueRecord value, Throwable error) {
+    if (error != null) {
+      pending.future().completeExceptionally(error);
+    } else {
+      pending.future().complete(value);
+    }
+  }
+
+  /// Counts an execution as finished and admits the queued executions that are now under their
+  /// limits.
+  /// @param finished The execution that finished.
+  /// @return The admitted executions, which must be passed to `execute`.
+  private List<Pending> admitNext(Pending finished) {
+    List<Pending> toStart = new ArrayList<>();
+    lock.lock();
+    try {
+      finish(finished);
+      var it = queue.iterator();
+      while (it.hasNext() && running < policy.maxConcurrent()) {
+        var pending = it.next();
+        if (pending.future().isDone()) {
+          // Completed by the caller while it was queued.
+          it.remove();
+        } else if (canStart(pending)) {
+          it.remove();
+          start(pending);
+          toStart.add(pending);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return toStart;
+  }
+}
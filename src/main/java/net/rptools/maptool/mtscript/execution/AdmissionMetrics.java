@@ -0,0 +1,34 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+/// A snapshot of the metrics of an `AdmissionController`.
+/// @param admitted The number of executions admitted.
+/// @param rejected The number of executions rejected without being queued.
+/// @param shed The number of queued executions rejected to make room for newer ones.
+/// @param running The number of admitted executions that have not finished.
+/// @param queued The number of executions waiting to be admitted.
+/// @param meanQueueWaitNanos The mean time an admitted execution waited to be admitted, in
+///     nanoseconds.
+/// @param maxQueueWaitNanos The maximum time an admitted execution waited to be admitted, in
+///     nanoseconds.
+public record AdmissionMetrics(
+    long admitted,
+    long rejected,
+    long shed,
+    int running,
+    int queued,
+    long meanQueueWaitNanos,
+    long maxQueueWaitNanos) {}
@@ -0,0 +1,52 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+/// The limits applied by an `AdmissionController`.
+/// @param maxConcurrent The maximum number of executions running at once.
+/// @param maxConcurrentPerTenant The maximum number of executions running at once for a tenant.
+/// @param maxConcurrentPerUser The maximum number of executions running at once for a user of a
+///     tenant.
+/// @param maxQueued The maximum number of executions waiting to start, 0 to never queue.
+/// @param overflow What to do with an execution that can not start when the queue is full.
+public record AdmissionPolicy(
+    int maxConcurrent,
+    int maxConcurrentPerTenant,
+    int maxConcurrentPerUser,
+    int maxQueued,
+    Overflow overflow) {
+
+  /// What to do with an execution that can not start when the queue is full.
+  public enum Overflow {
+    /// Reject the new execution.
+    REJECT,
+    /// Reject the execution that has been waiting the longest and queue the new one, so the
+    /// executions that do run are the most recent.
+    SHED_OLDEST
+  }
+
+  /// Creates a new admission policy.
+  public AdmissionPolicy {
+    if (maxConcurrent <= 0 || maxConcurrentPerTenant <= 0 || maxConcurrentPerUser <= 0) {
+      throw new IllegalArgumentException("Concurrency limits must be positive");
+    }
+    if (maxQueued < 0) {
+      throw new IllegalArgumentException("Invalid queue size: " + maxQueued);
+    }
+    if (overflow == null) {
+      throw new IllegalArgumentException("No overflow policy");
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+
+/// A cache of compiled programs, so the same source is only compiled once, e.g. a macro run every
+/// time a button is clicked.
+///
+/// The programs are keyed by their source and name. A cache is bound to the globals of its
+/// compiler, as the programs refer to those globals by index. Globals are never removed or
+/// redefined, so a compiled program stays valid for as long as its globals exist and entries only
+/// leave the cache when they are evicted or the cache is cleared.
+///
+/// Programs that define globals can only be compiled once against the same globals, compiling the
+/// source again fails as the globals are already defined. These programs are therefore never
+/// evicted or cleared, so they can be looked up again however full the cache gets. A program is
+/// treated as defining globals if any global was defined while it was compiled, which includes
+/// globals defined by other threads at the same time.
+///
+/// The capacity is a weight rather than a count of programs, the weight of a program is the
+/// length of its source and byte code plus a fixed cost for each constant, including the code and
+/// constants of the functions it defines. When the total weight is over the capacity the least
+/// recently used programs are evicted, the programs that define globals count toward the weight
+/// but are skipped.
+///
+/// A source is only compiled by one thread at a time, other threads that look it up while it is
+/// being compiled wait for the result. Compile errors are not cached.
+public class CompiledCodeCache {
+
+  /// The weight of each constant in the constant pool of a program.
+  private static final int CONSTANT_WEIGHT = 16;
+
+  /// The key a program is cached under.
+  /// @param source The source of the program.
+  /// @param name The name of the program.
+  private record Key(String source, String name) {}
+
+  /// A program in the cache, or being compiled.
+  private static final class Entry {
+    /// Completes with the program once it has been compiled.
+    final CompletableFuture<CodeType> code = new CompletableFuture<>();
+
+    /// The weight of the program, 0 while it is being compiled.
+    long weight;
+
+    /// True if globals were defined while the program was compiled, the program is never evicted.
+    boolean definesGlobals;
+  }
+
+  /// The compiler the programs are compiled with.
+  private final SExpressionCompiler compiler;
+
+  /// The maximum total weight of the programs in the cache.
+  private final long capacity;
+
+  /// Guards the entries and the statistics, this is a lock rather than a monitor as it can be
+  /// taken on virtual threads.
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /// The entries, least recently used first.
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /// The total weight of the compiled programs in the cache.
+  private long weight;
+
+  /// The number of lookups that found the program in the cache.
+  private long hits;
+
+  /// The number of lookups that compiled the program.
+  private long misses;
+
+  /// The number of programs evicted.
+  private long evictions;
+
+  /// Creates a new compiled code cache.
+  /// @param compiler The compiler the programs are compiled with.
+  /// @param capacity The maximum total weight of the programs in the cache.
+  public CompiledCodeCache(SExpressionCompiler compiler, long capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Invalid cache capacity: " + capacity);
+    }
+    this.compiler = compiler;
+    this.capacity = capacity;
+  }
+
+  /// Returns the compiled program for a source, compiling it if it is not in the cache.
+  /// @param source The source code of the program.
+  /// @param name The name of the program.
+  /// @return The compiled program.
+  public CodeType compile(String source, String name) {
+    var key = new Key(source, name);
+    Entry entry;
+    boolean compile;
+    lock.lock();
+    try {
+      entry = entries.get(key);
+      compile = entry == null;
+      if (compile) {
+        entry = new Entry();
+        entries.put(key, entry);
+        misses++;
+      } else {
+        hits++;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (compile) {
+      return compile(key, entry);
+    }
+    try {
+      return entry.code.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      if (e.getCause() instanceof Error cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  /// Returns a snapshot of the statistics of the cache.
+  /// @return The statistics.
+  public CompiledCodeCacheStats getStats() {
+    lock.lock();
+    try {
+      return new CompiledCodeCacheStats(hits, misses, evictions, entries.size(), weight);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /// Removes every program from the cache except those that define globals, as they can not be
+  /// compiled again. Programs being compiled are not cached when they complete, unless they define
+  /// globals.
+  public void invalidateAll() {
+    lock.lock();
+    try {
+      entries.values().removeIf(entry -> !entry.definesGlobals);
+      weight = 0;
+      for (var entry : entries.values()) {
+        weight += entry.weight;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /// Compiles a program and stores it in its entry, evicting programs if the cache is over its
+  /// capacity.
+  /// @param key The key of the program.
+  /// @param entry The entry of the program.
+  /// @return The compiled program.
+  private CodeType compile(Key key, Entry entry) {
+    var globals = compiler.getGlobals();
+    int globalCount = globals.getGlobalVariableCount();
+    CodeType code;
+    try {
+      code = compiler.compile(key.source(), key.name());
+    } catch (Throwable e) {
+      // Errors such as a StackOverflowError from deeply nested source must also fail the entry,
+      // otherwise it would never complete and every later lookup of the source would wait on it.
+      lock.lock();
+      try {
+        entries.remove(key, entry);
+      } finally {
+        lock.unlock();
+      }
+      entry.code.completeExceptionally(e);
+      throw e;
+    }
+    lock.lock();
+    try {
+      entry.definesGlobals = globals.getGlobalVariableCount() != globalCount;
+      if (entry.definesGlobals && !entries.containsKey(key)) {
+        entries.put(key, entry); // The cache was cleared while compiling, keep the program anyway
+      }
+      if (entries.get(key) == entry) {
+        entry.weight = key.source().length() + weigh(code);
+        weight += entry.weight;
+        evict();
+      }
+    } finally {
+      lock.unlock();
+    }
+    entry.code.complete(code);
+    return code;
+  }
+
+  /// Evicts the least recently used compiled programs until the cache is within its capacity,
+  /// must be called with the lock held.
+  private void evict() {
+    Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+    while (weight > capacity && iterator.hasNext()) {
+      var entry = iterator.next().getValue();
+      // Programs still being compiled have no weight yet and are not evicted.
+      if (entry.weight > 0 && !entry.definesGlobals) {
+        iterator.remove();
+        weight -= entry.weight;
+        evictions++;
+      }
+    }
+  }
+
+  /// Returns the weight of a program, including the functions it defines.
+  /// @param code The program.
+  /// @return The weight.
+  private static long weigh(CodeType code) {
+    long result = code.codeLength() + (long) code.constants().size() * CONSTANT_WEIGHT;
+    for (var function : code.functions()) {
+      result += weigh(function);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+/// A snapshot of the statistics of a `CompiledCodeCache`.
+/// @param hits The number of lookups that found the program in the cache, including lookups that
+///     waited for another thread to compile it.
+/// @param misses The number of lookups that compiled the program.
+/// @param evictions The number of programs evicted to keep the cache within its capacity.
+/// @param size The number of programs in the cache.
+/// @param weight The total weight of the programs in the cache.
+public record CompiledCodeCacheStats(
+    long hits, long misses, long evictions, int size, long weight) {
+
+  /// Returns the fraction of the lookups that found the program in the cache.
+  /// @return The hit rate, or 0 if there have been no lookups.
+  public double hitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+}
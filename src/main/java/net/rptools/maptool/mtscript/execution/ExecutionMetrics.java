@@ -0,0 +1,35 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+/// A snapshot of the metrics of a `ScriptExecutionService`. The latencies are measured from when
+/// an execution is submitted until it completes, so they include the time spent waiting to start.
+/// @param submitted The number of executions submitted.
+/// @param completed The number of executions that completed with a result.
+/// @param failed The number of executions that failed or were cancelled.
+/// @param queueDepth The number of executions submitted that have not started yet.
+/// @param activeExecutions The number of executions running.
+/// @param meanLatencyNanos The mean latency of the finished executions, in nanoseconds.
+/// @param maxLatencyNanos The maximum latency of the finished executions, in nanoseconds.
+/// @param meanExecutionNanos The mean time spent executing, in nanoseconds.
+public record ExecutionMetrics(
+    long submitted,
+    long completed,
+    long failed,
+    int queueDepth,
+    int activeExecutions,
+    long meanLatencyNanos,
+    long maxLatencyNanos,
+    long meanExecutionNanos) {}
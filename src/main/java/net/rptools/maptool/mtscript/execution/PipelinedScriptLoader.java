@@ -0,0 +1,150 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// Loads scripts by compiling and executing their top-level forms in a pipeline, rather than
+/// compiling the whole script before executing it.
+///
+/// Each form is compiled into a program of its own on one virtual thread and handed to a second
+/// virtual thread that executes the programs in order, through a bounded queue so the compiler can
+/// only get a few forms ahead. The globals and functions a form defines are visible to the forms
+/// after it, so a large script starts doing useful work as soon as its first form has been read.
+///
+/// A global is defined when the form that declares it is compiled, as the compiled code refers to
+/// it by index, and the compiler can be up to `queueCapacity + 1` forms ahead of the form being
+/// executed. Other executions can therefore see a global before the form that declares it has
+/// been executed, with the value `0` until that form sets it, the same as a global declared later
+/// in a script that is compiled as a whole.
+///
+/// Unlike compiling the whole script, the forms before a compile error have already been executed
+/// when the error is found, so their globals are left defined. If a form fails to execute the
+/// forms after it are not executed and the compiler is stopped.
+public class PipelinedScriptLoader {
+
+  /// A compiled form, or the end of the script if both the program and the error are `null`.
+  /// @param program The program compiled from the form.
+  /// @param error The error that stopped the compiler.
+  private record Form(CodeType program, Throwable error) {}
+
+  /// Marks the end of the forms of a script.
+  private static final Form END = new Form(null, null);
+
+  /// The globals the scripts are compiled and executed against.
+  private final VMGlobals globals;
+
+  /// The number of compiled forms that can be waiting to be executed.
+  private final int queueCapacity;
+
+  /// Creates a new pipelined script loader.
+  /// @param globals The globals the scripts are compiled and executed against.
+  /// @param queueCapacity The number of compiled forms that can be waiting to be executed.
+  public PipelinedScriptLoader(VMGlobals globals, int queueCapacity) {
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+    }
+    this.globals = globals;
+    this.queueCapacity = queueCapacity;
+  }
+
+  /// Loads a script, compiling and executing its top-level forms in order. If the future is
+  /// cancelled no more forms are executed and both threads are interrupted. The form being
+  /// executed runs to completion, unless a native function it calls stops when interrupted.
+  /// @param source The reader to read the script from, it is not closed.
+  /// @param name The name of the script.
+  /// @return A future that completes with the result of the last form once every form has been
+  ///     executed, or exceptionally if a form fails to compile or execute.
+  public CompletableFuture<ValueRecord> load(Reader source, String name) {
+    var future = new CompletableFuture<ValueRecord>();
+    var queue = new ArrayBlockingQueue<Form>(queueCapacity);
+    var compiler =
+        Thread.ofVirtual().name("compile-" + name).start(() -> compile(source, name, queue));
+    var executor = Thread.ofVirtual().name("exec-" + name).start(() -> execute(queue, future));
+    // The compiler may be reading or compiling rather than waiting to put a form on the queue, so
+    // the executing thread is interrupted as well, as it could be waiting for a form that never
+    // arrives.
+    future.whenComplete(
+        (result, error) -> {
+          compiler.interrupt();
+          executor.interrupt();
+        });
+    return future;
+  }
+
+  /// Compiles the forms of a script, handing each to the executing thread.
+  /// @param source The reader to read the script from.
+  /// @param name The name of the script.
+  /// @param queue The queue to hand the forms to.
+  private void compile(Reader source, String name, BlockingQueue<Form> queue) {
+    try {
+      new SExpressionCompiler(globals)
+          .compileForms(source, name, code -> put(queue, new Form(code, null)));
+      put(queue, END);
+    } catch (CancellationException e) {
+      // The execution has finished, nothing is waiting for the forms.
+    } catch (Throwable e) {
+      try {
+        put(queue, new Form(null, e));
+      } catch (CancellationException ce) {
+        // The execution has finished, nothing is waiting for the error.
+      }
+    }
+  }
+
+  /// Executes the forms of a script in order and completes its future.
+  /// @param queue The queue the forms are handed over on.
+  /// @param future The future to complete.
+  private void execute(BlockingQueue<Form> queue, CompletableFuture<ValueRecord> future) {
+    var vm = new MapToolVM(globals);
+    ValueRecord result = null;
+    try {
+      while (!future.isDone()) {
+        var form = queue.take();
+        if (form == END) {
+          future.complete(result);
+        } else if (form.error() != null) {
+          future.completeExceptionally(form.error());
+        } else {
+          result = vm.exec(form.program());
+        }
+      }
+    } catch (Throwable e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  /// Puts a form on the queue, waiting for space if needed.
+  /// @param queue The queue to put the form on.
+  /// @param form The form.
+  /// @throws CancellationException If the compiling thread is interrupted as the execution has
+  ///     finished.
+  private static void put(BlockingQueue<Form> queue, Form form) {
+    try {
+      queue.put(form);
+    } catch (InterruptedException e) {
+      throw new CancellationException("Script execution has finished");
+    }
+  }
+}
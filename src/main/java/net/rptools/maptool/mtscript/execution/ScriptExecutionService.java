@@ -0,0 +1,184 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.execution;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import net.rptools.maptool.mtscript.vm.MapToolVMPool;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// Executes programs asynchronously, each on its own virtual thread with a VM from a
+/// `MapToolVMPool`.
+///
+/// As every execution has its own thread, a native function that blocks (e.g. on I/O) only
+/// blocks its own execution, the virtual thread is unmounted from its carrier and the other
+/// executions carry on. Native functions should not block while holding a monitor
+/// (`synchronized`), as that pins the carrier thread.
+public class ScriptExecutionService implements AutoCloseable {
+
+  /// The VMs the programs are executed on.
+  private final MapToolVMPool pool;
+
+  /// Starts a virtual thread for each execution.
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  /// The number of executions submitted.
+  private final LongAdder submitted = new LongAdder();
+
+  /// The number of executions that completed with a result.
+  private final LongAdder completed = new LongAdder();
+
+  /// The number of executions that failed or were cancelled before they started.
+  private final LongAdder failed = new LongAdder();
+
+  /// The number of executions submitted that have not started yet.
+  private final AtomicInteger queueDepth = new AtomicInteger();
+
+  /// The number of executions running.
+  private final AtomicInteger activeExecutions = new AtomicInteger();
+
+  /// The sum of the latencies of the finished executions, in nanoseconds.
+  private final LongAdder totalLatencyNanos = new LongAdder();
+
+  /// The maximum latency of the finished executions, in nanoseconds.
+  private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+  /// The sum of the time spent executing, in nanoseconds.
+  private final LongAdder totalExecutionNanos = new LongAdder();
+
+  /// Creates a new execution service with a pool of VMs with the default settings.
+  /// @param globals The globals the programs are executed against.
+  public ScriptExecutionService(VMGlobals globals) {
+    this(new MapToolVMPool(globals, Runtime.getRuntime().availableProcessors()));
+  }
+
+  /// Creates a new execution service.
+  /// @param pool The VMs the programs are executed on.
+  public ScriptExecutionService(MapToolVMPool pool) {
+    this.pool = pool;
+  }
+
+  /// Submits a program for execution. If the program is a function it is called with the
+  /// arguments, otherwise there must be no arguments.
+  /// @param program The program to execute.
+  /// @param args The arguments to call the function with.
+  /// @return A future that completes with the result of the program, or exceptionally if the
+  ///     program fails.
+  public CompletableFuture<ValueRecord> submit(CodeType program, ValueRecord... args) {
+    if (!(program instanceof FunctionType) && args.length != 0) {
+      throw new IllegalArgumentException("Only functions can be called with arguments");
+    }
+    var future = new CompletableFuture<ValueRecord>();
+    long submitTime = System.nanoTime();
+    submitted.increment();
+    queueDepth.incrementAndGet();
+    try {
+      executor.execute(() -> run(program, args, future, submitTime));
+    } catch (RejectedExecutionException e) {
+      queueDepth.decrementAndGet();
+      failed.increment();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /// Returns the number of executions submitted that have not started yet.
+  /// @return The queue depth.
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /// Returns the number of executions running.
+  /// @return The number of active executions.
+  public int getActiveExecutions() {
+    return activeExecutions.get();
+  }
+
+  /// Returns a snapshot of the metrics of the service.
+  /// @return The metrics.
+  public ExecutionMetrics getMetrics() {
+    long done = completed.sum() + failed.sum();
+    return new ExecutionMetrics(
+        submitted.sum(),
+        completed.sum(),
+        failed.sum(),
+        queueDepth.get(),
+        activeExecutions.get(),
+        done == 0 ? 0 : totalLatencyNanos.sum() / done,
+        maxLatencyNanos.get(),
+        done == 0 ? 0 : totalExecutionNanos.sum() / done);
+  }
+
+  /// Stops accepting executions and waits for the submitted executions to finish.
+  @Override
+  public void close() {
+    executor.close();
+  }
+
+  /// Executes a program on the current thread and completes its future.
+  /// The metrics are updated before the future is completed, so they include the execution by the
+  /// time the caller sees its result.
+  /// @param program The program to execute.
+  /// @param args The arguments to call the function with.
+  /// @param future The future to complete.
+  /// @param submitTime The time the program was submitted.
+  private void run(
+      CodeType program,
+      ValueRecord[] args,
+      CompletableFuture<ValueRecord> future,
+      long submitTime) {
+    queueDepth.decrementAndGet();
+    activeExecutions.incrementAndGet();
+    long startTime = System.nanoTime();
+    ValueRecord result = null;
+    Throwable error = null;
+    try {
+      if (future.isCancelled()) {
+        failed.increment();
+        return;
+      }
+      var vm = pool.acquire();
+      try {
+        result =
+            program instanceof FunctionType function ? vm.call(function, args) : vm.exec(program);
+      } finally {
+        pool.release(vm);
+      }
+      completed.increment();
+    } catch (Throwable e) {
+      failed.increment();
+      error = e;
+    } finally {
+      long endTime = System.nanoTime();
+      activeExecutions.decrementAndGet();
+      totalExecutionNanos.add(endTime - startTime);
+      totalLatencyNanos.add(endTime - submitTime);
+      maxLatencyNanos.accumulate(endTime - submitTime);
+    }
+    if (error != null) {
+      future.completeExceptionally(error);
+    } else {
+      future.complete(result);
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package net.rptools.maptool.mtscript.functions;
 
 import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.NativeArgs;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -24,11 +25,12 @@ public class Debug {
   /// Returns the absolute value of the given number.
   /// abs(n) -> n
   /// @param vm The VM to operate on
+  /// @param args The arguments of the call
   @MTVMFunction(name = "_vm_debug", arity = 1)
-  public static void debug(MapToolVM vm) {
-    var functionUtils = new FunctionUtils(vm);
-    var arg = functionUtils.getArgs(1)[0];
-    log.debug("Debug: {}", arg);
-    functionUtils.returnResult(arg);
+  public static void debug(MapToolVM vm, NativeArgs args) {
+    if (log.isDebugEnabled()) {
+      log.debug("Debug: {}", args.arg(0));
+    }
+    args.returnArg(0);
   }
 }
@@ -0,0 +1,32 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.functions;
+
+import java.util.List;
+import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
+
+/// A library of native functions that are added to every `VMGlobals`.
+///
+/// Libraries are found with `java.util.ServiceLoader`, so a library registers itself by listing
+/// its class in `META-INF/services/net.rptools.maptool.mtscript.functions.NativeFunctionLibrary`.
+/// The `MTVMFunctionProcessor` annotation processor generates a library for the methods that are
+/// annotated with `@MTVMFunction` and registers it, which is how the built-in functions are found,
+/// but a library can also be written by hand.
+public interface NativeFunctionLibrary {
+
+  /// Returns the functions in the library.
+  /// @return The functions.
+  List<NativeFunctionType> functions();
+}
@@ -0,0 +1,94 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.functions;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.NativeArgs;
+import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
+
+/// Binds `@MTVMFunction` methods to `VMFunction`s at run time, for libraries that are not compiled
+/// with the `MTVMFunctionProcessor`.
+///
+/// The methods are bound with `LambdaMetafactory`, the same way the JVM links a method reference,
+/// so calling the function calls the method directly rather than through `Method.invoke`, and the
+/// JIT can inline it.
+public final class NativeFunctions {
+
+  /// The type of the `VMFunction.call` method.
+  private static final MethodType CALL_TYPE =
+      MethodType.methodType(void.class, MapToolVM.class, NativeArgs.class);
+
+  /// This is a utility class with only static methods.
+  private NativeFunctions() {}
+
+  /// Returns the native functions for the methods of a class that are annotated with
+  /// `@MTVMFunction`, sorted by method name.
+  /// @param lookup A lookup with full privilege access to the class, i.e. `MethodHandles.lookup()`
+  ///     called from the class.
+  /// @param type The class.
+  /// @return The native functions.
+  public static List<NativeFunctionType> of(MethodHandles.Lookup lookup, Class<?> type) {
+    var methods =
+        Arrays.stream(type.getDeclaredMethods())
+            .filter(m -> m.isAnnotationPresent(MTVMFunction.class))
+            .sorted(Comparator.comparing(Method::getName))
+            .toList();
+    var functions = new ArrayList<NativeFunctionType>();
+    for (var method : methods) {
+      var annotation = method.getAnnotation(MTVMFunction.class);
+      functions.add(
+          new NativeFunctionType(annotation.name(), annotation.arity(), bind(lookup, method)));
+    }
+    return List.copyOf(functions);
+  }
+
+  /// Binds a method to a `VMFunction`.
+  /// @param lookup A lookup with full privilege access to the class declaring the method.
+  /// @param method The method, which must be `static void` and take a `MapToolVM` and `NativeArgs`.
+  /// @return The function.
+  public static VMFunction bind(MethodHandles.Lookup lookup, Method method) {
+    if (!Modifier.isStatic(method.getModifiers())
+        || !MethodType.methodType(method.getReturnType(), method.getParameterTypes())
+            .equals(CALL_TYPE)) {
+      throw new IllegalArgumentException(
+          "Native function " + method + " must be static void and take a MapToolVM and NativeArgs");
+    }
+    try {
+      var handle = lookup.unreflect(method);
+      var site =
+          LambdaMetafactory.metafactory(
+              lookup,
+              "call",
+              MethodType.methodType(VMFunction.class),
+              CALL_TYPE,
+              handle,
+              CALL_TYPE);
+      return (VMFunction) site.getTarget().invoke();
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalArgumentException("Unable to bind native function " + method, e);
+    }
+  }
+}
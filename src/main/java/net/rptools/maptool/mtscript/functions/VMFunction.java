@@ -15,8 +15,14 @@
 package net.rptools.maptool.mtscript.functions;
 
 import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.NativeArgs;
 
+/// A native function that can be called from MTScript.
 @FunctionalInterface
 public interface VMFunction {
-  void call(MapToolVM vm);
+  /// Calls the function. The function must set its result with one of the `return` methods of
+  /// `args` before it returns.
+  /// @param vm The VM calling the function.
+  /// @param args The arguments of the call, only valid until the function returns.
+  void call(MapToolVM vm, NativeArgs args);
 }
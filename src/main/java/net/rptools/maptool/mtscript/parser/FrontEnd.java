@@ -0,0 +1,36 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.parser;
+
+/// The ways that `SExpressionCompiler` can read the source of a program.
+public enum FrontEnd {
+  /// The source is parsed into a parse tree by the ANTLR parser generated from
+  /// `mtSexpressionParser.g4` and compiled by `MTSExpressionVisitor`.
+  ANTLR,
+  /// The source is compiled as it is read by the hand-written `SExpressionReader`, without a token
+  /// stream or parse tree.
+  READER;
+
+  /// The system property that sets the default front end, this is used to run the tests with
+  /// each front end.
+  public static final String PROPERTY = "mtscript.frontEnd";
+
+  /// Returns the default front end, which is `ANTLR` unless the system property `PROPERTY` names
+  /// another front end.
+  /// @return The default front end.
+  public static FrontEnd getDefault() {
+    return valueOf(System.getProperty(PROPERTY, ANTLR.name()));
+  }
+}
@@ -46,6 +46,10 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
   /// The global symbol table.
   private final VMGlobals globals;
 
+  /// True if the expression being visited is in tail position of a function body, that is its
+  /// result is the result of the function.
+  private boolean tailPosition = false;
+
   /// Creates a new expression visitor.
   /// @param builder The byte code builder.
   public MTSExpressionVisitor(MapToolVMByteCodeBuilder builder, VMGlobals globals) {
@@ -165,7 +169,10 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
     )); // Add the function
     // name as a local
     // symbol
+    boolean outerTailPosition = tailPosition;
+    tailPosition = true;
     var body = visitAndGenerateLoad(ctx.body); // generate the function body
+    tailPosition = outerTailPosition;
 
     popBuilder();
     funcBuilder.exitScope();
@@ -196,13 +203,16 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
       // TODO: CDW
       throw new RuntimeException("Empty list"); // TODO: CDW
     }
+    // Only the if and block statements pass the tail position on to their operands.
+    boolean tail = tailPosition;
+    tailPosition = false;
 
     var firstOp = visitAndGenerateLoad(ctx.item(0));
     if (firstOp instanceof SymbolOp s) {
       var symbol = builder.resolveSymbol(s.name());
       if (symbol != null) {
         if (symbol.symbol().valueType() == ValueType.FUNCTION) {
-          handleFunctionCall(ctx, (FunctionType) symbol.symbol().value());
+          handleFunctionCall(ctx, (FunctionType) symbol.symbol().value(), tail);
           return null;
         } else if (symbol.symbol().valueType() == ValueType.NATIVE_FUNCTION) {
           handleNativeFunctionCall(ctx, (NativeFunctionType) symbol.symbol().value());
@@ -214,12 +224,12 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
       handleBinaryOp(ctx, bop);
     } else if (firstOp instanceof Op op) {
       switch (op.name()) {
-        case "if" -> handleIf(ctx);
+        case "if" -> handleIf(ctx, tail);
         case "var" -> handleVar(ctx);
         case "set" -> handleSet(ctx);
         case "while" -> handleWhile(ctx);
         case "for" -> handleFor(ctx);
-        case "block" -> handleBlock(ctx);
+        case "block" -> handleBlock(ctx, tail);
         default -> throw new RuntimeException("Unknown operator: " + op.name()); // TODO: CDW
       }
     } else {
@@ -237,11 +247,15 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
       throw new RuntimeException(
           "While statement must have exactly two operands: " + ctx.getText());
     }
+    // The loop evaluates to the value of the body of its last iteration, the value is kept on
+    // the stack and replaced by each iteration, it is false if the body is never executed.
+    builder.emitLoadConstant(false);
     int conditionLabel = builder.allocateJumpLabel();
     builder.setJumpLabel(conditionLabel);
     int endLabel = builder.allocateJumpLabel();
     visitAndGenerateLoad(ctx.item(1)); // condition
     builder.emitJumpIfFalse(endLabel);
+    builder.emitPop(); // The value of the previous iteration
     visitAndGenerateLoad(ctx.item(2)); // body
     builder.emitJump(conditionLabel);
     builder.setJumpLabel(endLabel);
@@ -255,12 +269,17 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
     }
     builder.enterScope();
     visitAndGenerateLoad(ctx.item(1)); // init
+    // The loop evaluates to the value of the increment of its last iteration, the value is kept on
+    // the stack and replaced by each iteration, it is false if the body is never executed.
+    builder.emitLoadConstant(false);
     int conditionLabel = builder.allocateJumpLabel();
     builder.setJumpLabel(conditionLabel);
     int endLabel = builder.allocateJumpLabel();
     visitAndGenerateLoad(ctx.item(2)); // condition
     builder.emitJumpIfFalse(endLabel);
+    builder.emitPop(); // The value of the previous iteration
     visitAndGenerateLoad(ctx.item(4)); // body
+    builder.emitPop(); // The result of the body is discarded for each iteration
     visitAndGenerateLoad(ctx.item(3)); // increment
     builder.emitJump(conditionLabel);
     builder.setJumpLabel(endLabel);
@@ -269,16 +288,18 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
 
   /// Handles a block statement.
   /// @param ctx The context.
-  private void handleBlock(ListContext ctx) {
-    int size = ctx.item().size();
+  /// @param tail True if the block is in tail position.
+  private void handleBlock(ListContext ctx, boolean tail) {
+    // ctx.item() builds a new list and ctx.item(i) scans the children, so fetch them once.
+    var items = ctx.item();
+    int size = items.size();
     builder.enterScope();
-    for (int i = 1; i < ctx.item().size(); i++) {
-      var res = visitAndGenerateLoad(ctx.item(i));
-      boolean localSymbolDec = false;
-      if (res != null && !builder.isInGlobalScope() && res.name().equals("var")) {
-        localSymbolDec = true;
-        System.out.println("Local Symbol Declaration: " + ctx.item(i).getText());
-      }
+    for (int i = 1; i < size; i++) {
+      tailPosition = tail && i == size - 1; // Only the last expression is in tail position
+      var res = visitAndGenerateLoad(items.get(i));
+      tailPosition = false;
+      boolean localSymbolDec =
+          res != null && !builder.isInGlobalScope() && res.name().equals("var");
       if (i < size - 1 && !localSymbolDec) {
         // The result of the block is the result of the last expression in the block. All
         // other results are popped unless they are local symbol declarations as
@@ -298,8 +319,8 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
           "Native function " + function.name() + " requires " + function.arity() + " arguments");
     }
 
-    // Push the arguments onto the stack in reverse order
-    for (int i = ctx.item().size() - 1; i >= 1; i--) {
+    // Push the arguments onto the stack in order, so the first argument is the first local
+    for (int i = 1; i < ctx.item().size(); i++) {
       visitAndGenerateLoad(ctx.item(i));
     }
     builder.emitNativeFunctionCall(function, function.arity());
@@ -309,17 +330,22 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
   /// Handles a function call.
   /// @param ctx The context.
   /// @param function The function.
-  private void handleFunctionCall(ListContext ctx, FunctionType function) {
+  /// @param tail True if the call is in tail position.
+  private void handleFunctionCall(ListContext ctx, FunctionType function, boolean tail) {
     if (ctx.item().size() != function.arity() + 1) {
       throw new RuntimeException(
           "Function " + function.name() + " requires " + function.arity() + " arguments");
     }
 
-    // Push the arguments onto the stack in reverse order
-    for (int i = ctx.item().size() - 1; i >= 1; i--) {
+    // Push the arguments onto the stack in order, so the first argument is the first local
+    for (int i = 1; i < ctx.item().size(); i++) {
       visitAndGenerateLoad(ctx.item(i));
     }
-    builder.emitFunctionCall(function, ctx.item().size() - 1);
+    if (tail) {
+      builder.emitTailCall(function, ctx.item().size() - 1);
+    } else {
+      builder.emitFunctionCall(function, ctx.item().size() - 1);
+    }
   }
 
   /// Handles a set statement.
@@ -381,7 +407,8 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
 
   /// Handles an if statement.
   /// @param ctx The context.
-  private void handleIf(ListContext ctx) {
+  /// @param tail True if the if statement is in tail position.
+  private void handleIf(ListContext ctx, boolean tail) {
     if (ctx.item().size() != 4) { // TODO: CDW
       throw new RuntimeException("If statement must have exactly three operands: " + ctx.getText());
     }
@@ -391,14 +418,18 @@ public class MTSExpressionVisitor extends mtSexpressionParserBaseVisitor<SExpres
     }
     int elseLabel = builder.allocateJumpLabel();
     builder.emitJumpIfFalse(elseLabel);
+    tailPosition = tail;
     var trueBranch = visitAndGenerateLoad(ctx.item(2));
+    tailPosition = false;
     if (trueBranch instanceof SExpressionValue tval) {
       emitLoadConstant(tval);
     }
     int endLabel = builder.allocateJumpLabel();
     builder.emitJump(endLabel);
     builder.setJumpLabel(elseLabel);
+    tailPosition = tail;
     var falseBranch = visitAndGenerateLoad(ctx.item(3));
+    tailPosition = false;
     if (falseBranch instanceof SExpressionValue fval) {
       emitLoadConstant(fval);
     }
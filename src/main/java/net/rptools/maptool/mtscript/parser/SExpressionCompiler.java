@@ -14,8 +14,22 @@
  */
 package net.rptools.maptool.mtscript.parser;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import net.rptools.maptool.mtscript.vm.ByteCodeProgram;
+import net.rptools.maptool.mtscript.vm.ExecutableProgram;
+import net.rptools.maptool.mtscript.vm.ExecutionBackend;
 import net.rptools.maptool.mtscript.vm.MapToolVMByteCodeBuilder;
 import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.register.RegisterProgram;
+import net.rptools.maptool.mtscript.vm.tree.TreeProgram;
 import net.rptools.maptool.mtscript.vm.values.CodeType;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
@@ -26,23 +40,134 @@ public class SExpressionCompiler {
   /// The global symbol table.
   private final VMGlobals globals;
 
+  /// The backend that programs from `compileExecutable` are executed by.
+  private ExecutionBackend backend = ExecutionBackend.BYTE_CODE;
+
+  /// The front end that reads the source.
+  private FrontEnd frontEnd = FrontEnd.getDefault();
+
   /// Creates a new S-expression compiler.
   /// @param globals The global symbol table.
   public SExpressionCompiler(VMGlobals globals) {
     this.globals = globals;
   }
 
+  /// Returns the global symbol table the programs are compiled against.
+  /// @return The globals.
+  public VMGlobals getGlobals() {
+    return globals;
+  }
+
+  /// Returns the backend that programs from `compileExecutable` are executed by.
+  /// @return The execution backend.
+  public ExecutionBackend getBackend() {
+    return backend;
+  }
+
+  /// Sets the backend that programs from `compileExecutable` are executed by.
+  /// @param backend The execution backend.
+  public void setBackend(ExecutionBackend backend) {
+    this.backend = backend;
+  }
+
+  /// Returns the front end that reads the source.
+  /// @return The front end.
+  public FrontEnd getFrontEnd() {
+    return frontEnd;
+  }
+
+  /// Sets the front end that reads the source.
+  /// @param frontEnd The front end.
+  public void setFrontEnd(FrontEnd frontEnd) {
+    this.frontEnd = frontEnd;
+  }
+
   /// Compiles an S-expression.
   /// @param source The source code of the S-expression.
   /// @param name The name to attribute to the program being compiled.
   /// @return The compiled program.
-  public CodeType compile(String source, String name) {
-    var lexer = new mtSexpressionLexer(CharStreams.fromString("(block " + source + ")"));
-    var tokens = new CommonTokenStream(lexer);
-    var parser = new mtSexpressionParser(tokens);
+  public CodeType compile(CharSequence source, String name) {
     var builder = new MapToolVMByteCodeBuilder(name, globals);
-    var visitor = new MTSExpressionVisitor(builder, globals);
-    var code = visitor.visit(parser.sexpr());
+    if (frontEnd == FrontEnd.READER) {
+      new SExpressionReader(source, globals).read(builder);
+    } else {
+      var lexer = new mtSexpressionLexer(CharStreams.fromString("(block " + source + ")"));
+      var tokens = new CommonTokenStream(lexer);
+      var parser = new mtSexpressionParser(tokens);
+      var visitor = new MTSExpressionVisitor(builder, globals);
+      visitor.visit(parser.sexpr());
+    }
     return builder.buildProgram();
   }
+
+  /// Compiles an S-expression streamed from a reader. Each top-level item is compiled as soon as
+  /// it has been read, so the whole source is never held in memory. Streamed sources are always
+  /// read by the `SExpressionReader`, whatever the front end is.
+  /// @param source The reader to read the source code from, it is not closed.
+  /// @param name The name to attribute to the program being compiled.
+  /// @return The compiled program.
+  /// @throws IOException If reading the source fails.
+  public CodeType compile(Reader source, String name) throws IOException {
+    var builder = new MapToolVMByteCodeBuilder(name, globals);
+    try {
+      new SExpressionReader(source, globals).read(builder);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return builder.buildProgram();
+  }
+
+  /// Compiles the top-level items of an S-expression streamed from a reader into separate
+  /// programs, each is passed to the consumer as soon as it has been compiled so it can be executed
+  /// while the rest of the source is read. The programs must be executed in order, as functions
+  /// defined by an item can be called by the items after it. Streamed sources are always read by
+  /// the `SExpressionReader`, whatever the front end is.
+  /// @param source The reader to read the source code from, it is not closed.
+  /// @param name The name of the source, the programs are named after it and their position.
+  /// @param forms The consumer of the compiled programs.
+  /// @throws IOException If reading the source fails.
+  public void compileForms(Reader source, String name, Consumer<CodeType> forms)
+      throws IOException {
+    try {
+      new SExpressionReader(source, globals).readForms(name, forms);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /// Compiles an S-expression streamed from a UTF-8 file, see `compile(Reader, String)`.
+  /// @param path The path of the file.
+  /// @param name The name to attribute to the program being compiled.
+  /// @return The compiled program.
+  /// @throws IOException If reading the file fails.
+  public CodeType compile(Path path, String name) throws IOException {
+    try (var reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      return compile(reader, name);
+    }
+  }
+
+  /// Compiles an S-expression streamed from a channel of UTF-8 bytes, see
+  /// `compile(Reader, String)`.
+  /// @param channel The channel to read the source code from, it is not closed.
+  /// @param name The name to attribute to the program being compiled.
+  /// @return The compiled program.
+  /// @throws IOException If reading the channel fails.
+  public CodeType compile(ReadableByteChannel channel, String name) throws IOException {
+    // The reader closes the channel when it is closed, so it is left open.
+    return compile(Channels.newReader(channel, StandardCharsets.UTF_8), name);
+  }
+
+  /// Compiles an S-expression into a program for the selected execution backend.
+  /// Programs that the backend can not execute are executed by the byte code interpreter.
+  /// @param source The source code of the S-expression.
+  /// @param name The name to attribute to the program being compiled.
+  /// @return The compiled program.
+  public ExecutableProgram compileExecutable(String source, String name) {
+    var code = compile(source, name);
+    return switch (backend) {
+      case BYTE_CODE -> new ByteCodeProgram(code);
+      case TREE -> TreeProgram.of(code);
+      case REGISTER -> RegisterProgram.of(code);
+    };
+  }
 }
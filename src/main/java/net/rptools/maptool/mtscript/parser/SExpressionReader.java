@@ -0,0 +1,851 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.function.Consumer;
+import net.rptools.maptool.mtscript.parser.expr.BinaryOp;
+import net.rptools.maptool.mtscript.parser.expr.Op;
+import net.rptools.maptool.mtscript.parser.expr.SExpressionExpr;
+import net.rptools.maptool.mtscript.parser.expr.SymbolOp;
+import net.rptools.maptool.mtscript.vm.MapToolVMByteCodeBuilder;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
+import net.rptools.maptool.mtscript.vm.values.ValueType;
+
+/// A hand-written reader that compiles an S-expression straight from its source text.
+///
+/// It makes the same calls on the `MapToolVMByteCodeBuilder` as `MTSExpressionVisitor` does for
+/// the ANTLR parse tree, but reads the characters directly instead of building a token stream and
+/// parse tree first, so it is much cheaper for the many small macros that are compiled on the fly.
+/// The source is read as the items of a block, as `SExpressionCompiler` does for the ANTLR parser.
+/// A `char[]` can be read by wrapping it with `java.nio.CharBuffer.wrap`.
+///
+/// The source can also be streamed from a `Reader`, each top-level item is compiled as soon as it
+/// has been read and then discarded, so only the largest top-level item is ever held in memory.
+/// With `readForms` each top-level item is compiled into a program of its own, so it can be
+/// executed before the rest of the source has been read.
+///
+/// The language is the one in `mtSexpressionParser.g4`, with these differences:
+/// - `//` and `/*` at the start of a token always start a comment, the ANTLR lexer reads a
+///   comment with no spaces that runs to the end of the line as a symbol.
+/// - Characters that can not start a token are an error, the ANTLR lexer reports and skips them.
+///
+/// Like the ANTLR parser, lists that are still open at the end of the source are closed.
+public class SExpressionReader {
+
+  /// The operators and keywords that are read as symbols by the lexer.
+  private static final Map<String, SExpressionExpr> OPERATORS =
+      Map.ofEntries(
+          Map.entry("+", new BinaryOp("+")),
+          Map.entry("-", new BinaryOp("-")),
+          Map.entry("*", new BinaryOp("*")),
+          Map.entry("/", new BinaryOp("/")),
+          Map.entry("<", new BinaryOp("<")),
+          Map.entry(">", new BinaryOp(">")),
+          Map.entry("<=", new BinaryOp("<=")),
+          Map.entry(">=", new BinaryOp(">=")),
+          Map.entry("==", new BinaryOp("==")),
+          Map.entry("!=", new BinaryOp("!=")),
+          Map.entry("if", new Op("if")),
+          Map.entry("block", new Op("block")),
+          Map.entry("while", new Op("while")),
+          Map.entry("for", new Op("for")));
+
+  /// The result of the `var` keyword.
+  private static final Op VAR = new Op("var");
+
+  /// The result of the `set` keyword.
+  private static final Op SET = new Op("set");
+
+  /// The size of the chunks read from the input when streaming.
+  private static final int CHUNK_SIZE = 8192;
+
+  /// The source being read, when streaming this is the window of the input that has been read but
+  /// not discarded.
+  private final CharSequence source;
+
+  /// The input being streamed, or null if the whole source is in `source` (or the end of the input
+  /// has been reached).
+  private Reader input;
+
+  /// The window of the input being streamed, or null if not streaming.
+  private final StringBuilder window;
+
+  /// The buffer the input is read into when streaming.
+  private final char[] chunk;
+
+  /// The index in the input of the first character in `source`.
+  private long offset = 0;
+
+  /// The index of the next character to read.
+  private int pos = 0;
+
+  /// The byte code builder stack
+  private final Stack<MapToolVMByteCodeBuilder> builderStack = new Stack<>();
+
+  /// The current byte code builder.
+  private MapToolVMByteCodeBuilder builder;
+
+  /// The global symbol table.
+  private final VMGlobals globals;
+
+  /// True if the expression being read is in tail position of a function body, that is its
+  /// result is the result of the function.
+  private boolean tailPosition = false;
+
+  /// Creates a new S-expression reader.
+  /// @param source The source to read.
+  /// @param globals The global symbol table.
+  public SExpressionReader(CharSequence source, VMGlobals globals) {
+    this.source = source;
+    this.window = null;
+    this.chunk = null;
+    this.globals = globals;
+  }
+
+  /// Creates a new S-expression reader that streams its source.
+  /// @param input The input to read the source from, it is not closed by the reader.
+  /// @param globals The global symbol table.
+  public SExpressionReader(Reader input, VMGlobals globals) {
+    this.window = new StringBuilder();
+    this.source = window;
+    this.input = input;
+    this.chunk = new char[CHUNK_SIZE];
+    this.globals = globals;
+  }
+
+  /// Reads the source, generating its byte code with the builder. A source can only be read once.
+  /// @param builder The byte code builder.
+  /// @throws UncheckedIOException If the source is streamed and reading it fails.
+  public void read(MapToolVMByteCodeBuilder builder) {
+    pushBuilder(builder);
+    handleBlock(false, true);
+  }
+
+  /// Reads the source one top-level item at a time, compiling each item into a program of its own
+  /// that is passed to the consumer as soon as the item has been read. Functions defined by an
+  /// item can be called by the items after it. A source can only be read once.
+  /// @param name The name of the source, the programs are named after it and their position.
+  /// @param forms The consumer of the compiled programs.
+  /// @throws UncheckedIOException If the source is streamed and reading it fails.
+  public void readForms(String name, Consumer<CodeType> forms) {
+    Map<String, FunctionType> functions = new HashMap<>();
+    for (int form = 0; !atEnd(); form++) {
+      var formBuilder = new MapToolVMByteCodeBuilder(name + "[" + form + "]", globals);
+      formBuilder.importFunctions(functions);
+      builderStack.clear();
+      pushBuilder(formBuilder);
+      // Each item is compiled as a block of its own, as all the items are in the global scope
+      // this generates the same code as the item would have in the block of the whole source.
+      formBuilder.enterScope();
+      readAndGenerateLoad();
+      formBuilder.exitScope();
+      var code = formBuilder.buildProgram();
+      for (var function : code.functions()) {
+        functions.put(function.name(), function);
+      }
+      discardRead();
+      forms.accept(code);
+    }
+  }
+
+  /// Pushes a new builder onto the stack and sets it as the current builder.
+  /// @param builder The builder to push.
+  private void pushBuilder(MapToolVMByteCodeBuilder builder) {
+    builderStack.push(builder);
+    this.builder = builder;
+  }
+
+  /// Pops a builder from the stack and sets the builder on top of the stack as the current builder.
+  private void popBuilder() {
+    builderStack.pop();
+    this.builder = builderStack.peek();
+  }
+
+  /// Emits the instruction for a binary operator.
+  /// @param op The operator.
+  private void emit(BinaryOp op) {
+    switch (op.name()) {
+      case "+" -> builder.emitAdd();
+      case "-" -> builder.emitSubtract();
+      case "*" -> builder.emitMultiply();
+      case "/" -> builder.emitDivide();
+      case "<" -> builder.emitLessThan();
+      case ">" -> builder.emitGreaterThan();
+      case "<=" -> builder.emitLessThanOrEqual();
+      case ">=" -> builder.emitGreaterThanOrEqual();
+      case "==" -> builder.emitEqual();
+      case "!=" -> builder.emitNotEqual();
+      default -> throw new RuntimeException("Unknown operator: " + op.name());
+    }
+  }
+
+  /// Handles a symbol.
+  /// @param name The name of the symbol.
+  private void handleSymbol(String name) {
+    var sym = builder.resolveSymbol(name);
+    if (sym != null) {
+      if (sym.compileTimeConstant()) {
+        builder.emitLoadConstant(sym.symbol().value());
+      } else if (sym.scopeLevel() == VMGlobals.GLOBAL_VARIABLE_SCOPE) {
+        builder.emitLoadGlobal(sym.index());
+      } else {
+        builder.emitLoadLocal(sym.index());
+      }
+    }
+  }
+
+  /// Reads an item and generates code to load the result onto the stack.
+  /// @return The result of reading the item.
+  private SExpressionExpr readAndGenerateLoad() {
+    var res = readItem();
+    if (res instanceof SymbolOp s) {
+      handleSymbol(s.name());
+    }
+    return res;
+  }
+
+  /// Reads an item, literals are loaded onto the stack but symbols are not.
+  /// @return The symbol or operator that was read, or null if the item was a literal, list or
+  ///     function definition.
+  private SExpressionExpr readItem() {
+    skipWhitespace();
+    if (!has(pos)) {
+      throw error("Unexpected end of input");
+    }
+    char c = source.charAt(pos);
+    if (c == '(') {
+      return readList();
+    } else if (c == '"') {
+      builder.emitLoadConstant(readString());
+      return null;
+    } else if (isSymbolChar(c)) {
+      return readWord();
+    }
+    throw error("Unexpected character '" + c + "'");
+  }
+
+  /// Reads a word, that is a symbol, keyword or number.
+  /// @return The symbol or operator that was read, or null if the word was a literal or function
+  ///     definition.
+  private SExpressionExpr readWord() {
+    int start = pos;
+    int value = 0;
+    boolean isInteger = true;
+    while (has(pos) && isSymbolChar(source.charAt(pos))) {
+      char c = source.charAt(pos++);
+      if (isInteger && c >= '0' && c <= '9') {
+        try {
+          value = Math.addExact(Math.multiplyExact(value, 10), c - '0');
+        } catch (ArithmeticException e) {
+          throw error("Integer literal out of range");
+        }
+      } else {
+        isInteger = false;
+      }
+    }
+    if (isInteger) {
+      builder.emitLoadConstant(value);
+      return null;
+    } else if (matches(start, "true")) {
+      builder.emitLoadConstant(true);
+      return null;
+    } else if (matches(start, "false")) {
+      builder.emitLoadConstant(false);
+      return null;
+    } else if (matches(start, "var")) {
+      return VAR;
+    } else if (matches(start, "set")) {
+      return SET;
+    } else if (matches(start, "def")) {
+      readDefineFunction();
+      return null;
+    }
+    var symbol = source.subSequence(start, pos).toString();
+    var op = OPERATORS.get(symbol);
+    return op != null ? op : new SymbolOp(symbol);
+  }
+
+  /// Reads a string literal, escape sequences are kept as they are written.
+  /// @return The value of the string.
+  private String readString() {
+    int start = ++pos;
+    while (has(pos)) {
+      char c = source.charAt(pos);
+      if (c == '"') {
+        return source.subSequence(start, pos++).toString();
+      }
+      pos += c == '\\' && has(pos + 1) && isEscapeChar(source.charAt(pos + 1)) ? 2 : 1;
+    }
+    throw error("Unterminated string");
+  }
+
+  /// Reads a symbol that is not a keyword or number, e.g. the name of a function.
+  /// @param what What the symbol is, for the error message.
+  /// @return The symbol.
+  private String readSymbol(String what) {
+    skipWhitespace();
+    var word = has(pos) && isSymbolChar(source.charAt(pos)) ? readWordText() : null;
+    if (word == null
+        || word.chars().allMatch(c -> c >= '0' && c <= '9')
+        || switch (word) {
+          case "true", "false", "var", "set", "def" -> true;
+          default -> false;
+        }) {
+      throw error("Expected " + what);
+    }
+    return word;
+  }
+
+  /// Reads the text of a word.
+  /// @return The text of the word.
+  private String readWordText() {
+    int start = pos;
+    while (has(pos) && isSymbolChar(source.charAt(pos))) {
+      pos++;
+    }
+    return source.subSequence(start, pos).toString();
+  }
+
+  /// Reads a function definition, the `def` keyword has already been read.
+  private void readDefineFunction() {
+    var name = readSymbol("function name");
+    expect('(');
+    List<String> params = new ArrayList<>();
+    while (!atListEnd()) {
+      params.add(readSymbol("parameter name"));
+    }
+    expect(')');
+    int arity = params.size();
+    // TODO: CDW handle reserved namespaces
+    var funcBuilder = new MapToolVMByteCodeBuilder(name, arity, globals, builder);
+    pushBuilder(funcBuilder);
+    // Parameters are local symbols
+    for (var param : params) {
+      funcBuilder.defineLocalSymbol(param);
+    }
+    // Define the function as a local symbol, we use a place holder for the function as the
+    // parser just needs to know the type and it will be populated at run time.
+    funcBuilder.defineLocalSymbol(
+        name, new FunctionType(name, new byte[0], List.of(), List.of(), arity));
+    skipWhitespace();
+    if (!has(pos) || source.charAt(pos) != '(') {
+      throw error("Expected function body");
+    }
+    boolean outerTailPosition = tailPosition;
+    tailPosition = true;
+    readAndGenerateLoad(); // generate the function body
+    tailPosition = outerTailPosition;
+
+    popBuilder();
+    funcBuilder.exitScope();
+    var func = funcBuilder.buildFunction();
+    builder.addFunction(name, func);
+  }
+
+  /// Reads a list, the next character is the opening parenthesis.
+  /// @return The first operator of the list.
+  private SExpressionExpr readList() {
+    int start = pos++;
+    if (atListEnd()) {
+      throw error("Empty list"); // TODO: CDW
+    }
+    // Only the if and block statements pass the tail position on to their operands.
+    boolean tail = tailPosition;
+    tailPosition = false;
+
+    var firstOp = readAndGenerateLoad();
+    if (firstOp instanceof SymbolOp s) {
+      var symbol = builder.resolveSymbol(s.name());
+      if (symbol != null) {
+        if (symbol.symbol().valueType() == ValueType.FUNCTION) {
+          handleFunctionCall((FunctionType) symbol.symbol().value(), tail);
+          return null;
+        } else if (symbol.symbol().valueType() == ValueType.NATIVE_FUNCTION) {
+          handleNativeFunctionCall((NativeFunctionType) symbol.symbol().value());
+          return null;
+        }
+      }
+      throw new RuntimeException("Unknown symbol: " + s.name()); // TODO: CDW
+    } else if (firstOp instanceof BinaryOp bop) {
+      handleBinaryOp(bop, start);
+    } else if (firstOp instanceof Op op) {
+      switch (op.name()) {
+        case "if" -> handleIf(tail, start);
+        case "var" -> handleVar(start);
+        case "set" -> handleSet(start);
+        case "while" -> handleWhile(start);
+        case "for" -> handleFor(start);
+        case "block" -> handleBlock(tail, false);
+        default -> throw new RuntimeException("Unknown operator: " + op.name()); // TODO: CDW
+      }
+    } else {
+      while (!atListEnd()) {
+        readAndGenerateLoad();
+      }
+      expect(')');
+    }
+    return firstOp;
+  }
+
+  /// Handles a while statement.
+  /// @param start The index of the start of the statement.
+  private void handleWhile(int start) {
+    var message = "While statement must have exactly two operands";
+    // The loop evaluates to the value of the body of its last iteration, the value is kept on
+    // the stack and replaced by each iteration, it is false if the body is never executed.
+    builder.emitLoadConstant(false);
+    int conditionLabel = builder.allocateJumpLabel();
+    builder.setJumpLabel(conditionLabel);
+    int endLabel = builder.allocateJumpLabel();
+    readOperand(message, start); // condition
+    builder.emitJumpIfFalse(endLabel);
+    builder.emitPop(); // The value of the previous iteration
+    readOperand(message, start); // body
+    builder.emitJump(conditionLabel);
+    builder.setJumpLabel(endLabel);
+    expectEnd(message, start);
+  }
+
+  /// Handles a for statement, the increment is read after the body, as it is emitted after it.
+  /// @param start The index of the start of the statement.
+  private void handleFor(int start) {
+    var message = "For statement must have exactly four operands";
+    builder.enterScope();
+    readOperand(message, start); // init
+    // The loop evaluates to the value of the increment of its last iteration, the value is kept on
+    // the stack and replaced by each iteration, it is false if the body is never executed.
+    builder.emitLoadConstant(false);
+    int conditionLabel = builder.allocateJumpLabel();
+    builder.setJumpLabel(conditionLabel);
+    int endLabel = builder.allocateJumpLabel();
+    readOperand(message, start); // condition
+    builder.emitJumpIfFalse(endLabel);
+    builder.emitPop(); // The value of the previous iteration
+    int increment = skipOperand(message, start);
+    readOperand(message, start); // body
+    builder.emitPop(); // The result of the body is discarded for each iteration
+    int end = pos;
+    pos = increment;
+    readOperand(message, start); // increment
+    pos = end;
+    builder.emitJump(conditionLabel);
+    builder.setJumpLabel(endLabel);
+    builder.exitScope();
+    expectEnd(message, start);
+  }
+
+  /// Handles a block statement, or the items of the source when reading the whole source.
+  /// @param tail True if the block is in tail position.
+  /// @param topLevel True if the block is the whole source rather than a list.
+  private void handleBlock(boolean tail, boolean topLevel) {
+    builder.enterScope();
+    while (!(topLevel ? atEnd() : atListEnd())) {
+      // Only the last expression is in tail position
+      tailPosition = tail && isLastItem();
+      var res = readAndGenerateLoad();
+      tailPosition = false;
+      boolean localSymbolDec =
+          res != null && !builder.isInGlobalScope() && res.name().equals("var");
+      if (!(topLevel ? atEnd() : atListEnd()) && !localSymbolDec) {
+        // The result of the block is the result of the last expression in the block. All
+        // other results are popped unless they are local symbol declarations as
+        // local symbols live on the stack until the end of the block.
+        builder.emitPop();
+      }
+      if (topLevel) {
+        discardRead();
+      }
+    }
+    if (!topLevel) {
+      expect(')');
+    }
+    builder.exitScope();
+  }
+
+  /// Handles a native function call.
+  /// @param function The native function.
+  private void handleNativeFunctionCall(NativeFunctionType function) {
+    readArguments(function.name(), function.arity(), "Native function ");
+    builder.emitNativeFunctionCall(function, function.arity());
+  }
+
+  /// Handles a function call.
+  /// @param function The function.
+  /// @param tail True if the call is in tail position.
+  private void handleFunctionCall(FunctionType function, boolean tail) {
+    readArguments(function.name(), function.arity(), "Function ");
+    if (tail) {
+      builder.emitTailCall(function, function.arity());
+    } else {
+      builder.emitFunctionCall(function, function.arity());
+    }
+  }
+
+  /// Reads the arguments of a function call, pushing them onto the stack in order, so the first
+  /// argument is the first local.
+  /// @param name The name of the function.
+  /// @param arity The arity of the function.
+  /// @param kind The kind of function, for the error message.
+  private void readArguments(String name, int arity, String kind) {
+    int count = 0;
+    while (!atListEnd()) {
+      if (count++ == arity) {
+        break;
+      }
+      readAndGenerateLoad();
+    }
+    if (count != arity || !atListEnd()) {
+      throw new RuntimeException(kind + name + " requires " + arity + " arguments");
+    }
+    expect(')');
+  }
+
+  /// Handles a set statement.
+  /// @param start The index of the start of the statement.
+  private void handleSet(int start) {
+    var message = "Set statement must have exactly two operands";
+    requireOperand(message, start);
+    var symbol = readItem();
+    if (symbol instanceof SymbolOp s) {
+      // dont bother checking if the symbol is defined, as we need to find it in any case
+      int index = -1;
+      boolean isGlobal = false;
+      if (builder.isInGlobalScope()) {
+        index = globals.getGlobalSymbolIndex(s.name());
+        isGlobal = true;
+      } else {
+        index = builder.getLocalSymbolIndex(s.name());
+        if (index == -1) {
+          index = globals.getGlobalSymbolIndex(s.name());
+          isGlobal = true;
+        }
+      }
+      if (index == -1) {
+        throw new RuntimeException("Undefined symbol: " + s.name()); // TODO: CDW
+      }
+      readOperand(message, start);
+      if (isGlobal) {
+        builder.emitSetGlobal(index);
+      } else {
+        builder.emitSetLocal(index);
+      }
+    } else {
+      throw new RuntimeException("Invalid symbol: " + symbol); // TODO: CDW
+    }
+    expectEnd(message, start);
+  }
+
+  /// Handles a var statement.
+  /// @param start The index of the start of the statement.
+  private void handleVar(int start) {
+    // TODO: CDW handle reserved namespaces
+    var message = "Var statement must have exactly two operands";
+    requireOperand(message, start);
+    var symbol = readItem();
+    if (symbol instanceof SymbolOp s) {
+      readOperand(message, start);
+      if (builder.isInGlobalScope()) {
+        int index = globals.defineGlobalVariable(s.name());
+        builder.emitSetGlobal(index);
+      } else {
+        int index = builder.defineLocalSymbol(s.name());
+        builder.emitSetLocal(index);
+      }
+    } else {
+      throw new RuntimeException("Invalid symbol: " + symbol); // TODO: CDW
+    }
+    expectEnd(message, start);
+  }
+
+  /// Handles an if statement.
+  /// @param tail True if the if statement is in tail position.
+  /// @param start The index of the start of the statement.
+  private void handleIf(boolean tail, int start) {
+    var message = "If statement must have exactly three operands";
+    readOperand(message, start); // condition
+    int elseLabel = builder.allocateJumpLabel();
+    builder.emitJumpIfFalse(elseLabel);
+    tailPosition = tail;
+    requireOperand(message, start);
+    readAndGenerateLoad();
+    tailPosition = false;
+    int endLabel = builder.allocateJumpLabel();
+    builder.emitJump(endLabel);
+    builder.setJumpLabel(elseLabel);
+    tailPosition = tail;
+    requireOperand(message, start);
+    readAndGenerateLoad();
+    tailPosition = false;
+    builder.setJumpLabel(endLabel);
+    expectEnd(message, start);
+  }
+
+  /// Handles a binary operator.
+  /// @param bop The binary operator.
+  /// @param start The index of the start of the expression.
+  private void handleBinaryOp(BinaryOp bop, int start) {
+    var message = "Binary operator (" + bop.name() + ") must have exactly two operands";
+    readOperand(message, start);
+    readOperand(message, start);
+    emit(bop);
+    expectEnd(message, start);
+  }
+
+  /// Reads an operand of a statement and generates code to load it onto the stack.
+  /// @param message The error message if the operand is missing.
+  /// @param start The index of the start of the statement.
+  private void readOperand(String message, int start) {
+    requireOperand(message, start);
+    readAndGenerateLoad();
+  }
+
+  /// Skips over an operand of a statement without generating any code.
+  /// @param message The error message if the operand is missing.
+  /// @param start The index of the start of the statement.
+  /// @return The index of the operand.
+  private int skipOperand(String message, int start) {
+    requireOperand(message, start);
+    int operand = pos;
+    skipItem();
+    return operand;
+  }
+
+  /// Throws an exception if the statement has no more operands.
+  /// @param message The error message.
+  /// @param start The index of the start of the statement.
+  private void requireOperand(String message, int start) {
+    if (atListEnd()) {
+      throw statementError(message, start);
+    }
+  }
+
+  /// Throws an exception if the statement has more operands, otherwise reads its end.
+  /// @param message The error message.
+  /// @param start The index of the start of the statement.
+  private void expectEnd(String message, int start) {
+    if (!atListEnd()) {
+      throw statementError(message, start);
+    }
+    expect(')');
+  }
+
+  /// Returns true if the item at the current index is the last item in its list.
+  /// @return True if the item is the last item.
+  private boolean isLastItem() {
+    int itemStart = pos;
+    skipItem();
+    boolean last = atListEnd();
+    pos = itemStart;
+    return last;
+  }
+
+  /// Skips over an item without generating any code.
+  private void skipItem() {
+    skipWhitespace();
+    if (!has(pos)) {
+      throw error("Unexpected end of input");
+    }
+    char c = source.charAt(pos);
+    if (c == '"') {
+      readString();
+    } else if (isSymbolChar(c)) {
+      int start = pos;
+      readWordText();
+      if (matches(start, "def")) {
+        readSymbol("function name"); // name
+        skipItem(); // parameters
+        skipItem(); // body
+      }
+    } else if (c == '(') {
+      pos++;
+      while (!atListEnd()) {
+        skipItem();
+      }
+      expect(')');
+    } else {
+      throw error("Unexpected character '" + c + "'");
+    }
+  }
+
+  /// Skips whitespace and comments, and returns true if the next character closes a list. The end
+  /// of the source closes every open list, as the ANTLR parser recovers by inserting the missing
+  /// closing parentheses.
+  /// @return True if the next character is a closing parenthesis or there are no more characters.
+  private boolean atListEnd() {
+    skipWhitespace();
+    return !has(pos) || source.charAt(pos) == ')';
+  }
+
+  /// Skips whitespace and comments, and returns true if the whole source has been read.
+  /// @return True if there are no more characters.
+  private boolean atEnd() {
+    skipWhitespace();
+    if (has(pos) && source.charAt(pos) == ')') {
+      throw error("Unexpected ')'");
+    }
+    return !has(pos);
+  }
+
+  /// Reads the given character, skipping whitespace and comments before it. A missing closing
+  /// parenthesis at the end of the source is accepted, see `atListEnd`.
+  /// @param expected The expected character.
+  private void expect(char expected) {
+    skipWhitespace();
+    if (expected == ')' && !has(pos)) {
+      return;
+    }
+    if (!has(pos) || source.charAt(pos) != expected) {
+      throw error("Expected '" + expected + "'");
+    }
+    pos++;
+  }
+
+  /// Skips whitespace and comments.
+  private void skipWhitespace() {
+    while (has(pos)) {
+      char c = source.charAt(pos);
+      if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f') {
+        pos++;
+      } else if (c == '/' && has(pos + 1) && source.charAt(pos + 1) == '/') {
+        while (has(pos) && source.charAt(pos) != '\r' && source.charAt(pos) != '\n') {
+          pos++;
+        }
+      } else if (c == '/' && has(pos + 1) && source.charAt(pos + 1) == '*') {
+        int end = indexOf("*/", pos + 2);
+        if (end == -1) {
+          throw error("Unterminated comment");
+        }
+        pos = end + 2;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /// Returns true if there is a character at the index, reading more of the input if needed.
+  /// @param index The index in the source.
+  /// @return True if there is a character at the index.
+  private boolean has(int index) {
+    while (index >= source.length()) {
+      if (input == null) {
+        return false;
+      }
+      try {
+        int read = input.read(chunk);
+        if (read < 0) {
+          input = null;
+        } else {
+          window.append(chunk, 0, read);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return true;
+  }
+
+  /// Discards the characters that have been read when streaming, this is only called between
+  /// top-level items as no earlier characters are needed after that.
+  private void discardRead() {
+    if (window != null && pos > 0) {
+      window.delete(0, pos);
+      offset += pos;
+      pos = 0;
+    }
+  }
+
+  /// Returns the index of a string in the source.
+  /// @param str The string to find.
+  /// @param from The index to start searching from.
+  /// @return The index of the string, or -1 if it is not found.
+  private int indexOf(String str, int from) {
+    for (int i = from; has(i + str.length() - 1); i++) {
+      if (matchesAt(i, str)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /// Returns true if the word that was just read from the given index is the keyword.
+  /// @param start The index of the start of the word.
+  /// @param keyword The keyword.
+  /// @return True if the word is the keyword.
+  private boolean matches(int start, String keyword) {
+    return pos - start == keyword.length() && matchesAt(start, keyword);
+  }
+
+  /// Returns true if the source contains the string at the given index.
+  /// @param index The index in the source.
+  /// @param str The string.
+  /// @return True if the source contains the string at the index.
+  private boolean matchesAt(int index, String str) {
+    for (int i = 0; i < str.length(); i++) {
+      if (source.charAt(index + i) != str.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /// Returns true if the character can be part of a symbol.
+  /// @param c The character.
+  /// @return True if the character can be part of a symbol.
+  private static boolean isSymbolChar(char c) {
+    return (c >= 'A' && c <= 'Z')
+        || (c >= 'a' && c <= 'z')
+        || (c >= '0' && c <= '9')
+        || switch (c) {
+          case '_', '-', '+', '*', '=', '!', '<', '>', '/' -> true;
+          default -> false;
+        };
+  }
+
+  /// Returns true if the character can follow a backslash in an escape sequence.
+  /// @param c The character.
+  /// @return True if the character can be escaped.
+  private static boolean isEscapeChar(char c) {
+    return switch (c) {
+      case 'b', 't', 'n', 'f', 'r', '"', '\'', '\\' -> true;
+      default -> false;
+    };
+  }
+
+  /// Creates an exception for a syntax error at the current index.
+  /// @param message The error message.
+  /// @return The exception.
+  private RuntimeException error(String message) {
+    return new RuntimeException(message + " at index " + (offset + pos)); // TODO: CDW
+  }
+
+  /// Creates an exception for a statement with the wrong number of operands.
+  /// @param message The error message.
+  /// @param start The index of the start of the statement.
+  /// @return The exception.
+  private RuntimeException statementError(String message, int start) {
+    return new RuntimeException(message + " at index " + (offset + start)); // TODO: CDW
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+
+/// A call frame in the `MapToolVM`, this holds the state of the caller that is restored when
+/// the called function returns.
+/// Frames are owned by the VM and reused between calls so they should not be held on to outside
+/// of inspecting the state of the VM.
+public final class CallFrame {
+
+  /// The program of the caller.
+  private CodeType program;
+
+  /// The instruction pointer to return to in the caller.
+  private int returnAddress;
+
+  /// The stack frame base of the caller.
+  private int stackFrameBase;
+
+  /// Sets the state of the caller.
+  /// @param program The program of the caller.
+  /// @param returnAddress The instruction pointer to return to in the caller.
+  /// @param stackFrameBase The stack frame base of the caller.
+  void set(CodeType program, int returnAddress, int stackFrameBase) {
+    this.program = program;
+    this.returnAddress = returnAddress;
+    this.stackFrameBase = stackFrameBase;
+  }
+
+  /// Returns the program of the caller.
+  /// @return The program of the caller.
+  public CodeType program() {
+    return program;
+  }
+
+  /// Returns the instruction pointer (an index into the decoded code) to return to in the caller.
+  /// @return The instruction pointer to return to.
+  public int returnAddress() {
+    return returnAddress;
+  }
+
+  /// Returns the stack frame base of the caller.
+  /// @return The stack frame base of the caller.
+  public int stackFrameBase() {
+    return stackFrameBase;
+  }
+}
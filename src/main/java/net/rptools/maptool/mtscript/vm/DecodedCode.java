@@ -0,0 +1,368 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import java.util.Arrays;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// The pre-decoded form of a `CodeType` that the `MapToolVM` executes.
+/// The byte code in the `CodeType` remains the canonical (serialized) format, when the code is
+/// first executed it is decoded into an `int` array where each instruction is a handler index
+/// followed by its operands. Operands are already widened to `int` and jump operands are already
+/// resolved to the index of the target instruction in the decoded code, so the VM does not need
+/// to go through `OpCode.fromByteCode()` or the jump label table while executing.
+///
+/// A decoded code is shared by every VM that executes its `CodeType`, including VMs on other
+/// threads. The operands are never changed once the code has been decoded, only the handler of an
+/// instruction is rewritten when it is quickened or deoptimized, and only to another handler for
+/// the same instruction, which takes the same operands. The handler is a single `int`, so a VM
+/// reads either the old or the new handler and never part of an update, and every quickened
+/// handler checks the types of its operands and falls back to the generic operation, so either
+/// handler executes the instruction correctly. The rewrites are not synchronized, a VM on another
+/// thread may keep executing the old handler for a while, which only costs performance.
+public final class DecodedCode {
+
+  // Handler indices for the decoded instructions, these are kept dense so the VM dispatch switch
+  // compiles to a table switch.
+  /// Handler index for `OpCode.HALT`.
+  public static final int HALT = 0;
+
+  /// Handler index for `OpCode.LOAD_CONST`.
+  public static final int LOAD_CONST = 1;
+
+  /// Handler index for `OpCode.ADD`.
+  public static final int ADD = 2;
+
+  /// Handler index for `OpCode.SUB`.
+  public static final int SUB = 3;
+
+  /// Handler index for `OpCode.MULT`.
+  public static final int MULT = 4;
+
+  /// Handler index for `OpCode.DIV`.
+  public static final int DIV = 5;
+
+  /// Handler index for `OpCode.EQ`.
+  public static final int EQ = 6;
+
+  /// Handler index for `OpCode.NEQ`.
+  public static final int NEQ = 7;
+
+  /// Handler index for `OpCode.LT`.
+  public static final int LT = 8;
+
+  /// Handler index for `OpCode.LTE`.
+  public static final int LTE = 9;
+
+  /// Handler index for `OpCode.GT`.
+  public static final int GT = 10;
+
+  /// Handler index for `OpCode.GTE`.
+  public static final int GTE = 11;
+
+  /// Handler index for `OpCode.LOAD_LABEL`.
+  public static final int LOAD_LABEL = 12;
+
+  /// Handler index for `OpCode.JUMP_IF_FALSE`.
+  public static final int JUMP_IF_FALSE = 13;
+
+  /// Handler index for `OpCode.JUMP`.
+  public static final int JUMP = 14;
+
+  /// Handler index for `OpCode.LOAD_GLOBAL`.
+  public static final int LOAD_GLOBAL = 15;
+
+  /// Handler index for `OpCode.SET_GLOBAL`.
+  public static final int SET_GLOBAL = 16;
+
+  /// Handler index for `OpCode.POP`.
+  public static final int POP = 17;
+
+  /// Handler index for `OpCode.LOAD_LOCAL`.
+  public static final int LOAD_LOCAL = 18;
+
+  /// Handler index for `OpCode.SET_LOCAL`.
+  public static final int SET_LOCAL = 19;
+
+  /// Handler index for `OpCode.EXIT_SCOPE`.
+  public static final int EXIT_SCOPE = 20;
+
+  /// Handler index for `OpCode.CALL`.
+  public static final int CALL = 21;
+
+  /// Handler index for `OpCode.RETURN`.
+  public static final int RETURN = 22;
+
+  /// Handler index for `OpCode.NOOP`.
+  public static final int NOOP = 23;
+
+  /// Handler index for `OpCode.LOAD_LOCAL_CONST_ADD`.
+  public static final int LOAD_LOCAL_CONST_ADD = 24;
+
+  /// Handler index for `OpCode.LT_JUMP_IF_FALSE`.
+  public static final int LT_JUMP_IF_FALSE = 25;
+
+  /// Handler index for `OpCode.SET_LOCAL_POP`.
+  public static final int SET_LOCAL_POP = 26;
+
+  /// Handler index for `OpCode.TAIL_CALL`.
+  public static final int TAIL_CALL = 27;
+
+  // Quickened handlers, these only exist in the decoded code. The VM rewrites a generic handler to
+  // one of these after it has seen the types of its operands, and rewrites it back to the generic
+  // handler if the operand types change.
+  /// Handler index for `OpCode.ADD` quickened for numbers.
+  public static final int ADD_NUM = 28;
+
+  /// Handler index for `OpCode.ADD` quickened for strings.
+  public static final int ADD_STR = 29;
+
+  /// Handler index for `OpCode.SUB` quickened for numbers.
+  public static final int SUB_NUM = 30;
+
+  /// Handler index for `OpCode.MULT` quickened for numbers.
+  public static final int MULT_NUM = 31;
+
+  /// Handler index for `OpCode.DIV` quickened for numbers.
+  public static final int DIV_NUM = 32;
+
+  /// Handler index for `OpCode.EQ` quickened for numbers.
+  public static final int EQ_NUM = 33;
+
+  /// Handler index for `OpCode.NEQ` quickened for numbers.
+  public static final int NEQ_NUM = 34;
+
+  /// Handler index for `OpCode.LT` quickened for numbers.
+  public static final int LT_NUM = 35;
+
+  /// Handler index for `OpCode.LTE` quickened for numbers.
+  public static final int LTE_NUM = 36;
+
+  /// Handler index for `OpCode.GT` quickened for numbers.
+  public static final int GT_NUM = 37;
+
+  /// Handler index for `OpCode.GTE` quickened for numbers.
+  public static final int GTE_NUM = 38;
+
+  /// Handler index for `OpCode.LOAD_LOCAL_CONST_ADD` quickened for numbers.
+  public static final int LOAD_LOCAL_CONST_ADD_NUM = 39;
+
+  /// Handler index for `OpCode.LT_JUMP_IF_FALSE` quickened for numbers.
+  public static final int LT_JUMP_IF_FALSE_NUM = 40;
+
+  /// The decoded instructions.
+  private final int[] code;
+
+  /// The constants for the code.
+  private final ValueRecord[] constants;
+
+  /// The offset in the original byte code of each decoded instruction, used for error messages.
+  private final int[] byteCodeOffsets;
+
+  /// The number of times each instruction has been deoptimized.
+  private final byte[] deoptimizations;
+
+  /// The maximum number of times an instruction is deoptimized before it is left generic.
+  private static final int MAX_DEOPTIMIZATIONS = 4;
+
+  /// Creates a new decoded code.
+  /// @param code The decoded instructions.
+  /// @param constants The constants for the code.
+  /// @param byteCodeOffsets The offset in the byte code of each decoded instruction.
+  private DecodedCode(int[] code, ValueRecord[] constants, int[] byteCodeOffsets) {
+    this.code = code;
+    this.constants = constants;
+    this.byteCodeOffsets = byteCodeOffsets;
+    this.deoptimizations = new byte[code.length];
+  }
+
+  /// Returns the decoded instructions.
+  /// @return The decoded instructions.
+  public int[] code() {
+    return code;
+  }
+
+  /// Returns the constants for the code.
+  /// @return The constants.
+  public ValueRecord[] constants() {
+    return constants;
+  }
+
+  /// Returns the offset in the original byte code of the decoded instruction at the given index.
+  /// @param index The index of the instruction in the decoded code.
+  /// @return The offset in the byte code, or -1 if the index is not the start of an instruction.
+  public int byteCodeOffset(int index) {
+    if (index < 0 || index >= byteCodeOffsets.length) {
+      return -1;
+    }
+    return byteCodeOffsets[index];
+  }
+
+  /// Rewrites the instruction at the given index to a quickened handler.
+  /// Instructions that have already been deoptimized too many times are left alone as the
+  /// operand types at that instruction are not stable.
+  /// The decoded code can be shared between VMs, see the class comment for why racing rewrites
+  /// are harmless.
+  /// @param index The index of the instruction.
+  /// @param handler The quickened handler.
+  public void quicken(int index, int handler) {
+    assert genericHandler(handler) == genericHandler(code[index]) : "quickened " + handler;
+    if (deoptimizations[index] < MAX_DEOPTIMIZATIONS) {
+      code[index] = handler;
+    }
+  }
+
+  /// Rewrites a quickened instruction at the given index back to its generic handler.
+  /// The count of deoptimizations is only a heuristic, so racing updates to it are harmless.
+  /// @param index The index of the instruction.
+  /// @param handler The generic handler.
+  public void deoptimize(int index, int handler) {
+    assert handler == genericHandler(code[index]) : "deoptimized " + handler;
+    code[index] = handler;
+    if (deoptimizations[index] < MAX_DEOPTIMIZATIONS) {
+      deoptimizations[index]++;
+    }
+  }
+
+  /// Returns the generic handler for a handler, a quickened handler takes the same operands as its
+  /// generic handler.
+  /// @param handler The handler.
+  /// @return The generic handler, or the handler itself if it is not quickened.
+  static int genericHandler(int handler) {
+    return switch (handler) {
+      case ADD_NUM, ADD_STR -> ADD;
+      case SUB_NUM -> SUB;
+      case MULT_NUM -> MULT;
+      case DIV_NUM -> DIV;
+      case EQ_NUM -> EQ;
+      case NEQ_NUM -> NEQ;
+      case LT_NUM -> LT;
+      case LTE_NUM -> LTE;
+      case GT_NUM -> GT;
+      case GTE_NUM -> GTE;
+      case LOAD_LOCAL_CONST_ADD_NUM -> LOAD_LOCAL_CONST_ADD;
+      case LT_JUMP_IF_FALSE_NUM -> LT_JUMP_IF_FALSE;
+      default -> handler;
+    };
+  }
+
+  /// Decodes the byte code for the given code.
+  /// @param program The code to decode.
+  /// @return The decoded code.
+  public static DecodedCode decode(CodeType program) {
+    int length = program.codeLength();
+    // First pass, work out where each instruction will end up in the decoded code so that jump
+    // targets can be resolved.
+    int[] decodedOffsets = new int[length + 1];
+    Arrays.fill(decodedOffsets, -1);
+    int decodedLength = 0;
+    int offset = 0;
+    while (offset < length) {
+      var op = OpCode.fromByteCode(program.getByte(offset));
+      decodedOffsets[offset] = decodedLength;
+      decodedLength += 1 + op.operandCount();
+      offset += 1 + op.operandCount();
+    }
+    decodedOffsets[length] = decodedLength;
+
+    // Second pass, decode the instructions.
+    int[] code = new int[decodedLength];
+    int[] byteCodeOffsets = new int[decodedLength];
+    Arrays.fill(byteCodeOffsets, -1);
+    int index = 0;
+    offset = 0;
+    while (offset < length) {
+      var op = OpCode.fromByteCode(program.getByte(offset));
+      byteCodeOffsets[index] = offset;
+      code[index++] = handlerFor(op, offset);
+      for (int i = 1; i <= op.operandCount(); i++) {
+        int operand = program.getByte(offset + i) & 0xFF; // Java Bytes are signed
+        if (isJumpLabelOperand(op, i)) {
+          operand = resolveJump(program, decodedOffsets, operand);
+        }
+        code[index++] = operand;
+      }
+      offset += 1 + op.operandCount();
+    }
+
+    return new DecodedCode(code, program.constants().toArray(new ValueRecord[0]), byteCodeOffsets);
+  }
+
+  /// Returns true if the given operand of the opcode is a jump label.
+  /// @param op The opcode.
+  /// @param operand The operand number, starting at 1.
+  /// @return True if the operand is a jump label that needs to be resolved.
+  private static boolean isJumpLabelOperand(OpCode op, int operand) {
+    return switch (op) {
+      case JUMP, JUMP_IF_FALSE, LT_JUMP_IF_FALSE -> operand == 1;
+      default -> false;
+    };
+  }
+
+  /// Resolves a jump label to the index of the target instruction in the decoded code.
+  /// @param program The code the jump is in.
+  /// @param decodedOffsets The decoded index for each byte code offset.
+  /// @param labelIndex The index of the jump label.
+  /// @return The index of the target instruction in the decoded code.
+  private static int resolveJump(CodeType program, int[] decodedOffsets, int labelIndex) {
+    int address = program.getJumpLabel(labelIndex);
+    if (address < 0 || address >= decodedOffsets.length || decodedOffsets[address] == -1) {
+      throw new RuntimeException(
+          "Invalid jump target: " + address + " in " + program.name()); // TODO: CDW
+    }
+    return decodedOffsets[address];
+  }
+
+  /// Returns the handler index for the given opcode.
+  /// @param op The opcode.
+  /// @param offset The offset of the opcode in the byte code, for error messages.
+  /// @return The handler index.
+  private static int handlerFor(OpCode op, int offset) {
+    return switch (op) {
+      case HALT -> HALT;
+      case LOAD_CONST -> LOAD_CONST;
+      case ADD -> ADD;
+      case SUB -> SUB;
+      case MULT -> MULT;
+      case DIV -> DIV;
+      case EQ -> EQ;
+      case NEQ -> NEQ;
+      case LT -> LT;
+      case LTE -> LTE;
+      case GT -> GT;
+      case GTE -> GTE;
+      case LOAD_LABEL -> LOAD_LABEL;
+      case JUMP_IF_FALSE -> JUMP_IF_FALSE;
+      case JUMP -> JUMP;
+      case LOAD_GLOBAL -> LOAD_GLOBAL;
+      case SET_GLOBAL -> SET_GLOBAL;
+      case POP -> POP;
+      case LOAD_LOCAL -> LOAD_LOCAL;
+      case SET_LOCAL -> SET_LOCAL;
+      case EXIT_SCOPE -> EXIT_SCOPE;
+      case CALL -> CALL;
+      case RETURN -> RETURN;
+      case NOOP -> NOOP;
+      case LOAD_LOCAL_CONST_ADD -> LOAD_LOCAL_CONST_ADD;
+      case LT_JUMP_IF_FALSE -> LT_JUMP_IF_FALSE;
+      case SET_LOCAL_POP -> SET_LOCAL_POP;
+      case TAIL_CALL -> TAIL_CALL;
+      default ->
+          throw new RuntimeException(
+              "Unhandled opcode: " + op + ", ip = " + String.format("0x%04x", offset)); // TODO: CDW
+    };
+  }
+}
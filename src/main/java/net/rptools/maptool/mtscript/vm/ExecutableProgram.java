@@ -0,0 +1,31 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A compiled program that is ready to be executed.
+public interface ExecutableProgram {
+
+  /// Returns the byte code that the program was compiled to.
+  /// @return The byte code of the program.
+  CodeType code();
+
+  /// Executes the program.
+  /// @param vm The VM to execute the program on, this provides the globals and the stack.
+  /// @return The result of the program.
+  ValueRecord exec(MapToolVM vm);
+}
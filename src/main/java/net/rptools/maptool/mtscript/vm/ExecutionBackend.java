@@ -0,0 +1,27 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+/// The ways that a compiled program can be executed.
+public enum ExecutionBackend {
+  /// The byte code is executed by the `MapToolVM` interpreter (and its JIT).
+  BYTE_CODE,
+  /// The byte code is converted to a tree of nodes that execute directly, see
+  /// `net.rptools.maptool.mtscript.vm.tree.TreeProgram`.
+  TREE,
+  /// The byte code is translated to three-address code for a register machine, see
+  /// `net.rptools.maptool.mtscript.vm.register.RegisterProgram`.
+  REGISTER
+}
@@ -0,0 +1,96 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+
+/// A table of the state that an execution backend keeps for each function, such as its compiled
+/// code.
+///
+/// The backends keep this state in tables rather than on the `FunctionType`, so the values do not
+/// depend on the backends. Lookups do not lock, so VMs on different threads can call functions
+/// concurrently. The functions are held weakly and their entries are removed once they have been
+/// collected, so a value must not refer to its own function or the entry is never removed.
+/// @param <V> The type of the state.
+public final class FunctionTable<V> {
+
+  /// A weak reference to a function that is compared by the identity of the function.
+  private static final class Key extends WeakReference<FunctionType> {
+
+    /// The identity hash code of the function, kept as the function can be collected.
+    private final int hash;
+
+    /// Creates a new key.
+    /// @param function The function.
+    /// @param queue The queue the key is added to once the function is collected, `null` for keys
+    ///     that are only used for lookups.
+    Key(FunctionType function, ReferenceQueue<FunctionType> queue) {
+      super(function, queue);
+      this.hash = System.identityHashCode(function);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj instanceof Key other) {
+        var function = get();
+        return function != null && function == other.get();
+      }
+      return false;
+    }
+  }
+
+  /// The state of each function.
+  private final ConcurrentHashMap<Key, V> entries = new ConcurrentHashMap<>();
+
+  /// The keys of the functions that have been collected.
+  private final ReferenceQueue<FunctionType> collected = new ReferenceQueue<>();
+
+  /// Returns the state of a function.
+  /// @param function The function.
+  /// @return The state, or `null` if the function has none.
+  public V get(FunctionType function) {
+    return entries.get(new Key(function, null));
+  }
+
+  /// Sets the state of a function, unless another thread has already set it.
+  /// @param function The function.
+  /// @param value The state.
+  /// @return The state of the function, which is `value` unless it was already set.
+  public V putIfAbsent(FunctionType function, V value) {
+    removeCollected();
+    var existing = entries.putIfAbsent(new Key(function, collected), value);
+    return existing == null ? value : existing;
+  }
+
+  /// Removes the entries of the functions that have been collected.
+  private void removeCollected() {
+    Reference<? extends FunctionType> key;
+    while ((key = collected.poll()) != null) {
+      entries.remove(key);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A handle to a global variable, for embedders that read or write the same global repeatedly.
+/// The handle holds the index of the global so reading or writing it does not look up the name.
+/// Globals are never removed from `VMGlobals` so the index stays valid for as long as the globals
+/// exist.
+public final class GlobalHandle {
+
+  /// The globals the variable belongs to.
+  private final VMGlobals globals;
+
+  /// The index of the global variable.
+  private final int index;
+
+  /// Creates a new handle, use `VMGlobals.getGlobalHandle` to get a handle.
+  /// @param globals The globals the variable belongs to.
+  /// @param index The index of the global variable.
+  GlobalHandle(VMGlobals globals, int index) {
+    this.globals = globals;
+    this.index = index;
+  }
+
+  /// Returns the index of the global variable.
+  /// @return The index of the global variable.
+  public int index() {
+    return index;
+  }
+
+  /// Returns the name of the global variable.
+  /// @return The name of the global variable.
+  public String name() {
+    return globals.getGlobalVariable(index).symbol().name();
+  }
+
+  /// Returns the value of the global variable.
+  /// @return The value of the global variable.
+  public ValueRecord get() {
+    return globals.getGlobalValue(index);
+  }
+
+  /// Sets the value of the global variable.
+  /// @param value The value to set.
+  public void set(ValueRecord value) {
+    globals.setGlobalVariable(index, value);
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/// Maps the names of global variables to their index in `VMGlobals`.
+///
+/// This is an open addressing hash table with linear probing, the names and indexes are kept in
+/// parallel arrays so a lookup does not allocate or box the index. Globals are never removed so
+/// there is no need for tombstones. The table is kept at most half full, which keeps the probe
+/// sequences short.
+///
+/// Lookups do not lock and can run at the same time as a `put`, but calls to `put` must not run
+/// at the same time as each other. A name is stored with release semantics after its index, so a
+/// lookup that finds the name also sees the index. When the table grows the new arrays are filled
+/// before they are published, so a lookup sees either the old or the new table.
+final class GlobalNameIndex {
+
+  /// The initial capacity of the table, this must be a power of two.
+  private static final int INITIAL_CAPACITY = 256;
+
+  /// The handle used to read and write the names in the table.
+  private static final VarHandle NAMES = MethodHandles.arrayElementVarHandle(String[].class);
+
+  /// The arrays of the table.
+  /// @param names The names in the table, `null` if the slot is empty.
+  /// @param indexes The index of the global for each name.
+  private record Table(String[] names, int[] indexes) {
+    /// Creates a new empty table.
+    /// @param capacity The capacity of the table, this must be a power of two.
+    Table(int capacity) {
+      this(new String[capacity], new int[capacity]);
+    }
+  }
+
+  /// The table.
+  private volatile Table table = new Table(INITIAL_CAPACITY);
+
+  /// The number of names in the table.
+  private int size = 0;
+
+  /// Returns the index of the global with the given name.
+  /// @param name The name of the global.
+  /// @return The index of the global, or -1 if there is no global with the name.
+  int get(String name) {
+    var table = this.table;
+    var names = table.names();
+    int mask = names.length - 1;
+    for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+      var entry = (String) NAMES.getAcquire(names, slot);
+      if (entry == null) {
+        return -1;
+      }
+      if (entry == name || entry.equals(name)) {
+        return table.indexes()[slot];
+      }
+    }
+  }
+
+  /// Adds a name to the table, the caller must have checked that the name is not already in it.
+  /// @param name The name of the global.
+  /// @param index The index of the global.
+  void put(String name, int index) {
+    if ((size + 1) * 2 > table.names().length) {
+      grow();
+    }
+    insert(table, name, index);
+    size++;
+  }
+
+  /// Doubles the capacity of the table.
+  private void grow() {
+    var names = table.names();
+    var newTable = new Table(names.length * 2);
+    for (int i = 0; i < names.length; i++) {
+      if (names[i] != null) {
+        insert(newTable, names[i], table.indexes()[i]);
+      }
+    }
+    table = newTable;
+  }
+
+  /// Inserts a name into the first free slot of its probe sequence.
+  /// @param table The table.
+  /// @param name The name to insert.
+  /// @param index The index of the global.
+  private static void insert(Table table, String name, int index) {
+    var names = table.names();
+    int mask = names.length - 1;
+    int slot = hash(name) & mask;
+    while (names[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    table.indexes()[slot] = index;
+    NAMES.setRelease(names, slot, name);
+  }
+
+  /// Returns the hash of a name, spreading the high bits of `String.hashCode` into the low bits
+  /// used to pick a slot.
+  /// @param name The name.
+  /// @return The hash.
+  private static int hash(String name) {
+    int h = name.hashCode();
+    return h ^ (h >>> 16);
+  }
+}
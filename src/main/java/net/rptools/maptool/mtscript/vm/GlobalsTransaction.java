@@ -0,0 +1,168 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import java.util.Arrays;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// The globals read and written by a program executed in a transaction, see
+/// `MapToolVM.setTransactional`.
+///
+/// Writes are kept in the transaction and only stored in the `VMGlobals` when the transaction
+/// commits, so a program that fails leaves the globals unchanged and other VMs never see its
+/// partial writes. The value of each global is remembered the first time it is read, later reads
+/// return the same value (or the value written by the program) so the program sees a stable view
+/// of the globals. The transaction is optimistic: when it commits the remembered values are
+/// checked against the current values of the globals and the commit fails if any have changed.
+///
+/// The globals are kept in a small open addressing table keyed by their index, one transaction is
+/// reused by a VM for every execution so a transaction only allocates when the table grows.
+final class GlobalsTransaction {
+
+  /// The initial capacity of the table, this must be a power of two.
+  private static final int INITIAL_CAPACITY = 16;
+
+  /// The globals the transaction reads and writes.
+  private final VMGlobals globals;
+
+  /// The index of the global plus one for each slot, 0 if the slot is empty.
+  private int[] keys = new int[INITIAL_CAPACITY];
+
+  /// The value of the global when it was first read, `null` if it was written before it was read.
+  private ValueRecord[] readValues = new ValueRecord[INITIAL_CAPACITY];
+
+  /// The value written to the global, `null` if it has not been written.
+  private ValueRecord[] writtenValues = new ValueRecord[INITIAL_CAPACITY];
+
+  /// The number of globals in the table.
+  private int size = 0;
+
+  /// Creates a new transaction.
+  /// @param globals The globals the transaction reads and writes.
+  GlobalsTransaction(VMGlobals globals) {
+    this.globals = globals;
+  }
+
+  /// Starts a new transaction, discarding anything read or written by the last one.
+  void begin() {
+    if (size > 0) {
+      Arrays.fill(keys, 0);
+      Arrays.fill(readValues, null);
+      Arrays.fill(writtenValues, null);
+      size = 0;
+    }
+  }
+
+  /// Reads a global variable.
+  /// @param index The index of the global variable.
+  /// @return The value written by the transaction, or the value of the global when the transaction
+  ///     first read it.
+  ValueRecord load(int index) {
+    int slot = slot(index);
+    if (keys[slot] != 0) {
+      var written = writtenValues[slot];
+      if (written != null) {
+        return written;
+      }
+      if (readValues[slot] != null) {
+        return readValues[slot];
+      }
+    }
+    var value = globals.getGlobalValue(index);
+    slot = add(slot, index);
+    readValues[slot] = value;
+    return value;
+  }
+
+  /// Writes a global variable, the value is only stored in the globals when the transaction
+  /// commits.
+  /// @param index The index of the global variable.
+  /// @param value The value to write.
+  void store(int index, ValueRecord value) {
+    globals.checkWritable(index);
+    int slot = add(slot(index), index);
+    writtenValues[slot] = value;
+  }
+
+  /// Returns true if every global the transaction read still has the value it read.
+  /// @return True if the transaction is still valid.
+  boolean validate() {
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != 0
+          && readValues[slot] != null
+          && globals.getGlobalValue(keys[slot] - 1) != readValues[slot]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /// Stores the values written by the transaction in the globals, the caller must have validated
+  /// the transaction while holding the commit lock of the globals.
+  void apply() {
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (writtenValues[slot] != null) {
+        globals.setGlobalVariable(keys[slot] - 1, writtenValues[slot]);
+      }
+    }
+  }
+
+  /// Returns the slot holding a global, or the empty slot where it would be added.
+  /// @param index The index of the global variable.
+  /// @return The slot.
+  private int slot(int index) {
+    int mask = keys.length - 1;
+    int slot = index & mask;
+    while (keys[slot] != 0 && keys[slot] != index + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /// Adds a global to the table if it is not already in it.
+  /// @param slot The slot returned by `slot` for the global.
+  /// @param index The index of the global variable.
+  /// @return The slot holding the global, which changes if the table grows.
+  private int add(int slot, int index) {
+    if (keys[slot] != 0) {
+      return slot;
+    }
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+      slot = slot(index);
+    }
+    keys[slot] = index + 1;
+    size++;
+    return slot;
+  }
+
+  /// Doubles the capacity of the table.
+  private void grow() {
+    var oldKeys = keys;
+    var oldReadValues = readValues;
+    var oldWrittenValues = writtenValues;
+    keys = new int[oldKeys.length * 2];
+    readValues = new ValueRecord[oldKeys.length * 2];
+    writtenValues = new ValueRecord[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int slot = slot(oldKeys[i] - 1);
+        keys[slot] = oldKeys[i];
+        readValues[slot] = oldReadValues[i];
+        writtenValues[slot] = oldWrittenValues[i];
+      }
+    }
+  }
+}
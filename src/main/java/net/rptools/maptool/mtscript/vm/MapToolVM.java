@@ -14,13 +14,16 @@
  */
 package net.rptools.maptool.mtscript.vm;
 
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import net.rptools.maptool.mtscript.vm.jit.JitCompiler;
+import net.rptools.maptool.mtscript.vm.jit.JitProfile;
 import net.rptools.maptool.mtscript.vm.values.BooleanType;
 import net.rptools.maptool.mtscript.vm.values.CodeType;
 import net.rptools.maptool.mtscript.vm.values.FunctionType;
 import net.rptools.maptool.mtscript.vm.values.IntegerType;
 import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
-import net.rptools.maptool.mtscript.vm.values.Symbol;
+import net.rptools.maptool.mtscript.vm.values.StringType;
 import net.rptools.maptool.mtscript.vm.values.ValueRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -36,269 +39,1103 @@ public class MapToolVM {
   /// The logger for the class.
   private static final Logger log = LogManager.getLogger(MapToolVM.class);
 
-  /// The maximum size of the stack.
-  private static final int MAX_STACK_SIZE = 512;
+  /// The default size of the stack.
+  public static final int DEFAULT_STACK_SIZE = 512;
+
+  /// The default maximum size the stack can grow to.
+  public static final int DEFAULT_MAX_STACK_SIZE = 1 << 20;
+
+  /// The default maximum depth of function calls.
+  public static final int DEFAULT_MAX_CALL_DEPTH = 100_000;
+
+  /// The default number of calls to a function before it is compiled.
+  public static final int DEFAULT_JIT_THRESHOLD = 1000;
+
+  /// The default number of times a transaction is retried before the execution fails.
+  public static final int DEFAULT_MAX_TRANSACTION_RETRIES = 10;
+
+  /// The initial number of call frames.
+  private static final int INITIAL_CALL_FRAMES = 64;
+
+  /// Used when there is no quickened handler for a type.
+  private static final int NO_HANDLER = -1;
 
   /// The program to execute.
   private CodeType program;
 
-  /// The instruction pointer.
+  /// The decoded form of the program being executed.
+  private DecodedCode decoded;
+
+  /// The decoded instructions of the program being executed.
+  private int[] code;
+
+  /// The constants of the program being executed.
+  private ValueRecord[] constants;
+
+  /// The instruction pointer, this is an index into the decoded instructions.
   private int instructionPointer = -1;
 
   /// The stack for the VM.
-  private final Stack<ValueRecord> stack = new Stack<>();
+  private final OperandStack stack;
+
+  /// The view of the arguments passed to native functions, this is reused for every call.
+  private final NativeArgs nativeArgs;
 
   /// The stack frame base.
   private int stackFrameBase = 0;
 
+  /// The call frames of the functions being executed, each frame holds the state of the caller.
+  private CallFrame[] frames = new CallFrame[INITIAL_CALL_FRAMES];
+
+  /// The number of call frames in use.
+  private int callDepth = 0;
+
+  /// The call depth at which the interpreter started the function or program being run, `RETURN`
+  /// at this depth returns from `eval`. This is only above 0 when a native function executes
+  /// another program on the VM.
+  private int entryCallDepth = 0;
+
+  /// The number of programs being executed, more than one when a native function executes
+  /// another program on the VM.
+  private int runDepth = 0;
+
+  /// The maximum depth of function calls.
+  private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+
   /// The global environment for the VM.
   private final VMGlobals globals;
 
-  /// The currently executing opcode for debug / error messages.
-  private OpCode executingOpCode;
+  /// Whether generic instructions are rewritten to type specific ones based on their operands.
+  private boolean quickeningEnabled = true;
+
+  /// Whether hot functions are compiled to JVM byte code, this is off unless it is enabled with
+  /// `setJitEnabled`.
+  private boolean jitEnabled = false;
+
+  /// The number of calls to a function before it is compiled.
+  private int jitThreshold = DEFAULT_JIT_THRESHOLD;
+
+  /// The arguments passed to compiled functions, this is reused as compiled functions can not call
+  /// back into the VM.
+  private double[] jitArgs = new double[8];
+
+  /// The function last called with the JIT enabled, `null` if none.
+  private FunctionType jitFunction;
+
+  /// The JIT state of `jitFunction`, cached so calls to the same function do not need to look it
+  /// up.
+  private JitProfile jitProfile;
+
+  /// Whether programs are executed in a transaction.
+  private boolean transactional = false;
+
+  /// The number of times a transaction is retried when another transaction changed the globals
+  /// it read.
+  private int maxTransactionRetries = DEFAULT_MAX_TRANSACTION_RETRIES;
+
+  /// The transaction used for every execution when the VM is transactional, created on first use.
+  private GlobalsTransaction transaction;
+
+  /// The transaction of the program being executed, `null` if it is not executed in a transaction.
+  private GlobalsTransaction activeTransaction;
 
   /// Creates a new instance of the `MaptoolVM`class.
   /// @param globals The global environment for the VM.
   public MapToolVM(VMGlobals globals) {
-    this.globals = globals;
-    setGlobals();
+    this(globals, DEFAULT_STACK_SIZE, DEFAULT_MAX_STACK_SIZE);
   }
 
-  /// Sets the global variables for the VM.
-  private void setGlobals() {
-    // Define the global variables
-    globals.defineConstant("MT_VM_VERSION", new Symbol("MT_VM_VERSION", new IntegerType(1)));
+  /// Creates a new instance of the `MaptoolVM`class with a stack that can grow.
+  /// @param globals The global environment for the VM.
+  /// @param initialStackSize The initial size of the stack.
+  /// @param maxStackSize The maximum size the stack can grow to.
+  public MapToolVM(VMGlobals globals, int initialStackSize, int maxStackSize) {
+    this.globals = globals;
+    this.stack = new OperandStack(initialStackSize, maxStackSize);
+    this.nativeArgs = new NativeArgs(stack);
   }
 
   // Execute the given program.
   /// @param program The program to execute.
   /// @return The result of the program.
   public ValueRecord exec(CodeType program) {
-    this.program = program;
+    return execute(() -> run(program));
+  }
+
+  /// Executes a program compiled for any of the execution backends, in a transaction if the VM is
+  /// transactional.
+  /// @param program The program to execute.
+  /// @return The result of the program.
+  public ValueRecord exec(ExecutableProgram program) {
+    return execute(() -> program.exec(this));
+  }
+
+  /// Calls a function with the given arguments on the byte code interpreter, in a transaction if
+  /// the VM is transactional.
+  /// @param function The function to call.
+  /// @param args The arguments, there must be one for each parameter of the function.
+  /// @return The result of the function.
+  public ValueRecord call(FunctionType function, ValueRecord... args) {
+    if (args.length != function.arity()) {
+      throw new RuntimeException(
+          "Function "
+              + function.name()
+              + " expects "
+              + function.arity()
+              + " arguments, got "
+              + args.length); // TODO: CDW
+    }
+    return execute(() -> run(function, args));
+  }
+
+  /// Executes a program, in a transaction if the VM is transactional and the program is not
+  /// executed by a native function of a program that is already in one.
+  /// @param program Executes the program.
+  /// @return The result of the program.
+  private ValueRecord execute(Supplier<ValueRecord> program) {
+    if (transactional && activeTransaction == null) {
+      return execTransaction(() -> enter(program));
+    }
+    return enter(program);
+  }
+
+  /// Executes a program on the VM.
+  /// The outermost program starts with an empty stack and no call frames, discarding anything
+  /// left by an earlier execution that failed, so each attempt of a transaction starts from the
+  /// same state. A program executed by a native function runs on top of the stack and call frames
+  /// of its caller, the state of the interpreter is saved first and restored when the program
+  /// finishes, even if it fails.
+  /// @param program Executes the program.
+  /// @return The result of the program.
+  private ValueRecord enter(Supplier<ValueRecord> program) {
+    if (runDepth == 0) {
+      stack.clear();
+      callDepth = 0;
+      runDepth++;
+      try {
+        return program.get();
+      } finally {
+        runDepth--;
+      }
+    }
+
+    var callerProgram = this.program;
+    var callerDecoded = this.decoded;
+    var callerCode = this.code;
+    var callerConstants = this.constants;
+    int callerInstructionPointer = instructionPointer;
+    int callerStackFrameBase = stackFrameBase;
+    int callerCallDepth = callDepth;
+    int callerEntryCallDepth = entryCallDepth;
+    int callerStackSize = stack.size();
+    runDepth++;
+    try {
+      return program.get();
+    } finally {
+      runDepth--;
+      if (stack.size() > callerStackSize) {
+        stack.truncate(callerStackSize); // Discard anything left by a program that failed
+      }
+      this.program = callerProgram;
+      this.decoded = callerDecoded;
+      this.code = callerCode;
+      this.constants = callerConstants;
+      instructionPointer = callerInstructionPointer;
+      stackFrameBase = callerStackFrameBase;
+      callDepth = callerCallDepth;
+      entryCallDepth = callerEntryCallDepth;
+    }
+  }
+
+  /// Executes a program in a transaction, retrying it if the transaction fails to commit because
+  /// another transaction changed the globals it read.
+  /// @param program Executes the program.
+  /// @return The result of the program.
+  private ValueRecord execTransaction(Supplier<ValueRecord> program) {
+    if (transaction == null) {
+      transaction = new GlobalsTransaction(globals);
+    }
+    for (int attempt = 0; ; attempt++) {
+      transaction.begin();
+      activeTransaction = transaction;
+      try {
+        var result = program.get();
+        if (globals.commit(transaction)) {
+          return result;
+        }
+      } catch (RuntimeException e) {
+        // A program that read globals while another transaction was committing may have seen
+        // values that were never consistent with each other, if so it fails because of that.
+        if (transaction.validate() || attempt >= maxTransactionRetries) {
+          throw e;
+        }
+      } finally {
+        activeTransaction = null;
+      }
+      if (attempt >= maxTransactionRetries) {
+        throw new RuntimeException(
+            "Transaction failed after " + attempt + " retries, globals were changed by another"
+                + " transaction"); // TODO: CDW
+      }
+      log.debug("Retrying transaction, attempt {}", attempt + 1);
+    }
+  }
+
+  /// Returns whether programs are executed in a transaction.
+  /// @return True if the VM is transactional.
+  public boolean isTransactional() {
+    return transactional;
+  }
+
+  /// Sets whether programs are executed in a transaction.
+  /// In a transaction the global variables set by a program are only stored in the globals when
+  /// the program finishes, so a program that fails leaves the globals unchanged and VMs on other
+  /// threads never see its partial updates. If another transaction changed any global the program
+  /// read before it finishes, the program is executed again. Programs executed in a transaction
+  /// must therefore be safe to repeat, native functions with side effects can be called more than
+  /// once. Programs executed by native functions run in the same transaction.
+  /// @param transactional True to execute programs in a transaction.
+  public void setTransactional(boolean transactional) {
+    this.transactional = transactional;
+  }
+
+  /// Returns the number of times a transaction is retried before the execution fails.
+  /// @return The maximum number of retries.
+  public int getMaxTransactionRetries() {
+    return maxTransactionRetries;
+  }
+
+  /// Sets the number of times a transaction is retried before the execution fails.
+  /// @param maxTransactionRetries The maximum number of retries.
+  public void setMaxTransactionRetries(int maxTransactionRetries) {
+    this.maxTransactionRetries = maxTransactionRetries;
+  }
+
+  /// Reads a global variable, through the transaction if the program is executed in one.
+  /// This is also used by the other execution backends.
+  /// @param index The index of the global variable.
+  /// @return The value of the global variable.
+  public ValueRecord loadGlobal(int index) {
+    var tx = activeTransaction;
+    return tx == null ? globals.getGlobalValue(index) : tx.load(index);
+  }
+
+  /// Sets a global variable, through the transaction if the program is executed in one.
+  /// This is also used by the other execution backends.
+  /// @param index The index of the global variable.
+  /// @param value The value to set.
+  public void storeGlobal(int index, ValueRecord value) {
+    var tx = activeTransaction;
+    if (tx == null) {
+      globals.setGlobalVariable(index, value);
+    } else {
+      tx.store(index, value);
+    }
+  }
+
+  /// Calls a function on the byte code interpreter as the outermost function, so that it returns
+  /// from `eval` when it returns.
+  /// @param function The function to call.
+  /// @param args The arguments.
+  /// @return The result of the function.
+  private ValueRecord run(FunctionType function, ValueRecord[] args) {
+    entryCallDepth = callDepth;
+    push(function);
+    for (var arg : args) {
+      push(arg);
+    }
+    if (jitEnabled && callCompiled(function)) {
+      return pop();
+    }
+    setProgram(function);
+    instructionPointer = 0;
+    stackFrameBase = stack.size() - function.arity();
+    push(function); // Push the function onto the stack after the arguments
+    try {
+      return eval();
+    } catch (Exception e) {
+      logError(e);
+      throw e;
+    }
+  }
+
+  /// Executes a program on the byte code interpreter.
+  /// @param program The program to execute.
+  /// @return The result of the program.
+  private ValueRecord run(CodeType program) {
+    setProgram(program);
     instructionPointer = 0;
     stackFrameBase = stack.size();
+    entryCallDepth = callDepth;
 
     try {
       return eval();
     } catch (Exception e) {
       // TODO: CDW - Handle exceptions
-      var ip = String.format("0x%04x", instructionPointer - 1);
-      log.error(
-          "\nError executing program: {} @ ip = {} opcode = {} \n",
-          e.getMessage(),
-          ip,
-          executingOpCode);
+      logError(e);
       throw e;
     }
   }
 
-  /// Executes the given function.
-  /// @param function The function to execute.
-  private void execFunction(FunctionType function) {
-    // TODO: CDW - Should we be using the stack for these values?
-    // Save the current state
-    int oldInstructionPointer = instructionPointer;
-    var oldProgram = program;
-    int oldStackFrameBase = stackFrameBase;
+  /// Sets the program that is being executed.
+  /// @param program The program to execute.
+  private void setProgram(CodeType program) {
+    var decoded = program.decoded();
+    this.program = program;
+    this.decoded = decoded;
+    this.code = decoded.code();
+    this.constants = decoded.constants();
+  }
+
+  /// Returns whether the VM rewrites generic instructions to type specific ones.
+  /// @return True if quickening is enabled.
+  public boolean isQuickeningEnabled() {
+    return quickeningEnabled;
+  }
+
+  /// Sets whether the VM rewrites generic instructions to type specific ones.
+  /// When enabled, the first time a generic instruction such as `ADD` is executed it is rewritten
+  /// in the decoded code to a version for the operand types it saw (e.g. `ADD_NUM`), if the types
+  /// change later the instruction is rewritten back to the generic version.
+  /// @param quickeningEnabled True to enable quickening.
+  public void setQuickeningEnabled(boolean quickeningEnabled) {
+    this.quickeningEnabled = quickeningEnabled;
+  }
+
+  /// Returns whether hot functions are compiled to JVM byte code.
+  /// @return True if the JIT is enabled.
+  public boolean isJitEnabled() {
+    return jitEnabled;
+  }
+
+  /// Sets whether hot functions are compiled to JVM byte code, the JIT is disabled by default.
+  /// Only functions that can be compiled by the `JitCompiler` are compiled, the rest are always
+  /// interpreted.
+  /// @param jitEnabled True to enable the JIT.
+  public void setJitEnabled(boolean jitEnabled) {
+    this.jitEnabled = jitEnabled;
+  }
+
+  /// Returns the number of calls to a function before it is compiled.
+  /// @return The JIT threshold.
+  public int getJitThreshold() {
+    return jitThreshold;
+  }
+
+  /// Sets the number of calls to a function before it is compiled.
+  /// @param jitThreshold The JIT threshold.
+  public void setJitThreshold(int jitThreshold) {
+    this.jitThreshold = jitThreshold;
+  }
+
+  /// Resets the VM so that it can be reused to execute another program, discarding anything left
+  /// on the stack and the call frames by the last program (e.g. if it failed). The settings of the
+  /// VM and its globals are not changed, and the stack keeps its capacity.
+  public void reset() {
+    if (runDepth > 0) {
+      throw new RuntimeException("Cannot reset a VM while it is executing"); // TODO: CDW
+    }
+    stack.clear();
+    for (int i = 0; i < frames.length && frames[i] != null; i++) {
+      frames[i].set(null, 0, 0); // Don't keep the programs of the last execution reachable
+    }
+    callDepth = 0;
+    entryCallDepth = 0;
+    stackFrameBase = 0;
+    instructionPointer = -1;
+    program = null;
+    decoded = null;
+    code = null;
+    constants = null;
+    nativeArgs.set(0, 0, false);
+  }
+
+  /// Returns the global environment of the VM.
+  /// @return The globals.
+  public VMGlobals getGlobals() {
+    return globals;
+  }
 
-    program = function;
+  /// Returns the operand stack of the VM, this is shared with the other execution backends so
+  /// that native functions see their arguments in the same place however they are called.
+  /// @return The operand stack.
+  public OperandStack getStack() {
+    return stack;
+  }
+
+  /// Returns the maximum depth of function calls.
+  /// @return The maximum depth of function calls.
+  public int getMaxCallDepth() {
+    return maxCallDepth;
+  }
+
+  /// Sets the maximum depth of function calls.
+  /// @param maxCallDepth The maximum depth of function calls.
+  public void setMaxCallDepth(int maxCallDepth) {
+    this.maxCallDepth = maxCallDepth;
+  }
+
+  /// Returns the number of function calls that are currently being executed.
+  /// @return The current call depth.
+  public int getCallDepth() {
+    return callDepth;
+  }
+
+  /// Returns the call frame at the given depth, the frame at depth 0 is the caller of the outermost
+  /// function being executed.
+  /// @param depth The depth of the frame.
+  /// @return The call frame.
+  public CallFrame getCallFrame(int depth) {
+    if (depth < 0 || depth >= callDepth) {
+      throw new RuntimeException("Invalid call depth: " + depth); // TODO: CDW
+    }
+    return frames[depth];
+  }
+
+  /// Calls the given function, saving the state of the caller in a call frame.
+  /// The arguments are expected to be on the top of the stack.
+  /// @param function The function to call.
+  private void callFunction(FunctionType function) {
+    if (callDepth >= maxCallDepth) {
+      throw new RuntimeException("Maximum call depth exceeded"); // TODO: CDW
+    }
+    if (callDepth == frames.length) {
+      frames = Arrays.copyOf(frames, Math.min(frames.length * 2, maxCallDepth));
+    }
+    var frame = frames[callDepth];
+    if (frame == null) {
+      frame = new CallFrame();
+      frames[callDepth] = frame;
+    }
+    frame.set(program, instructionPointer, stackFrameBase);
+    callDepth++;
+
+    setProgram(function);
     instructionPointer = 0;
     stackFrameBase = stack.size() - function.arity();
-
     push(function); // Push the function onto the stack after the arguments
+  }
+
+  /// Calls a native function. The function and its arguments are expected to be on the top of the
+  /// stack and are replaced with the result.
+  /// This is also used by the other execution backends, which lay out calls the same way.
+  /// @param function The function to call.
+  /// @param numArgs The number of arguments.
+  public void callNative(NativeFunctionType function, int numArgs) {
+    int slot = stack.size() - numArgs - 1;
+    if (slot < 0) {
+      throw new RuntimeException("Stack underflow"); // TODO: CDW
+    }
+    // A native function can execute another program on the VM, which reuses the view.
+    int outerSlot = nativeArgs.slot();
+    int outerCount = nativeArgs.argCount();
+    boolean outerHasResult = nativeArgs.hasResult();
+    nativeArgs.set(slot, numArgs, false);
     try {
-       var result = eval();
-       push(result);
-      // Restore the state
-      program = oldProgram;
-      instructionPointer = oldInstructionPointer;
-      stackFrameBase = oldStackFrameBase;
-    } catch (Exception e) {
-      // TODO: CDW - Handle exceptions
-      var ip = String.format("0x%04x", instructionPointer - 1);
-      log.error(
-          "\nError executing program: {} @ ip = {} opcode = {} \n",
-          e.getMessage(),
-          ip,
-          executingOpCode);
-      throw e;
+      function.vmFunction().call(this, nativeArgs);
+      if (!nativeArgs.hasResult()) {
+        throw new RuntimeException(
+            "Native function " + function.name() + " did not return a value"); // TODO: CDW
+      }
+    } finally {
+      nativeArgs.set(outerSlot, outerCount, outerHasResult);
     }
+    stack.truncate(slot + 1); // The result replaces the function, discard the arguments
+  }
+
+  /// Calls the compiled version of the function, compiling the function first if it has been called
+  /// enough times. The function and its arguments are expected to be on the top of the stack, if
+  /// the compiled function is called they are replaced with the result.
+  /// This is also used by the other execution backends, which lay out calls the same way.
+  /// @param function The function to call.
+  /// @return True if the compiled function was called, false if the function needs to be
+  ///     interpreted.
+  public boolean callCompiled(FunctionType function) {
+    if (function != jitFunction) {
+      jitProfile = JitProfile.of(function);
+      jitFunction = function;
+    }
+    var profile = jitProfile;
+    var jit = profile.jitCode();
+    if (jit == null) {
+      if (profile.isJitAttempted() || profile.incrementCallCount() < jitThreshold) {
+        return false;
+      }
+      profile.setJitCode(JitCompiler.compile(function));
+      jit = profile.jitCode();
+      if (jit == null) {
+        return false;
+      }
+    }
+
+    // The compiled code only handles numbers, for anything else the function is interpreted.
+    int arity = function.arity();
+    int argBase = stack.size() - arity;
+    if (jitArgs.length < arity) {
+      jitArgs = new double[arity];
+    }
+    for (int i = 0; i < arity; i++) {
+      if (!stack.isNumberAt(argBase + i)) {
+        return false;
+      }
+      jitArgs[i] = stack.getNumber(argBase + i);
+    }
+
+    double result;
+    try {
+      result = jit.function().invoke(jitArgs);
+    } catch (StackOverflowError e) {
+      // Compiled recursion uses the Java stack. Compiled functions have no side effects so the
+      // call can be run again by the interpreter, which does not have this limit.
+      log.debug("Deoptimizing {} after stack overflow", function.name());
+      profile.deoptimize();
+      return false;
+    }
+    stack.pop(arity + 1); // Pop the arguments and the function
+    if (jit.booleanResult()) {
+      push(BooleanType.valueOf(result != 0));
+    } else {
+      stack.pushNumber(result);
+    }
+    return true;
+  }
+
+  /// Calls the given function in place of the current function.
+  /// The function and its arguments are moved down the stack over the frame of the current
+  /// function (including the function loaded by the caller) so the called function returns
+  /// directly to the caller of the current function.
+  /// @param function The function to call.
+  /// @param numArgs The number of arguments on the top of the stack.
+  private void tailCallFunction(FunctionType function, int numArgs) {
+    // The slot below the frame base holds the function that the caller loaded.
+    stack.moveTop(numArgs + 1, stackFrameBase - 1);
+    setProgram(function);
+    instructionPointer = 0;
+    stackFrameBase = stack.size() - function.arity();
+    push(function); // Push the function onto the stack after the arguments
+  }
+
+  /// Returns from the current function, restoring the state of the caller.
+  private void returnFromFunction() {
+    var frame = frames[--callDepth];
+    setProgram(frame.program());
+    instructionPointer = frame.returnAddress();
+    stackFrameBase = frame.stackFrameBase();
+  }
+
+  /// Logs an error that occurred while executing the current program.
+  /// @param e The exception that was thrown.
+  private void logError(Exception e) {
+    int offset = currentByteCodeOffset();
+    var ip = String.format("0x%04x", offset);
+    var opcode = offset >= 0 ? OpCode.fromByteCode(program.getByte(offset)) : OpCode.INVALID;
+    log.error("\nError executing program: {} @ ip = {} opcode = {} \n", e.getMessage(), ip, opcode);
+  }
+
+  /// Returns the byte code offset of the instruction that is currently being executed.
+  /// @return The byte code offset of the current instruction, or -1 if there is none.
+  private int currentByteCodeOffset() {
+    var decoded = program.decoded();
+    // The instruction pointer has moved past the opcode (and possibly its operands), so work
+    // backwards to the start of the instruction.
+    for (int i = instructionPointer - 1; i >= 0; i--) {
+      int offset = decoded.byteCodeOffset(i);
+      if (offset != -1) {
+        return offset;
+      }
+    }
+    return -1;
   }
 
   /// Evaluates the program.
   /// @return The result of the program.
   private ValueRecord eval() {
+    int[] code = this.code;
+    ValueRecord[] constants = this.constants;
     while (true) {
-      var opcode = readNextOpCode();
-      switch (opcode) {
+      int handler = code[instructionPointer++];
+      switch (handler) {
         // Constant VM operation
-        case LOAD_CONST -> push(getConstant());
+        case DecodedCode.LOAD_CONST -> push(constants[code[instructionPointer++]]);
         // Add VM operation
-        case ADD -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.add(op2));
+        case DecodedCode.ADD -> {
+          quicken(instructionPointer - 1, DecodedCode.ADD_NUM, DecodedCode.ADD_STR);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 + n2);
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.add(op2));
+          }
         }
         // Subtract VM operation
-        case SUB -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.subtract(op2));
+        case DecodedCode.SUB -> {
+          quicken(instructionPointer - 1, DecodedCode.SUB_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 - n2);
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.subtract(op2));
+          }
         }
         // Multiply VM operation
-        case MULT -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.multiply(op2));
+        case DecodedCode.MULT -> {
+          quicken(instructionPointer - 1, DecodedCode.MULT_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 * n2);
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.multiply(op2));
+          }
         }
         // Divide VM operation
-        case DIV -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.divide(op2));
+        case DecodedCode.DIV -> {
+          quicken(instructionPointer - 1, DecodedCode.DIV_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 / n2);
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.divide(op2));
+          }
         }
         // Less than VM operation
-        case LT -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.compareLessThan(op2));
+        case DecodedCode.LT -> {
+          quicken(instructionPointer - 1, DecodedCode.LT_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 < n2));
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareLessThan(op2));
+          }
         }
         // Greater than VM operation
-        case GT -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.compareGreaterThan(op2));
+        case DecodedCode.GT -> {
+          quicken(instructionPointer - 1, DecodedCode.GT_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 > n2));
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareGreaterThan(op2));
+          }
         }
         // Less than or equal VM operation
-        case LTE -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.compareLessThanOrEqual(op2));
+        case DecodedCode.LTE -> {
+          quicken(instructionPointer - 1, DecodedCode.LTE_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 <= n2));
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareLessThanOrEqual(op2));
+          }
         }
         // Greater than or equal VM operation
-        case GTE -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.compareGreaterThanOrEqual(op2));
+        case DecodedCode.GTE -> {
+          quicken(instructionPointer - 1, DecodedCode.GTE_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 >= n2));
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareGreaterThanOrEqual(op2));
+          }
         }
         // Equal VM operation
-        case EQ -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.compareEqual(op2));
+        case DecodedCode.EQ -> {
+          quicken(instructionPointer - 1, DecodedCode.EQ_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 == n2));
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareEqual(op2));
+          }
         }
         // Not equal VM operation
-        case NEQ -> {
-          var op2 = pop();
-          var op1 = pop();
-          push(op1.compareNotEqual(op2));
-        }
-        // Jump VM operation
-        case JUMP -> {
-          int labelIndex = readNextByte();
-          instructionPointer = program.getJumpLabel(labelIndex);
+        case DecodedCode.NEQ -> {
+          quicken(instructionPointer - 1, DecodedCode.NEQ_NUM, NO_HANDLER);
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 != n2));
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareNotEqual(op2));
+          }
         }
+        // Jump VM operation, the jump target has already been resolved when decoding
+        case DecodedCode.JUMP -> instructionPointer = code[instructionPointer];
         // Jump if false VM operation
-        case JUMP_IF_FALSE -> {
-          int labelIndex = readNextByte();
+        case DecodedCode.JUMP_IF_FALSE -> {
+          int target = code[instructionPointer++];
           var value = pop();
           if (value instanceof BooleanType bool) {
             if (!bool.value()) {
-              instructionPointer = program.getJumpLabel(labelIndex);
+              instructionPointer = target;
             }
           } else {
             throw new RuntimeException("Expected boolean name on stack"); // TODO: CDW
           }
         }
         // Load label VM operation TODO: CDW Do we need this?
-        case LOAD_LABEL -> {
-          int labelIndex = readNextByte();
-          push(new IntegerType(labelIndex)); // TODO: CDW
+        case DecodedCode.LOAD_LABEL -> {
+          int labelIndex = code[instructionPointer++];
+          stack.pushNumber(labelIndex); // TODO: CDW
         }
         // Load global Value on the stack
-        case LOAD_GLOBAL -> {
-          int globalIndex = readNextByte();
-          push(globals.getGlobalVariable(globalIndex).symbol().value());
+        case DecodedCode.LOAD_GLOBAL -> {
+          int globalIndex = code[instructionPointer++];
+          push(loadGlobal(globalIndex));
         }
         // Set global Value from the stack
-        case SET_GLOBAL -> {
-          int globalIndex = readNextByte();
+        case DecodedCode.SET_GLOBAL -> {
+          int globalIndex = code[instructionPointer++];
           var value = peek();
-          globals.setGlobalVariable(globalIndex, value);
+          storeGlobal(globalIndex, value);
         }
         // Pop top name from the stack
-        case POP -> {
+        case DecodedCode.POP -> {
           pop();
           dumpDebug(OpCode.POP, "after");
         }
         // Load local Value on the top of the stack
-        case LOAD_LOCAL -> {
-          int localIndex = readNextByte();
-          push(stack.get(stackFrameBase + localIndex));
+        case DecodedCode.LOAD_LOCAL -> {
+          int localIndex = code[instructionPointer++];
+          stack.pushCopy(stackFrameBase + localIndex);
         }
         // Set local Value from the top of the stack
-        case SET_LOCAL -> {
-          int localIndex = readNextByte();
-          var value = peek();
-          stack.set(stackFrameBase + localIndex, value);
+        case DecodedCode.SET_LOCAL -> {
+          int localIndex = code[instructionPointer++];
+          stack.setFromTop(stackFrameBase + localIndex);
         }
         // Exit the current scope
-        case EXIT_SCOPE -> {
+        case DecodedCode.EXIT_SCOPE -> {
           dumpDebug(OpCode.EXIT_SCOPE, "before");
-          int stackToPop = readNextByte();
-          var returnValue = pop();
-          for (int i = 0; i < stackToPop; i++) { // TODO: CDW
-            pop();
-          }
-          push(returnValue);
+          int stackToPop = code[instructionPointer++];
+          stack.dropBelowTop(stackToPop); // Keep the value of the scope on the top of the stack
           dumpDebug(OpCode.EXIT_SCOPE, "after");
         }
         // Call VM operation
-        case CALL -> {
+        case DecodedCode.CALL -> {
           dumpDebug(OpCode.CALL, "before");
-          int numArgs = readNextByte();
+          int numArgs = code[instructionPointer++];
           var function = peek(numArgs);
           if (function instanceof NativeFunctionType nativeFunction) {
-            nativeFunction.vmFunction().call(this);
-            dumpDebug(OpCode.CALL, "after");
-            var result = pop();
-            pop(numArgs + 1); // Pop the arguments and the function
-            push(result); // Push the result of the function back onto the stack
+            callNative(nativeFunction, numArgs);
           } else if (function instanceof FunctionType func) {
-            execFunction(func);
+            if (!jitEnabled || !callCompiled(func)) {
+              callFunction(func);
+              code = this.code;
+              constants = this.constants;
+            }
           } else {
             throw new RuntimeException("Expected function on stack"); // TODO: CDW
           }
           dumpDebug(OpCode.CALL, "after pop");
         }
+        // Tail call VM operation, the current function is replaced by the called function.
+        case DecodedCode.TAIL_CALL -> {
+          dumpDebug(OpCode.TAIL_CALL, "before");
+          int numArgs = code[instructionPointer++];
+          var function = peek(numArgs);
+          if (function instanceof NativeFunctionType nativeFunction) {
+            // Native functions don't use a frame so this is just a normal call
+            callNative(nativeFunction, numArgs);
+          } else if (function instanceof FunctionType func) {
+            // A compiled function returns straight away, so is called like a native function.
+            if (!jitEnabled || !callCompiled(func)) {
+              tailCallFunction(func, numArgs);
+              code = this.code;
+              constants = this.constants;
+            }
+          } else {
+            throw new RuntimeException("Expected function on stack"); // TODO: CDW
+          }
+          dumpDebug(OpCode.TAIL_CALL, "after");
+        }
         // Return VM operation (to return from function calls).
-        case RETURN -> {
+        case DecodedCode.RETURN -> {
           dumpDebug(OpCode.RETURN, "before");
-          var returnValue = pop();
-          pop(); // Pop the function local symbol from the stack
-          return returnValue;
+          stack.dropBelowTop(1); // Pop the function loaded by the caller, keeping the result
+          if (callDepth == entryCallDepth) {
+            return pop();
+          }
+          returnFromFunction();
+          code = this.code;
+          constants = this.constants;
         }
 
         // Halt VM operation
-        case HALT -> {
+        case DecodedCode.HALT -> {
           dumpDebug(OpCode.HALT, "before");
           var returnValue = pop();
-          stack.clear(); // After the program halts, the values on the stack (if any) are discarded.
+          // After the program halts, the values it left on the stack (if any) are discarded.
+          stack.truncate(stackFrameBase);
           return returnValue;
         }
+        // Superinstruction for LOAD_LOCAL, LOAD_CONST, ADD
+        case DecodedCode.LOAD_LOCAL_CONST_ADD -> {
+          int localIndex = code[instructionPointer++];
+          int constantIndex = code[instructionPointer++];
+          int slot = stackFrameBase + localIndex;
+          var constant = constants[constantIndex];
+          if (stack.isNumberAt(slot) && constant instanceof IntegerType number) {
+            if (quickeningEnabled) {
+              decoded.quicken(instructionPointer - 3, DecodedCode.LOAD_LOCAL_CONST_ADD_NUM);
+            }
+            stack.pushNumber(stack.getNumber(slot) + number.value());
+          } else {
+            push(stack.get(slot).add(constant));
+          }
+        }
+        // Superinstruction for LT, JUMP_IF_FALSE
+        case DecodedCode.LT_JUMP_IF_FALSE -> {
+          int target = code[instructionPointer++];
+          quicken(instructionPointer - 2, DecodedCode.LT_JUMP_IF_FALSE_NUM, NO_HANDLER);
+          boolean lessThan;
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            lessThan = n1 < n2;
+          } else {
+            var op2 = pop();
+            var op1 = pop();
+            lessThan = op1.compareLessThan(op2).value();
+          }
+          if (!lessThan) {
+            instructionPointer = target;
+          }
+        }
+        // Superinstruction for SET_LOCAL, POP
+        case DecodedCode.SET_LOCAL_POP -> {
+          int slot = stackFrameBase + code[instructionPointer++];
+          // If the local is the value on top of the stack it is about to be popped.
+          if (slot < stack.size() - 1) {
+            stack.setFromTop(slot);
+          }
+          stack.pop(1);
+        }
+        // Quickened versions of the generic instructions, if the operands are not of the expected
+        // type the instruction is deoptimized back to the generic version. The number versions
+        // work on the unboxed numbers on the stack so do not allocate.
+        case DecodedCode.ADD_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 + n2);
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.ADD);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.add(op2));
+          }
+        }
+        case DecodedCode.ADD_STR -> {
+          var op2 = pop();
+          var op1 = pop();
+          if (op1 instanceof StringType s1 && op2 instanceof StringType s2) {
+            push(new StringType(s1.value() + s2.value()));
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.ADD);
+            push(op1.add(op2));
+          }
+        }
+        case DecodedCode.SUB_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 - n2);
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.SUB);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.subtract(op2));
+          }
+        }
+        case DecodedCode.MULT_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 * n2);
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.MULT);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.multiply(op2));
+          }
+        }
+        case DecodedCode.DIV_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            stack.pushNumber(n1 / n2);
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.DIV);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.divide(op2));
+          }
+        }
+        case DecodedCode.EQ_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 == n2));
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.EQ);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareEqual(op2));
+          }
+        }
+        case DecodedCode.NEQ_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 != n2));
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.NEQ);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareNotEqual(op2));
+          }
+        }
+        case DecodedCode.LT_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 < n2));
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.LT);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareLessThan(op2));
+          }
+        }
+        case DecodedCode.LTE_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 <= n2));
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.LTE);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareLessThanOrEqual(op2));
+          }
+        }
+        case DecodedCode.GT_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 > n2));
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.GT);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareGreaterThan(op2));
+          }
+        }
+        case DecodedCode.GTE_NUM -> {
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            push(BooleanType.valueOf(n1 >= n2));
+          } else {
+            decoded.deoptimize(instructionPointer - 1, DecodedCode.GTE);
+            var op2 = pop();
+            var op1 = pop();
+            push(op1.compareGreaterThanOrEqual(op2));
+          }
+        }
+        case DecodedCode.LOAD_LOCAL_CONST_ADD_NUM -> {
+          int slot = stackFrameBase + code[instructionPointer++];
+          var constant = constants[code[instructionPointer++]];
+          if (stack.isNumberAt(slot) && constant instanceof IntegerType number) {
+            stack.pushNumber(stack.getNumber(slot) + number.value());
+          } else {
+            decoded.deoptimize(instructionPointer - 3, DecodedCode.LOAD_LOCAL_CONST_ADD);
+            push(stack.get(slot).add(constant));
+          }
+        }
+        case DecodedCode.LT_JUMP_IF_FALSE_NUM -> {
+          int target = code[instructionPointer++];
+          boolean lessThan;
+          if (stack.isNumber(0) && stack.isNumber(1)) {
+            double n2 = stack.popNumber();
+            double n1 = stack.popNumber();
+            lessThan = n1 < n2;
+          } else {
+            decoded.deoptimize(instructionPointer - 2, DecodedCode.LT_JUMP_IF_FALSE);
+            var op2 = pop();
+            var op1 = pop();
+            lessThan = op1.compareLessThan(op2).value();
+          }
+          if (!lessThan) {
+            instructionPointer = target;
+          }
+        }
+        // No operation
+        case DecodedCode.NOOP -> {}
         default ->
             throw new RuntimeException(
-                "Unhandled opcode: " + opcode + ", ip = " + instructionPointer); // TODO: CDW
+                "Unhandled opcode: " + handler + ", ip = " + instructionPointer); // TODO: CDW
       }
     }
   }
 
+  /// Quickens the instruction at the given index for the types of the two operands on the top of
+  /// the stack.
+  /// This does nothing if quickening is disabled or there is no quickened handler for the
+  /// operand types.
+  /// @param index The index of the instruction in the decoded code.
+  /// @param numberHandler The handler to use if both operands are numbers.
+  /// @param stringHandler The handler to use if both operands are strings, or `NO_HANDLER`.
+  private void quicken(int index, int numberHandler, int stringHandler) {
+    if (!quickeningEnabled) {
+      return;
+    }
+    if (stack.isNumber(0) && stack.isNumber(1)) {
+      decoded.quicken(index, numberHandler);
+    } else if (stringHandler != NO_HANDLER
+        && stack.peek(0) instanceof StringType
+        && stack.peek(1) instanceof StringType) {
+      decoded.quicken(index, stringHandler);
+    }
+  }
 
   /// Dumps the current state of the VM for debugging.
   /// @param opCode The current opcode.
   /// @param message The message to display.
   private void dumpDebug(OpCode opCode, String message) {
-    var ip = String.format("0x%04x", instructionPointer - 1);
+    if (!log.isDebugEnabled()) {
+      return;
+    }
+    var ip = String.format("0x%04x", currentByteCodeOffset());
     log.debug("{} {} @ ip = {}", message, opCode.instructionName(), ip); // TODO: CDW
     log.debug("  Stack:");
     for (int i = 0; i < stack.size(); i++) {
@@ -310,64 +1147,27 @@ public class MapToolVM {
     }
   }
 
-  /// Gets the constant name at the current instruction pointer.
-  /// @return The constant name.
-  private ValueRecord getConstant() {
-    int idx = readNextByte();
-    return program.getConstant(idx);
-  }
-
-  /// Reads the next byte from the code and returns it as an integer as Java Bytes are signed.
-  /// @return The next byte (as an integer).
-  private int readNextByte() {
-    return program.getByte(instructionPointer++) & 0xFF; // Java Bytes are signed
-  }
-
-  /// Reads the next byte from the code.
-  /// @return The next byte.
-  private byte readNextByteRaw() {
-    return program.getByte(instructionPointer++);
-  }
-
-  /// Reads the next opcode from the code.
-  /// @return The next opcode.
-  public OpCode readNextOpCode() {
-    executingOpCode =  OpCode.fromByteCode(readNextByteRaw());
-    return executingOpCode;
-  }
-
   /// Pushes a name onto the stack.
   /// @param name The name to push.
   public void push(ValueRecord value) {
-    if (stack.size() >= MAX_STACK_SIZE) {
-      throw new RuntimeException("Stack overflow"); // TODO: CDW
-    }
     stack.push(value);
   }
 
   /// Pops a name from the stack.
   /// @return The name popped from the stack.
   public ValueRecord pop() {
-    if (stack.isEmpty()) {
-      throw new RuntimeException("Stack underflow"); // TODO: CDW
-    }
     return stack.pop();
   }
 
   /// Pops the given number of names from the stack.
   /// @param count The number of names to pop.
   public void pop(int count) {
-    for (int i = 0; i < count; i++) {
-      pop();
-    }
+    stack.pop(count);
   }
 
   /// Peeks at the top of the stack.
   /// @return The name at the top of the stack.
   public ValueRecord peek() {
-    if (stack.isEmpty()) {
-      throw new RuntimeException("Stack underflow"); // TODO: CDW
-    }
     return stack.peek();
   }
 
@@ -375,9 +1175,6 @@ public class MapToolVM {
   /// @param index The index from the top of the stack.
   /// @return The name at the given index from the top of the stack.
   public ValueRecord peek(int index) {
-    if (index < 0 || index >= stack.size()) {
-      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
-    }
-    return stack.get(stack.size() - index - 1);
+    return stack.peek(index);
   }
 }
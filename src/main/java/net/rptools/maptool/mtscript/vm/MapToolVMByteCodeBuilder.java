@@ -16,13 +16,11 @@ package net.rptools.maptool.mtscript.vm;
 
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 import net.rptools.maptool.mtscript.vm.values.BooleanType;
 import net.rptools.maptool.mtscript.vm.values.CodeType;
 import net.rptools.maptool.mtscript.vm.values.FunctionType;
@@ -31,10 +29,47 @@ import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
 import net.rptools.maptool.mtscript.vm.values.StringType;
 import net.rptools.maptool.mtscript.vm.values.Symbol;
 import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import net.rptools.maptool.mtscript.vm.values.ValueType;
 
 /// Class for building byte code for the MTScript VM.
 public class MapToolVMByteCodeBuilder {
 
+  /// The key of a constant in the constant pool, constants are only shared if they have the same
+  /// type and value, so the number `1` and the string `"1.0"` are separate constants even though
+  /// they have the same name. Values without value equality (e.g. functions) are keyed by
+  /// identity.
+  /// @param type The type of the constant.
+  /// @param value The value of the constant.
+  private record ConstantKey(ValueType type, Object value) {
+
+    /// Returns the key for a constant.
+    /// @param constant The constant.
+    /// @return The key for the constant.
+    static ConstantKey of(ValueRecord constant) {
+      if (constant instanceof IntegerType number) {
+        return new ConstantKey(ValueType.INTEGER, number.value());
+      } else if (constant instanceof StringType string) {
+        return new ConstantKey(ValueType.STRING, string.value());
+      } else if (constant instanceof BooleanType bool) {
+        return new ConstantKey(ValueType.BOOLEAN, bool.value());
+      }
+      return new ConstantKey(constant.valueType(), new IdentityKey(constant));
+    }
+  }
+
+  /// Wraps a value so it is compared by identity.
+  /// @param value The value.
+  private record IdentityKey(ValueRecord value) {
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof IdentityKey other && other.value == value;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(value);
+    }
+  }
 
   /// The byte code stream.
   private final ByteArrayOutputStream byteCodeStream = new ByteArrayOutputStream();
@@ -42,7 +77,14 @@ public class MapToolVMByteCodeBuilder {
   /// The list of constants.
   /// These are compile time constants such as literals and function names, not named symbols
   /// declared in the language with something like ```const MEANING = 42```
-  private final Set<SymbolEntry> constantPool = new HashSet<>();
+  private final List<SymbolEntry> constantPool = new ArrayList<>();
+
+  /// The index of each constant in the constant pool.
+  private final Map<ConstantKey, Integer> constantIndexes = new HashMap<>();
+
+  /// The index of the constants in the constant pool that can be referred to by name, i.e.
+  /// functions.
+  private final Map<String, Integer> namedConstantIndexes = new HashMap<>();
 
   /// The list of jump labels.
   private final List<Integer> jumpLabels = new ArrayList<>();
@@ -53,6 +95,9 @@ public class MapToolVMByteCodeBuilder {
   /// List of Local Symbols
   private final List<SymbolEntry> localSymbols = new ArrayList<>();
 
+  /// The index of the local symbols declared in each scope, indexed by scope level.
+  private final List<Map<String, Integer>> scopeSymbols = new ArrayList<>();
+
   /// The name of the byte code.
   private final String name;
 
@@ -69,6 +114,10 @@ public class MapToolVMByteCodeBuilder {
   /// TODO: populate this list
   private final Map<String, FunctionType> functions = new HashMap<>();
 
+  /// The functions defined by earlier programs that can be called by name, they are only added to
+  /// the constant pool when they are used.
+  private Map<String, FunctionType> importedFunctions = Map.of();
+
   /// Creates a new byte code builder.
   /// @param name The name of the byte code.
   public MapToolVMByteCodeBuilder(String name, VMGlobals globals) {
@@ -109,6 +158,9 @@ public class MapToolVMByteCodeBuilder {
   /// Removes symbols in the current scope.
   /// @return The number of symbols removed.
   private int removeSymbolsInCurrentScope() {
+    if (scopeLevel < scopeSymbols.size()) {
+      scopeSymbols.get(scopeLevel).clear();
+    }
     int count = 0;
     while (!localSymbols.isEmpty() && localSymbols.getLast().scopeLevel() == scopeLevel) {
       localSymbols.removeLast();
@@ -140,34 +192,28 @@ public class MapToolVMByteCodeBuilder {
   /// @param name The name of the symbol.
   /// @param value The initialised value of the symbol.
   public int defineLocalSymbol(String name, ValueRecord value) {
-    var scopeSymbols = getSymbolsNamesForCurrentScope();
-    if (scopeSymbols.contains(name)) {
-      throw new RuntimeException("Symbol " + name + " already defined in scope"); // TODO CDW
+    while (scopeSymbols.size() <= scopeLevel) {
+      scopeSymbols.add(new HashMap<>());
     }
     int index = localSymbols.size();
+    if (scopeSymbols.get(scopeLevel).putIfAbsent(name, index) != null) {
+      throw new RuntimeException("Symbol " + name + " already defined in scope"); // TODO CDW
+    }
     localSymbols.add(
         new SymbolEntry(new Symbol(name, value), false, scopeLevel, index, false));
     return index;
   }
 
-  /// Returns the set of symbol names for the current scope.
-  /// @return The set of symbol names for the current scope.
-  private Set<String> getSymbolsNamesForCurrentScope() {
-    return localSymbols.stream()
-        .filter(s -> s.scopeLevel() == scopeLevel)
-        .map(s -> s.symbol().name())
-        .collect(Collectors.toSet());
-  }
-
   /// Returns the index of a local symbol.
   /// @param name The name of the symbol.
   /// @return The index of the symbol or -1 if not found.
   public int getLocalSymbolIndex(String name) {
-    // We work backwards to find the most recent version of the symbol
+    // We work outwards from the current scope to find the most recent version of the symbol
     if (!isInGlobalScope()) {
-      for (int i = localSymbols.size() - 1; i >= 0; i--) {
-        if (localSymbols.get(i).symbol().name().equals(name)) {
-          return i;
+      for (int level = Math.min(scopeLevel, scopeSymbols.size() - 1); level >= 0; level--) {
+        var index = scopeSymbols.get(level).get(name);
+        if (index != null) {
+          return index;
         }
       }
     }
@@ -184,11 +230,11 @@ public class MapToolVMByteCodeBuilder {
     }
 
     int constantIndex = getConstant(name);
+    if (constantIndex == -1 && importedFunctions.containsKey(name)) {
+      constantIndex = addConstant(importedFunctions.get(name));
+    }
     if (constantIndex != -1) {
-      var entry = constantPool.stream().filter(c -> c.index() == constantIndex).findFirst();
-      if (entry.isPresent()) {
-        return entry.get();
-      }
+      return constantPool.get(constantIndex);
     }
 
     int globalIndex = globals.getGlobalSymbolIndex(name);
@@ -224,17 +270,20 @@ public class MapToolVMByteCodeBuilder {
   /// @param constant The constant to add.
   /// @return The index of the constant in the constant pool.
   public int addConstant(ValueRecord constant) {
-    var existing =
-        constantPool.stream().filter(c -> c.symbol().name().equals(constant.name())).findFirst();
-
-    if (existing.isPresent()) {
-      return existing.get().index();
+    var key = ConstantKey.of(constant);
+    var existing = constantIndexes.get(key);
+    if (existing != null) {
+      return existing;
     }
 
     int index = constantPool.size();
     constantPool.add(
         new SymbolEntry(new Symbol(constant.name(), constant), true,
             VMGlobals.GLOBAL_VARIABLE_SCOPE, index, true));
+    constantIndexes.put(key, index);
+    if (constant instanceof CodeType) {
+      namedConstantIndexes.putIfAbsent(constant.name(), index);
+    }
     return index;
   }
 
@@ -242,11 +291,11 @@ public class MapToolVMByteCodeBuilder {
   /// Returns the index of a constant in the constant pool.
   /// Constants in the constant pool are compile time constants such as literals and function names,
   /// not named symbols declared in the language with something like ```const MEANING = 42```
+  /// Only constants that can be referred to by name (functions) are found, not literals.
   /// @param name The name of the constant.
   /// @return The index of the constant or -1 if not found.
   public int getConstant(String name) {
-    var existing = constantPool.stream().filter(c -> c.symbol().name().equals(name)).findFirst();
-    return existing.map(SymbolEntry::index).orElse(-1);
+    return namedConstantIndexes.getOrDefault(name, -1);
   }
 
   /// Allocates a jump label.
@@ -262,15 +311,68 @@ public class MapToolVMByteCodeBuilder {
     jumpLabels.set(label, byteCodeStream.size());
   }
 
+  /// Replaces common instruction sequences in the byte code with superinstructions.
+  /// A sequence is only fused if no jump label targets an instruction inside it, the jump labels
+  /// are updated to the new location of the instructions they target.
+  private void selectSuperinstructions() {
+    byte[] code = byteCodeStream.toByteArray();
+    Set<Integer> labelTargets = new HashSet<>(jumpLabels);
+    int[] newOffsets = new int[code.length + 1];
+    var out = new ByteArrayOutputStream(code.length);
+    int offset = 0;
+    while (offset < code.length) {
+      newOffsets[offset] = out.size();
+      var op = OpCode.fromByteCode(code[offset]);
+      int next = offset + 1 + op.operandCount();
+      if (op == OpCode.LOAD_LOCAL
+          && isFusable(code, next, OpCode.LOAD_CONST, labelTargets)
+          && isFusable(code, next + 2, OpCode.ADD, labelTargets)) {
+        out.write(OpCode.LOAD_LOCAL_CONST_ADD.byteCode());
+        out.write(code[offset + 1]);
+        out.write(code[next + 1]);
+        offset = next + 3;
+      } else if (op == OpCode.LT && isFusable(code, next, OpCode.JUMP_IF_FALSE, labelTargets)) {
+        out.write(OpCode.LT_JUMP_IF_FALSE.byteCode());
+        out.write(code[next + 1]);
+        offset = next + 2;
+      } else if (op == OpCode.SET_LOCAL && isFusable(code, next, OpCode.POP, labelTargets)) {
+        out.write(OpCode.SET_LOCAL_POP.byteCode());
+        out.write(code[offset + 1]);
+        offset = next + 1;
+      } else {
+        out.write(code, offset, next - offset);
+        offset = next;
+      }
+    }
+    newOffsets[code.length] = out.size();
+
+    for (int i = 0; i < jumpLabels.size(); i++) {
+      int label = jumpLabels.get(i);
+      if (label >= 0) {
+        jumpLabels.set(i, newOffsets[label]);
+      }
+    }
+    byteCodeStream.reset();
+    byteCodeStream.writeBytes(out.toByteArray());
+  }
+
+  /// Returns true if the instruction at the given offset is the given opcode and can be fused
+  /// into the superinstruction before it.
+  /// @param code The byte code.
+  /// @param offset The offset of the instruction.
+  /// @param op The opcode the instruction must be.
+  /// @param labelTargets The offsets that are targeted by jump labels.
+  /// @return True if the instruction can be fused.
+  private static boolean isFusable(byte[] code, int offset, OpCode op, Set<Integer> labelTargets) {
+    return offset < code.length && code[offset] == op.byteCode() && !labelTargets.contains(offset);
+  }
+
   /// Builds the code type.
   /// @return The code type.
   public CodeType buildProgram() {
     emit(OpCode.HALT);
-    var constants = constantPool.stream()
-        .sorted(Comparator.comparingInt(SymbolEntry::index))
-        .map(SymbolEntry::symbol)
-        .map(Symbol::value)
-        .toList();
+    selectSuperinstructions();
+    var constants = constantPool.stream().map(SymbolEntry::symbol).map(Symbol::value).toList();
     return new CodeType(name, byteCodeStream.toByteArray(), constants, jumpLabels,
         functions.values().stream().toList());
   }
@@ -279,11 +381,8 @@ public class MapToolVMByteCodeBuilder {
   /// @return The function type.
   public FunctionType buildFunction() {
     emit(OpCode.RETURN);
-    var constants = constantPool.stream()
-        .sorted(Comparator.comparingInt(SymbolEntry::index))
-        .map(SymbolEntry::symbol)
-        .map(Symbol::value)
-        .toList();
+    selectSuperinstructions();
+    var constants = constantPool.stream().map(SymbolEntry::symbol).map(Symbol::value).toList();
     return new FunctionType(name, byteCodeStream.toByteArray(), constants, jumpLabels, arity);
   }
 
@@ -430,6 +529,15 @@ public class MapToolVMByteCodeBuilder {
     writeByte((byte) numArgs); // TODO CDW Handle > 256 args
   }
 
+  /// Emits a tail call instruction, this should only be used when the result of the call is the
+  /// result of the function being built.
+  /// @param func The function to call.
+  /// @param numArgs The number of arguments.
+  public void emitTailCall(FunctionType func, int numArgs) {
+    emit(OpCode.TAIL_CALL);
+    writeByte((byte) numArgs); // TODO CDW Handle > 256 args
+  }
+
   /// Adds a function to the code.
   /// @param name The name of the function to call.
   /// @param function The function to call.
@@ -439,6 +547,13 @@ public class MapToolVMByteCodeBuilder {
     emitLoadConstant(function);
   }
 
+  /// Makes functions defined by earlier programs callable by name from this code, e.g. when the
+  /// top-level forms of a script are compiled one at a time.
+  /// @param functions The functions by name, the map is not copied.
+  public void importFunctions(Map<String, FunctionType> functions) {
+    this.importedFunctions = functions;
+  }
+
   /// Returns the function for the given symbol.
   /// @param name The name of the function.
   public FunctionType getFunction(String name) {
@@ -0,0 +1,135 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A pool of `MapToolVM`s that are reused to execute programs against the same globals, so that
+/// executing a program does not have to create a VM and its stack.
+///
+/// Each platform thread keeps the last VM it released, so a thread that executes programs one
+/// after another always reuses the same VM without touching shared state. Virtual threads are
+/// usually created per task, so keeping a VM per virtual thread would not be reused; they (and
+/// platform threads that already hold a VM) share a bounded set of idle VMs instead. The idle
+/// VMs are kept in an `AtomicReferenceArray` and taken or returned with a compare and set, so the
+/// pool does not lock or allocate. A VM released when the pool is full is discarded.
+public class MapToolVMPool {
+
+  /// Creates the VMs.
+  private final Supplier<MapToolVM> factory;
+
+  /// The idle VMs shared between threads, `null` for an empty slot.
+  private final AtomicReferenceArray<MapToolVM> idle;
+
+  /// The VM kept by each platform thread.
+  private final ThreadLocal<MapToolVM> threadVM = new ThreadLocal<>();
+
+  /// Creates a new pool of VMs with the default settings.
+  /// @param globals The globals the VMs execute against.
+  /// @param maxIdle The maximum number of idle VMs shared between threads.
+  public MapToolVMPool(VMGlobals globals, int maxIdle) {
+    this(() -> new MapToolVM(globals), maxIdle);
+  }
+
+  /// Creates a new pool of VMs.
+  /// @param factory Creates a VM, configured with the settings every VM in the pool should have.
+  /// @param maxIdle The maximum number of idle VMs shared between threads.
+  public MapToolVMPool(Supplier<MapToolVM> factory, int maxIdle) {
+    if (maxIdle <= 0) {
+      throw new IllegalArgumentException("Invalid pool size: " + maxIdle);
+    }
+    this.factory = factory;
+    this.idle = new AtomicReferenceArray<>(maxIdle);
+  }
+
+  /// Takes a VM from the pool, creating one if there are none idle. The VM must be returned with
+  /// `release` and must not be used after that.
+  /// @return The VM.
+  public MapToolVM acquire() {
+    var thread = Thread.currentThread();
+    if (!thread.isVirtual()) {
+      var vm = threadVM.get();
+      if (vm != null) {
+        threadVM.remove();
+        return vm;
+      }
+    }
+    int size = idle.length();
+    int start = start(thread, size);
+    for (int i = 0; i < size; i++) {
+      int slot = (start + i) % size;
+      var vm = idle.get(slot);
+      if (vm != null && idle.compareAndSet(slot, vm, null)) {
+        return vm;
+      }
+    }
+    return factory.get();
+  }
+
+  /// Resets a VM and returns it to the pool.
+  /// @param vm The VM, which must have been taken from this pool.
+  public void release(MapToolVM vm) {
+    vm.reset();
+    var thread = Thread.currentThread();
+    if (!thread.isVirtual() && threadVM.get() == null) {
+      threadVM.set(vm);
+      return;
+    }
+    int size = idle.length();
+    int start = start(thread, size);
+    for (int i = 0; i < size; i++) {
+      int slot = (start + i) % size;
+      if (idle.get(slot) == null && idle.compareAndSet(slot, null, vm)) {
+        return;
+      }
+    }
+  }
+
+  /// Executes a program on a VM from the pool.
+  /// @param program The program to execute.
+  /// @return The result of the program.
+  public ValueRecord exec(CodeType program) {
+    var vm = acquire();
+    try {
+      return vm.exec(program);
+    } finally {
+      release(vm);
+    }
+  }
+
+  /// Executes a program compiled for any of the execution backends on a VM from the pool.
+  /// @param program The program to execute.
+  /// @return The result of the program.
+  public ValueRecord exec(ExecutableProgram program) {
+    var vm = acquire();
+    try {
+      return vm.exec(program);
+    } finally {
+      release(vm);
+    }
+  }
+
+  /// Returns the slot to start searching the idle VMs from, spreading threads over the slots so
+  /// they don't all compete for the first one.
+  /// @param thread The current thread.
+  /// @param size The number of slots.
+  /// @return The slot to start from.
+  private static int start(Thread thread, int size) {
+    return (int) (thread.threadId() % size);
+  }
+}
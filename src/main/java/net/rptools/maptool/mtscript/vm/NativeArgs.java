@@ -0,0 +1,152 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import net.rptools.maptool.mtscript.vm.values.BooleanType;
+import net.rptools.maptool.mtscript.vm.values.StringType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// The arguments and result of a call to a native function, a view over the region of the
+/// operand stack that holds the function and its arguments.
+///
+/// Each `MapToolVM` has one instance that is reused for every native call, so calling a native
+/// function does not allocate. The view is only valid until the function returns. The arguments
+/// are read straight from the stack, numbers can be read without boxing them with `isNumber` and
+/// `argDouble`. The result is written to the slot that held the function, which becomes the top
+/// of the stack when the VM discards the arguments after the call.
+public final class NativeArgs {
+
+  /// The operand stack of the VM.
+  private final OperandStack stack;
+
+  /// The index of the slot holding the function, the first argument is in the slot after it.
+  private int slot;
+
+  /// The number of arguments.
+  private int count;
+
+  /// True once the function has set its result.
+  private boolean hasResult;
+
+  /// Creates a new argument view.
+  /// @param stack The operand stack of the VM.
+  NativeArgs(OperandStack stack) {
+    this.stack = stack;
+  }
+
+  /// Points the view at a call.
+  /// @param slot The index of the slot holding the function.
+  /// @param count The number of arguments.
+  /// @param hasResult True if the result has been set.
+  void set(int slot, int count, boolean hasResult) {
+    this.slot = slot;
+    this.count = count;
+    this.hasResult = hasResult;
+  }
+
+  /// Returns the index of the slot holding the function.
+  /// @return The index of the slot.
+  int slot() {
+    return slot;
+  }
+
+  /// Returns the number of arguments.
+  /// @return The number of arguments.
+  public int argCount() {
+    return count;
+  }
+
+  /// Returns an argument, numbers are boxed so use `argDouble` for arguments that are numbers.
+  /// @param index The index of the argument, starting at 0.
+  /// @return The argument.
+  public ValueRecord arg(int index) {
+    return stack.get(argSlot(index));
+  }
+
+  /// Returns true if an argument is a number.
+  /// @param index The index of the argument, starting at 0.
+  /// @return True if the argument is a number.
+  public boolean isNumber(int index) {
+    return stack.isNumberAt(argSlot(index));
+  }
+
+  /// Returns an argument that must be a number.
+  /// @param index The index of the argument, starting at 0.
+  /// @return The number.
+  public double argDouble(int index) {
+    int argSlot = argSlot(index);
+    if (!stack.isNumberAt(argSlot)) {
+      throw new RuntimeException("Expected number for argument " + index); // TODO: CDW
+    }
+    return stack.getNumber(argSlot);
+  }
+
+  /// Returns an argument that must be a boolean.
+  /// @param index The index of the argument, starting at 0.
+  /// @return The boolean.
+  public boolean argBoolean(int index) {
+    if (stack.get(argSlot(index)) instanceof BooleanType bool) {
+      return bool.value();
+    }
+    throw new RuntimeException("Expected boolean for argument " + index); // TODO: CDW
+  }
+
+  /// Returns an argument that must be a string.
+  /// @param index The index of the argument, starting at 0.
+  /// @return The string.
+  public String argString(int index) {
+    if (stack.get(argSlot(index)) instanceof StringType string) {
+      return string.value();
+    }
+    throw new RuntimeException("Expected string for argument " + index); // TODO: CDW
+  }
+
+  /// Sets the result of the function.
+  /// @param value The result.
+  public void returnValue(ValueRecord value) {
+    stack.set(slot, value);
+    hasResult = true;
+  }
+
+  /// Sets the result of the function to a number, without boxing it.
+  /// @param number The result.
+  public void returnNumber(double number) {
+    stack.setNumber(slot, number);
+    hasResult = true;
+  }
+
+  /// Sets the result of the function to one of its arguments.
+  /// @param index The index of the argument, starting at 0.
+  public void returnArg(int index) {
+    stack.copy(argSlot(index), slot);
+    hasResult = true;
+  }
+
+  /// Returns true if the function has set its result.
+  /// @return True if the result has been set.
+  boolean hasResult() {
+    return hasResult;
+  }
+
+  /// Returns the stack slot of an argument.
+  /// @param index The index of the argument, starting at 0.
+  /// @return The stack slot.
+  private int argSlot(int index) {
+    if (index < 0 || index >= count) {
+      throw new RuntimeException("Invalid argument index: " + index); // TODO: CDW
+    }
+    return slot + 1 + index;
+  }
+}
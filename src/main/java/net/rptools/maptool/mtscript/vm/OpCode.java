@@ -20,138 +20,162 @@ import java.util.Arrays;
 public enum OpCode {
 
   /// Halts the program
-  HALT((byte) 0x20, "halt"),
+  HALT((byte) 0x20, "halt", 0),
 
   // Constants
   /// Pushes a constant name onto the stack
   /// LOAD_CONST <constant index>
-  LOAD_CONST((byte) 0x21, "const_load"),
+  LOAD_CONST((byte) 0x21, "const_load", 1),
 
   // Mathematical Operations
   /// Adds the top two values on the stack
   /// ADD
   /// Pops top two values from the stack adds them together and places the result on the stack.
-  ADD((byte) 0x22, "add"),
+  ADD((byte) 0x22, "add", 0),
 
   /// Subtracts the top two values on the stack
   /// SUB
   /// Pops top two values from the stack subtracts the first from the second and places the result
   // on the stack.
-  SUB((byte) 0x23, "sub"),
+  SUB((byte) 0x23, "sub", 0),
 
   /// Multiplies the top two values on the stack
   /// MUL
   /// Pops top two values from the stack multiplies them together and places the result on the
   // stack.
-  MULT((byte) 0x24, "mult"),
+  MULT((byte) 0x24, "mult", 0),
 
   /// Divides the top two values on the stack
   /// DIV
   /// Pops top two values from the stack divides the second by the first and places the result on
   // the stack.
-  DIV((byte) 0x25, "div"),
+  DIV((byte) 0x25, "div", 0),
 
   // Comparison Operations
   /// Compares the top two values on the stack for equality
   /// EQ
   /// Pops top two values from the stack compares them for equality and places the boolean result
   // on the stack.
-  EQ((byte) 0x26, "eq"),
+  EQ((byte) 0x26, "eq", 0),
 
   /// Compares the top two values on the stack for inequality
   /// NEQ
   /// Pops top two values from the stack compares them for inequality and places the boolean
   // result on the stack.
-  NEQ((byte) 0x27, "not_eq"),
+  NEQ((byte) 0x27, "not_eq", 0),
 
   /// Compares the top two values on the stack for less than
   /// LT
   /// Pops top two values from the stack checks if the second is less than the first and places
   // the boolean result on the stack.
-  LT((byte) 0x28, "lt"),
+  LT((byte) 0x28, "lt", 0),
 
   /// Compares the top two values on the stack for less than or equal
   /// LTE
   /// Pops top two values from the stack checks if the second is less than or equal to the first
   // and places the boolean result on the stack.
-  LTE((byte) 0x29, "lt_eq"),
+  LTE((byte) 0x29, "lt_eq", 0),
 
   /// Compares the top two values on the stack for greater than
   /// GT
   /// Pops top two values from the stack checks if the second is greater than the first and places
   // the boolean result on the stack.
-  GT((byte) 0x2A, "gt"),
+  GT((byte) 0x2A, "gt", 0),
 
   /// Compares the top two values on the stack for greater than or equal
   /// GTE
   /// Pops top two values from the stack checks if the second is greater than or equal to the
   // first and places the boolean result on the stack.
-  GTE((byte) 0x2B, "gt_eq"),
+  GTE((byte) 0x2B, "gt_eq", 0),
 
   // Jump Operations
   /// Loads a label onto the stack
   /// LOAD_LABEL <label index>
-  LOAD_LABEL((byte) 0x2C, "label_load"),
+  LOAD_LABEL((byte) 0x2C, "label_load", 1),
 
   /// Jumps to the given label if the top name on the stack is false
   /// JUMP_IF_FALSE <label index>
   /// If the top name on the stack is false, this instruction jumps to the label.
-  JUMP_IF_FALSE((byte) 0x2D, "jmp_false"),
+  JUMP_IF_FALSE((byte) 0x2D, "jmp_false", 1),
 
   /// Jumps to the given label
   /// JUMP <label index>
   /// Unconditionally jumps to the label.
-  JUMP((byte) 0x2E, "jump"),
+  JUMP((byte) 0x2E, "jump", 1),
 
   // Symbol Operations
   /// Loads a symbol from the global variable table onto the stack
   /// LOAD_GLOBAL <global symbol index>
-  LOAD_GLOBAL((byte) 0x2F, "global_load"),
+  LOAD_GLOBAL((byte) 0x2F, "global_load", 1),
 
   /// Sets a symbol in the global variable table from the top of the stack.
   /// The name is not popped from the stack.
   /// SET_GLOBAL <global symbol index>
-  SET_GLOBAL((byte) 0x30, "global_set"),
+  SET_GLOBAL((byte) 0x30, "global_set", 1),
 
   /// Loads a symbol from the local variable table onto the stack
   /// LOAD_LOCAL <local symbol index>
   /// This instruction loads a symbol from the local variable table onto the stack.
-  LOAD_LOCAL((byte) 0x32, "local_load"),
+  LOAD_LOCAL((byte) 0x32, "local_load", 1),
 
   /// Sets a symbol in the local variable table from the top of the stack.
   /// The name is not popped from the stack.
   /// SET_LOCAL <local symbol index>
-  SET_LOCAL((byte) 0x33, "local_set"),
+  SET_LOCAL((byte) 0x33, "local_set", 1),
 
   // Stack Operations
   /// Pops the top name from the stack
   /// POP
-  POP((byte) 0x31, "pop"),
+  POP((byte) 0x31, "pop", 0),
 
   /// Exists the current scope.
   /// This will pop the top value from the stack, then pop the number of stack
   /// values specified by the argument. The value popped from the stack initially
   /// is added back to the top of the stack.
   /// EXIT_SCOPE <stack to pop>
-  EXIT_SCOPE((byte) 0x34, "exit_scope"),
+  EXIT_SCOPE((byte) 0x34, "exit_scope", 1),
 
   // Function Operations
   /// Calls the function at the top of the stack
   /// CALL
-  CALL((byte) 0x35, "call"),
+  CALL((byte) 0x35, "call", 1),
 
   /// Returns from the current function
   /// RETURN
-  RETURN((byte) 0x36, "return"),
+  RETURN((byte) 0x36, "return", 0),
+
+  /// Calls the function at the top of the stack in place of the current function, the frame of
+  /// the current function is reused so the call does not grow the stack.
+  /// TAIL_CALL <number of arguments>
+  /// If the function is a native function this is the same as CALL.
+  TAIL_CALL((byte) 0x3A, "tail_call", 1),
+
+  // Superinstructions, these are fused versions of common instruction sequences that are
+  // selected by the `MapToolVMByteCodeBuilder` to reduce the number of instructions dispatched.
+  /// Adds a constant to a local symbol and places the result on the stack
+  /// LOAD_LOCAL_CONST_ADD <local symbol index> <constant index>
+  /// This is the same as LOAD_LOCAL, LOAD_CONST, ADD.
+  LOAD_LOCAL_CONST_ADD((byte) 0x37, "local_const_add", 2),
+
+  /// Compares the top two values on the stack for less than and jumps to the given label if the
+  // result is false.
+  /// LT_JUMP_IF_FALSE <label index>
+  /// This is the same as LT, JUMP_IF_FALSE.
+  LT_JUMP_IF_FALSE((byte) 0x38, "lt_jmp_false", 1),
+
+  /// Sets a symbol in the local variable table from the top of the stack and pops it.
+  /// SET_LOCAL_POP <local symbol index>
+  /// This is the same as SET_LOCAL, POP.
+  SET_LOCAL_POP((byte) 0x39, "local_set_pop", 1),
 
   /// No operation
   /// NOOP
-  NOOP((byte) 0xFD, "noop"),
+  NOOP((byte) 0xFD, "noop", 0),
 
   /// Invalid opcode
   /// INVALID
   /// This opcode is used to indicate an invalid opcode.
-  INVALID((byte) 0xFE, "* invalid *");
+  INVALID((byte) 0xFE, "* invalid *", 0);
 
   /// A class to map from byte code to OpCode.
   private static class ByteCodeMap {
@@ -182,12 +206,17 @@ public enum OpCode {
   /// The instruction name.
   private final String instructionName;
 
+  /// The number of operands that follow the opcode, each operand is a single byte.
+  private final int operandCount;
+
   /// Creates a new OpCode.
   /// @param byteCode The byte code.
   /// @param instructionName The instruction name.
-  OpCode(byte byteCode, String instructionName) {
+  /// @param operandCount The number of operands that follow the opcode.
+  OpCode(byte byteCode, String instructionName, int operandCount) {
     this.byteCode = byteCode;
     this.instructionName = instructionName;
+    this.operandCount = operandCount;
   }
 
   /// Returns the byte code.
@@ -202,6 +231,12 @@ public enum OpCode {
     return instructionName;
   }
 
+  /// Returns the number of operands that follow the opcode.
+  /// @return The number of operands.
+  public int operandCount() {
+    return operandCount;
+  }
+
   /// Returns the OpCode for the given byte code.
   /// @param byteCode The byte code.
   /// @return The OpCode.
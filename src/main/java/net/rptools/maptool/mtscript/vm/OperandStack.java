@@ -0,0 +1,323 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm;
+
+import java.util.Arrays;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// The operand stack for the `MapToolVM`.
+/// This is a simple array backed stack with a stack pointer, unlike `java.util.Stack` it is not
+/// synchronized as a stack is only ever used by the VM that owns it.
+/// The stack starts with an initial capacity and will grow (by doubling) up to the maximum
+/// capacity, if both capacities are the same the stack has a fixed size.
+///
+/// Numbers are not stored as `IntegerType` records, instead they are kept unboxed in a parallel
+/// `double` array and the slot in the `values` array is `null`. This means that arithmetic on the
+/// stack does not need to allocate, a number is only boxed when it is read using one of the
+/// methods that return a `ValueRecord` (i.e. when it escapes the stack).
+public class OperandStack {
+
+  /// The values on the stack, `null` if the slot holds a number.
+  private ValueRecord[] values;
+
+  /// The numbers on the stack, only valid for slots where the value is `null`.
+  private double[] numbers;
+
+  /// The stack pointer, this is the index of the next free slot in the stack.
+  private int sp = 0;
+
+  /// The maximum capacity of the stack.
+  private final int maxCapacity;
+
+  /// Creates a new operand stack.
+  /// @param initialCapacity The initial capacity of the stack.
+  /// @param maxCapacity The maximum capacity the stack can grow to.
+  public OperandStack(int initialCapacity, int maxCapacity) {
+    if (initialCapacity <= 0 || maxCapacity < initialCapacity) {
+      throw new IllegalArgumentException(
+          "Invalid stack capacity: initial = " + initialCapacity + ", max = " + maxCapacity);
+    }
+    this.values = new ValueRecord[initialCapacity];
+    this.numbers = new double[initialCapacity];
+    this.maxCapacity = maxCapacity;
+  }
+
+  /// Returns the number of values on the stack.
+  /// @return The number of values on the stack.
+  public int size() {
+    return sp;
+  }
+
+  /// Returns true if the stack is empty.
+  /// @return True if the stack is empty.
+  public boolean isEmpty() {
+    return sp == 0;
+  }
+
+  /// Returns the current capacity of the stack.
+  /// @return The current capacity of the stack.
+  public int capacity() {
+    return values.length;
+  }
+
+  /// Returns the maximum capacity of the stack.
+  /// @return The maximum capacity of the stack.
+  public int maxCapacity() {
+    return maxCapacity;
+  }
+
+  /// Pushes a value onto the stack.
+  /// @param value The value to push.
+  public void push(ValueRecord value) {
+    if (sp == values.length) {
+      grow();
+    }
+    store(sp++, value);
+  }
+
+  /// Pushes a number onto the stack without boxing it.
+  /// @param number The number to push.
+  public void pushNumber(double number) {
+    if (sp == values.length) {
+      grow();
+    }
+    numbers[sp++] = number;
+  }
+
+  /// Pushes a copy of the value at the given index from the bottom of the stack.
+  /// @param index The index from the bottom of the stack.
+  public void pushCopy(int index) {
+    if (index < 0 || index >= sp) {
+      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
+    }
+    if (sp == values.length) {
+      grow();
+    }
+    values[sp] = values[index];
+    numbers[sp++] = numbers[index];
+  }
+
+  /// Pops a value from the stack.
+  /// @return The value popped from the stack.
+  public ValueRecord pop() {
+    if (sp == 0) {
+      throw new RuntimeException("Stack underflow"); // TODO: CDW
+    }
+    var value = load(--sp);
+    values[sp] = null;
+    return value;
+  }
+
+  /// Pops a number from the stack, the caller must have checked that the top of the stack is a
+  /// number with `isNumber`.
+  /// @return The number popped from the stack.
+  public double popNumber() {
+    return numbers[--sp];
+  }
+
+  /// Pops the given number of values from the stack.
+  /// @param count The number of values to pop.
+  public void pop(int count) {
+    if (count > sp) {
+      throw new RuntimeException("Stack underflow"); // TODO: CDW
+    }
+    truncate(sp - count);
+  }
+
+  /// Peeks at the top of the stack.
+  /// @return The value at the top of the stack.
+  public ValueRecord peek() {
+    if (sp == 0) {
+      throw new RuntimeException("Stack underflow"); // TODO: CDW
+    }
+    return load(sp - 1);
+  }
+
+  /// Peeks at the given index from the top of the stack.
+  /// @param index The index from the top of the stack.
+  /// @return The value at the given index from the top of the stack.
+  public ValueRecord peek(int index) {
+    if (index < 0 || index >= sp) {
+      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
+    }
+    return load(sp - index - 1);
+  }
+
+  /// Returns the value at the given index from the bottom of the stack.
+  /// @param index The index from the bottom of the stack.
+  /// @return The value at the given index.
+  public ValueRecord get(int index) {
+    if (index < 0 || index >= sp) {
+      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
+    }
+    return load(index);
+  }
+
+  /// Returns true if the value at the given index from the top of the stack is a number.
+  /// @param index The index from the top of the stack.
+  /// @return True if the value is a number.
+  public boolean isNumber(int index) {
+    int slot = sp - index - 1;
+    return slot >= 0 && values[slot] == null;
+  }
+
+  /// Returns true if the value at the given index from the bottom of the stack is a number.
+  /// @param index The index from the bottom of the stack.
+  /// @return True if the value is a number.
+  public boolean isNumberAt(int index) {
+    return index >= 0 && index < sp && values[index] == null;
+  }
+
+  /// Returns the number at the given index from the bottom of the stack, the caller must have
+  /// checked that the slot is a number with `isNumberAt`.
+  /// @param index The index from the bottom of the stack.
+  /// @return The number at the given index.
+  public double getNumber(int index) {
+    return numbers[index];
+  }
+
+  /// Sets the value at the given index from the bottom of the stack.
+  /// @param index The index from the bottom of the stack.
+  /// @param value The value to set.
+  public void set(int index, ValueRecord value) {
+    if (index < 0 || index >= sp) {
+      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
+    }
+    store(index, value);
+  }
+
+  /// Sets the value at the given index from the bottom of the stack to a number without boxing it.
+  /// @param index The index from the bottom of the stack.
+  /// @param number The number to set.
+  public void setNumber(int index, double number) {
+    if (index < 0 || index >= sp) {
+      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
+    }
+    values[index] = null;
+    numbers[index] = number;
+  }
+
+  /// Copies the value on the top of the stack to the given index from the bottom of the stack.
+  /// @param index The index from the bottom of the stack.
+  public void setFromTop(int index) {
+    if (index < 0 || index >= sp) {
+      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
+    }
+    values[index] = values[sp - 1];
+    numbers[index] = numbers[sp - 1];
+  }
+
+  /// Copies the value at one index from the bottom of the stack to another.
+  /// @param from The index to copy the value from.
+  /// @param to The index to copy the value to.
+  public void copy(int from, int to) {
+    if (from < 0 || from >= sp) {
+      throw new RuntimeException("Invalid stack index: " + from); // TODO: CDW
+    }
+    if (to < 0 || to >= sp) {
+      throw new RuntimeException("Invalid stack index: " + to); // TODO: CDW
+    }
+    values[to] = values[from];
+    numbers[to] = numbers[from];
+  }
+
+  /// Discards the given number of values directly below the top of the stack, keeping the value on
+  /// the top of the stack.
+  /// @param count The number of values to discard.
+  public void dropBelowTop(int count) {
+    if (count >= sp) {
+      throw new RuntimeException("Stack underflow"); // TODO: CDW
+    }
+    int top = sp - 1;
+    int newTop = top - count;
+    values[newTop] = values[top];
+    numbers[newTop] = numbers[top];
+    truncate(newTop + 1);
+  }
+
+  /// Moves the given number of values from the top of the stack down to the given index from the
+  /// bottom of the stack, discarding every value between them.
+  /// @param count The number of values to move.
+  /// @param index The index from the bottom of the stack to move the values to.
+  public void moveTop(int count, int index) {
+    int from = sp - count;
+    if (count < 0 || index < 0 || index > from) {
+      throw new RuntimeException("Invalid stack index: " + index); // TODO: CDW
+    }
+    System.arraycopy(values, from, values, index, count);
+    System.arraycopy(numbers, from, numbers, index, count);
+    truncate(index + count);
+  }
+
+  /// Truncates the stack to the given size, discarding every value above it.
+  /// @param newSize The new size of the stack.
+  public void truncate(int newSize) {
+    if (newSize < 0 || newSize > sp) {
+      throw new RuntimeException("Invalid stack size: " + newSize); // TODO: CDW
+    }
+    Arrays.fill(values, newSize, sp, null);
+    sp = newSize;
+  }
+
+  /// Sets the size of the stack, growing it if needed. When the stack grows the new slots hold
+  /// numbers with undefined values, so they must be set before they are read.
+  /// @param newSize The new size of the stack.
+  public void resize(int newSize) {
+    if (newSize <= sp) {
+      truncate(newSize);
+      return;
+    }
+    while (newSize > values.length) {
+      grow();
+    }
+    sp = newSize;
+  }
+
+  /// Removes all values from the stack.
+  public void clear() {
+    truncate(0);
+  }
+
+  /// Grows the stack, doubling its capacity up to the maximum capacity.
+  private void grow() {
+    if (values.length >= maxCapacity) {
+      throw new RuntimeException("Stack overflow"); // TODO: CDW
+    }
+    int newCapacity = (int) Math.min((long) values.length * 2, maxCapacity);
+    values = Arrays.copyOf(values, newCapacity);
+    numbers = Arrays.copyOf(numbers, newCapacity);
+  }
+
+  /// Stores a value in the given slot, unboxing it if it is a number.
+  /// @param slot The slot to store the value in.
+  /// @param value The value to store.
+  private void store(int slot, ValueRecord value) {
+    if (value instanceof IntegerType number) {
+      values[slot] = null;
+      numbers[slot] = number.value();
+    } else {
+      values[slot] = value;
+    }
+  }
+
+  /// Loads the value in the given slot, boxing it if it is a number.
+  /// @param slot The slot to load the value from.
+  /// @return The value in the slot.
+  private ValueRecord load(int slot) {
+    var value = values[slot];
+    return value != null ? value : IntegerType.valueOf(numbers[slot]);
+  }
+}
@@ -14,128 +14,151 @@
  */
 package net.rptools.maptool.mtscript.vm;
 
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
-import net.rptools.maptool.mtscript.functions.MTVMFunction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ServiceLoader;
+import net.rptools.maptool.mtscript.functions.NativeFunctionLibrary;
 import net.rptools.maptool.mtscript.functions.VMFunction;
 import net.rptools.maptool.mtscript.vm.values.IntegerType;
 import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
 import net.rptools.maptool.mtscript.vm.values.Symbol;
 import net.rptools.maptool.mtscript.vm.values.ValueRecord;
-import org.reflections.Reflections;
-import org.reflections.scanners.Scanners;
-import org.reflections.util.ConfigurationBuilder;
 
 /// The global symbol table.
+///
+/// The globals can be shared by `MapToolVM`s running on different threads. Reading or writing a
+/// global variable does not lock: the values are stored in pages of slots that never move, and
+/// each slot is read with acquire and written with release semantics so a value written by one
+/// thread is safely published to the others. Defining a global variable takes a lock, which only
+/// serializes the definitions; the new global is published by incrementing the count of globals
+/// after its slot has been filled, so readers never see a partly defined global.
 public class VMGlobals {
 
   /// The scope level for global variables.
   public static final int GLOBAL_VARIABLE_SCOPE = 1;
 
-  /// The list of global variables.
-  private final ArrayList<SymbolEntry> globalVariables = new ArrayList<>();
+  /// The native functions from the `NativeFunctionLibrary`s on the class path. The libraries are
+  /// only loaded once as native functions are immutable, so every instance can share them.
+  private static final List<NativeFunctionType> NATIVE_FUNCTIONS = loadNativeFunctions();
+
+  /// The number of bits of the index of a global variable that select its slot in a page.
+  private static final int PAGE_BITS = 8;
+
+  /// The number of global variables in a page.
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  /// The mask for the slot of a global variable in its page.
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  /// The handle used to read and write the values in a page.
+  private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(ValueRecord[].class);
+
+  /// A page of global variables. A page is never copied once it has been created, so a value
+  /// stored in a page can not be lost when the directory of pages grows.
+  private static final class Page {
+    /// The current values of the global variables, setting a global only stores into this array.
+    final ValueRecord[] values = new ValueRecord[PAGE_SIZE];
+
+    /// The symbol table entries of the global variables. The entries are never replaced, so the
+    /// value in an entry is the value the variable was defined with.
+    final SymbolEntry[] entries = new SymbolEntry[PAGE_SIZE];
+
+    /// True for each global variable that is a constant, so a set can be checked without reading
+    /// the symbol table entry.
+    final boolean[] constants = new boolean[PAGE_SIZE];
+  }
+
+  /// The directory of pages, replaced with a larger copy when it is full.
+  private volatile Page[] pages = new Page[4];
+
+  /// The number of global variables, only the globals below this index can be read or written.
+  private volatile int count = 0;
+
+  /// The lock held while defining a global variable.
+  private final Object defineLock = new Object();
+
+  /// The lock held while a transaction is validated and its writes are stored.
+  private final Object commitLock = new Object();
+
+  /// The index of each global variable by name.
+  private final GlobalNameIndex globalIndex = new GlobalNameIndex();
 
   public VMGlobals() {
-    Reflections reflections =
-        new Reflections(
-            new ConfigurationBuilder()
-                .forPackage("net.rptools.maptool.mtscript.functions")
-                .setScanners(Scanners.MethodsAnnotated));
-    ;
-    var functions =
-        reflections.get(Scanners.MethodsAnnotated.with(MTVMFunction.class).as(Method.class));
-    for (var function : functions) {
-      var annotation = function.getAnnotation(MTVMFunction.class);
-      addBuiltInFunction(
-          annotation.name(),
-          annotation.arity(),
-          (vm) -> {
-            try {
-              function.invoke(null, vm);
-            } catch (Exception e) {
-              throw new RuntimeException(e);
-            }
-          });
+    for (var function : NATIVE_FUNCTIONS) {
+      addNativeFunction(function);
     }
+    defineConstant("MT_VM_VERSION", new Symbol("MT_VM_VERSION", new IntegerType(1)));
   }
 
-  /// Creates a new instance of the `VMGlobals` class.
+  /// Loads the native functions from the `NativeFunctionLibrary`s on the class path.
+  /// @return The native functions.
+  private static List<NativeFunctionType> loadNativeFunctions() {
+    var functions = new ArrayList<NativeFunctionType>();
+    for (var library : ServiceLoader.load(NativeFunctionLibrary.class)) {
+      functions.addAll(library.functions());
+    }
+    return List.copyOf(functions);
+  }
+
+  /// Returns the symbol table entry for the global variable at the given index. The entry holds
+  /// the value the variable had when the entry was created, use `getGlobalValue` to read the
+  /// current value.
   /// @param index The index of the global variable.
   /// @return The global variable at the given index.
   public SymbolEntry getGlobalVariable(int index) {
-    if (index < 0 || index >= globalVariables.size()) {
-      throw new RuntimeException("Invalid global variable index: " + index); // TODO: CDW
-    }
-    var entry = globalVariables.get(index);
-    if (entry == null) {
-      throw new RuntimeException("Invalid global variable index: " + index); // TODO: CDW
+    checkIndex(index);
+    var page = pages[index >>> PAGE_BITS];
+    var entry = page.entries[index & PAGE_MASK];
+    var value = (ValueRecord) VALUES.getAcquire(page.values, index & PAGE_MASK);
+    if (entry.symbol().value() == value) {
+      return entry;
     }
-    return entry;
+    return new SymbolEntry(
+        new Symbol(entry.symbol().name(), value),
+        entry.constant(),
+        entry.scopeLevel(),
+        index,
+        entry.compileTimeConstant());
+  }
+
+  /// Returns the value of the global variable at the given index.
+  /// @param index The index of the global variable.
+  /// @return The value of the global variable.
+  public ValueRecord getGlobalValue(int index) {
+    checkIndex(index);
+    return (ValueRecord) VALUES.getAcquire(pages[index >>> PAGE_BITS].values, index & PAGE_MASK);
   }
 
   /// Sets the global variable at the given index.
   /// @param index The index of the global variable.
-  /// @param name The name to set the global variable to.
+  /// @param value The value to set the global variable to.
   public void setGlobalVariable(int index, ValueRecord value) {
-    if (index < 0 || index >= globalVariables.size()) {
-      throw new RuntimeException("Invalid global variable index: " + index); // TODO: CDW
-    }
-    var entry = globalVariables.get(index);
-    assert entry != null; // TODO: CDW
-    if (entry.constant()) {
-      throw new RuntimeException(
-          "Cannot modify constant variable: " + entry.symbol().name()); // TODO: CDW
-    }
-    globalVariables.set(
-        index,
-        new SymbolEntry(
-            new Symbol(entry.symbol().name(), value),
-            false,
-            GLOBAL_VARIABLE_SCOPE,
-            index,
-            false));
+    checkWritable(index);
+    VALUES.setRelease(pages[index >>> PAGE_BITS].values, index & PAGE_MASK, value);
   }
 
   /// Sets the global variable at the given index.
   /// @param index The index of the global variable.
   /// @param variable The variable to set the global variable to.
   public void setGlobalVariable(int index, Symbol variable) {
-    if (index < 0 || index >= globalVariables.size()) {
-      throw new RuntimeException("Invalid global variable index: " + index); // TODO: CDW
-    }
-    var entry = globalVariables.get(index);
-    assert entry != null && entry.symbol().name().equals(variable.name()); // TODO: CDW
-    if (entry.constant()) {
-      throw new RuntimeException(
-          "Cannot modify constant variable: " + variable.name()); // TODO: CDW
-    }
-    globalVariables.set(
-        index,
-        new SymbolEntry(variable, false, GLOBAL_VARIABLE_SCOPE, index, false)
-    );
+    assert getGlobalVariable(index).symbol().name().equals(variable.name()); // TODO: CDW
+    setGlobalVariable(index, variable.value());
   }
 
   /// Gets the index of the global variable with the given name.
   /// @param name The name of the global variable.
   /// @return The index of the global variable or -1 if not found.
   public int getGlobalSymbolIndex(String name) {
-    for (int i = 0; i < globalVariables.size(); i++) {
-      if (globalVariables.get(i).symbol().name().equals(name)) {
-        return i;
-      }
-    }
-    return -1;
+    return globalIndex.get(name);
   }
 
   /// Gets the index of the constant with the given name.
   /// @param name The name of the constant
   public int getConstantIndex(String name) {
-    for (int i = 0; i < globalVariables.size(); i++) {
-      if (globalVariables.get(i).symbol().name().equals(name)) {
-        return i;
-      }
-    }
-    return -1;
+    return globalIndex.get(name);
   }
 
   /// Gets the global variable with the given name.
@@ -149,54 +172,116 @@ public class VMGlobals {
     return getGlobalVariable(index);
   }
 
+  /// Gets a handle to the global variable with the given name, which can be used to read or write
+  /// the variable without looking up the name again.
+  /// @param name The name of the global variable.
+  /// @return The handle, or `null` if there is no global variable with the given name.
+  public GlobalHandle getGlobalHandle(String name) {
+    int index = getGlobalSymbolIndex(name);
+    if (index == -1) {
+      return null;
+    }
+    return new GlobalHandle(this, index);
+  }
+
   /// Defines a new global variable.u
   /// @param name The name of the global variable.
   /// @return The index of the global variable.
   public int defineGlobalVariable(String name) {
-    int index = getGlobalSymbolIndex(name);
-    if (index != -1) {
-      throw new RuntimeException("Variable already defined: " + name); // TODO: CDW
-    }
     // TODO: CDW need null/nil/undefined name
-    index = globalVariables.size();
-    globalVariables.add(
-        new SymbolEntry(
-            new Symbol(name, new IntegerType(0)),
-            false,
-            GLOBAL_VARIABLE_SCOPE,
-            index,
-           false
-        )
-    );
-    return index;
+    return addGlobal(name, new Symbol(name, new IntegerType(0)), false);
   }
 
   /// Gets the number of global variables.
   /// @return The number of global variables.
   public int getGlobalVariableCount() {
-    return globalVariables.size();
+    return count;
   }
 
   /// Defines a new constant.
   /// @param name The name of the constant.
-  /// @param name The name of the constant.
+  /// @param value The symbol holding the value of the constant.
   public void defineConstant(String name, Symbol value) {
-    int index = getGlobalSymbolIndex(name);
-    if (index != -1) {
-      throw new RuntimeException("Variable already defined: " + name); // TODO: CDW
-    }
-    globalVariables.add(
-        new SymbolEntry(value, true, GLOBAL_VARIABLE_SCOPE, index, false)
-    );
+    addGlobal(name, value, true);
   }
 
   /// Adds a built-in function to the global symbol table.
   /// @param name The name of the function.
   /// @param arity The number of arguments the function takes.
   public void addBuiltInFunction(String name, int arity, VMFunction function) {
-    int index = defineGlobalVariable(name);
-    setGlobalVariable(
-        index,
-        new Symbol(name, new NativeFunctionType(name, arity, function)));
+    addNativeFunction(new NativeFunctionType(name, arity, function));
+  }
+
+  /// Adds a native function to the global symbol table.
+  /// @param function The function.
+  private void addNativeFunction(NativeFunctionType function) {
+    addGlobal(function.name(), new Symbol(function.name(), function), false);
+  }
+
+  /// Adds a global variable to the symbol table.
+  /// @param name The name of the global variable.
+  /// @param symbol The symbol holding the initial value of the global variable.
+  /// @param constant True if the global variable is a constant.
+  /// @return The index of the global variable.
+  private int addGlobal(String name, Symbol symbol, boolean constant) {
+    synchronized (defineLock) {
+      if (globalIndex.get(name) != -1) {
+        throw new RuntimeException("Variable already defined: " + name); // TODO: CDW
+      }
+      int index = count;
+      int pageIndex = index >>> PAGE_BITS;
+      var directory = pages;
+      if (pageIndex == directory.length) {
+        directory = Arrays.copyOf(directory, directory.length * 2);
+      }
+      if (directory[pageIndex] == null) {
+        directory[pageIndex] = new Page();
+      }
+      var page = directory[pageIndex];
+      int slot = index & PAGE_MASK;
+      page.entries[slot] = new SymbolEntry(symbol, constant, GLOBAL_VARIABLE_SCOPE, index, false);
+      page.constants[slot] = constant;
+      page.values[slot] = symbol.value();
+      pages = directory;
+      // Publish the global before its name so a name that can be found always has a valid index.
+      count = index + 1;
+      globalIndex.put(name, index);
+      return index;
+    }
+  }
+
+  /// Commits a transaction, storing the values it wrote if none of the globals it read have been
+  /// changed since it read them. Commits are atomic with respect to each other, but not with
+  /// respect to globals set directly with `setGlobalVariable`.
+  /// @param transaction The transaction.
+  /// @return True if the transaction was committed, false if it must be retried.
+  boolean commit(GlobalsTransaction transaction) {
+    synchronized (commitLock) {
+      if (!transaction.validate()) {
+        return false;
+      }
+      transaction.apply();
+      return true;
+    }
+  }
+
+  /// Checks that there is a global variable at the given index and that it is not a constant.
+  /// @param index The index of the global variable.
+  void checkWritable(int index) {
+    checkIndex(index);
+    var page = pages[index >>> PAGE_BITS];
+    int slot = index & PAGE_MASK;
+    if (page.constants[slot]) {
+      throw new RuntimeException(
+          "Cannot modify constant variable: " + page.entries[slot].symbol().name()); // TODO: CDW
+    }
+  }
+
+  /// Checks that there is a global variable at the given index.
+  /// @param index The index of the global variable.
+  private void checkIndex(int index) {
+    if (index < 0 || index >= count) {
+      throw new RuntimeException("Invalid global variable index: " + index); // TODO: CDW
+    }
   }
 }
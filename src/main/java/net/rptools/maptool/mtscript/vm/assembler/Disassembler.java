@@ -96,7 +96,7 @@ public class Disassembler {
             "%-15s     %02x          ; Var = %s",
             op.instructionName(), globalInd, globals.getGlobalVariable(globalInd).symbol().name());
       }
-      case LOAD_LOCAL, SET_LOCAL -> {
+      case LOAD_LOCAL, SET_LOCAL, SET_LOCAL_POP -> {
         byte localInd = readNextByte(code);
         dumpByteCode(out, op.byteCode(), localInd);
         out.printf(
@@ -109,12 +109,21 @@ public class Disassembler {
         dumpByteCode(out, op.byteCode(), label);
         out.printf("%-15s     %02x          ; addr = %04x", op.instructionName(), label, addr);
       }
-      case JUMP, JUMP_IF_FALSE -> {
+      case JUMP, JUMP_IF_FALSE, LT_JUMP_IF_FALSE -> {
         byte label = readNextByte(code);
         int addr = code.getJumpLabel(label);
         dumpByteCode(out, op.byteCode(), label);
         out.printf("%-15s     %02x          ; Jump to 0x%04x", op.instructionName(), label, addr);
       }
+      case LOAD_LOCAL_CONST_ADD -> {
+        byte localInd = readNextByte(code);
+        byte constInd = readNextByte(code);
+        var constant = code.getConstant(constInd);
+        dumpByteCode(out, op.byteCode(), localInd, constInd);
+        out.printf(
+            "%-15s     %02x %02x       ; Local Ind = 0x%04x + %s",
+            op.instructionName(), localInd, constInd, localInd, constant);
+      }
       case EXIT_SCOPE -> {
         byte stackToPop = readNextByte(code);
         dumpByteCode(out, op.byteCode(), stackToPop);
@@ -122,7 +131,7 @@ public class Disassembler {
             "%-15s     %02x          ; Exit Scope - Pop %d local vars",
             op.instructionName(), stackToPop, stackToPop);
       }
-      case CALL -> {
+      case CALL, TAIL_CALL -> {
         byte numArgs = readNextByte(code);
         dumpByteCode(out, op.byteCode(), numArgs);
         out.printf(
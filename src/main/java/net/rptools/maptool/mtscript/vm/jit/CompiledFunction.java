@@ -0,0 +1,25 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.jit;
+
+/// A function that has been compiled to JVM byte code by the `JitCompiler`.
+/// The compiled code only deals with numbers, boolean values are passed around as `0` or `1`.
+public interface CompiledFunction {
+
+  /// Executes the function.
+  /// @param args The arguments of the function, only the first `arity` values are used.
+  /// @return The result of the function.
+  double invoke(double[] args);
+}
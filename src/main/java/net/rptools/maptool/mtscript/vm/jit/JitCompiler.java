@@ -0,0 +1,585 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.jit;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import net.rptools.maptool.mtscript.vm.OpCode;
+import net.rptools.maptool.mtscript.vm.values.BooleanType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/// Compiles the byte code of a `FunctionType` to JVM byte code in a hidden class so that hot
+/// functions can be optimised by the JVM.
+///
+/// Only pure numeric functions are compiled, that is functions that only use their arguments,
+/// local symbols, number and boolean constants, arithmetic, comparisons, jumps and calls to
+/// themselves. If every argument is a number the type of every stack slot in such a function is
+/// known at each instruction, so the only type check that is needed is on entry to the function
+/// (which is done by the VM, if the check fails the function is executed by the interpreter).
+///
+/// Each stack slot of the function is mapped to a JVM local variable, so the JVM operand stack is
+/// always empty between MTScript instructions. Boolean values are stored as `0` or `1`.
+public final class JitCompiler {
+
+  /// The logger for the class.
+  private static final Logger log = LogManager.getLogger(JitCompiler.class);
+
+  /// The lookup used to define the hidden classes, they are defined in this package.
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  /// The internal name of the generated classes, the JVM adds a unique suffix to hidden classes.
+  private static final String CLASS_NAME =
+      Type.getInternalName(JitCompiler.class).replace("JitCompiler", "CompiledMTScriptFunction");
+
+  /// The name of the static method that holds the compiled function.
+  private static final String RUN_METHOD = "run";
+
+  /// The maximum arity that can be compiled, each argument uses two JVM parameter slots.
+  private static final int MAX_ARITY = 127;
+
+  /// The type of a value in a stack slot.
+  private enum SlotType {
+    /// A number.
+    NUMBER,
+    /// A boolean.
+    BOOLEAN,
+    /// The function being compiled.
+    SELF,
+    /// A value that has different types on the paths that reach the instruction, e.g. the value of
+    /// a loop that is replaced by each iteration, it can only be discarded.
+    UNKNOWN
+  }
+
+  /// The result of analysing a function.
+  /// @param states The types of the stack slots on entry to each instruction, `null` if the
+  ///     instruction is not reachable.
+  /// @param maxDepth The maximum depth of the stack.
+  /// @param returnType The type of the result of the function.
+  private record Analysis(SlotType[][] states, int maxDepth, SlotType returnType) {}
+
+  /// Thrown when a function can not be compiled.
+  private static class NotCompilableException extends RuntimeException {
+    /// Creates a new exception.
+    /// @param message The reason the function can not be compiled.
+    NotCompilableException(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  /// This class should not be instantiated.
+  private JitCompiler() {}
+
+  /// Compiles the given function.
+  /// @param function The function to compile.
+  /// @return The compiled function, or `null` if the function can not be compiled.
+  public static JitCode compile(FunctionType function) {
+    Analysis analysis;
+    try {
+      analysis = analyze(function);
+    } catch (NotCompilableException e) {
+      log.debug("Not compiling function {}: {}", function.name(), e.getMessage());
+      return null;
+    }
+
+    try {
+      byte[] classBytes = generate(function, analysis);
+      var lookup = LOOKUP.defineHiddenClass(classBytes, true);
+      var constructor =
+          lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class));
+      var compiled = (CompiledFunction) constructor.invoke();
+      log.debug("Compiled function {}", function.name());
+      return new JitCode(compiled, analysis.returnType() == SlotType.BOOLEAN);
+    } catch (Throwable e) {
+      log.warn("Error compiling function {}", function.name(), e);
+      return null;
+    }
+  }
+
+  /// Works out the type of each stack slot at each instruction of the function.
+  /// @param function The function to analyse.
+  /// @return The result of the analysis.
+  /// @throws NotCompilableException if the function can not be compiled.
+  private static Analysis analyze(FunctionType function) {
+    int arity = function.arity();
+    if (arity > MAX_ARITY) {
+      throw new NotCompilableException("too many arguments");
+    }
+    int length = function.codeLength();
+    var states = new SlotType[length][];
+    var entry = new SlotType[arity + 1];
+    Arrays.fill(entry, SlotType.NUMBER);
+    entry[arity] = SlotType.SELF; // The VM pushes the function after the arguments
+    states[0] = entry;
+
+    var worklist = new ArrayDeque<Integer>();
+    worklist.push(0);
+    int maxDepth = entry.length;
+    SlotType returnType = null;
+    boolean callsSelf = false;
+    while (!worklist.isEmpty()) {
+      int ip = worklist.pop();
+      var op = OpCode.fromByteCode(function.getByte(ip));
+      int next = ip + 1 + op.operandCount();
+      var stack = Arrays.copyOf(states[ip], states[ip].length + 2);
+      int depth = states[ip].length;
+      int target = -1; // The target of a jump, if any
+      boolean fallsThrough = true;
+      switch (op) {
+        case LOAD_CONST -> {
+          var constant = function.getConstant(operand(function, ip, 1));
+          if (constant instanceof IntegerType) {
+            stack[depth++] = SlotType.NUMBER;
+          } else if (constant instanceof BooleanType) {
+            stack[depth++] = SlotType.BOOLEAN;
+          } else {
+            throw new NotCompilableException("unsupported constant " + constant);
+          }
+        }
+        case LOAD_LOCAL -> {
+          stack[depth] = stack[local(function, ip, depth)];
+          depth++;
+        }
+        case SET_LOCAL, SET_LOCAL_POP -> {
+          int local = local(function, ip, depth);
+          stack[local] = value(stack, depth, 1);
+          if (op == OpCode.SET_LOCAL_POP) {
+            depth--;
+          }
+        }
+        case POP -> depth = pop(depth, 1);
+        case ADD, SUB, MULT, DIV -> {
+          number(stack, depth, 1);
+          number(stack, depth, 2);
+          depth--;
+          stack[depth - 1] = SlotType.NUMBER;
+        }
+        case EQ, NEQ, LT, LTE, GT, GTE -> {
+          number(stack, depth, 1);
+          number(stack, depth, 2);
+          depth--;
+          stack[depth - 1] = SlotType.BOOLEAN;
+        }
+        case LOAD_LOCAL_CONST_ADD -> {
+          if (stack[local(function, ip, depth)] != SlotType.NUMBER
+              || !(function.getConstant(operand(function, ip, 2)) instanceof IntegerType)) {
+            throw new NotCompilableException("non numeric add");
+          }
+          stack[depth++] = SlotType.NUMBER;
+        }
+        case JUMP -> {
+          target = jumpTarget(function, ip);
+          fallsThrough = false;
+        }
+        case JUMP_IF_FALSE -> {
+          if (value(stack, depth, 1) != SlotType.BOOLEAN) {
+            throw new NotCompilableException("non boolean condition");
+          }
+          depth--;
+          target = jumpTarget(function, ip);
+        }
+        case LT_JUMP_IF_FALSE -> {
+          number(stack, depth, 1);
+          number(stack, depth, 2);
+          depth -= 2;
+          target = jumpTarget(function, ip);
+        }
+        case EXIT_SCOPE -> {
+          int count = operand(function, ip, 1);
+          var result = value(stack, depth, 1);
+          depth = pop(depth, count + 1) + 1;
+          stack[depth - 1] = result;
+        }
+        case CALL, TAIL_CALL -> {
+          int numArgs = operand(function, ip, 1);
+          if (numArgs != arity
+              || depth < numArgs + 1
+              || stack[depth - numArgs - 1] != SlotType.SELF) {
+            throw new NotCompilableException("calls another function");
+          }
+          for (int i = 1; i <= numArgs; i++) {
+            number(stack, depth, i);
+          }
+          callsSelf = true;
+          depth -= numArgs;
+          stack[depth - 1] = SlotType.NUMBER; // The result of the call replaces the function
+          // A tail call to the function itself becomes a jump back to the start of the function
+          fallsThrough = op == OpCode.CALL;
+        }
+        case RETURN -> {
+          var result = value(stack, depth, 1);
+          if (returnType != null && returnType != result) {
+            throw new NotCompilableException("inconsistent return type");
+          }
+          returnType = result;
+          fallsThrough = false;
+        }
+        case NOOP -> {}
+        default -> throw new NotCompilableException("unsupported instruction " + op);
+      }
+      maxDepth = Math.max(maxDepth, depth);
+      var state = Arrays.copyOf(stack, depth);
+      if (fallsThrough) {
+        mergeState(states, worklist, next, state);
+      }
+      if (target >= 0) {
+        mergeState(states, worklist, target, state);
+      }
+    }
+    if (returnType == null) {
+      returnType = SlotType.NUMBER; // The function never returns
+    }
+    if (callsSelf && returnType != SlotType.NUMBER) {
+      throw new NotCompilableException("recursive function does not return a number");
+    }
+    return new Analysis(states, maxDepth, returnType);
+  }
+
+  /// Merges the state at an instruction with the state from one of its predecessors. Slots that
+  /// have different types in the two states become `UNKNOWN`, and the instruction is analysed
+  /// again if its state changed.
+  /// @param states The states for each instruction.
+  /// @param worklist The instructions that still need to be analysed.
+  /// @param ip The instruction.
+  /// @param state The state from the predecessor.
+  /// @throws NotCompilableException if the stack depths do not match.
+  private static void mergeState(
+      SlotType[][] states, ArrayDeque<Integer> worklist, int ip, SlotType[] state) {
+    if (ip < 0 || ip >= states.length) {
+      throw new NotCompilableException("invalid jump target " + ip);
+    }
+    var current = states[ip];
+    if (current == null) {
+      states[ip] = state;
+      worklist.push(ip);
+      return;
+    }
+    if (current.length != state.length) {
+      throw new NotCompilableException("stack depths differ at " + ip);
+    }
+    SlotType[] merged = null;
+    for (int i = 0; i < state.length; i++) {
+      if (current[i] != state[i] && current[i] != SlotType.UNKNOWN) {
+        if (current[i] == SlotType.SELF || state[i] == SlotType.SELF) {
+          throw new NotCompilableException("stack types differ at " + ip);
+        }
+        if (merged == null) {
+          merged = current.clone();
+        }
+        merged[i] = SlotType.UNKNOWN;
+      }
+    }
+    if (merged != null) {
+      states[ip] = merged;
+      worklist.push(ip);
+    }
+  }
+
+  /// Returns the given operand of the instruction.
+  /// @param function The function.
+  /// @param ip The offset of the instruction.
+  /// @param operand The operand number, starting at 1.
+  /// @return The operand.
+  private static int operand(FunctionType function, int ip, int operand) {
+    return function.getByte(ip + operand) & 0xFF; // Java Bytes are signed
+  }
+
+  /// Returns the local symbol index of the instruction, checking that it is on the stack.
+  /// @param function The function.
+  /// @param ip The offset of the instruction.
+  /// @param depth The depth of the stack.
+  /// @return The local symbol index.
+  private static int local(FunctionType function, int ip, int depth) {
+    int local = operand(function, ip, 1);
+    if (local >= depth) {
+      throw new NotCompilableException("invalid local " + local);
+    }
+    return local;
+  }
+
+  /// Returns the byte code offset of the target of the jump instruction.
+  /// @param function The function.
+  /// @param ip The offset of the instruction.
+  /// @return The offset of the jump target.
+  private static int jumpTarget(FunctionType function, int ip) {
+    return function.getJumpLabel(operand(function, ip, 1));
+  }
+
+  /// Returns the type of the value at the given position from the top of the stack.
+  /// @param stack The stack types.
+  /// @param depth The depth of the stack.
+  /// @param fromTop The position from the top of the stack, starting at 1.
+  /// @return The type of the value.
+  private static SlotType value(SlotType[] stack, int depth, int fromTop) {
+    if (depth < fromTop) {
+      throw new NotCompilableException("stack underflow");
+    }
+    var type = stack[depth - fromTop];
+    if (type == SlotType.SELF) {
+      throw new NotCompilableException("function used as a value");
+    }
+    if (type == SlotType.UNKNOWN) {
+      throw new NotCompilableException("value of unknown type used");
+    }
+    return type;
+  }
+
+  /// Checks that the value at the given position from the top of the stack is a number.
+  /// @param stack The stack types.
+  /// @param depth The depth of the stack.
+  /// @param fromTop The position from the top of the stack, starting at 1.
+  private static void number(SlotType[] stack, int depth, int fromTop) {
+    if (value(stack, depth, fromTop) != SlotType.NUMBER) {
+      throw new NotCompilableException("non numeric operand");
+    }
+  }
+
+  /// Pops values from the stack.
+  /// @param depth The depth of the stack.
+  /// @param count The number of values to pop.
+  /// @return The new depth of the stack.
+  private static int pop(int depth, int count) {
+    if (depth < count) {
+      throw new NotCompilableException("stack underflow");
+    }
+    return depth - count;
+  }
+
+  /// Generates the hidden class for the function.
+  /// @param function The function.
+  /// @param analysis The result of analysing the function.
+  /// @return The class file.
+  private static byte[] generate(FunctionType function, Analysis analysis) {
+    int arity = function.arity();
+    String runDescriptor = "(" + "D".repeat(arity) + ")D";
+
+    var cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+    cw.visit(
+        Opcodes.V17,
+        Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+        CLASS_NAME,
+        null,
+        Type.getInternalName(Object.class),
+        new String[] {Type.getInternalName(CompiledFunction.class)});
+    cw.visitSource(function.name(), null);
+
+    // Constructor
+    var init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    init.visitCode();
+    init.visitVarInsn(Opcodes.ALOAD, 0);
+    init.visitMethodInsn(
+        Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+    init.visitInsn(Opcodes.RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+
+    // CompiledFunction.invoke(double[]) unpacks the arguments and calls run.
+    var invoke = cw.visitMethod(Opcodes.ACC_PUBLIC, "invoke", "([D)D", null, null);
+    invoke.visitCode();
+    for (int i = 0; i < arity; i++) {
+      invoke.visitVarInsn(Opcodes.ALOAD, 1);
+      invoke.visitLdcInsn(i);
+      invoke.visitInsn(Opcodes.DALOAD);
+    }
+    invoke.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NAME, RUN_METHOD, runDescriptor, false);
+    invoke.visitInsn(Opcodes.DRETURN);
+    invoke.visitMaxs(0, 0);
+    invoke.visitEnd();
+
+    var run =
+        cw.visitMethod(
+            Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, RUN_METHOD, runDescriptor, null, null);
+    run.visitCode();
+    generateRun(run, function, analysis, runDescriptor);
+    run.visitMaxs(0, 0);
+    run.visitEnd();
+
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /// Generates the body of the run method, this is the compiled function.
+  /// @param mv The method visitor for the run method.
+  /// @param function The function.
+  /// @param analysis The result of analysing the function.
+  /// @param runDescriptor The descriptor of the run method.
+  private static void generateRun(
+      MethodVisitor mv, FunctionType function, Analysis analysis, String runDescriptor) {
+    int length = function.codeLength();
+    var labels = new Label[length];
+    for (int i = 0; i < length; i++) {
+      labels[i] = new Label();
+    }
+    // The local used to hold the result of a comparison, after the locals for the stack slots.
+    int compareResult = slot(analysis.maxDepth());
+
+    int ip = 0;
+    while (ip < length) {
+      var op = OpCode.fromByteCode(function.getByte(ip));
+      var state = analysis.states()[ip];
+      mv.visitLabel(labels[ip]);
+      if (state == null) {
+        ip += 1 + op.operandCount(); // The instruction is not reachable
+        continue;
+      }
+      int depth = state.length;
+      switch (op) {
+        case LOAD_CONST -> {
+          var constant = function.getConstant(operand(function, ip, 1));
+          if (constant instanceof IntegerType number) {
+            mv.visitLdcInsn(number.value());
+          } else {
+            mv.visitInsn(((BooleanType) constant).value() ? Opcodes.DCONST_1 : Opcodes.DCONST_0);
+          }
+          mv.visitVarInsn(Opcodes.DSTORE, slot(depth));
+        }
+        case LOAD_LOCAL -> {
+          int local = operand(function, ip, 1);
+          if (state[local] != SlotType.SELF) { // The function itself has no value in the JVM
+            mv.visitVarInsn(Opcodes.DLOAD, slot(local));
+            mv.visitVarInsn(Opcodes.DSTORE, slot(depth));
+          }
+        }
+        case SET_LOCAL, SET_LOCAL_POP -> {
+          int local = operand(function, ip, 1);
+          if (local != depth - 1) {
+            mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 1));
+            mv.visitVarInsn(Opcodes.DSTORE, slot(local));
+          }
+        }
+        case POP, NOOP -> {}
+        case ADD, SUB, MULT, DIV -> {
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 2));
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 1));
+          mv.visitInsn(
+              switch (op) {
+                case ADD -> Opcodes.DADD;
+                case SUB -> Opcodes.DSUB;
+                case MULT -> Opcodes.DMUL;
+                default -> Opcodes.DDIV;
+              });
+          mv.visitVarInsn(Opcodes.DSTORE, slot(depth - 2));
+        }
+        case EQ, NEQ, LT, LTE, GT, GTE -> {
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 2));
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 1));
+          mv.visitInsn(compareInstruction(op));
+          mv.visitVarInsn(Opcodes.ISTORE, compareResult);
+          mv.visitInsn(Opcodes.DCONST_0);
+          mv.visitVarInsn(Opcodes.DSTORE, slot(depth - 2));
+          var isFalse = new Label();
+          mv.visitVarInsn(Opcodes.ILOAD, compareResult);
+          mv.visitJumpInsn(jumpIfFalseInstruction(op), isFalse);
+          mv.visitInsn(Opcodes.DCONST_1);
+          mv.visitVarInsn(Opcodes.DSTORE, slot(depth - 2));
+          mv.visitLabel(isFalse);
+        }
+        case LOAD_LOCAL_CONST_ADD -> {
+          var constant = (IntegerType) function.getConstant(operand(function, ip, 2));
+          mv.visitVarInsn(Opcodes.DLOAD, slot(operand(function, ip, 1)));
+          mv.visitLdcInsn(constant.value());
+          mv.visitInsn(Opcodes.DADD);
+          mv.visitVarInsn(Opcodes.DSTORE, slot(depth));
+        }
+        case JUMP -> mv.visitJumpInsn(Opcodes.GOTO, labels[jumpTarget(function, ip)]);
+        case JUMP_IF_FALSE -> {
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 1));
+          mv.visitInsn(Opcodes.DCONST_0);
+          mv.visitInsn(Opcodes.DCMPL);
+          mv.visitJumpInsn(Opcodes.IFEQ, labels[jumpTarget(function, ip)]);
+        }
+        case LT_JUMP_IF_FALSE -> {
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 2));
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 1));
+          mv.visitInsn(compareInstruction(OpCode.LT));
+          mv.visitJumpInsn(jumpIfFalseInstruction(OpCode.LT), labels[jumpTarget(function, ip)]);
+        }
+        case EXIT_SCOPE -> {
+          int count = operand(function, ip, 1);
+          if (count > 0) {
+            mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 1));
+            mv.visitVarInsn(Opcodes.DSTORE, slot(depth - 1 - count));
+          }
+        }
+        case CALL -> {
+          int numArgs = operand(function, ip, 1);
+          for (int i = depth - numArgs; i < depth; i++) {
+            mv.visitVarInsn(Opcodes.DLOAD, slot(i));
+          }
+          mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NAME, RUN_METHOD, runDescriptor, false);
+          mv.visitVarInsn(Opcodes.DSTORE, slot(depth - numArgs - 1));
+        }
+        case TAIL_CALL -> {
+          // The arguments are always above the parameters so they can be copied in order.
+          int numArgs = operand(function, ip, 1);
+          for (int i = 0; i < numArgs; i++) {
+            mv.visitVarInsn(Opcodes.DLOAD, slot(depth - numArgs + i));
+            mv.visitVarInsn(Opcodes.DSTORE, slot(i));
+          }
+          mv.visitJumpInsn(Opcodes.GOTO, labels[0]);
+        }
+        case RETURN -> {
+          mv.visitVarInsn(Opcodes.DLOAD, slot(depth - 1));
+          mv.visitInsn(Opcodes.DRETURN);
+        }
+        default -> throw new IllegalStateException("Unexpected instruction: " + op);
+      }
+      ip += 1 + op.operandCount();
+    }
+  }
+
+  /// Returns the JVM local variable for the given stack slot.
+  /// @param stackSlot The stack slot.
+  /// @return The JVM local variable.
+  private static int slot(int stackSlot) {
+    return stackSlot * 2; // Doubles take two local variable slots
+  }
+
+  /// Returns the JVM instruction to compare two doubles for the comparison, this matches the way
+  /// `javac` compiles the comparison so that `NaN` is handled the same way as the interpreter.
+  /// @param op The comparison.
+  /// @return The JVM instruction.
+  private static int compareInstruction(OpCode op) {
+    return switch (op) {
+      case LT, LTE -> Opcodes.DCMPG;
+      default -> Opcodes.DCMPL;
+    };
+  }
+
+  /// Returns the JVM instruction that jumps if the result of the comparison instruction means the
+  /// comparison is false.
+  /// @param op The comparison.
+  /// @return The JVM instruction.
+  private static int jumpIfFalseInstruction(OpCode op) {
+    return switch (op) {
+      case LT -> Opcodes.IFGE;
+      case LTE -> Opcodes.IFGT;
+      case GT -> Opcodes.IFLE;
+      case GTE -> Opcodes.IFLT;
+      case EQ -> Opcodes.IFNE;
+      case NEQ -> Opcodes.IFEQ;
+      default -> throw new IllegalStateException("Unexpected comparison: " + op);
+    };
+  }
+}
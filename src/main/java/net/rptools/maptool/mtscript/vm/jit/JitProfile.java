@@ -0,0 +1,83 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.jit;
+
+import net.rptools.maptool.mtscript.vm.FunctionTable;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+
+/// The JIT state of a function, how often it has been called and the compiled version of it.
+///
+/// The state is kept in a `FunctionTable` rather than on the `FunctionType` so the values do not
+/// depend on the JIT, it is discarded along with a function that is no longer used.
+public final class JitProfile {
+
+  /// The state of each function that has been called with the JIT enabled.
+  private static final FunctionTable<JitProfile> PROFILES = new FunctionTable<>();
+
+  /// The number of times the function has been called by the interpreter, this is used to decide
+  /// when to compile the function.
+  private int callCount;
+
+  /// The compiled version of the function, `null` if the function has not been compiled.
+  private volatile JitCode jitCode;
+
+  /// True if the function has been passed to the JIT compiler, functions are only compiled once.
+  private volatile boolean jitAttempted;
+
+  /// Creates a new, empty, profile.
+  private JitProfile() {}
+
+  /// Returns the JIT state of a function, creating it if the function does not have one yet.
+  /// @param function The function.
+  /// @return The JIT state of the function.
+  public static JitProfile of(FunctionType function) {
+    var profile = PROFILES.get(function);
+    if (profile == null) {
+      profile = PROFILES.putIfAbsent(function, new JitProfile());
+    }
+    return profile;
+  }
+
+  /// Increments the number of times the function has been called by the interpreter.
+  /// This is not synchronized as the count is only used as a heuristic.
+  /// @return The number of times the function has been called.
+  public int incrementCallCount() {
+    return ++callCount;
+  }
+
+  /// Returns the compiled version of the function.
+  /// @return The compiled function, or `null` if the function has not been compiled.
+  public JitCode jitCode() {
+    return jitCode;
+  }
+
+  /// Sets the compiled version of the function.
+  /// @param jitCode The compiled function, or `null` if the function could not be compiled.
+  public void setJitCode(JitCode jitCode) {
+    this.jitCode = jitCode;
+    this.jitAttempted = true;
+  }
+
+  /// Returns true if the function has been passed to the JIT compiler.
+  /// @return True if the JIT compiler has tried to compile the function.
+  public boolean isJitAttempted() {
+    return jitAttempted;
+  }
+
+  /// Discards the compiled version of the function, the function will not be compiled again.
+  public void deoptimize() {
+    this.jitCode = null;
+  }
+}
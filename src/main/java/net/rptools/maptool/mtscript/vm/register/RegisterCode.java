@@ -0,0 +1,205 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.register;
+
+import java.util.Arrays;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// The three-address code that the byte code of a `CodeType` has been translated to by the
+/// `RegisterCompiler`.
+///
+/// Each instruction is four `int`s, the opcode followed by the operands `A`, `B` and `C` (unused
+/// operands are 0). Registers are numbered from the start of the frame of the function being
+/// executed, so register 0 is the first argument of a function, the same slot that `LOAD_LOCAL 0`
+/// reads. Operands that are described as `RK` below can also be a constant: a negative operand
+/// `rk` is the constant at index `-1 - rk`. Jump targets are indices into the `int` array of
+/// instructions.
+public final class RegisterCode {
+
+  // Opcodes, these are kept dense so the dispatch switch compiles to a table switch.
+  /// Halts the program with the value of `RK(A)` as the result.
+  public static final int HALT = 0;
+
+  /// Returns the value of `RK(A)` from the current function.
+  public static final int RETURN = 1;
+
+  /// Loads constant `B` into register `A`.
+  public static final int LOAD_CONST = 2;
+
+  /// Copies register `B` into register `A`.
+  public static final int MOVE = 3;
+
+  /// Loads global `B` into register `A`.
+  public static final int LOAD_GLOBAL = 4;
+
+  /// Sets global `A` to the value of `RK(B)`.
+  public static final int SET_GLOBAL = 5;
+
+  /// Sets register `A` to `RK(B) + RK(C)`.
+  public static final int ADD = 6;
+
+  /// Sets register `A` to `RK(B) - RK(C)`.
+  public static final int SUB = 7;
+
+  /// Sets register `A` to `RK(B) * RK(C)`.
+  public static final int MULT = 8;
+
+  /// Sets register `A` to `RK(B) / RK(C)`.
+  public static final int DIV = 9;
+
+  /// Sets register `A` to `RK(B) == RK(C)`.
+  public static final int EQ = 10;
+
+  /// Sets register `A` to `RK(B) != RK(C)`.
+  public static final int NEQ = 11;
+
+  /// Sets register `A` to `RK(B) < RK(C)`.
+  public static final int LT = 12;
+
+  /// Sets register `A` to `RK(B) <= RK(C)`.
+  public static final int LTE = 13;
+
+  /// Sets register `A` to `RK(B) > RK(C)`.
+  public static final int GT = 14;
+
+  /// Sets register `A` to `RK(B) >= RK(C)`.
+  public static final int GTE = 15;
+
+  /// Jumps to instruction `A`.
+  public static final int JUMP = 16;
+
+  /// Jumps to instruction `B` if `RK(A)` is false.
+  public static final int JUMP_IF_FALSE = 17;
+
+  /// Jumps to instruction `C` unless `RK(A) < RK(B)`.
+  public static final int LT_JUMP_IF_FALSE = 18;
+
+  /// Calls the function in register `A` with the `B` arguments in the registers after it, the
+  /// result is placed in register `A`. The registers of the called function start at `A + 1`.
+  public static final int CALL = 19;
+
+  /// Calls the function in register `A` with the `B` arguments in the registers after it in place
+  /// of the current function.
+  public static final int TAIL_CALL = 20;
+
+  /// The names of the opcodes, for disassembly.
+  private static final String[] NAMES = {
+    "halt",
+    "return",
+    "load_const",
+    "move",
+    "load_global",
+    "set_global",
+    "add",
+    "sub",
+    "mult",
+    "div",
+    "eq",
+    "neq",
+    "lt",
+    "lte",
+    "gt",
+    "gte",
+    "jump",
+    "jump_if_false",
+    "lt_jump_if_false",
+    "call",
+    "tail_call"
+  };
+
+  /// The number of `int`s in each instruction.
+  public static final int INSTRUCTION_SIZE = 4;
+
+  /// The name of the code.
+  private final String name;
+
+  /// The instructions.
+  private final int[] instructions;
+
+  /// The constants used by the code.
+  private final ValueRecord[] constants;
+
+  /// The number of registers in the frame of the code.
+  private final int registerCount;
+
+  /// Creates new register code.
+  /// @param name The name of the code.
+  /// @param instructions The instructions.
+  /// @param constants The constants used by the code.
+  /// @param registerCount The number of registers in the frame of the code.
+  RegisterCode(String name, int[] instructions, ValueRecord[] constants, int registerCount) {
+    this.name = name;
+    this.instructions = instructions;
+    this.constants = constants;
+    this.registerCount = registerCount;
+  }
+
+  /// Returns the operand for the constant at the given index.
+  /// @param index The index of the constant.
+  /// @return The operand.
+  static int constantOperand(int index) {
+    return -1 - index;
+  }
+
+  /// Returns the name of the code.
+  /// @return The name of the code.
+  public String name() {
+    return name;
+  }
+
+  /// Returns the instructions.
+  /// @return The instructions.
+  int[] instructions() {
+    return instructions;
+  }
+
+  /// Returns the constants used by the code.
+  /// @return The constants.
+  ValueRecord[] constants() {
+    return constants;
+  }
+
+  /// Returns the number of registers in the frame of the code.
+  /// @return The number of registers.
+  public int registerCount() {
+    return registerCount;
+  }
+
+  /// Returns the number of instructions in the code.
+  /// @return The number of instructions.
+  public int instructionCount() {
+    return instructions.length / INSTRUCTION_SIZE;
+  }
+
+  /// Returns a listing of the instructions, one per line starting with the index of the
+  /// instruction. Constant operands are shown as `K<index>`.
+  /// @return The listing.
+  public String disassemble() {
+    var sb = new StringBuilder();
+    for (int pc = 0; pc < instructions.length; pc += INSTRUCTION_SIZE) {
+      sb.append(String.format("%04d %-16s", pc, NAMES[instructions[pc]]));
+      for (int operand : Arrays.copyOfRange(instructions, pc + 1, pc + INSTRUCTION_SIZE)) {
+        sb.append(' ').append(operand < 0 ? "K" + (-1 - operand) : String.valueOf(operand));
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return "RegisterCode[" + name + "]";
+  }
+}
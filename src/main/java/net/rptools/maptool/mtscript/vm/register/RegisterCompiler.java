@@ -0,0 +1,495 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.register;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.rptools.maptool.mtscript.vm.FunctionTable;
+import net.rptools.maptool.mtscript.vm.OpCode;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/// Translates the byte code of a `CodeType` into `RegisterCode`.
+///
+/// Every slot of the stack frame becomes a register, so the locals stay in the registers that the
+/// byte code keeps them in and the arguments of a call are already in the registers of the called
+/// function. The byte code is walked once while keeping a symbolic stack with an operand for
+/// each slot of the frame, which says where the value of the slot can be read from: the register
+/// of the slot itself, a constant, or another register holding a copy of the value. Loading a
+/// constant or a local just pushes an operand and popping a value emits nothing, so these only
+/// cost an instruction when the value has to be in the register of its slot: at jumps and labels,
+/// for the arguments of a call, or before the register it was copied from is changed.
+///
+/// Operators write their result straight into the register of the slot, so `(set x (+ x 1))`
+/// becomes the single instruction `ADD x, x, K1`.
+public final class RegisterCompiler {
+
+  /// The logger for the class.
+  private static final Logger log = LogManager.getLogger(RegisterCompiler.class);
+
+  /// The register code of the functions that have been translated.
+  private static final FunctionTable<RegisterCode> FUNCTION_CODE = new FunctionTable<>();
+
+  /// Thrown when code can not be translated.
+  private static class NotCompilableException extends RuntimeException {
+    /// Creates a new exception.
+    /// @param message The reason the code can not be translated.
+    NotCompilableException(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  /// The code being translated.
+  private final CodeType code;
+
+  /// The instructions that have been emitted.
+  private int[] instructions = new int[64];
+
+  /// The number of `int`s of `instructions` in use.
+  private int length = 0;
+
+  /// The symbolic stack, the operand that the value of each slot of the frame is read from.
+  private final List<Integer> stack = new ArrayList<>();
+
+  /// The largest size of the stack, this is the number of registers the code needs.
+  private int maxStack = 0;
+
+  /// The byte code offsets of the jump targets.
+  private final Set<Integer> labels = new HashSet<>();
+
+  /// The size of the stack at each jump target.
+  private final Map<Integer, Integer> labelStackSizes = new HashMap<>();
+
+  /// The index of the instruction for each jump target that has been reached.
+  private final Map<Integer, Integer> labelPositions = new HashMap<>();
+
+  /// The jump operands that need the position of their target, the index of the operand mapped to
+  /// the byte code offset of the target.
+  private final Map<Integer, Integer> patches = new HashMap<>();
+
+  /// The index of the last instruction if it wrote the register on the top of the stack and can be
+  /// changed to write another register instead, otherwise -1.
+  private int lastResult = -1;
+
+  /// Creates a new register compiler.
+  /// @param code The code to translate.
+  private RegisterCompiler(CodeType code) {
+    this.code = code;
+    if (code instanceof FunctionType function) {
+      // The arguments and the function are in the first registers when a function is called.
+      for (int i = 0; i <= function.arity(); i++) {
+        push(i);
+      }
+    }
+  }
+
+  /// Translates the given code to register code.
+  /// @param code The program or function to translate.
+  /// @return The register code, or `null` if the code can not be translated.
+  public static RegisterCode compile(CodeType code) {
+    try {
+      return new RegisterCompiler(code).translate();
+    } catch (NotCompilableException e) {
+      log.debug("Not translating {} to register code: {}", code.name(), e.getMessage());
+      return null;
+    }
+  }
+
+  /// Returns the register code of a function, translating the function if it has not been
+  /// translated.
+  /// @param function The function.
+  /// @return The register code of the function.
+  static RegisterCode code(FunctionType function) {
+    var registerCode = registerCode(function);
+    if (registerCode == null) {
+      throw new RuntimeException(
+          "Function " + function.name() + " can not be executed as register code"); // TODO: CDW
+    }
+    return registerCode;
+  }
+
+  /// Returns the register code of a function, translating the function if it has not been
+  /// translated.
+  /// @param function The function.
+  /// @return The register code, or `null` if the function can not be translated.
+  static RegisterCode registerCode(FunctionType function) {
+    var registerCode = FUNCTION_CODE.get(function);
+    if (registerCode == null) {
+      registerCode = compile(function);
+      if (registerCode != null) {
+        registerCode = FUNCTION_CODE.putIfAbsent(function, registerCode);
+      }
+    }
+    return registerCode;
+  }
+
+  /// Translates the code.
+  /// @return The register code.
+  private RegisterCode translate() {
+    findLabels();
+    boolean reachable = true;
+    int ip = 0;
+    while (ip < code.codeLength()) {
+      if (labels.contains(ip)) {
+        label(ip, reachable);
+        reachable = true;
+      } else if (!reachable) {
+        throw new NotCompilableException("unreachable instruction at " + ip);
+      }
+      var op = opCode(ip);
+      switch (op) {
+        case LOAD_CONST -> push(RegisterCode.constantOperand(operand(ip, 1)));
+        case LOAD_GLOBAL -> result(RegisterCode.LOAD_GLOBAL, operand(ip, 1), 0);
+        case SET_GLOBAL -> emit(RegisterCode.SET_GLOBAL, operand(ip, 1), peek(), 0);
+        case LOAD_LOCAL -> push(stack.get(local(operand(ip, 1))));
+        case SET_LOCAL -> setLocal(operand(ip, 1));
+        case SET_LOCAL_POP -> {
+          setLocal(operand(ip, 1));
+          pop();
+        }
+        case POP -> pop();
+        case ADD -> binary(RegisterCode.ADD);
+        case SUB -> binary(RegisterCode.SUB);
+        case MULT -> binary(RegisterCode.MULT);
+        case DIV -> binary(RegisterCode.DIV);
+        case EQ -> binary(RegisterCode.EQ);
+        case NEQ -> binary(RegisterCode.NEQ);
+        case LT -> binary(RegisterCode.LT);
+        case LTE -> binary(RegisterCode.LTE);
+        case GT -> binary(RegisterCode.GT);
+        case GTE -> binary(RegisterCode.GTE);
+        case LOAD_LOCAL_CONST_ADD -> {
+          int local = stack.get(local(operand(ip, 1)));
+          result(RegisterCode.ADD, local, RegisterCode.constantOperand(operand(ip, 2)));
+        }
+        case EXIT_SCOPE -> exitScope(operand(ip, 1), next(ip));
+        case CALL -> call(RegisterCode.CALL, operand(ip, 1));
+        case TAIL_CALL -> call(RegisterCode.TAIL_CALL, operand(ip, 1));
+        case JUMP_IF_FALSE -> {
+          int condition = pop();
+          materialize();
+          jump(emit(RegisterCode.JUMP_IF_FALSE, condition, 0, 0) + 2, jumpTarget(ip));
+        }
+        case LT_JUMP_IF_FALSE -> {
+          int right = pop();
+          int left = pop();
+          materialize();
+          jump(emit(RegisterCode.LT_JUMP_IF_FALSE, left, right, 0) + 3, jumpTarget(ip));
+        }
+        case JUMP -> {
+          materialize();
+          jump(emit(RegisterCode.JUMP, 0, 0, 0) + 1, jumpTarget(ip));
+          reachable = false;
+        }
+        case RETURN, HALT -> {
+          var expected = code instanceof FunctionType ? OpCode.RETURN : OpCode.HALT;
+          if (op != expected) {
+            throw new NotCompilableException("unexpected " + op + " at " + ip);
+          }
+          emit(op == OpCode.RETURN ? RegisterCode.RETURN : RegisterCode.HALT, pop(), 0, 0);
+          reachable = false;
+        }
+        case NOOP -> {}
+        default -> throw new NotCompilableException("unsupported instruction " + op + " at " + ip);
+      }
+      ip = next(ip);
+    }
+    if (reachable) {
+      throw new NotCompilableException("code does not end with HALT or RETURN");
+    }
+    for (var patch : patches.entrySet()) {
+      var position = labelPositions.get(patch.getValue());
+      if (position == null) {
+        throw new NotCompilableException("jump to invalid offset " + patch.getValue());
+      }
+      instructions[patch.getKey()] = position;
+    }
+    var constants = code.constants().toArray(new ValueRecord[0]);
+    return new RegisterCode(
+        code.name(), Arrays.copyOf(instructions, length), constants, Math.max(maxStack, 1));
+  }
+
+  /// Finds the jump targets in the code.
+  private void findLabels() {
+    for (int ip = 0; ip < code.codeLength(); ip = next(ip)) {
+      var op = opCode(ip);
+      if (op == OpCode.JUMP || op == OpCode.JUMP_IF_FALSE || op == OpCode.LT_JUMP_IF_FALSE) {
+        labels.add(jumpTarget(ip));
+      }
+    }
+  }
+
+  /// Starts the code at a jump target. Every value must be in its own register when the target is
+  /// reached, from a jump or from the previous instruction.
+  /// @param ip The offset of the jump target.
+  /// @param reachable True if the previous instruction continues to the jump target.
+  private void label(int ip, boolean reachable) {
+    var stackSize = labelStackSizes.get(ip);
+    if (reachable) {
+      materialize();
+      if (stackSize != null && stackSize != stack.size()) {
+        throw new NotCompilableException("unbalanced stack at " + ip);
+      }
+      labelStackSizes.put(ip, stack.size());
+    } else {
+      if (stackSize == null) {
+        throw new NotCompilableException("unreachable instruction at " + ip);
+      }
+      stack.clear();
+      for (int i = 0; i < stackSize; i++) {
+        push(i);
+      }
+    }
+    labelPositions.put(ip, length);
+    lastResult = -1;
+  }
+
+  /// Records a jump, the target is patched once its position is known.
+  /// @param operand The index of the jump operand.
+  /// @param target The byte code offset of the target.
+  private void jump(int operand, int target) {
+    var stackSize = labelStackSizes.putIfAbsent(target, stack.size());
+    if (stackSize != null && stackSize != stack.size()) {
+      throw new NotCompilableException("unbalanced stack at " + target);
+    }
+    patches.put(operand, target);
+  }
+
+  /// Sets a local symbol to the value on the top of the stack, leaving the value on the stack.
+  /// @param index The index of the local symbol.
+  private void setLocal(int index) {
+    int top = stack.size() - 1;
+    int value = stack.get(top);
+    if (local(index) == top || value == index) {
+      return; // Declares the local symbol, or sets it to itself.
+    }
+    if (lastResult != -1 && value == top && !isCopied(index)) {
+      // Write the result straight into the local symbol rather than moving it there.
+      instructions[lastResult + 1] = index;
+      stack.set(index, index);
+      stack.set(top, index);
+      lastResult = -1;
+      return;
+    }
+    preserve(index);
+    if (value < 0) {
+      emit(RegisterCode.LOAD_CONST, index, -1 - value, 0);
+    } else {
+      emit(RegisterCode.MOVE, index, value, 0);
+    }
+    stack.set(index, index);
+  }
+
+  /// Translates a binary operator, the result is written to the register of the left operand.
+  /// @param opCode The register opcode of the operator.
+  private void binary(int opCode) {
+    int right = pop();
+    int left = pop();
+    result(opCode, left, right);
+  }
+
+  /// Translates an `EXIT_SCOPE`, the value on the top of the stack is kept and the values below it
+  /// are discarded.
+  /// @param count The number of values to discard.
+  /// @param next The offset of the next instruction.
+  private void exitScope(int count, int next) {
+    int value = pop();
+    if (count > stack.size()) {
+      throw new NotCompilableException("stack underflow");
+    }
+    for (int i = 0; i < count; i++) {
+      pop();
+    }
+    int target = stack.size();
+    var nextOp = next < code.codeLength() ? opCode(next) : OpCode.INVALID;
+    if (value <= target || nextOp == OpCode.RETURN || nextOp == OpCode.HALT) {
+      // The value is still where it was, returning it straight away is safe even though its
+      // register is no longer part of the frame.
+      push(value);
+    } else {
+      emit(RegisterCode.MOVE, target, value, 0);
+      push(target);
+      lastResult = length - RegisterCode.INSTRUCTION_SIZE;
+    }
+  }
+
+  /// Translates a call, the function and its arguments are placed in their own registers and the
+  /// result replaces the function.
+  /// @param opCode The register opcode of the call.
+  /// @param numArgs The number of arguments.
+  private void call(int opCode, int numArgs) {
+    int function = stack.size() - numArgs - 1;
+    if (function < 0) {
+      throw new NotCompilableException("stack underflow");
+    }
+    for (int i = function; i < stack.size(); i++) {
+      materialize(i);
+    }
+    for (int i = 0; i < numArgs; i++) {
+      pop();
+    }
+    emit(opCode, function, numArgs, 0);
+  }
+
+  /// Emits an instruction that writes a new value to the register of the slot above the operands it
+  /// pops, and pushes the value.
+  /// @param opCode The opcode.
+  /// @param b Operand `B`.
+  /// @param c Operand `C`.
+  private void result(int opCode, int b, int c) {
+    int register = stack.size();
+    emit(opCode, register, b, c);
+    push(register);
+    lastResult = length - RegisterCode.INSTRUCTION_SIZE;
+  }
+
+  /// Places the value of every slot in its own register.
+  private void materialize() {
+    for (int i = 0; i < stack.size(); i++) {
+      materialize(i);
+    }
+  }
+
+  /// Places the value of a slot in its own register. Values are only copied from registers below
+  /// them, and the register of a slot is only read through it once it has been placed there, so
+  /// no other slot can be reading from the register that is written.
+  /// @param slot The slot.
+  private void materialize(int slot) {
+    int value = stack.get(slot);
+    if (value == slot) {
+      return;
+    }
+    if (value < 0) {
+      emit(RegisterCode.LOAD_CONST, slot, -1 - value, 0);
+    } else {
+      emit(RegisterCode.MOVE, slot, value, 0);
+    }
+    stack.set(slot, slot);
+  }
+
+  /// Places the values of the slots that are read from a register in their own registers, before
+  /// the register is changed.
+  /// @param register The register.
+  private void preserve(int register) {
+    for (int i = register + 1; i < stack.size(); i++) {
+      if (stack.get(i) == register) {
+        materialize(i);
+      }
+    }
+  }
+
+  /// Returns true if any slot other than the register's own slot reads from the register.
+  /// @param register The register.
+  /// @return True if the register is copied.
+  private boolean isCopied(int register) {
+    for (int i = register + 1; i < stack.size(); i++) {
+      if (stack.get(i) == register) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /// Checks that a local symbol index is within the frame.
+  /// @param index The index of the local symbol.
+  /// @return The index.
+  private int local(int index) {
+    if (index >= stack.size()) {
+      throw new NotCompilableException("invalid local index " + index);
+    }
+    return index;
+  }
+
+  /// Pushes an operand onto the symbolic stack.
+  /// @param operand The operand.
+  private void push(int operand) {
+    stack.add(operand);
+    maxStack = Math.max(maxStack, stack.size());
+  }
+
+  /// Pops an operand from the symbolic stack.
+  /// @return The operand.
+  private int pop() {
+    if (stack.isEmpty()) {
+      throw new NotCompilableException("stack underflow");
+    }
+    return stack.removeLast();
+  }
+
+  /// Returns the operand on the top of the symbolic stack.
+  /// @return The operand.
+  private int peek() {
+    if (stack.isEmpty()) {
+      throw new NotCompilableException("stack underflow");
+    }
+    return stack.getLast();
+  }
+
+  /// Emits an instruction.
+  /// @param opCode The opcode.
+  /// @param a Operand `A`.
+  /// @param b Operand `B`.
+  /// @param c Operand `C`.
+  /// @return The index of the instruction.
+  private int emit(int opCode, int a, int b, int c) {
+    if (length + RegisterCode.INSTRUCTION_SIZE > instructions.length) {
+      instructions = Arrays.copyOf(instructions, instructions.length * 2);
+    }
+    int index = length;
+    instructions[length++] = opCode;
+    instructions[length++] = a;
+    instructions[length++] = b;
+    instructions[length++] = c;
+    lastResult = -1;
+    return index;
+  }
+
+  /// Returns the opcode of the instruction at the given offset.
+  /// @param ip The offset of the instruction.
+  /// @return The opcode.
+  private OpCode opCode(int ip) {
+    return OpCode.fromByteCode(code.getByte(ip));
+  }
+
+  /// Returns the offset of the instruction after the one at the given offset.
+  /// @param ip The offset of the instruction.
+  /// @return The offset of the next instruction.
+  private int next(int ip) {
+    return ip + 1 + opCode(ip).operandCount();
+  }
+
+  /// Returns an operand of the instruction at the given offset.
+  /// @param ip The offset of the instruction.
+  /// @param operand The number of the operand, starting at 1.
+  /// @return The operand.
+  private int operand(int ip, int operand) {
+    return code.getByte(ip + operand) & 0xFF; // Java Bytes are signed
+  }
+
+  /// Returns the byte code offset of the target of the jump instruction.
+  /// @param ip The offset of the instruction.
+  /// @return The offset of the jump target.
+  private int jumpTarget(int ip) {
+    return code.getJumpLabel(operand(ip, 1));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.register;
+
+import net.rptools.maptool.mtscript.vm.ByteCodeProgram;
+import net.rptools.maptool.mtscript.vm.ExecutableProgram;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/// A program that is executed as three-address code by a register machine rather than by the
+/// byte code interpreter.
+///
+/// The byte code is translated by the `RegisterCompiler` when the program is created. The
+/// register code needs fewer instructions than the byte code as loads of constants and locals,
+/// pops and the moves of values between the stack and locals mostly disappear, but each
+/// instruction does more work decoding its operands. The program produces the same results as
+/// executing the byte code with `MapToolVM.exec`.
+public final class RegisterProgram implements ExecutableProgram {
+
+  /// The logger for the class.
+  private static final Logger log = LogManager.getLogger(RegisterProgram.class);
+
+  /// The byte code of the program.
+  private final CodeType code;
+
+  /// The register code of the program.
+  private final RegisterCode registerCode;
+
+  /// Creates a new register program.
+  /// @param code The byte code of the program.
+  /// @param registerCode The register code of the program.
+  private RegisterProgram(CodeType code, RegisterCode registerCode) {
+    this.code = code;
+    this.registerCode = registerCode;
+  }
+
+  /// Translates a program to register code, along with the functions that it defines.
+  /// @param code The byte code of the program.
+  /// @return The register program, or a `ByteCodeProgram` if the program can not be translated.
+  public static ExecutableProgram of(CodeType code) {
+    var registerCode = RegisterCompiler.compile(code);
+    if (registerCode == null) {
+      return new ByteCodeProgram(code);
+    }
+    for (var function : code.functions()) {
+      if (RegisterCompiler.registerCode(function) == null) {
+        return new ByteCodeProgram(code);
+      }
+    }
+    return new RegisterProgram(code, registerCode);
+  }
+
+  /// Returns the register code of the program.
+  /// @return The register code.
+  public RegisterCode registerCode() {
+    return registerCode;
+  }
+
+  @Override
+  public CodeType code() {
+    return code;
+  }
+
+  @Override
+  public ValueRecord exec(MapToolVM vm) {
+    try {
+      return new RegisterVM(vm).exec(registerCode);
+    } catch (RuntimeException e) {
+      log.error("\nError executing program: {} {}\n", code.name(), e.getMessage());
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.register;
+
+import java.util.Arrays;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.OperandStack;
+import net.rptools.maptool.mtscript.vm.values.BooleanType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// Executes `RegisterCode`.
+///
+/// The registers of each frame are slots of the operand stack of the `MapToolVM`, the stack is
+/// resized to hold the registers of the function being executed. As the function and arguments of
+/// a call are in consecutive registers the called function's frame starts in the caller's
+/// registers, laid out the same way as by the byte code interpreter, so native and compiled
+/// functions are called the same way.
+final class RegisterVM {
+
+  /// The VM that the code is executed on.
+  private final MapToolVM vm;
+
+  /// The operand stack of the VM.
+  private final OperandStack stack;
+
+  /// The maximum depth of function calls.
+  private final int maxCallDepth;
+
+  /// The code being executed.
+  private RegisterCode code;
+
+  /// The instructions of the code being executed.
+  private int[] instructions;
+
+  /// The constants of the code being executed.
+  private ValueRecord[] constants;
+
+  /// The index of register 0 of the current frame on the stack.
+  private int base;
+
+  /// The number of functions being executed.
+  private int callDepth = 0;
+
+  /// The code of the callers of the functions being executed.
+  private RegisterCode[] frameCode = new RegisterCode[0];
+
+  /// The instruction to return to in each caller.
+  private int[] framePc = new int[0];
+
+  /// The register base of each caller.
+  private int[] frameBase = new int[0];
+
+  /// The function last called, `null` if none.
+  private FunctionType lastFunction;
+
+  /// The register code of `lastFunction`, cached so calls to the same function do not need to
+  /// look it up.
+  private RegisterCode lastCode;
+
+  /// Creates a new register VM.
+  /// @param vm The VM that the code is executed on.
+  RegisterVM(MapToolVM vm) {
+    this.vm = vm;
+    this.stack = vm.getStack();
+    this.maxCallDepth = vm.getMaxCallDepth();
+  }
+
+  /// Executes a program.
+  /// @param program The register code of the program.
+  /// @return The result of the program.
+  ValueRecord exec(RegisterCode program) {
+    base = stack.size();
+    enter(program);
+    int pc = 0;
+    while (true) {
+      int[] code = instructions;
+      int op = code[pc];
+      int a = code[pc + 1];
+      int b = code[pc + 2];
+      int c = code[pc + 3];
+      pc += RegisterCode.INSTRUCTION_SIZE;
+      switch (op) {
+        case RegisterCode.HALT -> {
+          var result = value(a);
+          stack.truncate(base); // After the program halts, the values it left are discarded.
+          return result;
+        }
+        case RegisterCode.RETURN -> pc = returnFromFunction(a);
+        case RegisterCode.LOAD_CONST -> stack.set(base + a, constants[b]);
+        case RegisterCode.MOVE -> stack.copy(base + b, base + a);
+        case RegisterCode.LOAD_GLOBAL -> stack.set(base + a, vm.loadGlobal(b));
+        case RegisterCode.SET_GLOBAL -> vm.storeGlobal(a, value(b));
+        case RegisterCode.ADD -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.setNumber(base + a, number(b) + number(c));
+          } else {
+            stack.set(base + a, value(b).add(value(c)));
+          }
+        }
+        case RegisterCode.SUB -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.setNumber(base + a, number(b) - number(c));
+          } else {
+            stack.set(base + a, value(b).subtract(value(c)));
+          }
+        }
+        case RegisterCode.MULT -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.setNumber(base + a, number(b) * number(c));
+          } else {
+            stack.set(base + a, value(b).multiply(value(c)));
+          }
+        }
+        case RegisterCode.DIV -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.setNumber(base + a, number(b) / number(c));
+          } else {
+            stack.set(base + a, value(b).divide(value(c)));
+          }
+        }
+        case RegisterCode.EQ -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.set(base + a, BooleanType.valueOf(number(b) == number(c)));
+          } else {
+            stack.set(base + a, value(b).compareEqual(value(c)));
+          }
+        }
+        case RegisterCode.NEQ -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.set(base + a, BooleanType.valueOf(number(b) != number(c)));
+          } else {
+            stack.set(base + a, value(b).compareNotEqual(value(c)));
+          }
+        }
+        case RegisterCode.LT -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.set(base + a, BooleanType.valueOf(number(b) < number(c)));
+          } else {
+            stack.set(base + a, value(b).compareLessThan(value(c)));
+          }
+        }
+        case RegisterCode.LTE -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.set(base + a, BooleanType.valueOf(number(b) <= number(c)));
+          } else {
+            stack.set(base + a, value(b).compareLessThanOrEqual(value(c)));
+          }
+        }
+        case RegisterCode.GT -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.set(base + a, BooleanType.valueOf(number(b) > number(c)));
+          } else {
+            stack.set(base + a, value(b).compareGreaterThan(value(c)));
+          }
+        }
+        case RegisterCode.GTE -> {
+          if (isNumber(b) && isNumber(c)) {
+            stack.set(base + a, BooleanType.valueOf(number(b) >= number(c)));
+          } else {
+            stack.set(base + a, value(b).compareGreaterThanOrEqual(value(c)));
+          }
+        }
+        case RegisterCode.JUMP -> pc = a;
+        case RegisterCode.JUMP_IF_FALSE -> {
+          if (value(a) instanceof BooleanType bool) {
+            if (!bool.value()) {
+              pc = b;
+            }
+          } else {
+            throw new RuntimeException("Expected boolean name on stack"); // TODO: CDW
+          }
+        }
+        case RegisterCode.LT_JUMP_IF_FALSE -> {
+          boolean lessThan;
+          if (isNumber(a) && isNumber(b)) {
+            lessThan = number(a) < number(b);
+          } else {
+            lessThan = value(a).compareLessThan(value(b)).value();
+          }
+          if (!lessThan) {
+            pc = c;
+          }
+        }
+        case RegisterCode.CALL -> pc = call(a, b, false, pc);
+        case RegisterCode.TAIL_CALL -> pc = call(a, b, callDepth > 0, pc);
+        default -> throw new RuntimeException("Invalid register opcode: " + op); // TODO: CDW
+      }
+    }
+  }
+
+  /// Calls the function in a register, with the arguments in the registers after it.
+  /// @param register The register holding the function.
+  /// @param numArgs The number of arguments.
+  /// @param tail True if the function replaces the current function.
+  /// @param pc The index of the instruction after the call.
+  /// @return The index of the next instruction to execute.
+  private int call(int register, int numArgs, boolean tail, int pc) {
+    int slot = base + register;
+    var function = stack.get(slot);
+    // Leave the function and its arguments on the top of the stack, as the byte code interpreter
+    // would.
+    stack.truncate(slot + numArgs + 1);
+    if (function instanceof NativeFunctionType nativeFunction) {
+      vm.callNative(nativeFunction, numArgs);
+      return setResult(slot, pc);
+    } else if (function instanceof FunctionType func) {
+      if (vm.isJitEnabled() && vm.callCompiled(func)) {
+        return setResult(slot, pc);
+      }
+      if (func != lastFunction) {
+        lastCode = RegisterCompiler.code(func);
+        lastFunction = func;
+      }
+      var callee = lastCode;
+      if (tail) {
+        // The register below the frame base holds the function that the caller loaded.
+        stack.moveTop(numArgs + 1, base - 1);
+      } else {
+        pushFrame(pc);
+        base = slot + 1;
+      }
+      enter(callee);
+      stack.set(base + func.arity(), func); // The function is in the register after its arguments
+      return 0;
+    }
+    throw new RuntimeException("Expected function on stack"); // TODO: CDW
+  }
+
+  /// Moves the result of a native or compiled function from the top of the stack to the register
+  /// that held the function, and restores the registers of the current frame.
+  /// @param slot The stack slot of the register.
+  /// @param pc The index of the instruction after the call.
+  /// @return The index of the next instruction to execute.
+  private int setResult(int slot, int pc) {
+    stack.setFromTop(slot);
+    stack.resize(base + code.registerCount());
+    return pc;
+  }
+
+  /// Saves the state of the current function before calling another function.
+  /// @param pc The index of the instruction to return to.
+  private void pushFrame(int pc) {
+    if (callDepth >= maxCallDepth) {
+      throw new RuntimeException("Maximum call depth exceeded"); // TODO: CDW
+    }
+    if (callDepth == frameCode.length) {
+      int capacity = Math.min(Math.max(frameCode.length * 2, 8), maxCallDepth);
+      frameCode = Arrays.copyOf(frameCode, capacity);
+      framePc = Arrays.copyOf(framePc, capacity);
+      frameBase = Arrays.copyOf(frameBase, capacity);
+    }
+    frameCode[callDepth] = code;
+    framePc[callDepth] = pc;
+    frameBase[callDepth] = base;
+    callDepth++;
+  }
+
+  /// Returns from the current function, the result is placed in the caller's register that held
+  /// the function.
+  /// @param result The operand holding the result.
+  /// @return The index of the instruction to return to.
+  private int returnFromFunction(int result) {
+    if (callDepth == 0) {
+      throw new RuntimeException("Return outside of a function"); // TODO: CDW
+    }
+    int slot = base - 1;
+    if (result >= 0) {
+      stack.copy(base + result, slot);
+    } else {
+      stack.set(slot, constants[-1 - result]);
+    }
+    callDepth--;
+    base = frameBase[callDepth];
+    enter(frameCode[callDepth]);
+    frameCode[callDepth] = null;
+    return framePc[callDepth];
+  }
+
+  /// Starts executing code, sizing the stack for its registers.
+  /// @param code The code.
+  private void enter(RegisterCode code) {
+    this.code = code;
+    this.instructions = code.instructions();
+    this.constants = code.constants();
+    stack.resize(base + code.registerCount());
+  }
+
+  /// Returns true if an operand is a number.
+  /// @param operand The register or constant operand.
+  /// @return True if the operand is a number.
+  private boolean isNumber(int operand) {
+    return operand >= 0
+        ? stack.isNumberAt(base + operand)
+        : constants[-1 - operand] instanceof IntegerType;
+  }
+
+  /// Returns the value of an operand that is a number, the caller must have checked that it is
+  /// with `isNumber`.
+  /// @param operand The register or constant operand.
+  /// @return The number.
+  private double number(int operand) {
+    return operand >= 0
+        ? stack.getNumber(base + operand)
+        : ((IntegerType) constants[-1 - operand]).value();
+  }
+
+  /// Returns the value of an operand.
+  /// @param operand The register or constant operand.
+  /// @return The value.
+  private ValueRecord value(int operand) {
+    return operand >= 0 ? stack.get(base + operand) : constants[-1 - operand];
+  }
+}
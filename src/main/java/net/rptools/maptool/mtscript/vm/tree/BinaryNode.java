@@ -0,0 +1,196 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.BooleanType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node for the arithmetic and comparison operators.
+///
+/// The node specializes itself on the types of the operands it sees. The first time it is
+/// executed, if both operands are numbers it switches to a number state where the operands are
+/// executed with `executeNumber` and the operation is done on unboxed `double`s, otherwise it
+/// switches to the generic state where the operation is done by the `ValueRecord`s. If a number
+/// node later sees another type it switches to the generic state for good.
+final class BinaryNode extends Node {
+
+  /// The operators.
+  enum Operator {
+    ADD,
+    SUB,
+    MULT,
+    DIV,
+    EQ,
+    NEQ,
+    LT,
+    LTE,
+    GT,
+    GTE;
+
+    /// Returns true if the operator is a comparison.
+    /// @return True if the operator is a comparison.
+    boolean isComparison() {
+      return ordinal() >= EQ.ordinal();
+    }
+  }
+
+  /// The node has not been executed.
+  private static final int UNINITIALIZED = 0;
+
+  /// The node has only seen numbers.
+  private static final int NUMBER = 1;
+
+  /// The node has seen other types.
+  private static final int GENERIC = 2;
+
+  /// The operator.
+  private final Operator operator;
+
+  /// The node for the left operand.
+  private final Node left;
+
+  /// The node for the right operand.
+  private final Node right;
+
+  /// The state of the node.
+  private int state = UNINITIALIZED;
+
+  /// Creates a new binary node.
+  /// @param operator The operator.
+  /// @param left The node for the left operand.
+  /// @param right The node for the right operand.
+  BinaryNode(Operator operator, Node left, Node right) {
+    this.operator = operator;
+    this.left = left;
+    this.right = right;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    if (state == NUMBER) {
+      double n1;
+      try {
+        n1 = left.executeNumber(frame);
+      } catch (UnexpectedTypeException e) {
+        return generalize(e.value(), right.execute(frame));
+      }
+      double n2;
+      try {
+        n2 = right.executeNumber(frame);
+      } catch (UnexpectedTypeException e) {
+        return generalize(IntegerType.valueOf(n1), e.value());
+      }
+      return operator.isComparison()
+          ? BooleanType.valueOf(compare(n1, n2))
+          : IntegerType.valueOf(calculate(n1, n2));
+    }
+    var op1 = left.execute(frame);
+    var op2 = right.execute(frame);
+    if (state == UNINITIALIZED) {
+      state = op1 instanceof IntegerType && op2 instanceof IntegerType ? NUMBER : GENERIC;
+    }
+    return generic(op1, op2);
+  }
+
+  @Override
+  double executeNumber(TreeFrame frame) {
+    if (state != NUMBER || operator.isComparison()) {
+      return super.executeNumber(frame);
+    }
+    double n1;
+    try {
+      n1 = left.executeNumber(frame);
+    } catch (UnexpectedTypeException e) {
+      return unbox(generalize(e.value(), right.execute(frame)));
+    }
+    double n2;
+    try {
+      n2 = right.executeNumber(frame);
+    } catch (UnexpectedTypeException e) {
+      return unbox(generalize(IntegerType.valueOf(n1), e.value()));
+    }
+    return calculate(n1, n2);
+  }
+
+  /// Switches the node to the generic state and performs the operation.
+  /// @param op1 The left operand.
+  /// @param op2 The right operand.
+  /// @return The result of the operation.
+  private ValueRecord generalize(ValueRecord op1, ValueRecord op2) {
+    state = GENERIC;
+    return generic(op1, op2);
+  }
+
+  /// Performs the arithmetic operation on two numbers.
+  /// @param n1 The left operand.
+  /// @param n2 The right operand.
+  /// @return The result of the operation.
+  private double calculate(double n1, double n2) {
+    return switch (operator) {
+      case ADD -> n1 + n2;
+      case SUB -> n1 - n2;
+      case MULT -> n1 * n2;
+      case DIV -> n1 / n2;
+      default -> throw new IllegalStateException("Not an arithmetic operator: " + operator);
+    };
+  }
+
+  /// Performs the comparison on two numbers.
+  /// @param n1 The left operand.
+  /// @param n2 The right operand.
+  /// @return The result of the comparison.
+  private boolean compare(double n1, double n2) {
+    return switch (operator) {
+      case EQ -> n1 == n2;
+      case NEQ -> n1 != n2;
+      case LT -> n1 < n2;
+      case LTE -> n1 <= n2;
+      case GT -> n1 > n2;
+      case GTE -> n1 >= n2;
+      default -> throw new IllegalStateException("Not a comparison operator: " + operator);
+    };
+  }
+
+  /// Performs the operation on two values of any type.
+  /// @param op1 The left operand.
+  /// @param op2 The right operand.
+  /// @return The result of the operation.
+  private ValueRecord generic(ValueRecord op1, ValueRecord op2) {
+    return switch (operator) {
+      case ADD -> op1.add(op2);
+      case SUB -> op1.subtract(op2);
+      case MULT -> op1.multiply(op2);
+      case DIV -> op1.divide(op2);
+      case EQ -> op1.compareEqual(op2);
+      case NEQ -> op1.compareNotEqual(op2);
+      case LT -> op1.compareLessThan(op2);
+      case LTE -> op1.compareLessThanOrEqual(op2);
+      case GT -> op1.compareGreaterThan(op2);
+      case GTE -> op1.compareGreaterThanOrEqual(op2);
+    };
+  }
+
+  /// Returns the value as a number.
+  /// @param value The value.
+  /// @return The number.
+  /// @throws UnexpectedTypeException if the value is not a number.
+  private static double unbox(ValueRecord value) {
+    if (value instanceof IntegerType number) {
+      return number.value();
+    }
+    throw new UnexpectedTypeException(value);
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node that executes a sequence of statements followed by an optional result.
+final class BlockNode extends Node {
+
+  /// The statements, their values are discarded.
+  private final Node[] statements;
+
+  /// The node for the result, `null` if the block has no value.
+  private final Node result;
+
+  /// Creates a new block node.
+  /// @param statements The statements.
+  /// @param result The node for the result, or `null` if the block has no value.
+  BlockNode(Node[] statements, Node result) {
+    this.statements = statements;
+    this.result = result;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    executeStatements(frame);
+    return result == null ? null : result.execute(frame);
+  }
+
+  @Override
+  double executeNumber(TreeFrame frame) {
+    executeStatements(frame);
+    return result.executeNumber(frame);
+  }
+
+  @Override
+  boolean executeBoolean(TreeFrame frame) {
+    executeStatements(frame);
+    return result.executeBoolean(frame);
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {
+    executeStatements(frame);
+    if (result != null) {
+      result.executeVoid(frame);
+    }
+  }
+
+  /// Executes the statements of the block.
+  /// @param frame The frame the block is executed in.
+  private void executeStatements(TreeFrame frame) {
+    for (var statement : statements) {
+      statement.executeVoid(frame);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import java.lang.ref.WeakReference;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node for a function call, `CALL` or `TAIL_CALL`.
+///
+/// The function and its arguments are on the top of the stack when the node is executed, laid out
+/// the same way as for the byte code interpreter. Functions are executed by the tree of their own
+/// byte code, the node caches the tree of the last function it called so a call site that always
+/// calls the same function does not need to look it up.
+final class CallNode extends Node {
+
+  /// The tree of a function called by the node.
+  /// @param function The function, this is held weakly as the node can be part of the function's
+  ///     own tree, which would otherwise keep the function alive in `TreeCompiler`'s table.
+  /// @param body The root node of the function's tree.
+  private record CachedFunction(WeakReference<FunctionType> function, Node body) {}
+
+  /// The number of arguments.
+  private final int numArgs;
+
+  /// True if the call is in tail position of a function.
+  private final boolean tail;
+
+  /// The function last called by the node, `null` if none.
+  private CachedFunction cached;
+
+  /// Creates a new call node.
+  /// @param numArgs The number of arguments.
+  /// @param tail True if the call is in tail position of a function.
+  CallNode(int numArgs, boolean tail) {
+    this.numArgs = numArgs;
+    this.tail = tail;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    var stack = frame.stack;
+    var function = stack.peek(numArgs);
+    if (function instanceof NativeFunctionType nativeFunction) {
+      frame.vm.callNative(nativeFunction, numArgs);
+      return stack.pop();
+    } else if (function instanceof FunctionType func) {
+      // Hot functions are compiled by the JIT the same way as for the byte code interpreter.
+      if (frame.vm.isJitEnabled() && frame.vm.callCompiled(func)) {
+        return stack.pop();
+      }
+      if (tail) {
+        // The slot below the frame base holds the function that the caller loaded.
+        stack.moveTop(numArgs + 1, frame.base - 1);
+        frame.tailFunction = func;
+        return TreeFrame.TAIL_CALL;
+      }
+      return call(frame, func);
+    }
+    throw new RuntimeException("Expected function on stack"); // TODO: CDW
+  }
+
+  /// Calls a function, the function and its arguments are expected to be on the top of the stack
+  /// and are replaced by the result.
+  /// Tail calls made by the function replace its frame and are executed in the loop here, so they
+  /// do not use any Java stack.
+  /// @param frame The frame of the caller.
+  /// @param function The function to call.
+  /// @return The result of the function.
+  private ValueRecord call(TreeFrame frame, FunctionType function) {
+    if (frame.callDepth >= frame.maxCallDepth) {
+      throw new RuntimeException("Maximum call depth exceeded"); // TODO: CDW
+    }
+    var stack = frame.stack;
+    int callerBase = frame.base;
+    frame.callDepth++;
+    try {
+      var body = body(function);
+      while (true) {
+        frame.base = stack.size() - function.arity();
+        stack.push(function); // Push the function onto the stack after the arguments
+        var result = body.execute(frame);
+        if (result != TreeFrame.TAIL_CALL) {
+          stack.truncate(frame.base - 1); // Pop the function loaded by the caller
+          return result;
+        }
+        if (frame.tailFunction != function) {
+          function = frame.tailFunction;
+          body = TreeCompiler.body(function);
+        }
+      }
+    } finally {
+      frame.callDepth--;
+      frame.base = callerBase;
+    }
+  }
+
+  /// Returns the root node of the tree of a function, using the cached tree if the function is the
+  /// one last called.
+  /// @param function The function.
+  /// @return The root node of the function's tree.
+  private Node body(FunctionType function) {
+    var entry = cached;
+    if (entry == null || entry.function().get() != function) {
+      entry = new CachedFunction(new WeakReference<>(function), TreeCompiler.body(function));
+      cached = entry;
+    }
+    return entry.body();
+  }
+}
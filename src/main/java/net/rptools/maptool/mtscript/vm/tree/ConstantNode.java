@@ -0,0 +1,47 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node for a constant value, `LOAD_CONST`.
+final class ConstantNode extends Node {
+
+  /// The value of the constant.
+  private final ValueRecord value;
+
+  /// Creates a new constant node.
+  /// @param value The value of the constant.
+  ConstantNode(ValueRecord value) {
+    this.value = value;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    return value;
+  }
+
+  @Override
+  double executeNumber(TreeFrame frame) {
+    if (value instanceof IntegerType number) {
+      return number.value();
+    }
+    throw new UnexpectedTypeException(value);
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {}
+}
@@ -0,0 +1,68 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node that discards the values on the stack from the given index of the frame after executing
+/// its child, `EXIT_SCOPE`. The child can read the values (e.g. local symbols) before they are
+/// discarded.
+final class DropNode extends Node {
+
+  /// The index from the base of the frame to truncate the stack to.
+  private final int index;
+
+  /// The child node.
+  private final Node child;
+
+  /// Creates a new drop node.
+  /// @param index The index from the base of the frame to truncate the stack to.
+  /// @param child The child node.
+  DropNode(int index, Node child) {
+    this.index = index;
+    this.child = child;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    var result = child.execute(frame);
+    // A tail call has already replaced the frame.
+    if (result != TreeFrame.TAIL_CALL) {
+      frame.stack.truncate(frame.slot(index));
+    }
+    return result;
+  }
+
+  @Override
+  double executeNumber(TreeFrame frame) {
+    double result;
+    try {
+      result = child.executeNumber(frame);
+    } catch (UnexpectedTypeException e) {
+      if (e.value() != TreeFrame.TAIL_CALL) {
+        frame.stack.truncate(frame.slot(index));
+      }
+      throw e;
+    }
+    frame.stack.truncate(frame.slot(index));
+    return result;
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {
+    child.executeVoid(frame);
+    frame.stack.truncate(frame.slot(index));
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node that reads a global variable, `LOAD_GLOBAL`.
+final class GlobalNode extends Node {
+
+  /// The index of the global variable.
+  private final int index;
+
+  /// Creates a new global node.
+  /// @param index The index of the global variable.
+  GlobalNode(int index) {
+    this.index = index;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    return frame.vm.loadGlobal(index);
+  }
+}
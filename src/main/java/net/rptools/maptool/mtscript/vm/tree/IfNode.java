@@ -0,0 +1,61 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node for an `if` expression, `JUMP_IF_FALSE` to the else branch and `JUMP` over it.
+final class IfNode extends Node {
+
+  /// The node for the condition.
+  private final Node condition;
+
+  /// The node executed if the condition is true.
+  private final Node thenBranch;
+
+  /// The node executed if the condition is false.
+  private final Node elseBranch;
+
+  /// Creates a new if node.
+  /// @param condition The node for the condition.
+  /// @param thenBranch The node executed if the condition is true.
+  /// @param elseBranch The node executed if the condition is false.
+  IfNode(Node condition, Node thenBranch, Node elseBranch) {
+    this.condition = condition;
+    this.thenBranch = thenBranch;
+    this.elseBranch = elseBranch;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    return condition.executeBoolean(frame) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+  }
+
+  @Override
+  double executeNumber(TreeFrame frame) {
+    return condition.executeBoolean(frame)
+        ? thenBranch.executeNumber(frame)
+        : elseBranch.executeNumber(frame);
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {
+    if (condition.executeBoolean(frame)) {
+      thenBranch.executeVoid(frame);
+    } else {
+      elseBranch.executeVoid(frame);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node that reads a slot of the current function's stack frame, `LOAD_LOCAL`.
+/// This is also used to read intermediate values that had to be stored on the stack.
+final class LocalNode extends Node {
+
+  /// The index of the slot from the base of the frame.
+  private final int index;
+
+  /// Creates a new local node.
+  /// @param index The index of the slot from the base of the frame.
+  LocalNode(int index) {
+    this.index = index;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    return frame.stack.get(frame.slot(index));
+  }
+
+  @Override
+  double executeNumber(TreeFrame frame) {
+    int slot = frame.slot(index);
+    if (frame.stack.isNumberAt(slot)) {
+      return frame.stack.getNumber(slot);
+    }
+    throw new UnexpectedTypeException(frame.stack.get(slot));
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {}
+}
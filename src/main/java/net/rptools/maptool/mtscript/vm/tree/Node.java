@@ -0,0 +1,65 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.BooleanType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node in the tree that a program is converted to by the `TreeCompiler`.
+///
+/// A node is executed by calling one of its `execute` methods, which evaluates its children
+/// (left to right) and returns its value. The `executeNumber` and `executeBoolean` methods let
+/// nodes that have only seen numbers pass them to their parent without boxing them, if the value
+/// turns out not to be of the requested type an `UnexpectedTypeException` holding the value is
+/// thrown instead so the parent can fall back to the generic version of its operation.
+///
+/// Nodes can be shared between threads, so any state that a node keeps about the types it has
+/// seen is only a hint and the node must still produce the correct result if the hint is wrong.
+abstract class Node {
+
+  /// Executes the node.
+  /// @param frame The frame the node is executed in.
+  /// @return The value of the node.
+  abstract ValueRecord execute(TreeFrame frame);
+
+  /// Executes the node, expecting the result to be a number.
+  /// @param frame The frame the node is executed in.
+  /// @return The value of the node.
+  /// @throws UnexpectedTypeException if the value is not a number, the node has been executed.
+  double executeNumber(TreeFrame frame) {
+    var value = execute(frame);
+    if (value instanceof IntegerType number) {
+      return number.value();
+    }
+    throw new UnexpectedTypeException(value);
+  }
+
+  /// Executes the node, expecting the result to be a boolean as it is used as a condition.
+  /// @param frame The frame the node is executed in.
+  /// @return The value of the node.
+  boolean executeBoolean(TreeFrame frame) {
+    if (execute(frame) instanceof BooleanType bool) {
+      return bool.value();
+    }
+    throw new RuntimeException("Expected boolean name on stack"); // TODO: CDW
+  }
+
+  /// Executes the node for its side effects only, the value is discarded.
+  /// @param frame The frame the node is executed in.
+  void executeVoid(TreeFrame frame) {
+    execute(frame);
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node that pushes a value onto the stack, this is used for local symbols and function
+/// arguments which must be on the stack.
+/// Once the node has only seen numbers they are pushed without being boxed.
+final class PushNode extends Node {
+
+  /// The node for the value.
+  private final Node value;
+
+  /// True if the value has always been a number.
+  private boolean number = true;
+
+  /// Creates a new push node.
+  /// @param value The node for the value.
+  PushNode(Node value) {
+    this.value = value;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    executeVoid(frame);
+    return null;
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {
+    if (number) {
+      try {
+        frame.stack.pushNumber(value.executeNumber(frame));
+      } catch (UnexpectedTypeException e) {
+        number = false;
+        frame.stack.push(e.value());
+      }
+    } else {
+      var result = value.execute(frame);
+      frame.stack.push(result);
+      number = result instanceof IntegerType;
+    }
+  }
+}
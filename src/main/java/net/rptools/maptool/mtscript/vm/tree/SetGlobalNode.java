@@ -0,0 +1,42 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node that sets a global variable and evaluates to the value, `SET_GLOBAL`.
+final class SetGlobalNode extends Node {
+
+  /// The index of the global variable.
+  private final int index;
+
+  /// The node for the value.
+  private final Node value;
+
+  /// Creates a new set global node.
+  /// @param index The index of the global variable.
+  /// @param value The node for the value.
+  SetGlobalNode(int index, Node value) {
+    this.index = index;
+    this.value = value;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    var result = value.execute(frame);
+    frame.vm.storeGlobal(index, result);
+    return result;
+  }
+}
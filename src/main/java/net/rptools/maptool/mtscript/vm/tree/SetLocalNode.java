@@ -0,0 +1,76 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node that sets a local symbol and evaluates to the value, `SET_LOCAL`.
+/// Once the node has only seen numbers they are stored without being boxed.
+final class SetLocalNode extends Node {
+
+  /// The index of the local symbol from the base of the frame.
+  private final int index;
+
+  /// The node for the value.
+  private final Node value;
+
+  /// True if the value has always been a number.
+  private boolean number = true;
+
+  /// Creates a new set local node.
+  /// @param index The index of the local symbol from the base of the frame.
+  /// @param value The node for the value.
+  SetLocalNode(int index, Node value) {
+    this.index = index;
+    this.value = value;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    var result = value.execute(frame);
+    frame.stack.set(frame.slot(index), result);
+    return result;
+  }
+
+  @Override
+  double executeNumber(TreeFrame frame) {
+    double result;
+    try {
+      result = value.executeNumber(frame);
+    } catch (UnexpectedTypeException e) {
+      number = false;
+      frame.stack.set(frame.slot(index), e.value());
+      throw e;
+    }
+    frame.stack.setNumber(frame.slot(index), result);
+    return result;
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {
+    if (number) {
+      try {
+        executeNumber(frame);
+      } catch (UnexpectedTypeException e) {
+        // The local has been set to the value.
+      }
+    } else {
+      var result = value.execute(frame);
+      frame.stack.set(frame.slot(index), result);
+      number = result instanceof IntegerType;
+    }
+  }
+}
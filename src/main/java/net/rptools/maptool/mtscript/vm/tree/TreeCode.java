@@ -0,0 +1,34 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+/// The tree that the byte code of a `CodeType` has been converted to by the `TreeCompiler`.
+public final class TreeCode {
+
+  /// The root node of the tree.
+  private final Node root;
+
+  /// Creates a new tree.
+  /// @param root The root node of the tree.
+  TreeCode(Node root) {
+    this.root = root;
+  }
+
+  /// Returns the root node of the tree.
+  /// @return The root node.
+  Node root() {
+    return root;
+  }
+}
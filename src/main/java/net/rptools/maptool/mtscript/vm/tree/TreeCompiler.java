@@ -0,0 +1,489 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import net.rptools.maptool.mtscript.vm.FunctionTable;
+import net.rptools.maptool.mtscript.vm.OpCode;
+import net.rptools.maptool.mtscript.vm.tree.BinaryNode.Operator;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/// Converts the byte code of a `CodeType` into a tree of `Node`s that can be executed directly.
+///
+/// The byte code is walked once while keeping a symbolic stack with an entry for each slot of the
+/// stack frame. An entry is either a node that computes the value of the slot, or `null` if the
+/// value is actually on the stack at run time. Instructions that compute values combine the nodes
+/// of their operands into a new node, so `LOAD_LOCAL 0`, `LOAD_CONST 1`, `ADD` becomes a single
+/// `BinaryNode` and the value never touches the stack. The values are only pushed onto the stack
+/// when they have to be there: local symbols that are read by `LOAD_LOCAL`, function arguments and
+/// values that are pending when a statement (`POP`, a loop or a call) is executed. As the entries
+/// that are on the stack are always below those that are not, and nodes execute their children in
+/// order, every instruction is executed in the same order as by the byte code interpreter.
+///
+/// The jumps that the compiler generates for `if`, `while` and `for` are turned back into
+/// `IfNode`s and `WhileNode`s. Byte code that does not follow these patterns, or that does not
+/// keep the stack balanced, can not be converted and is executed by the interpreter instead.
+public final class TreeCompiler {
+
+  /// The logger for the class.
+  private static final Logger log = LogManager.getLogger(TreeCompiler.class);
+
+  /// The trees of the functions that have been converted.
+  private static final FunctionTable<TreeCode> FUNCTION_TREES = new FunctionTable<>();
+
+  /// Thrown when code can not be converted.
+  private static class NotCompilableException extends RuntimeException {
+    /// Creates a new exception.
+    /// @param message The reason the code can not be converted.
+    NotCompilableException(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  /// The statements and stack floor of the enclosing block while a nested block is converted.
+  /// @param statements The statements of the enclosing block.
+  /// @param floor The stack floor of the enclosing block.
+  private record Scope(List<Node> statements, int floor) {}
+
+  /// The code being converted.
+  private final CodeType code;
+
+  /// The loops in the code, the offset of the condition mapped to the offset of the jump back to
+  /// it at the end of the loop.
+  private final Map<Integer, Integer> loops = new HashMap<>();
+
+  /// The symbolic stack, the node that computes each slot of the frame or `null` if the value of
+  /// the slot is on the stack.
+  private final List<Node> stack = new ArrayList<>();
+
+  /// The statements of the block being converted.
+  private List<Node> statements = new ArrayList<>();
+
+  /// The size of the stack at the start of the block being converted, the block can not remove
+  /// values below this. The outermost block of a function removes the arguments.
+  private int floor = 0;
+
+  /// Creates a new tree compiler.
+  /// @param code The code to convert.
+  private TreeCompiler(CodeType code) {
+    this.code = code;
+    if (code instanceof FunctionType function) {
+      // The arguments and the function are on the stack when a function is called.
+      for (int i = 0; i <= function.arity(); i++) {
+        stack.add(null);
+      }
+    }
+  }
+
+  /// Converts the given code to a tree.
+  /// @param code The program or function to convert.
+  /// @return The tree, or `null` if the code can not be converted.
+  public static TreeCode compile(CodeType code) {
+    try {
+      var compiler = new TreeCompiler(code);
+      compiler.findLoops();
+      return new TreeCode(compiler.convert());
+    } catch (NotCompilableException e) {
+      log.debug("Not converting {} to a tree: {}", code.name(), e.getMessage());
+      return null;
+    }
+  }
+
+  /// Returns the root node of the tree of a function, converting the function if it has not been
+  /// converted.
+  /// @param function The function.
+  /// @return The root node of the tree.
+  static Node body(FunctionType function) {
+    var tree = tree(function);
+    if (tree == null) {
+      throw new RuntimeException(
+          "Function " + function.name() + " can not be executed as a tree"); // TODO: CDW
+    }
+    return tree.root();
+  }
+
+  /// Returns the tree of a function, converting the function if it has not been converted.
+  /// @param function The function.
+  /// @return The tree, or `null` if the function can not be converted.
+  static TreeCode tree(FunctionType function) {
+    var tree = FUNCTION_TREES.get(function);
+    if (tree == null) {
+      tree = compile(function);
+      if (tree != null) {
+        tree = FUNCTION_TREES.putIfAbsent(function, tree);
+      }
+    }
+    return tree;
+  }
+
+  /// Finds the loops in the code, a loop is the target of a backward jump.
+  private void findLoops() {
+    int ip = 0;
+    while (ip < code.codeLength()) {
+      var op = opCode(ip);
+      if (op == OpCode.JUMP || op == OpCode.JUMP_IF_FALSE || op == OpCode.LT_JUMP_IF_FALSE) {
+        int target = jumpTarget(ip);
+        if (target <= ip) {
+          if (op != OpCode.JUMP || loops.containsKey(target)) {
+            throw new NotCompilableException("unsupported backward jump at " + ip);
+          }
+          loops.put(target, ip);
+        }
+      }
+      ip = next(ip);
+    }
+  }
+
+  /// Converts the code.
+  /// @return The root node of the tree.
+  private Node convert() {
+    int end = code.codeLength() - 1;
+    var expected = code instanceof FunctionType ? OpCode.RETURN : OpCode.HALT;
+    if (end < 0 || opCode(end) != expected) {
+      throw new NotCompilableException("code does not end with " + expected);
+    }
+    region(0, end, false);
+    var result = result();
+    if (code instanceof FunctionType && !stack.isEmpty()) {
+      throw new NotCompilableException("unbalanced stack on return");
+    }
+    // Anything left on the stack at the end of a program is discarded.
+    return new BlockNode(statements.toArray(new Node[0]), result);
+  }
+
+  /// Converts the instructions in a region of the code, adding the statements to the current
+  /// block.
+  /// @param start The offset of the first instruction.
+  /// @param end The offset after the last instruction.
+  /// @param loopCondition True if the region is the condition of the loop that starts at `start`.
+  private void region(int start, int end, boolean loopCondition) {
+    int ip = start;
+    while (ip < end) {
+      if (loops.containsKey(ip) && !(loopCondition && ip == start)) {
+        ip = loop(ip);
+        continue;
+      }
+      var op = opCode(ip);
+      int next = next(ip);
+      switch (op) {
+        case LOAD_CONST -> push(new ConstantNode(code.getConstant(operand(ip, 1))));
+        case LOAD_GLOBAL -> push(new GlobalNode(operand(ip, 1)));
+        case SET_GLOBAL -> {
+          int index = operand(ip, 1);
+          push(operation(1, operands -> new SetGlobalNode(index, operands[0])));
+        }
+        case LOAD_LOCAL -> loadLocal(operand(ip, 1));
+        case SET_LOCAL -> setLocal(operand(ip, 1));
+        case SET_LOCAL_POP -> {
+          setLocal(operand(ip, 1));
+          statements.add(result());
+        }
+        case POP -> statements.add(result());
+        case ADD -> binary(Operator.ADD);
+        case SUB -> binary(Operator.SUB);
+        case MULT -> binary(Operator.MULT);
+        case DIV -> binary(Operator.DIV);
+        case EQ -> binary(Operator.EQ);
+        case NEQ -> binary(Operator.NEQ);
+        case LT -> binary(Operator.LT);
+        case LTE -> binary(Operator.LTE);
+        case GT -> binary(Operator.GT);
+        case GTE -> binary(Operator.GTE);
+        case LOAD_LOCAL_CONST_ADD -> {
+          loadLocal(operand(ip, 1));
+          push(new ConstantNode(code.getConstant(operand(ip, 2))));
+          binary(Operator.ADD);
+        }
+        case EXIT_SCOPE -> exitScope(operand(ip, 1));
+        case CALL, TAIL_CALL -> call(operand(ip, 1), op == OpCode.TAIL_CALL);
+        case JUMP_IF_FALSE, LT_JUMP_IF_FALSE -> next = conditional(ip);
+        case NOOP -> {}
+        default -> throw new NotCompilableException("unsupported instruction " + op + " at " + ip);
+      }
+      ip = next;
+    }
+  }
+
+  /// Converts a loop. A loop that has a value pushes its initial value before the condition and
+  /// replaces it with a `POP` at the start of the body, it is converted to a node for the value,
+  /// otherwise the loop is executed as a statement.
+  /// @param head The offset of the condition of the loop.
+  /// @return The offset after the loop.
+  private int loop(int head) {
+    int backJump = loops.get(head);
+    int end = next(backJump);
+    int exit = -1;
+    for (int ip = head; ip < backJump; ip = next(ip)) {
+      var op = opCode(ip);
+      if ((op == OpCode.JUMP_IF_FALSE || op == OpCode.LT_JUMP_IF_FALSE) && jumpTarget(ip) == end) {
+        exit = ip;
+        break;
+      }
+    }
+    if (exit == -1) {
+      throw new NotCompilableException("loop at " + head + " has no exit");
+    }
+    int bodyStart = next(exit);
+    Node initial = null;
+    if (opCode(bodyStart) == OpCode.POP) {
+      initial = operation(1, operands -> operands[0]);
+      bodyStart = next(bodyStart);
+    }
+    flush();
+    var outer = enter();
+    region(head, exit, true);
+    var condition = leave(outer, condition(exit));
+    var body = block(bodyStart, backJump, initial != null);
+    if (initial != null) {
+      push(new WhileNode(condition, body, initial));
+    } else {
+      statements.add(new WhileNode(condition, body, null));
+    }
+    return end;
+  }
+
+  /// Converts an `if` expression, the jump over the then branch is at the given offset.
+  /// @param ip The offset of the jump.
+  /// @return The offset after the `if` expression.
+  private int conditional(int ip) {
+    int elseStart = jumpTarget(ip);
+    int thenEnd = elseStart - 1 - OpCode.JUMP.operandCount();
+    if (thenEnd < next(ip) || opCode(thenEnd) != OpCode.JUMP) {
+      throw new NotCompilableException("unsupported conditional jump at " + ip);
+    }
+    int end = jumpTarget(thenEnd);
+    if (end < elseStart) {
+      throw new NotCompilableException("unsupported jump at " + thenEnd);
+    }
+    var condition = condition(ip);
+    flush();
+    var thenBranch = block(next(ip), thenEnd, true);
+    var elseBranch = block(elseStart, end, true);
+    push(new IfNode(condition, thenBranch, elseBranch));
+    return end;
+  }
+
+  /// Returns the node for the condition of a conditional jump, this is the value on the top of the
+  /// stack or the comparison of the top two values for `LT_JUMP_IF_FALSE`.
+  /// @param ip The offset of the jump.
+  /// @return The node for the condition.
+  private Node condition(int ip) {
+    if (opCode(ip) == OpCode.LT_JUMP_IF_FALSE) {
+      binary(Operator.LT);
+    }
+    return operation(1, operands -> operands[0]);
+  }
+
+  /// Converts a region of the code as a nested block.
+  /// @param start The offset of the first instruction.
+  /// @param end The offset after the last instruction.
+  /// @param hasResult True if the block leaves a value on the stack.
+  /// @return The node for the block.
+  private Node block(int start, int end, boolean hasResult) {
+    var outer = enter();
+    region(start, end, false);
+    return leave(outer, hasResult ? result() : null);
+  }
+
+  /// Starts a nested block, every value in the enclosing block must already be on the stack.
+  /// @return The state of the enclosing block.
+  private Scope enter() {
+    var outer = new Scope(statements, floor);
+    statements = new ArrayList<>();
+    floor = stack.size();
+    return outer;
+  }
+
+  /// Finishes a nested block, restoring the state of the enclosing block.
+  /// @param outer The state of the enclosing block.
+  /// @param result The node for the result of the block, or `null` if it has no value.
+  /// @return The node for the block.
+  private Node leave(Scope outer, Node result) {
+    if (stack.size() != floor) {
+      throw new NotCompilableException("unbalanced stack in block");
+    }
+    Node block =
+        statements.isEmpty() && result != null
+            ? result
+            : new BlockNode(statements.toArray(new Node[0]), result);
+    statements = outer.statements();
+    floor = outer.floor();
+    return block;
+  }
+
+  /// Loads a local symbol, the local symbol must be on the stack.
+  /// @param index The index of the local symbol.
+  private void loadLocal(int index) {
+    if (index >= stack.size()) {
+      throw new NotCompilableException("invalid local " + index);
+    }
+    if (stack.get(index) != null) {
+      flush();
+    }
+    push(new LocalNode(index));
+  }
+
+  /// Sets a local symbol to the value on the top of the stack, leaving the value on the stack.
+  /// @param index The index of the local symbol.
+  private void setLocal(int index) {
+    if (index >= stack.size()) {
+      throw new NotCompilableException("invalid local " + index);
+    }
+    if (index == stack.size() - 1) {
+      return; // A new local symbol that already holds the value.
+    }
+    if (stack.get(index) != null) {
+      flush();
+    }
+    push(operation(1, operands -> new SetLocalNode(index, operands[0])));
+  }
+
+  /// Converts a binary operator.
+  /// @param operator The operator.
+  private void binary(Operator operator) {
+    push(operation(2, operands -> new BinaryNode(operator, operands[0], operands[1])));
+  }
+
+  /// Converts the exit of a scope, the local symbols of the scope are discarded but the value on
+  /// the top of the stack is kept.
+  /// @param count The number of local symbols in the scope.
+  private void exitScope(int count) {
+    push(
+        operation(
+            count + 1,
+            operands -> {
+              var discarded = new ArrayList<Node>();
+              for (int i = 0; i < count; i++) {
+                // Values on the stack are dropped by the node returned by operation().
+                if (!(operands[i] instanceof LocalNode)) {
+                  discarded.add(operands[i]);
+                }
+              }
+              return discarded.isEmpty()
+                  ? operands[count]
+                  : new BlockNode(discarded.toArray(new Node[0]), operands[count]);
+            }));
+  }
+
+  /// Converts a function call, the function and its arguments are pushed onto the stack.
+  /// @param numArgs The number of arguments.
+  /// @param tail True if the call is a tail call.
+  private void call(int numArgs, boolean tail) {
+    flush();
+    truncate(stack.size() - numArgs - 1);
+    push(new CallNode(numArgs, tail));
+  }
+
+  /// Returns a node that removes the value on the top of the stack and evaluates to it, any values
+  /// below it that are not on the stack are pushed first.
+  /// @return The node for the value.
+  private Node result() {
+    var result = operation(1, operands -> operands[0]);
+    flush();
+    return result;
+  }
+
+  /// Removes the operands of an operation from the top of the symbolic stack and returns the node
+  /// for the operation. Operands that are on the stack are read from their slots, and the node is
+  /// wrapped in a `DropNode` that removes them once the operation has been executed.
+  /// @param count The number of operands.
+  /// @param operation Creates the node for the operation from the nodes of the operands.
+  /// @return The node for the operation.
+  private Node operation(int count, Function<Node[], Node> operation) {
+    int first = stack.size() - count;
+    if (first < floor) {
+      throw new NotCompilableException("stack underflow");
+    }
+    var operands = new Node[count];
+    int drop = -1;
+    for (int i = 0; i < count; i++) {
+      var operand = stack.get(first + i);
+      if (operand == null) {
+        operand = new LocalNode(first + i);
+        if (drop == -1) {
+          drop = first + i;
+        }
+      }
+      operands[i] = operand;
+    }
+    truncate(first);
+    var node = operation.apply(operands);
+    return drop == -1 ? node : new DropNode(drop, node);
+  }
+
+  /// Adds statements that push every value that is not on the stack onto it, in order.
+  private void flush() {
+    for (int i = 0; i < stack.size(); i++) {
+      var node = stack.get(i);
+      if (node != null) {
+        statements.add(new PushNode(node));
+        stack.set(i, null);
+      }
+    }
+  }
+
+  /// Pushes a node onto the symbolic stack.
+  /// @param node The node.
+  private void push(Node node) {
+    stack.add(node);
+  }
+
+  /// Truncates the symbolic stack.
+  /// @param size The new size of the stack.
+  private void truncate(int size) {
+    if (size < floor) {
+      throw new NotCompilableException("stack underflow");
+    }
+    while (stack.size() > size) {
+      stack.removeLast();
+    }
+  }
+
+  /// Returns the opcode of the instruction at the given offset.
+  /// @param ip The offset of the instruction.
+  /// @return The opcode.
+  private OpCode opCode(int ip) {
+    return OpCode.fromByteCode(code.getByte(ip));
+  }
+
+  /// Returns the offset of the instruction after the one at the given offset.
+  /// @param ip The offset of the instruction.
+  /// @return The offset of the next instruction.
+  private int next(int ip) {
+    return ip + 1 + opCode(ip).operandCount();
+  }
+
+  /// Returns an operand of the instruction at the given offset.
+  /// @param ip The offset of the instruction.
+  /// @param operand The number of the operand, starting at 1.
+  /// @return The operand.
+  private int operand(int ip, int operand) {
+    return code.getByte(ip + operand) & 0xFF; // Java Bytes are signed
+  }
+
+  /// Returns the byte code offset of the target of the jump instruction.
+  /// @param ip The offset of the instruction.
+  /// @return The offset of the jump target.
+  private int jumpTarget(int ip) {
+    return code.getJumpLabel(operand(ip, 1));
+  }
+}
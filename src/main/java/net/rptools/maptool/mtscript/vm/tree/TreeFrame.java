@@ -0,0 +1,76 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.OperandStack;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import net.rptools.maptool.mtscript.vm.values.ValueType;
+
+/// The state of a program being executed by a `TreeProgram`.
+///
+/// Local symbols live on the operand stack of the VM in the same slots that the byte code
+/// interpreter uses, so the layout of a function call (the function, its arguments and then the
+/// function again) is identical and native functions can be called the same way.
+final class TreeFrame {
+
+  /// The value returned by a node for a tail call, the function to call has been moved down the
+  /// stack over the frame of the current function and is in `tailFunction`.
+  static final ValueRecord TAIL_CALL = new Marker("tail call");
+
+  /// The VM that the program is executed on.
+  final MapToolVM vm;
+
+  /// The operand stack of the VM.
+  final OperandStack stack;
+
+  /// The maximum depth of function calls.
+  final int maxCallDepth;
+
+  /// The index of the first local symbol of the current function on the stack.
+  int base;
+
+  /// The number of functions being executed.
+  int callDepth;
+
+  /// The function to call after a `TAIL_CALL` has been returned.
+  FunctionType tailFunction;
+
+  /// A value that is only used to signal the containing nodes, it never ends up on the stack.
+  /// @param name The name of the marker.
+  private record Marker(String name) implements ValueRecord {
+    @Override
+    public ValueType valueType() {
+      return ValueType.CODE;
+    }
+  }
+
+  /// Creates a new frame for executing a program.
+  /// @param vm The VM that the program is executed on.
+  TreeFrame(MapToolVM vm) {
+    this.vm = vm;
+    this.stack = vm.getStack();
+    this.maxCallDepth = vm.getMaxCallDepth();
+    this.base = stack.size();
+  }
+
+  /// Returns the index on the stack of the given local symbol of the current function.
+  /// @param index The index of the local symbol.
+  /// @return The index on the stack.
+  int slot(int index) {
+    return base + index;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.ByteCodeProgram;
+import net.rptools.maptool.mtscript.vm.ExecutableProgram;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/// A program that is executed as a tree of nodes rather than by the byte code interpreter.
+///
+/// The byte code is converted to a tree by the `TreeCompiler` when the program is created, so
+/// the dispatch, decoding and most of the stack traffic of the interpreter are replaced by calls
+/// between nodes that the JVM can inline. The program produces the same results as executing the
+/// byte code with `MapToolVM.exec`, but as calls between functions use the Java stack the depth
+/// of non tail recursion is limited by the size of the Java stack, so it is best suited to
+/// short scripts.
+public final class TreeProgram implements ExecutableProgram {
+
+  /// The logger for the class.
+  private static final Logger log = LogManager.getLogger(TreeProgram.class);
+
+  /// The byte code of the program.
+  private final CodeType code;
+
+  /// The tree of the program.
+  private final TreeCode tree;
+
+  /// Creates a new tree program.
+  /// @param code The byte code of the program.
+  /// @param tree The tree of the program.
+  private TreeProgram(CodeType code, TreeCode tree) {
+    this.code = code;
+    this.tree = tree;
+  }
+
+  /// Converts a program to a tree, along with the functions that it defines.
+  /// @param code The byte code of the program.
+  /// @return The tree program, or a `ByteCodeProgram` if the program can not be converted.
+  public static ExecutableProgram of(CodeType code) {
+    var tree = TreeCompiler.compile(code);
+    if (tree == null) {
+      return new ByteCodeProgram(code);
+    }
+    for (var function : code.functions()) {
+      if (TreeCompiler.tree(function) == null) {
+        return new ByteCodeProgram(code);
+      }
+    }
+    return new TreeProgram(code, tree);
+  }
+
+  @Override
+  public CodeType code() {
+    return code;
+  }
+
+  @Override
+  public ValueRecord exec(MapToolVM vm) {
+    var frame = new TreeFrame(vm);
+    try {
+      var result = tree.root().execute(frame);
+      // After the program halts, the values it left on the stack are discarded.
+      frame.stack.truncate(frame.base);
+      return result;
+    } catch (StackOverflowError e) {
+      log.error("\nError executing program: {} stack overflow\n", code.name());
+      throw new RuntimeException("Maximum call depth exceeded", e); // TODO: CDW
+    } catch (RuntimeException e) {
+      log.error("\nError executing program: {} {}\n", code.name(), e.getMessage());
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// Thrown by `Node.executeNumber` when the value of a node is not a number.
+/// This is used for control flow so does not capture a stack trace.
+final class UnexpectedTypeException extends RuntimeException {
+
+  /// The value of the node.
+  private final transient ValueRecord value;
+
+  /// Creates a new exception.
+  /// @param value The value of the node.
+  UnexpectedTypeException(ValueRecord value) {
+    super(null, null, false, false);
+    this.value = value;
+  }
+
+  /// Returns the value of the node that threw the exception.
+  /// @return The value of the node.
+  ValueRecord value() {
+    return value;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.vm.tree;
+
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+
+/// A node for a `while` or `for` loop. The value of the loop is the value of the body of its last
+/// iteration, or its initial value if the body is never executed. Loops without an initial value
+/// are only executed as statements.
+final class WhileNode extends Node {
+
+  /// The node for the condition.
+  private final Node condition;
+
+  /// The body of the loop, including the increment of a `for` loop.
+  private final Node body;
+
+  /// The node for the value of the loop if the body is never executed, or `null` if the loop has
+  /// no value.
+  private final Node initial;
+
+  /// Creates a new while node.
+  /// @param condition The node for the condition.
+  /// @param body The body of the loop.
+  /// @param initial The node for the value of the loop if the body is never executed, or `null`
+  ///     if the loop has no value.
+  WhileNode(Node condition, Node body, Node initial) {
+    this.condition = condition;
+    this.body = body;
+    this.initial = initial;
+  }
+
+  @Override
+  ValueRecord execute(TreeFrame frame) {
+    if (initial == null) {
+      executeVoid(frame);
+      return null;
+    }
+    var result = initial.execute(frame);
+    while (condition.executeBoolean(frame)) {
+      result = body.execute(frame);
+    }
+    return result;
+  }
+
+  @Override
+  void executeVoid(TreeFrame frame) {
+    if (initial != null) {
+      initial.executeVoid(frame);
+    }
+    while (condition.executeBoolean(frame)) {
+      body.executeVoid(frame);
+    }
+  }
+}
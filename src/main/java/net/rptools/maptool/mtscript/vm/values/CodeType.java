@@ -19,6 +19,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import net.rptools.maptool.mtscript.vm.DecodedCode;
 import net.rptools.maptool.mtscript.vm.SymbolEntry;
 
 /// Represents a code type in the MTScript VM.
@@ -38,6 +39,8 @@ public class CodeType implements ValueRecord {
   /// The functions that have been defined.
   private final FunctionType[] functions;
 
+  /// The pre-decoded form of the byte code, this is created the first time it is requested.
+  private DecodedCode decoded;
 
 
   /// Creates a new code type.
@@ -121,4 +124,20 @@ public class CodeType implements ValueRecord {
   public List<FunctionType> functions() {
     return List.of(functions);
   }
+
+  /// Returns the pre-decoded form of the byte code that the VM executes.
+  /// The code is decoded the first time this is called and the result is cached.
+  /// @return The decoded code.
+  public DecodedCode decoded() {
+    // The field is not volatile, but the decoded instructions are written before the DecodedCode
+    // is constructed and are only reachable through its final fields, so a thread that sees the
+    // reference also sees them. At worst two threads both decode the same code. The handlers are
+    // rewritten later by quickening, see DecodedCode for why those unsynchronized writes are safe.
+    var result = decoded;
+    if (result == null) {
+      result = DecodedCode.decode(this);
+      decoded = result;
+    }
+    return result;
+  }
 }
@@ -17,6 +17,36 @@ package net.rptools.maptool.mtscript.vm.values;
 /// Represents a number name in the MTScript VM.
 /// @param name The name name.
 public record IntegerType(double value) implements ValueRecord {
+
+  /// The smallest number in the cache of whole numbers.
+  private static final int CACHE_LOW = -128;
+
+  /// The largest number in the cache of whole numbers.
+  private static final int CACHE_HIGH = 1024;
+
+  /// Cache of the small whole numbers so that boxing them does not allocate.
+  private static final IntegerType[] CACHE = new IntegerType[CACHE_HIGH - CACHE_LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++) {
+      CACHE[i] = new IntegerType(i + CACHE_LOW);
+    }
+  }
+
+  /// Returns the number name for the given name, small whole numbers are returned from a cache.
+  /// @param value The name of the number.
+  /// @return The number name.
+  public static IntegerType valueOf(double value) {
+    int intValue = (int) value;
+    if (intValue == value
+        && intValue >= CACHE_LOW
+        && intValue <= CACHE_HIGH
+        && (intValue != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+      return CACHE[intValue - CACHE_LOW];
+    }
+    return new IntegerType(value);
+  }
+
   @Override
   public ValueType valueType() {
     return ValueType.INTEGER;
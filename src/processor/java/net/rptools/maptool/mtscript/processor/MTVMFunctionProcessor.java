@@ -0,0 +1,235 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/// Generates a `NativeFunctionLibrary` for the methods annotated with `@MTVMFunction` so the
+/// native functions do not have to be found by scanning the class path at run time.
+///
+/// The library lists every annotated method as a `NativeFunctionType` that calls the method
+/// through a method reference, and is registered for `ServiceLoader` in
+/// `META-INF/services/net.rptools.maptool.mtscript.functions.NativeFunctionLibrary`. By default the
+/// library is `MTVMFunctionLibrary` in the package of the first class (by name) with an annotated
+/// method, the `mtscript.library` option sets the fully qualified name of the library instead.
+///
+/// This only depends on the names of the MTScript types so it can be compiled before them.
+@SupportedAnnotationTypes(MTVMFunctionProcessor.ANNOTATION)
+@SupportedOptions(MTVMFunctionProcessor.LIBRARY_OPTION)
+public class MTVMFunctionProcessor extends AbstractProcessor {
+
+  /// The annotation for native functions.
+  static final String ANNOTATION = "net.rptools.maptool.mtscript.functions.MTVMFunction";
+
+  /// The option for the fully qualified name of the generated library.
+  static final String LIBRARY_OPTION = "mtscript.library";
+
+  /// The interface of the generated library.
+  private static final String LIBRARY_INTERFACE =
+      "net.rptools.maptool.mtscript.functions.NativeFunctionLibrary";
+
+  /// The type of the first parameter of a native function.
+  private static final String VM_TYPE = "net.rptools.maptool.mtscript.vm.MapToolVM";
+
+  /// The type of the second parameter of a native function.
+  private static final String ARGS_TYPE = "net.rptools.maptool.mtscript.vm.NativeArgs";
+
+  /// The simple name of the library if the option is not set.
+  private static final String DEFAULT_LIBRARY_NAME = "MTVMFunctionLibrary";
+
+  /// A native function to add to the library.
+  /// @param name The name of the function in MTScript.
+  /// @param arity The number of arguments of the function.
+  /// @param className The fully qualified name of the class declaring the method.
+  /// @param methodName The name of the method.
+  private record Function(String name, int arity, String className, String methodName) {}
+
+  /// True once the library has been generated.
+  private boolean generated = false;
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    var annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+    if (annotation == null || roundEnv.processingOver()) {
+      return false;
+    }
+    var functions = new ArrayList<Function>();
+    for (var element : roundEnv.getElementsAnnotatedWith(annotation)) {
+      var function = function(element);
+      if (function != null) {
+        functions.add(function);
+      }
+    }
+    if (functions.isEmpty()) {
+      return false;
+    }
+    if (generated) {
+      error(
+          functions.get(0).className(),
+          "@MTVMFunction methods in generated sources are not supported");
+      return false;
+    }
+    functions.sort(Comparator.comparing(Function::className).thenComparing(Function::methodName));
+    generate(functions);
+    generated = true;
+    return true;
+  }
+
+  /// Returns the native function for an annotated element, reporting an error if the element is
+  /// not a `public static void` method taking a `MapToolVM` and `NativeArgs`.
+  /// @param element The annotated element.
+  /// @return The native function, or `null` if the element is not valid.
+  private Function function(Element element) {
+    if (element.getKind() != ElementKind.METHOD) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Not a method", element);
+      return null;
+    }
+    var method = (ExecutableElement) element;
+    var modifiers = method.getModifiers();
+    var parameters = method.getParameters();
+    if (!modifiers.contains(Modifier.PUBLIC)
+        || !modifiers.contains(Modifier.STATIC)
+        || method.getReturnType().getKind() != TypeKind.VOID
+        || parameters.size() != 2
+        || !parameters.get(0).asType().toString().equals(VM_TYPE)
+        || !parameters.get(1).asType().toString().equals(ARGS_TYPE)) {
+      processingEnv
+          .getMessager()
+          .printMessage(
+              Diagnostic.Kind.ERROR,
+              "@MTVMFunction methods must be public static void and take a MapToolVM and"
+                  + " NativeArgs",
+              element);
+      return null;
+    }
+    String name = null;
+    int arity = 0;
+    for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+      if (!mirror.getAnnotationType().toString().equals(ANNOTATION)) {
+        continue;
+      }
+      for (var entry : mirror.getElementValues().entrySet()) {
+        AnnotationValue value = entry.getValue();
+        switch (entry.getKey().getSimpleName().toString()) {
+          case "name" -> name = (String) value.getValue();
+          case "arity" -> arity = (Integer) value.getValue();
+          default -> {}
+        }
+      }
+    }
+    var type = (TypeElement) method.getEnclosingElement();
+    return new Function(
+        name, arity, type.getQualifiedName().toString(), method.getSimpleName().toString());
+  }
+
+  /// Generates the library and registers it as a service.
+  /// @param functions The functions in the library, sorted by class.
+  private void generate(List<Function> functions) {
+    var library = processingEnv.getOptions().get(LIBRARY_OPTION);
+    if (library == null) {
+      var className = functions.get(0).className();
+      int dot = className.lastIndexOf('.');
+      library =
+          dot == -1 ? DEFAULT_LIBRARY_NAME : className.substring(0, dot + 1) + DEFAULT_LIBRARY_NAME;
+    }
+    int dot = library.lastIndexOf('.');
+    var packageName = dot == -1 ? "" : library.substring(0, dot);
+    var simpleName = library.substring(dot + 1);
+    var elements = processingEnv.getElementUtils();
+
+    var filer = processingEnv.getFiler();
+    try (var out = new PrintWriter(filer.createSourceFile(library).openWriter())) {
+      if (!packageName.isEmpty()) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/// The native functions annotated with `@MTVMFunction`.");
+      out.println("@javax.annotation.processing.Generated(\"" + getClass().getName() + "\")");
+      out.println("public final class " + simpleName + " implements " + LIBRARY_INTERFACE + " {");
+      out.println();
+      out.println("  /// The functions in the library.");
+      out.println(
+          "  private static final java.util.List<"
+              + "net.rptools.maptool.mtscript.vm.values.NativeFunctionType> FUNCTIONS =");
+      out.println("      java.util.List.of(");
+      for (int i = 0; i < functions.size(); i++) {
+        var function = functions.get(i);
+        out.println(
+            "          new net.rptools.maptool.mtscript.vm.values.NativeFunctionType("
+                + elements.getConstantExpression(function.name())
+                + ", "
+                + function.arity()
+                + ", "
+                + function.className()
+                + "::"
+                + function.methodName()
+                + ")"
+                + (i < functions.size() - 1 ? "," : ");"));
+      }
+      out.println();
+      out.println("  @Override");
+      out.println(
+          "  public java.util.List<net.rptools.maptool.mtscript.vm.values.NativeFunctionType>"
+              + " functions() {");
+      out.println("    return FUNCTIONS;");
+      out.println("  }");
+      out.println("}");
+    } catch (IOException e) {
+      error(library, "Unable to write " + library + ": " + e.getMessage());
+      return;
+    }
+
+    var service = "META-INF/services/" + LIBRARY_INTERFACE;
+    try (var out =
+        new PrintWriter(
+            filer.createResource(StandardLocation.CLASS_OUTPUT, "", service).openWriter())) {
+      out.println(library);
+    } catch (IOException e) {
+      error(library, "Unable to write " + service + ": " + e.getMessage());
+    }
+  }
+
+  /// Reports an error that is not attached to an element.
+  /// @param className The class the error relates to.
+  /// @param message The error message.
+  private void error(String className, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, className + ": " + message);
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.execution.AdmissionController;
+import net.rptools.maptool.mtscript.execution.AdmissionPolicy;
+import net.rptools.maptool.mtscript.execution.AdmissionPolicy.Overflow;
+import net.rptools.maptool.mtscript.execution.ScriptExecutionService;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AdmissionControllerTests {
+
+  /// Holds the executions in the `_test_wait` native function until it is counted down.
+  private CountDownLatch latch;
+
+  /// The globals the programs are executed against.
+  private VMGlobals globals;
+
+  /// A program that waits on the latch and returns 1.
+  private CodeType code;
+
+  @BeforeEach
+  public void setup() {
+    latch = new CountDownLatch(1);
+    globals = new VMGlobals();
+    globals.addBuiltInFunction(
+        "_test_wait",
+        0,
+        (vm, args) -> {
+          try {
+            latch.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          args.returnNumber(1);
+        });
+    code = new SExpressionCompiler(globals).compile("(_test_wait)", "main");
+  }
+
+  /// Tests that a user at their limit is queued without blocking other users.
+  @Test
+  public void testPerUserLimit() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(10, 10, 1, 10, Overflow.REJECT));
+      var first = controller.submit("campaign", "player", code);
+      var second = controller.submit("campaign", "player", code);
+      var gm = controller.submit("campaign", "gm", code);
+      assertEquals(2, controller.getRunning());
+      assertEquals(1, controller.getQueueDepth());
+
+      latch.countDown();
+      for (var future : List.of(first, second, gm)) {
+        assertEquals(new IntegerType(1), future.get(10, TimeUnit.SECONDS));
+      }
+      var metrics = controller.getMetrics();
+      assertEquals(3, metrics.admitted());
+      assertEquals(0, metrics.rejected());
+      assertEquals(0, metrics.queued());
+      assertTrue(metrics.maxQueueWaitNanos() > 0);
+      assertTrue(metrics.maxQueueWaitNanos() >= metrics.meanQueueWaitNanos());
+    }
+  }
+
+  /// Tests that the same user name in two tenants has a limit in each tenant.
+  @Test
+  public void testPerUserLimitIsPerTenant() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(10, 10, 1, 10, Overflow.REJECT));
+      var first = controller.submit("first", "gm", code);
+      var second = controller.submit("second", "gm", code);
+      assertEquals(2, controller.getRunning());
+      assertEquals(0, controller.getQueueDepth());
+      latch.countDown();
+      assertEquals(new IntegerType(1), first.get(10, TimeUnit.SECONDS));
+      assertEquals(new IntegerType(1), second.get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  /// Tests that a tenant at its limit is queued without blocking other tenants.
+  @Test
+  public void testPerTenantLimit() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(10, 2, 10, 10, Overflow.REJECT));
+      controller.submit("busy", "a", code);
+      controller.submit("busy", "b", code);
+      var queued = controller.submit("busy", "c", code);
+      var other = controller.submit("quiet", "d", code);
+      assertEquals(3, controller.getRunning());
+      assertEquals(1, controller.getQueueDepth());
+      latch.countDown();
+      assertEquals(new IntegerType(1), other.get(10, TimeUnit.SECONDS));
+      assertEquals(new IntegerType(1), queued.get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  /// Tests that new executions are rejected when the queue is full.
+  @Test
+  public void testRejectWhenFull() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(1, 1, 1, 1, Overflow.REJECT));
+      var running = controller.submit("campaign", "player", code);
+      var queued = controller.submit("campaign", "player", code);
+      var rejected = controller.submit("campaign", "player", code);
+      assertRejected(rejected);
+      latch.countDown();
+      assertEquals(new IntegerType(1), running.get(10, TimeUnit.SECONDS));
+      assertEquals(new IntegerType(1), queued.get(10, TimeUnit.SECONDS));
+      assertEquals(1, controller.getMetrics().rejected());
+    }
+  }
+
+  /// Tests that queued executions completed by the caller do not count toward the queue limit.
+  @Test
+  public void testCancelledNotQueued() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(1, 1, 1, 1, Overflow.REJECT));
+      var running = controller.submit("campaign", "player", code);
+      var cancelled = controller.submit("campaign", "player", code);
+      cancelled.cancel(true);
+      assertEquals(0, controller.getQueueDepth());
+
+      var completed = controller.submit("campaign", "player", code);
+      completed.complete(new IntegerType(2));
+      var queued = controller.submit("campaign", "player", code);
+      assertFalse(queued.isDone());
+      assertEquals(1, controller.getQueueDepth());
+
+      latch.countDown();
+      assertEquals(new IntegerType(1), running.get(10, TimeUnit.SECONDS));
+      assertEquals(new IntegerType(1), queued.get(10, TimeUnit.SECONDS));
+      var metrics = controller.getMetrics();
+      assertEquals(0, metrics.rejected());
+      assertEquals(2, metrics.admitted());
+    }
+  }
+
+  /// Tests that cancelling an admitted execution does not stop it, so it still counts toward the
+  /// limits until it finishes.
+  @Test
+  public void testCancelAdmitted() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(1, 1, 1, 1, Overflow.REJECT));
+      var cancelled = controller.submit("campaign", "player", code);
+      cancelled.cancel(true);
+      var queued = controller.submit("campaign", "player", code);
+      assertEquals(1, controller.getRunning());
+      assertEquals(1, controller.getQueueDepth());
+
+      latch.countDown();
+      assertEquals(new IntegerType(1), queued.get(10, TimeUnit.SECONDS));
+      assertEquals(2, service.getMetrics().completed());
+    }
+  }
+
+  /// Tests that the oldest queued execution is shed when the queue is full.
+  @Test
+  public void testShedOldest() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(1, 1, 1, 1, Overflow.SHED_OLDEST));
+      var running = controller.submit("campaign", "player", code);
+      var oldest = controller.submit("campaign", "player", code);
+      var newest = controller.submit("campaign", "player", code);
+      assertRejected(oldest);
+      assertFalse(newest.isDone());
+      latch.countDown();
+      assertEquals(new IntegerType(1), running.get(10, TimeUnit.SECONDS));
+      assertEquals(new IntegerType(1), newest.get(10, TimeUnit.SECONDS));
+      var metrics = controller.getMetrics();
+      assertEquals(1, metrics.shed());
+      assertEquals(2, metrics.admitted());
+    }
+  }
+
+  /// Tests that a long queue is drained without recursing when the service rejects the queued
+  /// executions straight away.
+  @Test
+  public void testDrainRejectedQueue() throws Exception {
+    int queued = 20_000;
+    var quick = new SExpressionCompiler(globals).compile("1", "quick");
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(1, 1, 1, queued, Overflow.REJECT));
+      var running = controller.submit("campaign", "player", code);
+      var futures = new ArrayList<CompletableFuture<ValueRecord>>();
+      for (int i = 0; i < queued; i++) {
+        futures.add(controller.submit("campaign", "player", quick));
+      }
+      var closer = Thread.ofVirtual().start(service::close);
+      while (!service.submit(quick).isCompletedExceptionally()) {
+        Thread.sleep(1);
+      }
+      latch.countDown();
+      assertEquals(new IntegerType(1), running.get(10, TimeUnit.SECONDS));
+      for (var future : futures) {
+        var e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+      }
+      assertEquals(0, controller.getRunning());
+      closer.join();
+    }
+  }
+
+  /// Tests that `trySubmit` fails straight away rather than queueing.
+  @Test
+  public void testFastFail() throws Exception {
+    try (var service = new ScriptExecutionService(globals)) {
+      var controller =
+          new AdmissionController(service, new AdmissionPolicy(1, 1, 1, 10, Overflow.REJECT));
+      var running = controller.trySubmit("campaign", "player", code);
+      assertRejected(controller.trySubmit("campaign", "player", code));
+      assertEquals(0, controller.getQueueDepth());
+      latch.countDown();
+      assertEquals(new IntegerType(1), running.get(10, TimeUnit.SECONDS));
+      assertThrows(
+          IllegalArgumentException.class, () -> new AdmissionPolicy(0, 1, 1, 1, Overflow.REJECT));
+    }
+  }
+
+  /// Asserts that the execution was rejected, without waiting for it.
+  /// @param future The future of the execution.
+  private void assertRejected(CompletableFuture<ValueRecord> future) {
+    assertTrue(future.isCompletedExceptionally());
+    var e = assertThrows(ExecutionException.class, future::get);
+    assertInstanceOf(RejectedExecutionException.class, e.getCause());
+  }
+}
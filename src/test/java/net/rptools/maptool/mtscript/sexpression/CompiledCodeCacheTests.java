@@ -0,0 +1,190 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.rptools.maptool.mtscript.execution.CompiledCodeCache;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import org.junit.jupiter.api.Test;
+
+public class CompiledCodeCacheTests {
+
+  /// Tests that a source is only compiled once, even when it defines globals.
+  @Test
+  public void testHit() {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var cache = new CompiledCodeCache(compiler, 1 << 20);
+    var source = "(var clicks 0) (set clicks (+ clicks 1))";
+    var code = cache.compile(source, "button");
+    assertSame(code, cache.compile(source, "button"));
+    assertNotSame(code, cache.compile("(+ 1 2)", "button"));
+    // Compiling the source again would define the global again.
+    assertThrows(RuntimeException.class, () -> compiler.compile(source, "button"));
+
+    var vm = new MapToolVM(globals);
+    vm.exec(code);
+    vm.exec(cache.compile(source, "button"));
+    assertEquals(new IntegerType(1), globals.getGlobalSymbol("clicks").symbol().value());
+    var stats = cache.getStats();
+    assertEquals(2, stats.hits());
+    assertEquals(2, stats.misses());
+    assertEquals(0, stats.evictions());
+    assertEquals(2, stats.size());
+    assertEquals(0.5, stats.hitRate());
+  }
+
+  /// Tests that the least recently used programs are evicted when the cache is over its capacity.
+  @Test
+  public void testEviction() {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var sizing = new CompiledCodeCache(compiler, 1 << 20);
+    sizing.compile("(+ 1 2)", "a");
+    long weight = sizing.getStats().weight();
+
+    var cache = new CompiledCodeCache(compiler, weight * 2);
+    var a = cache.compile("(+ 1 2)", "a");
+    var b = cache.compile("(+ 1 2)", "b");
+    assertSame(a, cache.compile("(+ 1 2)", "a"));
+    cache.compile("(+ 1 2)", "c");
+    var stats = cache.getStats();
+    assertEquals(1, stats.evictions());
+    assertEquals(2, stats.size());
+    assertEquals(weight * 2, stats.weight());
+    assertSame(a, cache.compile("(+ 1 2)", "a"));
+    assertNotSame(b, cache.compile("(+ 1 2)", "b"));
+
+    cache.invalidateAll();
+    assertEquals(0, cache.getStats().size());
+    assertNotSame(a, cache.compile("(+ 1 2)", "a"));
+  }
+
+  /// Tests that programs that define globals are not evicted or invalidated, as they can not be
+  /// compiled again.
+  @Test
+  public void testGlobalsNotEvicted() {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var sizing = new CompiledCodeCache(compiler, 1 << 20);
+    sizing.compile("(+ 1 2)", "a");
+    long weight = sizing.getStats().weight();
+
+    var cache = new CompiledCodeCache(compiler, weight * 2);
+    var source = "(var clicks 0) (set clicks (+ clicks 1))";
+    var button = cache.compile(source, "button");
+    long buttonWeight = cache.getStats().weight();
+    for (int i = 0; i < 4; i++) {
+      cache.compile("(+ 1 2)", "other" + i);
+    }
+    assertTrue(cache.getStats().evictions() >= 3);
+    assertSame(button, cache.compile(source, "button"));
+
+    cache.invalidateAll();
+    var stats = cache.getStats();
+    assertEquals(1, stats.size());
+    assertEquals(buttonWeight, stats.weight());
+    assertSame(button, cache.compile(source, "button"));
+  }
+
+  /// Tests that functions are included in the weight of a program.
+  @Test
+  public void testFunctionWeight() {
+    var compiler = new SExpressionCompiler(new VMGlobals());
+    var cache = new CompiledCodeCache(compiler, 1 << 20);
+    cache.compile("(+ 1 2)", "plain");
+    long plain = cache.getStats().weight();
+    cache.compile("(def add3 (a b c) (+ a (+ b c))) (add3 1 2 3)", "function");
+    long function = cache.getStats().weight() - plain;
+    assertTrue(function > plain * 2);
+  }
+
+  /// Tests that the source is included in the weight of a program.
+  @Test
+  public void testSourceWeight() {
+    var compiler = new SExpressionCompiler(new VMGlobals());
+    var cache = new CompiledCodeCache(compiler, 1 << 20);
+    cache.compile("(+ 1 2)", "short");
+    long plain = cache.getStats().weight();
+    cache.compile("(+ 1     2)", "long");
+    assertEquals(plain + 4, cache.getStats().weight() - plain);
+  }
+
+  /// Tests that compile errors are not cached.
+  @Test
+  public void testErrorsNotCached() {
+    var cache = new CompiledCodeCache(new SExpressionCompiler(new VMGlobals()), 1 << 20);
+    assertThrows(RuntimeException.class, () -> cache.compile("(+ 1)", "bad"));
+    assertThrows(RuntimeException.class, () -> cache.compile("(+ 1)", "bad"));
+    var stats = cache.getStats();
+    assertEquals(2, stats.misses());
+    assertEquals(0, stats.size());
+  }
+
+  /// Tests that a compile that fails with an error rather than an exception is not cached, so later
+  /// lookups compile the source again rather than waiting for it forever.
+  @Test
+  public void testCompileErrorNotCached() {
+    var cache = new CompiledCodeCache(new SExpressionCompiler(new VMGlobals()), 1 << 20);
+    int depth = 1_000_000;
+    var source = "(+ 1 ".repeat(depth) + "1" + ")".repeat(depth);
+    assertTimeoutPreemptively(
+        Duration.ofSeconds(60),
+        () -> {
+          assertThrows(StackOverflowError.class, () -> cache.compile(source, "nested"));
+          assertThrows(StackOverflowError.class, () -> cache.compile(source, "nested"));
+        });
+    var stats = cache.getStats();
+    assertEquals(2, stats.misses());
+    assertEquals(0, stats.size());
+  }
+
+  /// Tests that a source looked up by many threads at once is only compiled once.
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    var globals = new VMGlobals();
+    var cache = new CompiledCodeCache(new SExpressionCompiler(globals), 1 << 20);
+    var source = "(var shared 1) shared";
+    int lookups = 64;
+    try (var executor = Executors.newFixedThreadPool(8)) {
+      var futures = new ArrayList<Future<CodeType>>();
+      for (int i = 0; i < lookups; i++) {
+        futures.add(executor.submit((Callable<CodeType>) () -> cache.compile(source, "main")));
+      }
+      var code = futures.get(0).get();
+      for (var future : futures) {
+        assertSame(code, future.get());
+      }
+    }
+    var stats = cache.getStats();
+    assertEquals(1, stats.misses());
+    assertEquals(lookups - 1, stats.hits());
+  }
+}
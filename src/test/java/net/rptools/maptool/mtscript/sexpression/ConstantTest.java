@@ -57,4 +57,20 @@ public class ConstantTest {
     assertInstanceOf(StringType.class, result);
     assertEquals("world", ((StringType) result).value());
   }
+
+  /// Tests that literals with the same name but different types are separate constants, and that
+  /// repeated literals share a constant.
+  @Test
+  public void testConstantPool() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    // The name of the number 1 is "1.0".
+    var code = compiler.compile("(block (var s \"1.0\") (+ (+ 1 1) 1))", "main");
+    assertEquals(new IntegerType(3), vm.exec(code));
+    var constants = code.constants();
+    assertEquals(2, constants.size());
+    assertEquals(new StringType("1.0"), constants.get(0));
+    assertEquals(new IntegerType(1), constants.get(1));
+  }
 }
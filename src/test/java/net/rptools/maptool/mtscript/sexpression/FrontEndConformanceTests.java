@@ -0,0 +1,169 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import net.rptools.maptool.mtscript.parser.FrontEnd;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.StringType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/// Tests that the hand-written `SExpressionReader` generates the same code as the ANTLR parser.
+/// The whole test suite can also be run with the reader with the `testReaderFrontEnd` task.
+public class FrontEndConformanceTests {
+
+  /// Tests that both front ends generate the same code for the test programs.
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "local_var.mtsx",
+        "local_var_with_global.mtsx",
+        "recursive_fib.mtsx",
+        "simple_for.mtsx",
+        "simple_global_var_test.mtsx",
+        "simple_while.mtsx",
+        "test2.mtsx"
+      })
+  public void testPrograms(String program) throws IOException {
+    assertSameCode(SExpressionTestUtil.readSExpressionTestFile(program));
+  }
+
+  /// Tests that both front ends generate the same code for the forms of the language, the native
+  /// functions are from `NativeFunctionLibraryTests.TestLibrary`.
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "",
+        "(42)",
+        "(\"hello\")",
+        "(+ \"say \\\"hi\\\"\" \"\\\\\")",
+        "(true) (false)",
+        "(/ (* (+ 7 8) 12) (- 12 7))",
+        "(!= (<= 1 2) (>= 2 1))",
+        "// a comment\n(+ 1 /* another */ 2) // trailing",
+        "(var a 1) (var b 2) (set a (+ a b)) a",
+        "MT_VM_VERSION",
+        "(block (var x 1) (var y (block (var x 10) (+ x 5))) (+ x y))",
+        "(block (var x 0) (while (< x 10) (set x (+ x 1))) x)",
+        "(for (var i 0) (< i 10) (set i (+ i 1)) i)",
+        "(if (< 1 2) \"yes\" \"no\")",
+        "(def fact (n) (if (== n 0) 1 (* n (fact (- n 1))))) (fact 5)",
+        "(def count (n acc) (block (var m (- n 1)) (if (< n 1) acc (count m (+ acc 1)))))"
+            + " (count 10 0)",
+        "(block (def sq (x) (* x x)) (sq 3))",
+        "(_test_add 40 2)",
+        "(+ 1 (_test_add 2 (_test_add 3 4)))",
+        "( (1) (2) (3) )",
+        "(var x-1 2) (var <x> (* x-1 x-1)) <x>",
+        "(def square (x) (block (* x x)) (square 5)"
+      })
+  public void testForms(String source) {
+    assertSameCode(source);
+  }
+
+  /// Tests that both front ends reject invalid programs.
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "()",
+        "(+ 1)",
+        "(+ 1 2 3)",
+        "(undefined 1)",
+        "(_test_add 1)",
+        "(block (var x 1) (var x 2) x)",
+        "(set undefined 1)",
+        "(if true 1)",
+        "(while true)"
+      })
+  public void testErrors(String source) {
+    for (var frontEnd : FrontEnd.values()) {
+      var compiler = compiler(frontEnd, new VMGlobals());
+      assertThrows(RuntimeException.class, () -> compiler.compile(source, "main"), frontEnd.name());
+    }
+  }
+
+  /// Tests reading a `char[]` with the reader.
+  @Test
+  public void testCharArray() {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    var compiler = compiler(FrontEnd.READER, globals);
+    var code = compiler.compile(CharBuffer.wrap("(+ \"a\" \"b\")".toCharArray()), "main");
+    assertEquals(new StringType("ab"), vm.exec(code));
+    code = compiler.compile(CharBuffer.wrap("(_test_add 40 2)".toCharArray()), "main");
+    assertEquals(new IntegerType(42), vm.exec(code));
+  }
+
+  /// Asserts that both front ends generate the same code for the source.
+  /// @param source The source.
+  private void assertSameCode(String source) {
+    var expected = compiler(FrontEnd.ANTLR, new VMGlobals()).compile(source, "main");
+    var actual = compiler(FrontEnd.READER, new VMGlobals()).compile(source, "main");
+    assertSameCode(expected, actual);
+  }
+
+  /// Asserts that two pieces of code are the same, comparing functions by their code.
+  /// @param expected The expected code.
+  /// @param actual The actual code.
+  private void assertSameCode(CodeType expected, CodeType actual) {
+    assertEquals(expected.name(), actual.name());
+    assertArrayEquals(bytes(expected), bytes(actual), "Byte code of " + expected.name());
+    assertEquals(expected.jumpLabels(), actual.jumpLabels());
+    assertEquals(expected.constants().size(), actual.constants().size());
+    for (int i = 0; i < expected.constants().size(); i++) {
+      if (expected.getConstant(i) instanceof CodeType code) {
+        assertSameCode(code, (CodeType) actual.getConstant(i));
+      } else {
+        assertEquals(expected.getConstant(i), actual.getConstant(i));
+      }
+    }
+    assertEquals(expected.functions().size(), actual.functions().size());
+    for (int i = 0; i < expected.functions().size(); i++) {
+      assertSameCode(expected.functions().get(i), actual.functions().get(i));
+    }
+  }
+
+  /// Returns the byte code of the code.
+  /// @param code The code.
+  /// @return The byte code.
+  private byte[] bytes(CodeType code) {
+    var bytes = new byte[code.codeLength()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = code.getByte(i);
+    }
+    return bytes;
+  }
+
+  /// Returns a compiler for the front end.
+  /// @param frontEnd The front end.
+  /// @param globals The globals to compile against.
+  /// @return The compiler.
+  private SExpressionCompiler compiler(FrontEnd frontEnd, VMGlobals globals) {
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setFrontEnd(frontEnd);
+    return compiler;
+  }
+}
@@ -16,6 +16,7 @@ package net.rptools.maptool.mtscript.sexpression;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
 import net.rptools.maptool.mtscript.vm.MapToolVM;
@@ -23,6 +24,10 @@ import net.rptools.maptool.mtscript.vm.VMGlobals;
 import net.rptools.maptool.mtscript.vm.values.FunctionType;
 import net.rptools.maptool.mtscript.vm.values.IntegerType;
 import net.rptools.maptool.mtscript.vm.values.StringType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
 import org.junit.jupiter.api.Test;
 
 public class FunctionTests {
@@ -104,4 +109,66 @@ public class FunctionTests {
     assertInstanceOf(IntegerType.class, result);
     assertEquals(120, ((IntegerType) result).value());
   }
+
+  @Test
+  public void testArgumentOrder() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(def sub (x y) (- x y)) (sub 5 6)", "main");
+    var result = vm.exec(code);
+    assertInstanceOf(IntegerType.class, result);
+    assertEquals(-1, ((IntegerType) result).value());
+  }
+
+  @Test
+  public void testDeepRecursion() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(def count (n) (if (== n 0) 0 (+ 1 (count (- n 1))))) (count 50000)", "main");
+    // The VM dumps the whole stack on every call when debugging which is too slow at this depth.
+    var logLevel = LogManager.getLogger(MapToolVM.class).getLevel();
+    Configurator.setLevel(MapToolVM.class, Level.INFO);
+    ValueRecord result;
+    try {
+      result = vm.exec(code);
+    } finally {
+      Configurator.setLevel(MapToolVM.class, logLevel);
+    }
+    assertInstanceOf(IntegerType.class, result);
+    assertEquals(50000, ((IntegerType) result).value());
+    assertEquals(0, vm.getCallDepth());
+  }
+
+  @Test
+  public void testMaxCallDepth() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    vm.setMaxCallDepth(10);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(def count (n) (if (== n 0) 0 (+ 1 (count (- n 1))))) (count 100)", "main");
+    assertThrows(RuntimeException.class, () -> vm.exec(code));
+  }
+
+  @Test
+  public void testTailCall() {
+    var globals = new VMGlobals();
+    // Neither the stack nor the call frames are large enough unless the tail calls reuse them.
+    MapToolVM vm = new MapToolVM(globals, 32, 32);
+    vm.setMaxCallDepth(2);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(def sum (n acc) (if (== n 0) acc (block (var m (- n 1)) (sum m (+ acc n)))))"
+                + " (sum 1000 0)",
+            "main");
+    var result = vm.exec(code);
+    assertInstanceOf(IntegerType.class, result);
+    assertEquals(500500, ((IntegerType) result).value());
+  }
 }
@@ -0,0 +1,176 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.StringType;
+import net.rptools.maptool.mtscript.vm.values.Symbol;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.Test;
+
+public class GlobalsTests {
+
+  /// Tests that globals are found by name once the index has grown past its initial capacity.
+  @Test
+  public void testGlobalIndex() {
+    var globals = new VMGlobals();
+    int first = globals.getGlobalVariableCount();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(first + i, globals.defineGlobalVariable("global" + i));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(first + i, globals.getGlobalSymbolIndex("global" + i));
+    }
+    assertEquals(-1, globals.getGlobalSymbolIndex("global1000"));
+    assertThrows(RuntimeException.class, () -> globals.defineGlobalVariable("global10"));
+  }
+
+  /// Tests that a constant is given the index it is stored at.
+  @Test
+  public void testConstantIndex() {
+    var globals = new VMGlobals();
+    globals.defineConstant("C", new Symbol("C", new IntegerType(7)));
+    int index = globals.getConstantIndex("C");
+    assertEquals(globals.getGlobalVariableCount() - 1, index);
+    assertEquals(index, globals.getGlobalVariable(index).index());
+    assertEquals(new IntegerType(7), globals.getGlobalVariable(index).symbol().value());
+    assertThrows(
+        RuntimeException.class, () -> globals.setGlobalVariable(index, new IntegerType(1)));
+  }
+
+  /// Tests reading and writing a global through a handle.
+  @Test
+  public void testGlobalHandle() {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    vm.exec(compiler.compile("(var a 1)", "init"));
+    assertNull(globals.getGlobalHandle("b"));
+    var handle = globals.getGlobalHandle("a");
+    assertEquals("a", handle.name());
+    assertEquals(new IntegerType(1), handle.get());
+    handle.set(new StringType("x"));
+    assertEquals(new StringType("xy"), vm.exec(compiler.compile("(+ a \"y\")", "main")));
+    vm.exec(compiler.compile("(set a 5)", "main"));
+    assertEquals(new IntegerType(5), handle.get());
+    assertEquals(new IntegerType(5), globals.getGlobalSymbol("a").symbol().value());
+  }
+
+  /// Tests defining and looking up globals from several threads at once.
+  @Test
+  public void testConcurrentDefine() throws Exception {
+    var globals = new VMGlobals();
+    int defined = globals.getGlobalVariableCount();
+    int threads = 4;
+    int perThread = 500;
+    var start = new CountDownLatch(1);
+    var tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      tasks.add(
+          () -> {
+            start.await();
+            for (int i = 0; i < perThread; i++) {
+              var name = "t" + thread + "_" + i;
+              int index = globals.defineGlobalVariable(name);
+              globals.setGlobalVariable(index, new IntegerType(i));
+              // Read back one of this thread's globals and one that may be being defined.
+              assertEquals(index, globals.getGlobalSymbolIndex(name));
+              var other = globals.getGlobalHandle("t" + ((thread + 1) % threads) + "_" + i);
+              if (other != null) {
+                other.get();
+              }
+            }
+            return null;
+          });
+    }
+    runAll(tasks, start);
+    assertEquals(defined + threads * perThread, globals.getGlobalVariableCount());
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < perThread; i++) {
+        var handle = globals.getGlobalHandle("t" + t + "_" + i);
+        assertEquals(new IntegerType(i), handle.get());
+        assertEquals("t" + t + "_" + i, handle.name());
+      }
+    }
+  }
+
+  /// Tests VMs on different threads executing programs against the same globals.
+  @Test
+  public void testConcurrentExec() throws Exception {
+    var globals = new VMGlobals();
+    var shared = new SExpressionCompiler(globals);
+    new MapToolVM(globals).exec(shared.compile("(var step 1)", "init"));
+    int threads = 4;
+    var start = new CountDownLatch(1);
+    var tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < threads; t++) {
+      var counter = "counter" + t;
+      tasks.add(
+          () -> {
+            var vm = new MapToolVM(globals);
+            var compiler = new SExpressionCompiler(globals);
+            vm.exec(compiler.compile("(var " + counter + " 0)", "init"));
+            var code = compiler.compile("(set " + counter + " (+ " + counter + " step))", "main");
+            start.await();
+            for (int i = 0; i < 200; i++) {
+              vm.exec(code);
+            }
+            return null;
+          });
+    }
+    // The VM dumps the globals on every execution when debugging.
+    var logLevel = LogManager.getLogger(MapToolVM.class).getLevel();
+    Configurator.setLevel(MapToolVM.class, Level.INFO);
+    try {
+      runAll(tasks, start);
+    } finally {
+      Configurator.setLevel(MapToolVM.class, logLevel);
+    }
+    for (int t = 0; t < threads; t++) {
+      assertEquals(new IntegerType(200), globals.getGlobalSymbol("counter" + t).symbol().value());
+    }
+  }
+
+  /// Runs tasks on their own threads, releasing them together.
+  /// @param tasks The tasks to run.
+  /// @param start The latch the tasks wait on before they start.
+  private void runAll(ArrayList<Callable<Void>> tasks, CountDownLatch start) throws Exception {
+    try (var executor = Executors.newFixedThreadPool(tasks.size())) {
+      var futures = new ArrayList<Future<Void>>();
+      for (var task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      start.countDown();
+      for (var future : futures) {
+        future.get();
+      }
+    }
+  }
+}
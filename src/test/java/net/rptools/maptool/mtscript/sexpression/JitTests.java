@@ -0,0 +1,205 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.jit.JitProfile;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.FunctionType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.StringType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.Test;
+
+public class JitTests {
+
+  /// Programs that are run with and without the JIT, the results must be the same.
+  private static final String[] PROGRAMS = {
+    "(def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))) (fib 15)",
+    "(def sum (n acc) (if (== n 0) acc (sum (- n 1) (+ acc n)))) (sum 100 0)",
+    "(def f (x y) (block (var z (* x y)) (/ z 4))) (f (f 3 5) 7)",
+    "(def cmp (x y) (if (<= x y) (>= x y) (!= x y))) (block (cmp 1 2) (cmp 2 1) (cmp 2 2))",
+    "(def neg (x) (- 0 x)) (block (neg 1) (neg 0) (neg (/ 5 2)))",
+    "(def lt (x y) (< x y)) (lt (/ 0 0) 1)",
+    "(def count (n) (block (var i 0) (while (< i n) (set i (+ i 1))) i)) (count 50)",
+    "(def last (n) (block (var i 0) (while (< i n) (set i (+ i 1))))) (+ (last 5) (last 7))",
+  };
+
+  /// Tests that compiled functions give the same results as the interpreter.
+  @Test
+  public void testCompiledMatchesInterpreter() {
+    for (var program : PROGRAMS) {
+      var jitResult = exec(program, true);
+      var interpretedResult = exec(program, false);
+      assertEquals(interpretedResult, jitResult, program);
+    }
+  }
+
+  /// Tests that a hot function is compiled.
+  @Test
+  public void testFunctionCompiled() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    vm.setJitEnabled(true);
+    vm.setJitThreshold(10);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))) (fib 20)", "main");
+    assertEquals(new IntegerType(6765), vm.exec(code));
+    var fib = JitProfile.of(function(code, "fib"));
+    assertTrue(fib.isJitAttempted());
+    assertNotNull(fib.jitCode());
+  }
+
+  /// Tests that the JIT is disabled by default, so hot functions are interpreted unless it is
+  /// enabled.
+  @Test
+  public void testJitDisabledByDefault() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    assertFalse(vm.isJitEnabled());
+    vm.setJitThreshold(1);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(def add (x y) (+ x y)) (add 1 2) (add 3 4)", "main");
+    assertEquals(new IntegerType(7), vm.exec(code));
+    assertFalse(JitProfile.of(function(code, "add")).isJitAttempted());
+  }
+
+  /// Tests that a function with a loop is compiled, unless it uses the value of the loop, which is
+  /// a boolean if the body is never executed and a number otherwise.
+  @Test
+  public void testLoopFunctionCompiled() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    vm.setJitEnabled(true);
+    vm.setJitThreshold(1);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(def count (n) (block (var i 0) (while (< i n) (set i (+ i 1))) i))"
+                + " (def last (n) (block (var i 0) (while (< i n) (set i (+ i 1)))))"
+                + " (+ (count 3) (last 4))",
+            "main");
+    assertEquals(new IntegerType(7), vm.exec(code));
+    assertNotNull(JitProfile.of(function(code, "count")).jitCode());
+    var last = JitProfile.of(function(code, "last"));
+    assertTrue(last.isJitAttempted());
+    assertNull(last.jitCode());
+  }
+
+  /// Tests that functions that are not purely numeric are not compiled.
+  @Test
+  public void testFunctionNotCompiled() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    vm.setJitEnabled(true);
+    vm.setJitThreshold(1);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(var g 1) (def addg (x) (+ x g)) (addg 1) (addg 2)", "main");
+    vm.exec(code);
+    var addg = JitProfile.of(function(code, "addg"));
+    assertTrue(addg.isJitAttempted());
+    assertNull(addg.jitCode());
+  }
+
+  /// Tests that a compiled function called with arguments that are not numbers is interpreted.
+  @Test
+  public void testEntryGuard() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    vm.setJitEnabled(true);
+    vm.setJitThreshold(1);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(var a 1) (var b 2) (def add (x y) (+ x y)) (add 1 2) (add 3 4)"
+                + " (set a \"x\") (set b \"y\") (add a b)",
+            "main");
+    assertEquals(new StringType("xy"), vm.exec(code));
+    assertNotNull(JitProfile.of(function(code, "add")).jitCode());
+  }
+
+  /// Tests that the same program can be executed with the JIT on several threads at once, with
+  /// calls that alternate between compiled functions.
+  @Test
+  public void testConcurrentCalls() throws Exception {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(def f (x) (* x 2)) (def g (x) (+ x 1)) (block (var s 0)"
+                + " (for (var i 0) (< i 1000) (set i (+ i 1)) (set s (+ s (+ (f i) (g i))))) s)",
+            "main");
+    // The VM logs every instruction when debugging which is too slow for this many executions.
+    var logLevel = LogManager.getLogger(MapToolVM.class).getLevel();
+    Configurator.setLevel(MapToolVM.class, Level.INFO);
+    try (var executor = Executors.newFixedThreadPool(8)) {
+      var results = new ArrayList<Future<ValueRecord>>();
+      for (int i = 0; i < 32; i++) {
+        results.add(
+            executor.submit(
+                () -> {
+                  var vm = new MapToolVM(globals);
+                  vm.setJitEnabled(true);
+                  vm.setJitThreshold(10);
+                  return vm.exec(code);
+                }));
+      }
+      for (var result : results) {
+        assertEquals(new IntegerType(1499500), result.get());
+      }
+    } finally {
+      Configurator.setLevel(MapToolVM.class, logLevel);
+    }
+    assertNotNull(JitProfile.of(function(code, "f")).jitCode());
+    assertNotNull(JitProfile.of(function(code, "g")).jitCode());
+  }
+
+  /// Runs a program with or without the JIT.
+  /// @param program The program.
+  /// @param jit True to compile every function on the first call.
+  /// @return The result of the program.
+  private ValueRecord exec(String program, boolean jit) {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    vm.setJitEnabled(jit);
+    vm.setJitThreshold(1);
+    var compiler = new SExpressionCompiler(globals);
+    return vm.exec(compiler.compile(program, "main"));
+  }
+
+  /// Returns the function with the given name defined by the code.
+  /// @param code The code.
+  /// @param name The name of the function.
+  /// @return The function.
+  private FunctionType function(CodeType code, String name) {
+    return code.functions().stream().filter(f -> f.name().equals(name)).findFirst().orElseThrow();
+  }
+}
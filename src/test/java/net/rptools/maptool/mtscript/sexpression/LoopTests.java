@@ -0,0 +1,141 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.OpCode;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.BooleanType;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import org.junit.jupiter.api.Test;
+
+public class LoopTests {
+
+  /// Tests a while loop that runs for more iterations than there are stack slots.
+  @Test
+  public void testWhile() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(block (var x 0) (while (< x 1000) (set x (+ x 1))) x)", "main");
+    var result = vm.exec(code);
+    assertInstanceOf(IntegerType.class, result);
+    assertEquals(1000, ((IntegerType) result).value());
+  }
+
+  /// Tests a while loop using global variables.
+  @Test
+  public void testWhileGlobal() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(var x 0) (while (< x 10) (set x (+ x 1))) x", "main");
+    var result = vm.exec(code);
+    assertInstanceOf(IntegerType.class, result);
+    assertEquals(10, ((IntegerType) result).value());
+  }
+
+  /// Tests a for loop that runs for more iterations than there are stack slots.
+  @Test
+  public void testFor() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(block (var sum 0) (for (var i 0) (< i 1000) (set i (+ i 1)) (set sum (+ sum i)))"
+                + " sum)",
+            "main");
+    var result = vm.exec(code);
+    assertInstanceOf(IntegerType.class, result);
+    assertEquals(499500, ((IntegerType) result).value());
+  }
+
+  /// Tests the value of a loop expression, the value of the body of the last iteration of a while
+  /// loop, or of the increment of the last iteration of a for loop.
+  @Test
+  public void testLoopResult() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(block (var x 0) (while (< x 3) (set x (+ x 1))))", "main");
+    assertEquals(new IntegerType(3), vm.exec(code));
+
+    code = compiler.compile("(block (var x 0) (+ (while (< x 3) (set x (+ x 1))) x))", "main");
+    assertEquals(new IntegerType(6), vm.exec(code));
+
+    code = compiler.compile("(for (var i 0) (< i 10) (set i (+ i 1)) (* i 2))", "main");
+    assertEquals(new IntegerType(10), vm.exec(code));
+  }
+
+  /// Tests the value of a loop whose body is never executed.
+  @Test
+  public void testEmptyLoopResult() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(while false 1)", "main");
+    var result = vm.exec(code);
+    assertInstanceOf(BooleanType.class, result);
+    assertFalse(((BooleanType) result).value());
+
+    code = compiler.compile("(for (var i 0) (< i 0) (set i (+ i 1)) i)", "main");
+    result = vm.exec(code);
+    assertInstanceOf(BooleanType.class, result);
+    assertFalse(((BooleanType) result).value());
+  }
+
+  /// Tests that the common loop instruction sequences are replaced with superinstructions.
+  @Test
+  public void testLoopSuperinstructions() {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(block (var x 0) (while (< x 10) (set x (+ x 1))) x)", "main");
+    var opCodes = opCodes(code);
+    assertTrue(opCodes.contains(OpCode.LT_JUMP_IF_FALSE));
+    assertTrue(opCodes.contains(OpCode.LOAD_LOCAL_CONST_ADD));
+    assertFalse(opCodes.contains(OpCode.LT));
+
+    // The value of the body of a for loop is discarded, so setting a local there is fused.
+    code =
+        compiler.compile(
+            "(block (var sum 0) (for (var i 0) (< i 10) (set i (+ i 1)) (set sum (+ sum i))) sum)",
+            "main");
+    assertTrue(opCodes(code).contains(OpCode.SET_LOCAL_POP));
+  }
+
+  /// Returns the set of opcodes used by the code.
+  /// @param code The code.
+  /// @return The opcodes in the code.
+  private Set<OpCode> opCodes(CodeType code) {
+    var opCodes = new HashSet<OpCode>();
+    int ip = 0;
+    while (ip < code.codeLength()) {
+      var op = OpCode.fromByteCode(code.getByte(ip));
+      opCodes.add(op);
+      ip += 1 + op.operandCount();
+    }
+    return opCodes;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import net.rptools.maptool.mtscript.functions.MTVMFunction;
+import net.rptools.maptool.mtscript.functions.NativeFunctionLibrary;
+import net.rptools.maptool.mtscript.functions.NativeFunctions;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.ExecutionBackend;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.NativeArgs;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.NativeFunctionType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class NativeFunctionLibraryTests {
+
+  /// A library registered in the test resources, as a third party library would be. The test
+  /// sources are not compiled with the annotation processor so the functions are bound at run
+  /// time.
+  public static class TestLibrary implements NativeFunctionLibrary {
+    @Override
+    public List<NativeFunctionType> functions() {
+      return NativeFunctions.of(MethodHandles.lookup(), TestLibrary.class);
+    }
+
+    /// Returns twice the argument.
+    /// @param vm The VM to operate on.
+    /// @param args The arguments of the call.
+    @MTVMFunction(name = "_test_double", arity = 1)
+    public static void twice(MapToolVM vm, NativeArgs args) {
+      args.returnNumber(args.argDouble(0) * 2);
+    }
+
+    /// Returns the sum of the arguments.
+    /// @param vm The VM to operate on.
+    /// @param args The arguments of the call.
+    @MTVMFunction(name = "_test_add", arity = 2)
+    private static void add(MapToolVM vm, NativeArgs args) {
+      args.returnValue(args.arg(0).add(args.arg(1)));
+    }
+  }
+
+  /// Tests that the built-in functions from the generated library are defined.
+  @Test
+  public void testBuiltInFunctions() {
+    var globals = new VMGlobals();
+    var debug = globals.getGlobalSymbol("_vm_debug");
+    var function = assertInstanceOf(NativeFunctionType.class, debug.symbol().value());
+    assertEquals(1, function.arity());
+  }
+
+  /// Tests that functions from other libraries on the class path are defined, including private
+  /// methods bound with the library's lookup.
+  @Test
+  public void testServiceLoaderLibrary() {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var result = vm.exec(compiler.compile("(_test_double (_vm_debug 21))", "main"));
+    assertEquals(new IntegerType(42), result);
+    result = vm.exec(compiler.compile("(_test_add 40 2)", "main"));
+    assertEquals(new IntegerType(42), result);
+  }
+
+  /// Tests that the arguments are replaced by the result and that a native function must set a
+  /// result.
+  @Test
+  public void testNativeResult() {
+    var globals = new VMGlobals();
+    globals.addBuiltInFunction("_test_second", 2, (vm, args) -> args.returnArg(1));
+    globals.addBuiltInFunction("_test_none", 1, (vm, args) -> {});
+    var vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var result = vm.exec(compiler.compile("(+ 1 (_test_second 2 (_test_second 3 4)))", "main"));
+    assertEquals(new IntegerType(5), result);
+    var code = compiler.compile("(_test_none 1)", "main");
+    assertThrows(RuntimeException.class, () -> vm.exec(code));
+  }
+
+  /// Tests that a native function can execute another program on the VM, with every backend
+  /// executing the caller. The caller's stack and call frames must be intact afterwards, also when
+  /// the other program fails.
+  /// @param backend The backend to execute the calling program with.
+  @ParameterizedTest
+  @EnumSource(ExecutionBackend.class)
+  public void testNestedExec(ExecutionBackend backend) {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var inner = compiler.compile("(def sq (x) (* x x)) (+ (sq 3) 1)", "inner");
+    var failing = compiler.compile("(def dec (x) (- x 1)) (+ 1 (dec \"x\"))", "failing");
+    globals.addBuiltInFunction(
+        "_test_nested",
+        1,
+        (vm, args) -> {
+          var result = (IntegerType) vm.exec(inner);
+          args.returnNumber(result.value() + args.argDouble(0));
+        });
+    globals.addBuiltInFunction(
+        "_test_nested_fail",
+        1,
+        (vm, args) -> {
+          assertThrows(RuntimeException.class, () -> vm.exec(failing));
+          args.returnArg(0);
+        });
+    var vm = new MapToolVM(globals);
+    compiler.setBackend(backend);
+    var program =
+        compiler.compileExecutable(
+            "(def f (x) (+ 10 (_test_nested x))) (+ 100 (+ (f 5) (_test_nested_fail 7)))", "main");
+    assertEquals(new IntegerType(132), vm.exec(program));
+    assertEquals(0, vm.getStack().size());
+  }
+}
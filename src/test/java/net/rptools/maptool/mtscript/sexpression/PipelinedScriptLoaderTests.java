@@ -0,0 +1,233 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.execution.PipelinedScriptLoader;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.junit.jupiter.api.Test;
+
+public class PipelinedScriptLoaderTests {
+
+  /// Tests that globals and functions defined by a form are visible to the forms after it.
+  @Test
+  public void testFormsSeeEarlierDefinitions() throws Exception {
+    var globals = new VMGlobals();
+    var loader = new PipelinedScriptLoader(globals, 2);
+    var source = "(var a 1) (def inc (x) (+ x 1)) (set a (inc a)) (var b (inc a)) (inc b)";
+    var result = loader.load(new StringReader(source), "lib").get(10, TimeUnit.SECONDS);
+    assertEquals(new IntegerType(4), result);
+    assertEquals(new IntegerType(2), value(globals, "a"));
+    assertEquals(new IntegerType(3), value(globals, "b"));
+  }
+
+  /// Tests that executing the forms compiled one at a time gives the same result as the whole
+  /// source.
+  @Test
+  public void testCompileForms() throws Exception {
+    var source = "(var a 2) (def sq (x) (* x x)) (block (var b 3) (set a (sq b))) (sq a)";
+    var wholeGlobals = new VMGlobals();
+    var whole = new SExpressionCompiler(wholeGlobals).compile(source, "whole");
+    var expected = new MapToolVM(wholeGlobals).exec(whole);
+
+    var globals = new VMGlobals();
+    var forms = new ArrayList<CodeType>();
+    new SExpressionCompiler(globals).compileForms(new StringReader(source), "lib", forms::add);
+    assertEquals(4, forms.size());
+    assertEquals("lib[1]", forms.get(1).name());
+    var vm = new MapToolVM(globals);
+    ValueRecord result = null;
+    for (var form : forms) {
+      result = vm.exec(form);
+    }
+    assertEquals(new IntegerType(81), expected);
+    assertEquals(expected, result);
+  }
+
+  /// Tests that the first form is executed before the rest of the source has been read.
+  @Test
+  public void testExecutesBeforeSourceIsRead() throws Exception {
+    var globals = new VMGlobals();
+    var ready = new CountDownLatch(1);
+    globals.addBuiltInFunction(
+        "_pipeline_ready",
+        0,
+        (vm, args) -> {
+          ready.countDown();
+          args.returnNumber(1);
+        });
+    var writer = new PipedWriter();
+    var reader = new PipedReader(writer);
+    var future = new PipelinedScriptLoader(globals, 1).load(reader, "lib");
+    // The latch is released by the form after the var, so the global has been set by then.
+    writer.write("(var a 1) (_pipeline_ready) ");
+    writer.flush();
+    assertTrue(ready.await(10, TimeUnit.SECONDS));
+    assertEquals(new IntegerType(1), value(globals, "a"));
+    assertFalse(future.isDone());
+    writer.write("(+ a 2)");
+    writer.close();
+    assertEquals(new IntegerType(3), future.get(10, TimeUnit.SECONDS));
+  }
+
+  /// Tests that the forms before a compile error are executed and the load fails.
+  @Test
+  public void testCompileError() throws Exception {
+    var globals = new VMGlobals();
+    var source = "(var a 1) (set a 2) (+ 1";
+    var future = new PipelinedScriptLoader(globals, 2).load(new StringReader(source), "lib");
+    var e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+    assertTrue(e.getCause() instanceof RuntimeException);
+    assertEquals(new IntegerType(2), value(globals, "a"));
+  }
+
+  /// Tests that the forms after one that fails to execute are not executed.
+  @Test
+  public void testExecutionError() throws Exception {
+    var globals = new VMGlobals();
+    globals.addBuiltInFunction(
+        "_pipeline_fail",
+        0,
+        (vm, args) -> {
+          throw new RuntimeException("failed");
+        });
+    var source = "(var a 1) (_pipeline_fail) (set a 2)";
+    var future = new PipelinedScriptLoader(globals, 1).load(new StringReader(source), "lib");
+    var e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+    assertEquals("failed", e.getCause().getMessage());
+    assertEquals(new IntegerType(1), value(globals, "a"));
+  }
+
+  /// Tests that a global is defined when the form that declares it is compiled, which can be
+  /// before the forms ahead of it have been executed, and is set when the form is executed.
+  @Test
+  public void testGlobalsDefinedWhenCompiled() throws Exception {
+    var globals = new VMGlobals();
+    var blocked = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    globals.addBuiltInFunction(
+        "_pipeline_block",
+        1,
+        (vm, args) -> {
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          args.returnArg(0);
+        });
+    var source = "(var a 1) (_pipeline_block 0) (var b 2)";
+    var future = new PipelinedScriptLoader(globals, 1).load(new StringReader(source), "lib");
+    assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    // The compiler is free to run ahead while the second form is executing.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (globals.getGlobalSymbolIndex("b") == -1 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertNotEquals(-1, globals.getGlobalSymbolIndex("b"));
+    assertEquals(new IntegerType(0), value(globals, "b"));
+    release.countDown();
+    assertEquals(new IntegerType(2), future.get(10, TimeUnit.SECONDS));
+    assertEquals(new IntegerType(2), value(globals, "b"));
+  }
+
+  /// Tests that cancelling a load while the compiler is reading the source, rather than waiting
+  /// to hand over a form, stops the executing thread.
+  @Test
+  public void testCancelWhileCompiling() throws Exception {
+    var globals = new VMGlobals();
+    var executor = new Thread[1];
+    var ready = new CountDownLatch(1);
+    globals.addBuiltInFunction(
+        "_pipeline_thread",
+        0,
+        (vm, args) -> {
+          executor[0] = Thread.currentThread();
+          ready.countDown();
+          args.returnNumber(1);
+        });
+    var release = new CountDownLatch(1);
+    var first = new StringReader("(_pipeline_thread) ");
+    // A reader that blocks without responding to interrupts once the first form has been read.
+    var source =
+        new Reader() {
+          @Override
+          public int read(char[] buf, int off, int len) throws IOException {
+            int n = first.read(buf, off, len);
+            if (n != -1) {
+              return n;
+            }
+            boolean interrupted = false;
+            while (true) {
+              try {
+                release.await();
+                break;
+              } catch (InterruptedException e) {
+                interrupted = true;
+              }
+            }
+            if (interrupted) {
+              Thread.currentThread().interrupt();
+            }
+            return -1;
+          }
+
+          @Override
+          public void close() {}
+        };
+    var future = new PipelinedScriptLoader(globals, 1).load(source, "lib");
+    try {
+      assertTrue(ready.await(10, TimeUnit.SECONDS));
+      // Wait for the executing thread to wait for the next form.
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (executor[0].getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+      assertTrue(future.cancel(true));
+      assertTrue(executor[0].join(Duration.ofSeconds(10)));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  /// Returns the value of a global variable.
+  /// @param globals The globals.
+  /// @param name The name of the variable.
+  /// @return The value.
+  private static ValueRecord value(VMGlobals globals, String name) {
+    return globals.getGlobalValue(globals.getGlobalSymbolIndex(name));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.DecodedCode;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.StringType;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.Test;
+
+public class QuickeningTests {
+
+  /// Tests that an add is quickened for numbers.
+  @Test
+  public void testQuickenNumber() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(var a 1) (var b 2) (+ a b)", "main");
+    var result = vm.exec(code);
+    assertInstanceOf(IntegerType.class, result);
+    assertEquals(3, ((IntegerType) result).value());
+    assertTrue(containsHandler(code, DecodedCode.ADD_NUM));
+  }
+
+  /// Tests that an add is quickened for strings.
+  @Test
+  public void testQuickenString() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    vm.exec(compiler.compile("(var a 1) (var b 2)", "init"));
+    globals.setGlobalVariable(globals.getGlobalSymbolIndex("a"), new StringType("a"));
+    globals.setGlobalVariable(globals.getGlobalSymbolIndex("b"), new StringType("b"));
+    var code = compiler.compile("(+ a b)", "main");
+    assertEquals(new StringType("ab"), vm.exec(code));
+    assertTrue(containsHandler(code, DecodedCode.ADD_STR));
+  }
+
+  /// Tests that a quickened instruction deoptimizes when the operand types change.
+  @Test
+  public void testDeoptimize() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    vm.exec(compiler.compile("(var a 1) (var b 2)", "init"));
+    var code = compiler.compile("(+ a b)", "main");
+    assertEquals(3, ((IntegerType) vm.exec(code)).value());
+    assertTrue(containsHandler(code, DecodedCode.ADD_NUM));
+
+    globals.setGlobalVariable(globals.getGlobalSymbolIndex("a"), new StringType("x"));
+    globals.setGlobalVariable(globals.getGlobalSymbolIndex("b"), new StringType("y"));
+    assertEquals(new StringType("xy"), vm.exec(code));
+    assertFalse(containsHandler(code, DecodedCode.ADD_NUM));
+  }
+
+  /// Tests that instructions are not rewritten when quickening is disabled.
+  @Test
+  public void testQuickeningDisabled() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    vm.setQuickeningEnabled(false);
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(block (var a 1) (var b 2) (+ a b))", "main");
+    assertEquals(3, ((IntegerType) vm.exec(code)).value());
+    assertFalse(containsHandler(code, DecodedCode.ADD_NUM));
+    assertTrue(containsHandler(code, DecodedCode.ADD));
+  }
+
+  /// Tests that VMs on different threads that quicken and deoptimize the same shared code, as
+  /// pooled VMs do, always get the right results.
+  @Test
+  public void testConcurrentQuickening() throws Exception {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("(def add (x y) (+ x y)) 0", "main");
+    var add = code.functions().get(0);
+    int threads = 8;
+    int calls = 2_000;
+    var logLevel = LogManager.getLogger(MapToolVM.class).getLevel();
+    Configurator.setLevel(MapToolVM.class, Level.INFO);
+    try (var executor = Executors.newFixedThreadPool(threads)) {
+      var futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < threads; t++) {
+        int thread = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  var vm = new MapToolVM(globals);
+                  for (int i = 0; i < calls; i++) {
+                    // Each thread changes the operand types at a different rate.
+                    if ((i / (thread + 1)) % 2 == 0) {
+                      var result = vm.call(add, new IntegerType(i), new IntegerType(1));
+                      assertEquals(new IntegerType(i + 1), result);
+                    } else {
+                      var result = vm.call(add, new StringType("a"), new StringType("b"));
+                      assertEquals(new StringType("ab"), result);
+                    }
+                  }
+                }));
+      }
+      for (var future : futures) {
+        future.get();
+      }
+    } finally {
+      Configurator.setLevel(MapToolVM.class, logLevel);
+    }
+  }
+
+  /// Returns true if the decoded code contains the given handler.
+  /// @param code The code to check.
+  /// @param handler The handler to look for.
+  /// @return True if the handler is in the decoded code.
+  private boolean containsHandler(CodeType code, int handler) {
+    var decoded = code.decoded();
+    for (int i = 0; i < decoded.code().length; i++) {
+      if (decoded.byteCodeOffset(i) >= 0 && decoded.code()[i] == handler) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.ExecutionBackend;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.OpCode;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.register.RegisterProgram;
+import net.rptools.maptool.mtscript.vm.values.CodeType;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.junit.jupiter.api.Test;
+
+public class RegisterBackendTests {
+
+  /// Programs that are run by both backends, the results must be the same.
+  private static final String[] PROGRAMS = {
+    "(+ (* 2 3) (/ 10 4))",
+    "(block (== 1 1) (!= 1 2) (<= 2 2) (>= 1 2) (> 3 1))",
+    "(+ (+ \"a\" (if (< 1 2) \"b\" \"c\")) \"d\")",
+    "(< \"abc\" \"abd\")",
+    "(block (var x 1) (var y (+ x 1)) (set x (* y 10)) (+ x y))",
+    "(block (var x 1) (var y x) (set x 5) (+ x y))",
+    "(block (var x 1) (set x x) (set x (set x 3)) x)",
+    "(block (var x 1) (block (var x 2) (set x (+ x 1))) x)",
+    "(block (var x 1) (var y (block (var z 4) (+ z x))) (* x y))",
+    "(var g 1) (set g (+ g 41)) g",
+    "(block (var x 0) (while (< x 1000) (set x (+ x 1))) x)",
+    "(block (var s 0) (for (var i 0) (< i 100) (set i (+ i 1)) (set s (+ s i))) s)",
+    "(block (var s \"\") (for (var i 0) (< i 3) (set i (+ i 1)) (set s (+ s \"x\"))) s)",
+    "(block (var x 5) (+ (if (> x 2) (block (var y 3) (* x y)) 0) 1))",
+    "(def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))) (fib 15)",
+    "(def sum (n acc) (if (== n 0) acc (sum (- n 1) (+ acc n)))) (sum 100 0)",
+    "(def f (x y) (block (var z (* x y)) (- z y))) (f (f 3 5) 7)",
+    "(def f (x) (* x 2)) (block (var a 1) (+ a (f (+ a 1))))",
+    "(def even (n) (if (== n 0) true (if (== n 1) false (even (- n 2))))) (even 10)",
+    "(def add (a b) (+ a b)) (block (var n (add 1 2)) (add \"a\" \"b\"))",
+    "(_vm_debug (+ 1 2))",
+    "(while false 1)",
+  };
+
+  /// Programs with function calls that are run by both backends with the JIT disabled, these are
+  /// kept small as the byte code interpreter logs every call.
+  private static final String[] CALL_PROGRAMS = {
+    "(def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))) (fib 6)",
+    "(def f (x y) (block (var z (* x y)) (- z y))) (f (f 3 5) 7)",
+    "(def f (x) (* x 2)) (block (var a 1) (+ a (f (+ a 1))))",
+    "(def sum (n acc) (if (== n 0) acc (sum (- n 1) (+ acc n)))) (sum 5 0)",
+  };
+
+  /// The test program files that are run by both backends.
+  private static final String[] FILES = {
+    "local_var.mtsx",
+    "local_var_with_global.mtsx",
+    "recursive_fib.mtsx",
+    "simple_for.mtsx",
+    "simple_global_var_test.mtsx",
+    "simple_while.mtsx",
+    "test2.mtsx",
+  };
+
+  /// Tests that the register backend gives the same results as the byte code interpreter.
+  @Test
+  public void testRegisterMatchesByteCode() throws IOException {
+    for (var program : PROGRAMS) {
+      assertEquals(
+          exec(program, ExecutionBackend.BYTE_CODE, true),
+          exec(program, ExecutionBackend.REGISTER, true),
+          program);
+    }
+    for (var file : FILES) {
+      var program = SExpressionTestUtil.readSExpressionTestFile(file);
+      assertEquals(
+          exec(program, ExecutionBackend.BYTE_CODE, true),
+          exec(program, ExecutionBackend.REGISTER, true),
+          file);
+    }
+  }
+
+  /// Tests calls between functions that are executed as register code rather than by the JIT.
+  @Test
+  public void testCallsWithoutJit() {
+    for (var program : CALL_PROGRAMS) {
+      assertEquals(
+          exec(program, ExecutionBackend.BYTE_CODE, false),
+          exec(program, ExecutionBackend.REGISTER, false),
+          program);
+    }
+  }
+
+  /// Tests that a loop needs fewer register instructions than byte code instructions, and that
+  /// the loop counter is updated in place.
+  @Test
+  public void testInstructionCount() {
+    var compiler = new SExpressionCompiler(new VMGlobals());
+    compiler.setBackend(ExecutionBackend.REGISTER);
+    var program =
+        (RegisterProgram)
+            compiler.compileExecutable(
+                "(block (var x 0) (while (< x 1000) (set x (+ x 1))) x)", "main");
+    var registerCode = program.registerCode();
+    assertTrue(registerCode.instructionCount() < instructionCount(program.code()));
+    assertTrue(registerCode.disassemble().contains("add              0 0 K"));
+  }
+
+  /// Tests that tail calls reuse the frame of the calling function.
+  @Test
+  public void testTailCall() {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    vm.setJitEnabled(false);
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(ExecutionBackend.REGISTER);
+    var program =
+        compiler.compileExecutable(
+            "(def sum (n acc) (if (== n 0) acc (sum (- n 1) (+ acc n)))) (sum 100000 0)", "main");
+    assertInstanceOf(RegisterProgram.class, program);
+    assertEquals(new IntegerType(5000050000.0), program.exec(vm));
+    assertEquals(0, vm.getStack().size());
+  }
+
+  /// Tests that the same program can be executed on several threads at once, with calls that
+  /// alternate between functions.
+  @Test
+  public void testConcurrentCalls() throws Exception {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(ExecutionBackend.REGISTER);
+    var program =
+        compiler.compileExecutable(
+            "(def f (x) (* x 2)) (def g (x) (+ x 1)) (block (var s 0)"
+                + " (for (var i 0) (< i 1000) (set i (+ i 1)) (set s (+ s (+ (f i) (g i))))) s)",
+            "main");
+    assertInstanceOf(RegisterProgram.class, program);
+    try (var executor = Executors.newFixedThreadPool(8)) {
+      var results = new ArrayList<Future<ValueRecord>>();
+      for (int i = 0; i < 32; i++) {
+        results.add(executor.submit(() -> program.exec(new MapToolVM(globals))));
+      }
+      for (var result : results) {
+        assertEquals(new IntegerType(1499500), result.get());
+      }
+    }
+  }
+
+  /// Compiles and executes a program with the given backend.
+  /// @param program The program.
+  /// @param backend The execution backend.
+  /// @param jit True if the JIT is enabled.
+  /// @return The result of the program.
+  private ValueRecord exec(String program, ExecutionBackend backend, boolean jit) {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    vm.setJitEnabled(jit);
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(backend);
+    var executable = compiler.compileExecutable(program, "main");
+    if (backend == ExecutionBackend.REGISTER) {
+      assertInstanceOf(RegisterProgram.class, executable, program);
+    }
+    return executable.exec(vm);
+  }
+
+  /// Returns the number of byte code instructions in the code.
+  /// @param code The code.
+  /// @return The number of instructions.
+  private int instructionCount(CodeType code) {
+    int count = 0;
+    int ip = 0;
+    while (ip < code.codeLength()) {
+      ip += 1 + OpCode.fromByteCode(code.getByte(ip)).operandCount();
+      count++;
+    }
+    return count;
+  }
+}
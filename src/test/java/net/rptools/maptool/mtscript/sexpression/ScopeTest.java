@@ -16,6 +16,7 @@ package net.rptools.maptool.mtscript.sexpression;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.IOException;
 import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
@@ -49,4 +50,20 @@ public class ScopeTest {
     assertInstanceOf(IntegerType.class, result);
     assertEquals(225, ((IntegerType) result).value());
   }
+
+  /// Tests that a local in an inner scope shadows the outer one until the inner scope ends, and
+  /// that a name can only be declared once in a scope.
+  @Test
+  public void testShadowing() {
+    var globals = new VMGlobals();
+    MapToolVM vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var code =
+        compiler.compile(
+            "(block (var x 1) (var y (block (var x 10) (+ x 5))) (block (var x 100) x) (+ x y))",
+            "main");
+    assertEquals(new IntegerType(16), vm.exec(code));
+    assertThrows(
+        RuntimeException.class, () -> compiler.compile("(block (var x 1) (var x 2) x)", "main"));
+  }
 }
@@ -0,0 +1,103 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.rptools.maptool.mtscript.execution.ScriptExecutionService;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.Test;
+
+public class ScriptExecutionServiceTests {
+
+  /// Tests that executions blocked in a native function don't stop the others from running.
+  @Test
+  public void testBlockingNatives() throws Exception {
+    var globals = new VMGlobals();
+    globals.addBuiltInFunction(
+        "_test_sleep",
+        1,
+        (vm, args) -> {
+          try {
+            Thread.sleep((long) args.argDouble(0));
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          args.returnArg(0);
+        });
+    var code = new SExpressionCompiler(globals).compile("(+ (_test_sleep 100) 1)", "main");
+    int executions = 200;
+    // The VM dumps the globals on every execution when debugging.
+    var logLevel = LogManager.getLogger(MapToolVM.class).getLevel();
+    Configurator.setLevel(MapToolVM.class, Level.INFO);
+    try (var service = new ScriptExecutionService(globals)) {
+      long start = System.nanoTime();
+      var futures = new ArrayList<CompletableFuture<ValueRecord>>();
+      for (int i = 0; i < executions; i++) {
+        futures.add(service.submit(code));
+      }
+      for (var future : futures) {
+        assertEquals(new IntegerType(101), future.get(10, TimeUnit.SECONDS));
+      }
+      // Executed one after another they would take 20 seconds.
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+      var metrics = service.getMetrics();
+      assertEquals(executions, metrics.submitted());
+      assertEquals(executions, metrics.completed());
+      assertEquals(0, metrics.failed());
+      assertEquals(0, metrics.queueDepth());
+      assertTrue(metrics.meanExecutionNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+      assertTrue(metrics.maxLatencyNanos() >= metrics.meanLatencyNanos());
+    } finally {
+      Configurator.setLevel(MapToolVM.class, logLevel);
+    }
+  }
+
+  /// Tests calling a function with arguments, and a program that fails.
+  @Test
+  public void testFunctionsAndFailures() throws Exception {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var define = compiler.compile("(def add3 (a b c) (+ a (+ b c))) 0", "init");
+    try (var service = new ScriptExecutionService(globals)) {
+      service.submit(define).get();
+      var add3 = define.functions().get(0);
+      assertEquals("add3", add3.name());
+      var result =
+          service.submit(add3, new IntegerType(1), new IntegerType(2), new IntegerType(3)).get();
+      assertEquals(new IntegerType(6), result);
+
+      var failing = service.submit(add3, new IntegerType(1));
+      assertThrows(ExecutionException.class, failing::get);
+      assertThrows(
+          IllegalArgumentException.class, () -> service.submit(define, new IntegerType(1)));
+      assertEquals(1, service.getMetrics().failed());
+      assertEquals(0, service.getActiveExecutions());
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StreamingCompileTests {
+
+  /// Tests compiling from a reader, file and channel.
+  @Test
+  public void testStreamingSources(@TempDir Path dir) throws IOException {
+    var program = SExpressionTestUtil.readSExpressionTestFile("local_var_with_global.mtsx");
+
+    var globals = new VMGlobals();
+    var code = new SExpressionCompiler(globals).compile(new StringReader(program), "main");
+    assertEquals(new IntegerType(225), new MapToolVM(globals).exec(code));
+
+    var file = dir.resolve("program.mtsx");
+    Files.writeString(file, program);
+    globals = new VMGlobals();
+    code = new SExpressionCompiler(globals).compile(file, "main");
+    assertEquals(new IntegerType(225), new MapToolVM(globals).exec(code));
+
+    var channel =
+        Channels.newChannel(new ByteArrayInputStream(program.getBytes(StandardCharsets.UTF_8)));
+    globals = new VMGlobals();
+    code = new SExpressionCompiler(globals).compile(channel, "main");
+    assertEquals(new IntegerType(225), new MapToolVM(globals).exec(code));
+  }
+
+  /// Tests compiling a source that is much larger than the chunks it is read in, and is generated
+  /// as it is read so it is never in memory as a whole.
+  @Test
+  public void testLargeSource() throws IOException {
+    int forms = 100_000;
+    var source =
+        new GeneratedReader(
+            "(var total 0)",
+            " (set total (+ total 1)) /* a comment that makes the forms larger */\n",
+            forms,
+            "total");
+    var globals = new VMGlobals();
+    var code = new SExpressionCompiler(globals).compile(source, "main");
+    // The VM dumps the globals when debugging.
+    var logLevel = LogManager.getLogger(MapToolVM.class).getLevel();
+    Configurator.setLevel(MapToolVM.class, Level.INFO);
+    try {
+      assertEquals(new IntegerType(forms), new MapToolVM(globals).exec(code));
+    } finally {
+      Configurator.setLevel(MapToolVM.class, logLevel);
+    }
+  }
+
+  /// Tests that a failure reading the source is reported as an `IOException`.
+  @Test
+  public void testReadFailure() {
+    var source =
+        new Reader() {
+          @Override
+          public int read(char[] buf, int off, int len) throws IOException {
+            throw new IOException("Test failure");
+          }
+
+          @Override
+          public void close() {}
+        };
+    var compiler = new SExpressionCompiler(new VMGlobals());
+    assertThrows(IOException.class, () -> compiler.compile(source, "main"));
+  }
+
+  /// A reader that generates a source made of a form repeated many times.
+  private static class GeneratedReader extends Reader {
+
+    /// The text of the source, the header, the repeated form and then the footer.
+    private final String[] parts;
+
+    /// The number of times the form is repeated.
+    private final int repeat;
+
+    /// The index of the part being read.
+    private int part = 0;
+
+    /// The number of times the form has been read.
+    private int count = 0;
+
+    /// The index in the part being read.
+    private int index = 0;
+
+    /// Creates a new generated reader.
+    /// @param header The text before the repeated form.
+    /// @param form The form to repeat.
+    /// @param repeat The number of times to repeat the form.
+    /// @param footer The text after the repeated form.
+    GeneratedReader(String header, String form, int repeat, String footer) {
+      this.parts = new String[] {header, form, footer};
+      this.repeat = repeat;
+    }
+
+    @Override
+    public int read(char[] buf, int off, int len) {
+      int read = 0;
+      while (read < len && part < parts.length) {
+        var text = parts[part];
+        int n = Math.min(len - read, text.length() - index);
+        text.getChars(index, index + n, buf, off + read);
+        read += n;
+        index += n;
+        if (index == text.length()) {
+          index = 0;
+          if (part != 1 || ++count == repeat) {
+            part++;
+          }
+        }
+      }
+      return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.ExecutionBackend;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class TransactionTests {
+
+  /// Tests that the globals set by a program that fails are rolled back, with every backend.
+  /// @param backend The backend to execute the program with.
+  @ParameterizedTest
+  @EnumSource(ExecutionBackend.class)
+  public void testRollback(ExecutionBackend backend) {
+    var globals = new VMGlobals();
+    globals.addBuiltInFunction(
+        "_test_fail",
+        1,
+        (vm, args) -> {
+          throw new RuntimeException("failed");
+        });
+    var vm = new MapToolVM(globals);
+    vm.setTransactional(true);
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(backend);
+    vm.exec(compiler.compileExecutable("(var a 1) (var b 2)", "init"));
+    var program = compiler.compileExecutable("(set a 10) (set b (+ a 10)) (_test_fail b)", "main");
+    assertThrows(RuntimeException.class, () -> vm.exec(program));
+    assertEquals(new IntegerType(1), globals.getGlobalHandle("a").get());
+    assertEquals(new IntegerType(2), globals.getGlobalHandle("b").get());
+
+    // The program reads its own writes and they are committed when it finishes.
+    var result = vm.exec(compiler.compileExecutable("(set a 10) (set b (+ a 10)) b", "main"));
+    assertEquals(new IntegerType(20), result);
+    assertEquals(new IntegerType(10), globals.getGlobalHandle("a").get());
+    assertEquals(new IntegerType(20), globals.getGlobalHandle("b").get());
+
+    // Without a transaction the writes before the failure stay applied.
+    vm.setTransactional(false);
+    assertThrows(RuntimeException.class, () -> vm.exec(program));
+    assertEquals(new IntegerType(10), globals.getGlobalHandle("a").get());
+    assertEquals(new IntegerType(20), globals.getGlobalHandle("b").get());
+  }
+
+  /// Tests that a transaction that read a global changed by another transaction is retried rather
+  /// than losing the other update.
+  @Test
+  public void testConflictRetry() {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var other = new MapToolVM(globals);
+    other.setTransactional(true);
+    other.exec(compiler.compile("(var a 0)", "init"));
+    var increment = compiler.compile("(set a (+ a 1))", "main");
+    var calls = new int[1];
+    // Increments the global from another transaction the first time it is called.
+    globals.addBuiltInFunction(
+        "_test_interfere",
+        1,
+        (vm, args) -> {
+          if (calls[0]++ == 0) {
+            other.exec(increment);
+          }
+          args.returnArg(0);
+        });
+    var vm = new MapToolVM(globals);
+    vm.setTransactional(true);
+    vm.exec(compiler.compile("(set a (+ (_test_interfere a) 1))", "main"));
+    assertEquals(2, calls[0]);
+    assertEquals(new IntegerType(2), globals.getGlobalHandle("a").get());
+
+    // A transaction that conflicts every time fails once it runs out of retries.
+    calls[0] = 0;
+    globals.addBuiltInFunction(
+        "_test_always_interfere",
+        1,
+        (v, args) -> {
+          calls[0]++;
+          other.exec(increment);
+          args.returnArg(0);
+        });
+    vm.setMaxTransactionRetries(3);
+    var code = compiler.compile("(set a (+ (_test_always_interfere a) 1))", "main");
+    assertThrows(RuntimeException.class, () -> vm.exec(code));
+    assertEquals(4, calls[0]);
+    assertEquals(new IntegerType(6), globals.getGlobalHandle("a").get());
+  }
+
+  /// Tests that a program executed by a native function runs in the transaction of its caller, so
+  /// it sees the caller's writes and its own writes are rolled back with the caller's.
+  @Test
+  public void testNestedExecJoinsTransaction() {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var vm = new MapToolVM(globals);
+    vm.exec(compiler.compile("(var a 1) (var b 2)", "init"));
+    var inner = compiler.compile("(set b (+ a 1))", "inner");
+    globals.addBuiltInFunction(
+        "_test_nested",
+        1,
+        (v, args) -> {
+          v.exec(inner);
+          args.returnArg(0);
+        });
+    globals.addBuiltInFunction(
+        "_test_fail",
+        1,
+        (v, args) -> {
+          throw new RuntimeException("failed");
+        });
+    vm.setTransactional(true);
+    var failing = compiler.compile("(set a 10) (_test_nested a) (_test_fail b)", "main");
+    assertThrows(RuntimeException.class, () -> vm.exec(failing));
+    assertEquals(new IntegerType(1), globals.getGlobalHandle("a").get());
+    assertEquals(new IntegerType(2), globals.getGlobalHandle("b").get());
+
+    var result = vm.exec(compiler.compile("(set a 10) (_test_nested a) b", "main"));
+    assertEquals(new IntegerType(11), result);
+    assertEquals(new IntegerType(11), globals.getGlobalHandle("b").get());
+  }
+
+  /// Tests that a transaction is retried on a VM whose previous execution failed and left values
+  /// on the stack.
+  @Test
+  public void testRetryAfterFailedExecution() {
+    var globals = new VMGlobals();
+    globals.addBuiltInFunction(
+        "_test_fail",
+        1,
+        (vm, args) -> {
+          throw new RuntimeException("failed");
+        });
+    var compiler = new SExpressionCompiler(globals);
+    var other = new MapToolVM(globals);
+    other.exec(compiler.compile("(var a 0)", "init"));
+    var increment = compiler.compile("(set a (+ a 1))", "main");
+    var calls = new int[1];
+    globals.addBuiltInFunction(
+        "_test_interfere",
+        1,
+        (vm, args) -> {
+          if (calls[0]++ == 0) {
+            other.exec(increment);
+          }
+          args.returnArg(0);
+        });
+    var vm = new MapToolVM(globals);
+    vm.setTransactional(true);
+    var failing = compiler.compile("(+ 1 (+ 2 (_test_fail 3)))", "main");
+    assertThrows(RuntimeException.class, () -> vm.exec(failing));
+    var result = vm.exec(compiler.compile("(set a (+ (_test_interfere a) 1))", "main"));
+    assertEquals(new IntegerType(2), result);
+    assertEquals(2, calls[0]);
+    assertEquals(new IntegerType(2), globals.getGlobalHandle("a").get());
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+import java.io.IOException;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.ByteCodeProgram;
+import net.rptools.maptool.mtscript.vm.ExecutionBackend;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.tree.TreeProgram;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import net.rptools.maptool.mtscript.vm.values.StringType;
+import net.rptools.maptool.mtscript.vm.values.ValueRecord;
+import org.junit.jupiter.api.Test;
+
+public class TreeBackendTests {
+
+  /// Programs that are run by both backends, the results must be the same.
+  private static final String[] PROGRAMS = {
+    "(+ (* 2 3) (/ 10 4))",
+    "(block (== 1 1) (!= 1 2) (<= 2 2) (>= 1 2) (> 3 1))",
+    "(+ (+ \"a\" (if (< 1 2) \"b\" \"c\")) \"d\")",
+    "(< \"abc\" \"abd\")",
+    "(block (var x 1) (var y (+ x 1)) (set x (* y 10)) (+ x y))",
+    "(block (var x 1) (block (var x 2) (set x (+ x 1))) x)",
+    "(var g 1) (set g (+ g 41)) g",
+    "(block (var x 0) (while (< x 1000) (set x (+ x 1))) x)",
+    "(block (var s 0) (for (var i 0) (< i 100) (set i (+ i 1)) (set s (+ s i))) s)",
+    "(block (var s \"\") (for (var i 0) (< i 3) (set i (+ i 1)) (set s (+ s \"x\"))) s)",
+    "(block (var x 5) (+ (if (> x 2) (block (var y 3) (* x y)) 0) 1))",
+    "(def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))) (fib 15)",
+    "(def sum (n acc) (if (== n 0) acc (sum (- n 1) (+ acc n)))) (sum 100 0)",
+    "(def f (x y) (block (var z (* x y)) (- z y))) (f (f 3 5) 7)",
+    "(def even (n) (if (== n 0) true (if (== n 1) false (even (- n 2))))) (even 10)",
+    "(def add (a b) (+ a b)) (block (var n (add 1 2)) (add \"a\" \"b\"))",
+    "(_vm_debug (+ 1 2))",
+    "(while false 1)",
+  };
+
+  /// The test program files that are run by both backends.
+  private static final String[] FILES = {
+    "local_var.mtsx",
+    "local_var_with_global.mtsx",
+    "recursive_fib.mtsx",
+    "simple_for.mtsx",
+    "simple_global_var_test.mtsx",
+    "simple_while.mtsx",
+    "test2.mtsx",
+  };
+
+  /// Tests that the tree backend gives the same results as the byte code interpreter.
+  @Test
+  public void testTreeMatchesByteCode() throws IOException {
+    for (var program : PROGRAMS) {
+      assertEquals(exec(program, ExecutionBackend.BYTE_CODE), exec(program, ExecutionBackend.TREE));
+    }
+    for (var file : FILES) {
+      var program = SExpressionTestUtil.readSExpressionTestFile(file);
+      assertEquals(
+          exec(program, ExecutionBackend.BYTE_CODE), exec(program, ExecutionBackend.TREE), file);
+    }
+  }
+
+  /// Tests that the tree backend is selected by the compiler.
+  @Test
+  public void testBackendSelection() {
+    var compiler = new SExpressionCompiler(new VMGlobals());
+    assertInstanceOf(ByteCodeProgram.class, compiler.compileExecutable("(+ 1 2)", "main"));
+    compiler.setBackend(ExecutionBackend.TREE);
+    assertInstanceOf(TreeProgram.class, compiler.compileExecutable("(+ 1 2)", "main"));
+  }
+
+  /// Tests that a node that has specialized on numbers still works when it sees another type.
+  @Test
+  public void testSpecializationChange() {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(ExecutionBackend.TREE);
+    var program = compiler.compileExecutable("(def add (a b) (+ a b)) (add 1 2)", "main");
+    assertEquals(new IntegerType(3), program.exec(vm));
+    program = compiler.compileExecutable("(var x \"a\") (set x (+ x \"b\")) x", "main");
+    assertEquals(new StringType("ab"), program.exec(vm));
+  }
+
+  /// Tests that tail calls do not use the Java stack.
+  @Test
+  public void testTailCall() {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(ExecutionBackend.TREE);
+    var program =
+        compiler.compileExecutable(
+            "(def sum (n acc) (if (== n 0) acc (sum (- n 1) (+ acc n)))) (sum 100000 0)", "main");
+    assertInstanceOf(TreeProgram.class, program);
+    assertEquals(new IntegerType(5000050000.0), program.exec(vm));
+  }
+
+  /// Compiles and executes a program with the given backend.
+  /// @param program The program.
+  /// @param backend The execution backend.
+  /// @return The result of the program.
+  private ValueRecord exec(String program, ExecutionBackend backend) {
+    var globals = new VMGlobals();
+    var vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    compiler.setBackend(backend);
+    var executable = compiler.compileExecutable(program, "main");
+    if (backend == ExecutionBackend.TREE) {
+      assertInstanceOf(TreeProgram.class, executable, program);
+    }
+    return executable.exec(vm);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * This software Copyright by the RPTools.net development team, and
+ * licensed under the Affero GPL Version 3 or, at your option, any later
+ * version.
+ *
+ * MapTool Source Code is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License * along with this source Code.  If not, please visit
+ * <http://www.gnu.org/licenses/> and specifically the Affero license
+ * text at <http://www.gnu.org/licenses/agpl.html>.
+ */
+package net.rptools.maptool.mtscript.sexpression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import net.rptools.maptool.mtscript.parser.SExpressionCompiler;
+import net.rptools.maptool.mtscript.vm.MapToolVM;
+import net.rptools.maptool.mtscript.vm.MapToolVMPool;
+import net.rptools.maptool.mtscript.vm.VMGlobals;
+import net.rptools.maptool.mtscript.vm.values.IntegerType;
+import org.junit.jupiter.api.Test;
+
+public class VMPoolTests {
+
+  /// Tests that several VMs can be created on the same globals.
+  @Test
+  public void testSharedGlobals() {
+    var globals = new VMGlobals();
+    var compiler = new SExpressionCompiler(globals);
+    var code = compiler.compile("MT_VM_VERSION", "main");
+    assertEquals(new IntegerType(1), new MapToolVM(globals).exec(code));
+    assertEquals(new IntegerType(1), new MapToolVM(globals).exec(code));
+  }
+
+  /// Tests that a VM can be reused after a program fails part way through.
+  @Test
+  public void testReset() {
+    var globals = new VMGlobals();
+    globals.addBuiltInFunction(
+        "_test_fail",
+        1,
+        (vm, args) -> {
+          throw new RuntimeException("failed");
+        });
+    var vm = new MapToolVM(globals);
+    var compiler = new SExpressionCompiler(globals);
+    var failing = compiler.compile("(def f (n) (+ 1 (_test_fail n))) (+ 1 (f 2))", "main");
+    assertThrows(RuntimeException.class, () -> vm.exec(failing));
+    assertTrue(vm.getCallDepth() > 0 || !vm.getStack().isEmpty());
+    vm.reset();
+    assertEquals(0, vm.getCallDepth());
+    assertTrue(vm.getStack().isEmpty());
+    assertEquals(new IntegerType(3), vm.exec(compiler.compile("(+ 1 2)", "main")));
+  }
+
+  /// Tests that a released VM is reused, by the same platform thread and between virtual threads.
+  @Test
+  public void testPoolReuse() throws InterruptedException {
+    var globals = new VMGlobals();
+    var pool = new MapToolVMPool(globals, 2);
+    var vm = pool.acquire();
+    var other = pool.acquire();
+    assertNotSame(vm, other);
+    pool.release(vm);
+    pool.release(other);
+    assertSame(vm, pool.acquire());
+    assertSame(other, pool.acquire());
+
+    var released = new AtomicReference<MapToolVM>();
+    var acquired = new AtomicReference<MapToolVM>();
+    Thread.ofVirtual()
+        .start(
+            () -> {
+              var virtualVM = pool.acquire();
+              released.set(virtualVM);
+              pool.release(virtualVM);
+            })
+        .join();
+    Thread.ofVirtual().start(() -> acquired.set(pool.acquire())).join();
+    assertSame(released.get(), acquired.get());
+
+    var code = new SExpressionCompiler(globals).compile("(+ 1 2)", "main");
+    assertEquals(new IntegerType(3), pool.exec(code));
+  }
+}